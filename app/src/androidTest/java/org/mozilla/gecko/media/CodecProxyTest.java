@@ -0,0 +1,137 @@
+package org.mozilla.gecko.media;
+
+import android.media.MediaFormat;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+
+import org.mozilla.gecko.GeckoAppShell;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives codecs the service demuxes for through the in-process service, with
+ * {@link LoopbackCodec} outputting the samples it demuxed.
+ */
+public class CodecProxyTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 10000;
+    private static final int CLIP_FRAMES = 120; // One key frame, then P frames.
+
+    private final List<Long> mOutputs = Collections.synchronizedList(new ArrayList<Long>());
+    private final CountDownLatch mFirstOutput = new CountDownLatch(1);
+    private final CountDownLatch mEnded = new CountDownLatch(1);
+    private volatile CodecProxy.Error mError;
+    private ParcelFileDescriptor mClip;
+    private CodecProxy mCodec;
+
+    private final CodecProxy.Callbacks mCallbacks = new CodecProxy.Callbacks() {
+        @Override
+        public void onInputConsumed() {}
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {}
+
+        @Override
+        public void onOutput(Sample sample) {
+            if (sample.isEOS()) {
+                mEnded.countDown();
+                return;
+            }
+            mOutputs.add(sample.presentationTimeUs);
+            mFirstOutput.countDown();
+        }
+
+        @Override
+        public void onError(CodecProxy.Error error) {
+            mError = error;
+            mEnded.countDown();
+        }
+
+        @Override
+        public void onSeekCompleted(long presentationTimeUs) {}
+
+        @Override
+        public void onFramePacing(FramePacing pacing) {}
+
+        @Override
+        public void onPlaced(String codecName, boolean fallback, long waitedMs) {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        GeckoAppShell.setAppContext(getContext());
+        CodecProxy.setInProcess(true);
+        MediaService.setBackendFactory(
+                new LoopbackCodec.Factory(4, 1 << 20, 20000, LoopbackCodec.NO_ERROR));
+        mClip = ParcelFileDescriptor.open(copyClip(), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mCodec != null) {
+            mCodec.release();
+        }
+        mClip.close();
+        MediaService.setBackendFactory(MediaCodecBackend.FACTORY);
+        CodecProxy.setInProcess(false);
+        super.tearDown();
+    }
+
+    public void testFeedsEverySampleOfTheSource() throws InterruptedException {
+        mCodec = CodecProxy.createForSource(mClip, -1, null, mCallbacks);
+        assertNotNull(mCodec);
+        assertTrue(mEnded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(mError);
+        assertEquals(CLIP_FRAMES, mOutputs.size());
+        for (int i = 1; i < mOutputs.size(); i++) {
+            assertTrue(mOutputs.get(i) > mOutputs.get(i - 1));
+        }
+    }
+
+    public void testShowsKeyFramesOnlyInTrickPlay() throws InterruptedException {
+        mCodec = CodecProxy.createForSource(mClip, -1, null, mCallbacks);
+        assertNotNull(mCodec);
+        assertTrue(mFirstOutput.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(CodecProxy.Error.OK, mCodec.setPlaybackRate(16));
+        assertTrue(mEnded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(mError);
+        // Back to the only key frame, shown once, and no key frame after it.
+        assertTrue(mOutputs.size() < CLIP_FRAMES);
+        assertEquals(0, (long) mOutputs.get(mOutputs.size() - 1));
+    }
+
+    public void testReportsSourceErrors() throws InterruptedException {
+        mCodec = CodecProxy.createForSource(new File(getContext().getCacheDir(), "missing.mp4")
+                .getPath(), -1, null, mCallbacks);
+        assertNotNull(mCodec);
+        assertTrue(mEnded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(CodecProxy.Error.REMOTE_SOURCE, mError);
+    }
+
+    private File copyClip() throws IOException {
+        File file = new File(getContext().getCacheDir(), "codec-proxy-test.mp4");
+        InputStream in = getContext().getAssets().open(
+                DecoderRanking.clipPath(Mp4SampleTable.MIME_AVC, "sd"));
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,104 @@
+package org.mozilla.gecko.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.test.AndroidTestCase;
+
+import org.mozilla.gecko.GeckoAppShell;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a codec of the in-process service, with {@link LoopbackCodec}, across
+ * the death of its remote.
+ */
+public class CodecReconnectTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 10000;
+    private static final int FRAMES = 10;
+
+    private final Semaphore mOutputs = new Semaphore(0);
+    private final CountDownLatch mReconnected = new CountDownLatch(1);
+    private final CountDownLatch mEnded = new CountDownLatch(1);
+    private CodecProxy mCodec;
+
+    private final CodecProxy.Callbacks mCallbacks = new CodecProxy.Callbacks() {
+        @Override
+        public void onInputConsumed() {}
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {}
+
+        @Override
+        public void onOutput(Sample sample) {
+            if (sample.isEOS()) {
+                mEnded.countDown();
+            } else {
+                mOutputs.release();
+            }
+        }
+
+        @Override
+        public void onError(CodecProxy.Error error) {
+            if (error == CodecProxy.Error.REMOTE_DEAD) {
+                mReconnected.countDown();
+            }
+        }
+
+        @Override
+        public void onSeekCompleted(long presentationTimeUs) {}
+
+        @Override
+        public void onFramePacing(FramePacing pacing) {}
+
+        @Override
+        public void onPlaced(String codecName, boolean fallback, long waitedMs) {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        GeckoAppShell.setAppContext(getContext());
+        CodecProxy.setInProcess(true);
+        MediaService.setBackendFactory(
+                new LoopbackCodec.Factory(4, 64 * 1024, 1000, LoopbackCodec.NO_ERROR));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mCodec != null) {
+            mCodec.release();
+        }
+        MediaService.setBackendFactory(MediaCodecBackend.FACTORY);
+        CodecProxy.setInProcess(false);
+        super.tearDown();
+    }
+
+    public void testOutputsAfterReconnectingOnceFlushed() throws InterruptedException {
+        mCodec = CodecProxy.create(MediaFormat.createVideoFormat("video/avc", 320, 240),
+                null, mCallbacks);
+        assertNotNull(mCodec);
+        feed(0);
+        assertTrue(mOutputs.tryAcquire(FRAMES, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(CodecProxy.Error.OK, mCodec.flush());
+        feed(FRAMES);
+        assertTrue(mOutputs.tryAcquire(FRAMES, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        mCodec.binderDied(); // Reconnects to a new remote codec before returning.
+        assertTrue(mReconnected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        feed(2 * FRAMES);
+        assertEquals(CodecProxy.Error.OK,
+                mCodec.input(new Sample(null, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)));
+        assertTrue(mEnded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mOutputs.tryAcquire(FRAMES, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void feed(int first) {
+        Sample sample = new Sample(new byte[16], 0, 0);
+        for (int i = first; i < first + FRAMES; i++) {
+            sample.set(16, i * 33333L, 0);
+            assertEquals(CodecProxy.Error.OK, mCodec.input(sample));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.mozilla.gecko.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.test.AndroidTestCase;
+
+import org.mozilla.gecko.GeckoAppShell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Drives the tracks of a session through the in-process service and {@link LoopbackCodec}. */
+public class CodecSessionTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 10000;
+    private static final int FRAMES = 30;
+
+    /** Records the outputs of one track, until EOS. */
+    private static final class Recorder implements CodecProxy.Callbacks {
+        final List<Long> outputs = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch ended = new CountDownLatch(1);
+        volatile CodecProxy.Error error;
+
+        @Override
+        public void onInputConsumed() {}
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {}
+
+        @Override
+        public void onOutput(Sample sample) {
+            if (sample.isEOS()) {
+                ended.countDown();
+            } else {
+                outputs.add(sample.presentationTimeUs);
+            }
+        }
+
+        @Override
+        public void onError(CodecProxy.Error error) {
+            this.error = error;
+            ended.countDown();
+        }
+
+        @Override
+        public void onSeekCompleted(long presentationTimeUs) {}
+
+        @Override
+        public void onFramePacing(FramePacing pacing) {}
+
+        @Override
+        public void onPlaced(String codecName, boolean fallback, long waitedMs) {}
+    }
+
+    private CodecSession mSession;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        GeckoAppShell.setAppContext(getContext());
+        CodecProxy.setInProcess(true);
+        MediaService.setBackendFactory(
+                new LoopbackCodec.Factory(4, 64 * 1024, 1000, LoopbackCodec.NO_ERROR));
+        mSession = CodecSession.create(CodecPriority.REALTIME);
+        assertNotNull(mSession);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSession.release();
+        MediaService.setBackendFactory(MediaCodecBackend.FACTORY);
+        CodecProxy.setInProcess(false);
+        super.tearDown();
+    }
+
+    public void testFeedsEachTrackInOrder() throws InterruptedException {
+        Recorder audio = new Recorder();
+        Recorder video = new Recorder();
+        CodecSession.Track[] tracks = {
+            mSession.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm", 48000, 2), null, audio),
+            mSession.addTrack(MediaFormat.createVideoFormat("video/avc", 320, 240), null, video),
+        };
+        assertNotNull(tracks[0]);
+        assertNotNull(tracks[1]);
+        Sample[] batch = { new Sample(new byte[16], 0, 0), new Sample(new byte[64], 0, 0) };
+        for (int i = 0; i < FRAMES; i++) {
+            batch[0].set(16, i * 21333L, 0);
+            batch[1].set(64, i * 33333L, 0);
+            assertEquals(CodecProxy.Error.OK, mSession.input(tracks, batch));
+        }
+        for (CodecSession.Track track : tracks) {
+            track.input(new Sample(null, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM));
+        }
+
+        assertTrue(audio.ended.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(video.ended.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(audio.error);
+        assertNull(video.error);
+        assertEquals(FRAMES, audio.outputs.size());
+        assertEquals(FRAMES, video.outputs.size());
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(i * 21333L, (long) audio.outputs.get(i));
+            assertEquals(i * 33333L, (long) video.outputs.get(i));
+        }
+    }
+
+    public void testReleasesOneTrackOnly() throws InterruptedException {
+        Recorder released = new Recorder();
+        Recorder kept = new Recorder();
+        CodecSession.Track first = mSession.addTrack(
+                MediaFormat.createVideoFormat("video/avc", 320, 240), null, released);
+        CodecSession.Track second = mSession.addTrack(
+                MediaFormat.createVideoFormat("video/avc", 320, 240), null, kept);
+        assertEquals(CodecProxy.Error.OK, first.release());
+
+        Sample sample = new Sample(new byte[16], 0, 0);
+        for (int i = 0; i < FRAMES; i++) {
+            sample.set(16, i, 0);
+            second.input(sample);
+        }
+        second.input(new Sample(null, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM));
+        assertTrue(kept.ended.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(FRAMES, kept.outputs.size());
+        assertTrue(released.outputs.isEmpty());
+    }
+}
@@ -0,0 +1,121 @@
+package org.mozilla.gecko.media;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaFormat;
+import android.test.AndroidTestCase;
+import android.view.Surface;
+
+import org.mozilla.gecko.GeckoAppShell;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a codec through the in-process service and {@link LoopbackCodec}, and
+ * checks the startup timeline both halves report.
+ */
+public class CodecStartupTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 10000;
+    private static final int FRAMES = 5;
+
+    private final StartupTimeline mTimeline = new StartupTimeline();
+    private final CountDownLatch mReported = new CountDownLatch(1);
+    private SurfaceTexture mTexture;
+    private Surface mSurface;
+    private CodecProxy mCodec;
+
+    private final CodecProxy.Callbacks mCallbacks = new CodecProxy.Callbacks() {
+        @Override
+        public void onInputConsumed() {}
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {}
+
+        @Override
+        public void onOutput(Sample sample) {}
+
+        @Override
+        public void onError(CodecProxy.Error error) {}
+
+        @Override
+        public void onSeekCompleted(long presentationTimeUs) {}
+
+        @Override
+        public void onFramePacing(FramePacing pacing) {}
+
+        @Override
+        public void onPlaced(String codecName, boolean fallback, long waitedMs) {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        GeckoAppShell.setAppContext(getContext());
+        CodecProxy.setInProcess(true);
+        MediaService.setBackendFactory(
+                new LoopbackCodec.Factory(4, 64 * 1024, 1000, LoopbackCodec.NO_ERROR));
+        mTimeline.setListener(new StartupTimeline.Listener() {
+            @Override
+            public void onFirstFrame(StartupTimeline timeline) {
+                mReported.countDown();
+            }
+        });
+        mTexture = new SurfaceTexture(0);
+        mSurface = new Surface(mTexture);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mCodec != null) {
+            mCodec.release();
+        }
+        mSurface.release();
+        mTexture.release();
+        MediaService.setBackendFactory(MediaCodecBackend.FACTORY);
+        CodecProxy.setInProcess(false);
+        super.tearDown();
+    }
+
+    public void testReportsEveryMilestoneOnFirstRender() throws InterruptedException {
+        start(mSurface);
+        assertTrue(mReported.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        for (int m = 0; m < StartupTimeline.MILESTONE_COUNT; m++) {
+            // Configuration goes out with the creation: only the service marks it.
+            assertEquals(StartupTimeline.nameOf(m), m != StartupTimeline.CONFIGURED,
+                    mTimeline.isMarked(m));
+        }
+        int[] service = {
+            StartupTimeline.SVC_CREATED, StartupTimeline.SVC_CONFIGURED, StartupTimeline.SVC_STARTED,
+            StartupTimeline.SVC_FIRST_INPUT, StartupTimeline.SVC_FIRST_OUTPUT,
+            StartupTimeline.SVC_FIRST_RENDER,
+        };
+        for (int i = 1; i < service.length; i++) {
+            assertTrue(StartupTimeline.nameOf(service[i]),
+                    mTimeline.getNanos(service[i - 1]) <= mTimeline.getNanos(service[i]));
+        }
+        assertTrue(mTimeline.getNanos(StartupTimeline.START_SENT)
+                <= mTimeline.getNanos(StartupTimeline.SVC_CREATED));
+    }
+
+    public void testReportsOnFirstOutputWithoutSurface() throws InterruptedException {
+        start(null);
+        assertTrue(mReported.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertTrue(mTimeline.isMarked(StartupTimeline.FIRST_OUTPUT));
+        assertTrue(mTimeline.isMarked(StartupTimeline.SVC_FIRST_OUTPUT));
+        assertFalse(mTimeline.isMarked(StartupTimeline.SVC_FIRST_RENDER)); // Nothing renders.
+    }
+
+    private void start(Surface surface) {
+        mTimeline.mark(StartupTimeline.SESSION_START);
+        mCodec = CodecProxy.create(MediaFormat.createVideoFormat("video/avc", 320, 240),
+                surface, mCallbacks, mTimeline);
+        assertNotNull(mCodec);
+        Sample sample = new Sample(new byte[16], 0, 0);
+        for (int i = 0; i < FRAMES; i++) {
+            sample.set(16, i * 33333L, 0);
+            assertEquals(CodecProxy.Error.OK, mCodec.input(sample));
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the live instances of each decoder against the most it supports at
+ * once, so that a codec is placed on a decoder with room left instead of
+ * failing in the vendor code later. The last instance of a hardware decoder is
+ * kept for {@link CodecPriority#REALTIME} codecs. Codecs that found no room
+ * may {@link #await} the next {@link #release}. Thread safe.
+ * <p>
+ * Decoder instances are a device-wide resource, and the service runs in several
+ * processes. With a {@link #setLockDir lock directory}, instance {@code i} of a
+ * decoder is held by locking byte {@code i} of a file named after it, so every
+ * process counts those of the others, and the system drops the locks of a
+ * process that dies. Releases in other processes wake no waiters: these retry.
+ */
+/* package */ final class CodecAdmission {
+    private static final String LOG_TAG = CodecAdmission.class.getSimpleName();
+
+    /** Hardware instances lower priorities leave for realtime codecs. */
+    /* package */ static final int RESERVED_HARDWARE_INSTANCES = 1;
+    /** How often waiters try again, for releases in other processes. */
+    /* package */ static final long RETRY_MS = 500;
+    // Decoders allowing more are counted in this process only, e.g. LoopbackCodec.
+    private static final int MAX_LOCKED_INSTANCES = 64;
+
+    /** An instance of decoder {@link #name} admitted, until {@link #release}d. */
+    /* package */ static final class Slot {
+        final String name;
+        final boolean software;
+        private final int mIndex;
+        private final FileLock mLock; // Or null if counted in this process only.
+
+        Slot(String name, boolean software, int index, FileLock lock) {
+            this.name = name;
+            this.software = software;
+            mIndex = index;
+            mLock = lock;
+        }
+    }
+
+    private final Map<String, Integer> mMaxInstances = new HashMap<>(); // By name and mime.
+    private final Map<String, BitSet> mHeld = new HashMap<>(); // Instance indices by name.
+    private final Map<String, FileChannel> mLockFiles = new HashMap<>(); // By name.
+    private File mLockDir;
+    private final List<Runnable> mWaiters = new ArrayList<>(); // Best priority first.
+    private final List<Integer> mWaiterPriorities = new ArrayList<>();
+
+    /** Count instances with the other processes sharing {@code dir}. */
+    /* package */ synchronized void setLockDir(File dir) {
+        if (dir.isDirectory() || dir.mkdirs()) {
+            mLockDir = dir;
+        } else {
+            Log.w(LOG_TAG, "cannot create " + dir + ", count instances in this process only");
+        }
+    }
+
+    /**
+     * @param candidates decoder names of {@code factory}, best first.
+     * @param hardwareOnly leave software decoders out, unless there is no other.
+     * @return a slot on the first of {@code candidates} with room for a codec of
+     * {@code priority}, or null if all are full.
+     */
+    /* package */ synchronized Slot admit(CodecBackend.Factory factory, List<String> candidates,
+                                          String mime, int priority, boolean hardwareOnly) {
+        boolean hasHardware = false;
+        for (String name : candidates) {
+            hasHardware |= !factory.isSoftware(name);
+        }
+        for (String name : candidates) {
+            boolean software = factory.isSoftware(name);
+            if (software && hardwareOnly && hasHardware) {
+                continue;
+            }
+            int reserved = !software && priority != CodecPriority.REALTIME
+                    ? RESERVED_HARDWARE_INSTANCES : 0;
+            Slot slot = take(name, software, getMaxInstances(factory, name, mime), reserved);
+            if (slot != null) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    /** @return a free instance of {@code name} if more than {@code reserved} are free, or null. */
+    private Slot take(String name, boolean software, int max, int reserved) {
+        BitSet held = getHeld(name);
+        FileChannel file = max <= MAX_LOCKED_INSTANCES ? getLockFile(name) : null;
+        if (file == null) {
+            int live = held.cardinality();
+            return max - live > reserved ? hold(name, software, held.nextClearBit(0), null) : null;
+        }
+        // Lock every free instance to count them, keep the first.
+        List<FileLock> free = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < max; i++) {
+            if (held.get(i)) {
+                continue;
+            }
+            FileLock lock = tryLock(file, i);
+            if (lock != null) {
+                free.add(lock);
+                indices.add(i);
+            }
+        }
+        boolean room = free.size() > reserved;
+        for (int i = room ? 1 : 0; i < free.size(); i++) {
+            unlock(free.get(i));
+        }
+        return room ? hold(name, software, indices.get(0), free.get(0)) : null;
+    }
+
+    private Slot hold(String name, boolean software, int index, FileLock lock) {
+        getHeld(name).set(index);
+        return new Slot(name, software, index, lock);
+    }
+
+    /** @return the lock of instance {@code index}, or null if another process holds it. */
+    private static FileLock tryLock(FileChannel file, int index) {
+        try {
+            return file.tryLock(index, 1, false);
+        } catch (OverlappingFileLockException e) {
+            return null; // Another admission in this process, e.g. in tests.
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "cannot lock instance " + index, e);
+            return null;
+        }
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Give back {@code slot}, and let the waiters try again. */
+    /* package */ void release(Slot slot) {
+        List<Runnable> waiters;
+        synchronized (this) {
+            getHeld(slot.name).clear(slot.mIndex);
+            if (slot.mLock != null) {
+                unlock(slot.mLock);
+            }
+            waiters = new ArrayList<>(mWaiters);
+            mWaiters.clear();
+            mWaiterPriorities.clear();
+        }
+        for (Runnable waiter : waiters) {
+            waiter.run(); // Outside the lock: it may admit right away.
+        }
+    }
+
+    /** Run {@code waiter} once, at the next release, after those of better priority. */
+    /* package */ synchronized void await(Runnable waiter, int priority) {
+        int i = 0;
+        while (i < mWaiterPriorities.size() && mWaiterPriorities.get(i) <= priority) {
+            i++;
+        }
+        mWaiters.add(i, waiter);
+        mWaiterPriorities.add(i, priority);
+    }
+
+    /* package */ synchronized void cancel(Runnable waiter) {
+        int i = mWaiters.indexOf(waiter);
+        if (i >= 0) {
+            mWaiters.remove(i);
+            mWaiterPriorities.remove(i);
+        }
+    }
+
+    /* package */ synchronized int getWaiting() {
+        return mWaiters.size();
+    }
+
+    /** @return instances of {@code name} held in this process. */
+    /* package */ synchronized int getLive(String name) {
+        BitSet held = mHeld.get(name);
+        return held != null ? held.cardinality() : 0;
+    }
+
+    private BitSet getHeld(String name) {
+        BitSet held = mHeld.get(name);
+        if (held == null) {
+            held = new BitSet();
+            mHeld.put(name, held);
+        }
+        return held;
+    }
+
+    /** @return the file locked by instances of {@code name}, or null to count in this process. */
+    private FileChannel getLockFile(String name) {
+        if (mLockDir == null) {
+            return null;
+        }
+        FileChannel file = mLockFiles.get(name);
+        if (file == null) {
+            try {
+                // Kept open: closing it would drop every lock on it.
+                file = new RandomAccessFile(new File(mLockDir, name), "rw").getChannel();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "cannot open lock file of " + name, e);
+                return null;
+            }
+            mLockFiles.put(name, file);
+        }
+        return file;
+    }
+
+    private int getMaxInstances(CodecBackend.Factory factory, String name, String mime) {
+        String key = name + "/" + mime;
+        Integer max = mMaxInstances.get(key);
+        if (max == null) {
+            max = factory.getMaxInstances(name, mime);
+            mMaxInstances.put(key, max);
+        }
+        return max;
+    }
+}
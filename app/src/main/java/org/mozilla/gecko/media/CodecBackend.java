@@ -0,0 +1,65 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The part of {@link android.media.MediaCodec} used by {@link MediaService.Codec},
+ * in asynchronous mode, so it can run on a fake decoder.
+ */
+/* package */ interface CodecBackend {
+    /** Same as {@link android.media.MediaCodec.Callback}. Methods run on a thread of the backend. */
+    interface Callback {
+        void onInputBufferAvailable(int index);
+        void onOutputBufferAvailable(int index, long presentationTimeUs, int flags);
+        void onOutputFormatChanged(MediaFormat format);
+        void onError(Exception e);
+    }
+
+    /** Same as {@link android.media.MediaCodec.OnFrameRenderedListener}. */
+    interface FrameRenderedListener {
+        void onFrameRendered(long presentationTimeUs, long renderTimeNs);
+    }
+
+    interface Factory {
+        /** @return names of the decoders for {@code format}, best first; empty if none. */
+        List<String> findDecoders(MediaFormat format);
+        /** @return how many instances of decoder {@code name} may run at once for {@code mime}. */
+        int getMaxInstances(String name, String mime);
+        boolean isSoftware(String name);
+        /** @return decoder {@code name} from {@link #findDecoders}. */
+        CodecBackend create(String name) throws IOException;
+    }
+
+    String getName();
+    void setCallback(Callback callback);
+    /**
+     * Report frames as they reach the display, on {@code handler}.
+     * @return false if frames are not reported, e.g. before M.
+     */
+    boolean setOnFrameRenderedListener(FrameRenderedListener listener, Handler handler);
+    void configure(MediaFormat format, Surface surface, int flags);
+    void start();
+    void stop();
+    /**
+     * Drop all buffers and keep running: every input buffer is announced again,
+     * and indices the client holds are no longer valid.
+     */
+    void flush();
+    void reset();
+    void release();
+    ByteBuffer getInputBuffer(int index);
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+    void releaseOutputBuffer(int index, boolean render);
+    /** Render at {@code renderTimeNs} of {@link System#nanoTime()}, within a second from now. */
+    void releaseOutputBuffer(int index, long renderTimeNs);
+}
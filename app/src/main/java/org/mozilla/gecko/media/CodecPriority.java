@@ -0,0 +1,43 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+/**
+ * Urgency of a remote codec, chosen when it is configured. Codecs of the same
+ * class share a worker thread of matching priority in their service process.
+ */
+public final class CodecPriority {
+    /** Playback on screen. */
+    public static final int REALTIME = 0;
+    /** Decoding ahead of playback, e.g. the next item of a playlist. */
+    public static final int PREFETCH = 1;
+    /** Work nobody is waiting for, e.g. thumbnails. */
+    public static final int BACKGROUND = 2;
+    public static final int COUNT = 3;
+
+    private static final String[] NAMES = { "realtime", "prefetch", "background" };
+    // How late after its presentation time a sample may be fed to the codec.
+    private static final long[] SLACK_NS = { 50000000L, 1000000000L, 10000000000L };
+    // How long a codec may wait for a hardware decoder before taking a software one.
+    private static final long[] ADMISSION_WAIT_MS = { 0, 5000, 30000 };
+
+    private CodecPriority() {}
+
+    public static boolean isValid(int priority) {
+        return priority >= 0 && priority < COUNT;
+    }
+
+    public static String name(int priority) {
+        return NAMES[priority];
+    }
+
+    /* package */ static long slackNs(int priority) {
+        return SLACK_NS[priority];
+    }
+
+    /* package */ static long admissionWaitMs(int priority) {
+        return ADMISSION_WAIT_MS[priority];
+    }
+}
@@ -4,30 +4,69 @@
 
 package org.mozilla.gecko.media;
 
-import android.content.ComponentName;
-import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
 import android.media.MediaFormat;
+import android.os.Bundle;
 import android.os.DeadObjectException;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 import android.view.Surface;
 
-import org.mozilla.gecko.GeckoAppShell;
-
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-
-/** Proxy class of ICodec binder. */
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Proxy class of ICodec binder.
+ * <p>
+ * {@link #input(Sample)} takes no lock shared with control operations: it counts
+ * itself in an atomic state word while the proxy is active, and only inputs
+ * streaming a payload over the input channel serialize among themselves.
+ * Control operations and reconnection hold a separate lock, and release waits
+ * for the inputs in flight.
+ */
 public final class CodecProxy implements IBinder.DeathRecipient {
     private static final String LOG_TAG = CodecProxy.class.getSimpleName();
 
-    private ICodec mRemote;
-    private FormatParam mFormat;
+    // Low bits of the state word; the rest counts inputs in flight.
+    private static final int STATE_CONNECTING = 0; // Creating the remote codec, or again after its death.
+    private static final int STATE_ACTIVE = 1;
+    private static final int STATE_RELEASED = 2;
+    private static final int STATE_MASK = 3;
+    private static final int ONE_INPUT = STATE_MASK + 1;
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_CONNECTING);
+    private final ReentrantLock mControlLock = new ReentrantLock(); // For init, flush and release.
+    private final ReentrantLock mChannelLock = new ReentrantLock(); // For payloads over mInputChannel.
+    private final Object mInputsDone = new Object(); // Notified when the last input ends after release.
+    private volatile ICodec mRemote; // Written under mControlLock.
+    private volatile ServiceShard mShard; // Written under mControlLock.
+    private FormatParam mFormat; // Null for codecs fed by the service.
+    // Source the service demuxes for the codec, see createForSource(). Uri or fd is null.
+    private final String mSourceUri;
+    private final ParcelFileDescriptor mSourceFd;
+    private final int mSourceTrack;
     private Surface mOutputSurface;
     private CallbacksForwarder mCallbacks;
+    private final StartupTimeline mTimeline;
+    private final int mPriority;
+    private final String mClientToken; // Or null for the process as a whole.
+    private volatile SampleChannel.Writer mInputChannel; // Null if large samples must be parceled.
+    private volatile SampleTrace.Writer mTrace; // Recording inputs, or null.
+    private volatile boolean mInputSent;
+    private volatile boolean mLocal; // The remote codec is in this process.
+    private volatile int mEpoch; // Of samples sent from now on. Written under mControlLock.
+    private MediaClock mClock; // Access only under mControlLock.
+
+    // Contention metrics.
+    private final AtomicLong mInputContention = new AtomicLong();
+    private final AtomicLong mInputWaitNs = new AtomicLong();
+    private final AtomicLong mControlContention = new AtomicLong();
+    private final AtomicLong mControlWaitNs = new AtomicLong();
 
     private static final int ERROR_REMOTE_BASE = -1000;
     public enum Error {
@@ -35,14 +74,18 @@ public final class CodecProxy implements IBinder.DeathRecipient {
         REMOTE_DEAD(ERROR_REMOTE_BASE),
         REMOTE_CODEC_NOT_READY(ERROR_REMOTE_BASE + MediaService.Codec.ERROR_CODEC_NOT_READY),
         REMOTE_INPUT(ERROR_REMOTE_BASE + MediaService.Codec.ERROR_INPUT),
-        REMOTE_UNKNOWN(ERROR_REMOTE_BASE + MediaService.Codec.ERROR_UNKNOWN);
+        REMOTE_UNKNOWN(ERROR_REMOTE_BASE + MediaService.Codec.ERROR_UNKNOWN),
+        /** The source of a codec from createForSource() cannot be opened. */
+        REMOTE_SOURCE(ERROR_REMOTE_BASE + MediaService.Codec.ERROR_SOURCE);
 
-        private static Error translateRemote(int code) {
+        /* package */ static Error translateRemote(int code) {
             switch (code) {
                 case MediaService.Codec.ERROR_CODEC_NOT_READY:
                     return REMOTE_CODEC_NOT_READY;
                 case MediaService.Codec.ERROR_INPUT:
                     return REMOTE_INPUT;
+                case MediaService.Codec.ERROR_SOURCE:
+                    return REMOTE_SOURCE;
                 default:
                     return REMOTE_UNKNOWN;
             }
@@ -56,14 +99,30 @@ public final class CodecProxy implements IBinder.DeathRecipient {
         void onInputConsumed();
         void onOutputFormatChanged(MediaFormat format);
         void onOutput(Sample sample);
+        /**
+         * {@link Error#REMOTE_DEAD} once reconnected to a new remote codec after the
+         * service died, or {@link Error#RELEASED} if that failed and the codec ended.
+         */
         void onError(Error error);
+        /** The first frame at or after the target of {@link #seek(long)} is out. */
+        void onSeekCompleted(long presentationTimeUs);
+        /** How evenly the frames rendered since the last report reached the display. */
+        void onFramePacing(FramePacing pacing);
+        /**
+         * The service created the codec on decoder {@code codecName}, after waiting
+         * {@code waitedMs} for one with room. {@code fallback} if it is not the best
+         * decoder for the format, e.g. software because hardware ones are in use.
+         */
+        void onPlaced(String codecName, boolean fallback, long waitedMs);
     }
 
-    private static class CallbacksForwarder extends ICodecCallbacks.Stub {
+    private class CallbacksForwarder extends ICodecCallbacks.Stub {
         private final Callbacks mCallbacks;
+        private final StartupTimeline mTimeline;
 
-        CallbacksForwarder(Callbacks callbacks) {
+        CallbacksForwarder(Callbacks callbacks, StartupTimeline timeline) {
             mCallbacks = callbacks;
+            mTimeline = timeline;
         }
 
         @Override
@@ -78,6 +137,10 @@ public final class CodecProxy implements IBinder.DeathRecipient {
 
         @Override
         public void onOutput(Sample sample) throws RemoteException {
+            if (isStale(sample)) {
+                return; // Decoded before the last flush, which may already have seeked.
+            }
+            mTimeline.mark(StartupTimeline.FIRST_OUTPUT);
             mCallbacks.onOutput(sample);
         }
 
@@ -85,35 +148,48 @@ public final class CodecProxy implements IBinder.DeathRecipient {
         public void onError(int error) throws RemoteException {
             mCallbacks.onError(Error.translateRemote(error));
         }
-    }
 
-    private static IMediaService sCreator;
-    private static volatile CountDownLatch sServiceLatch;
-    private static ServiceConnection sConnection = new ServiceConnection() {
         @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            Log.d(LOG_TAG, "service connected latch:" + sServiceLatch);
-            sCreator = IMediaService.Stub.asInterface(service);
-            sServiceLatch.countDown();
+        public void onSeekCompleted(long presentationTimeUs, int skippedFrames) throws RemoteException {
+            mCallbacks.onSeekCompleted(presentationTimeUs);
         }
 
-        /**
-         * Called when a connection to the Service has been lost.  This typically
-         * happens when the process hosting the service has crashed or been killed.
-         * This does <em>not</em> remove the ServiceConnection itself -- this
-         * binding to the service will remain active, and you will receive a call
-         * to {@link #onServiceConnected} when the Service is next running.
-         *
-         * @param name The concrete component name of the service whose
-         *             connection has been lost.
-         */
         @Override
-        public void onServiceDisconnected(ComponentName name) {
-            Log.d(LOG_TAG, "service disconnected");
-            sCreator = null;
-            sServiceLatch.countDown();
+        public void onFramePacing(long[] pacing) throws RemoteException {
+            mCallbacks.onFramePacing(FramePacing.fromArray(pacing));
         }
-    };
+
+        @Override
+        public void onPlaced(String codecName, boolean fallback, long waitedMs)
+                throws RemoteException {
+            mCallbacks.onPlaced(codecName, fallback, waitedMs);
+        }
+
+        @Override
+        public void onStartupMilestones(long[] timestampsNs) throws RemoteException {
+            mTimeline.merge(timestampsNs);
+        }
+    }
+
+    private static final ServiceShard[] sShards = new ServiceShard[MediaService.SHARDS.length];
+    static {
+        for (int i = 0; i < sShards.length; i++) {
+            sShards[i] = new ServiceShard(i, MediaService.SHARDS[i]);
+        }
+    }
+    private static final ServiceShard sLocalShard = new ServiceShard(sShards.length, MediaService.Local.class);
+    // Set with setClientWeight(), sent again to services that restart. Guarded by itself.
+    private static final Map<String, Integer> sClientWeights = new HashMap<>();
+    private static volatile boolean sInProcess;
+
+    /**
+     * Host codecs created from now on in this process, e.g. in tests or on low-RAM
+     * devices, or in the pool of service processes. Codecs in this process share
+     * its fate, but skip marshaling: samples are copied instead of marshaled.
+     */
+    public static void setInProcess(boolean inProcess) {
+        sInProcess = inProcess;
+    }
 
     @Override
     public void binderDied() {
@@ -122,135 +198,682 @@ public final class CodecProxy implements IBinder.DeathRecipient {
     }
 
     public static CodecProxy create(MediaFormat format, Surface surface, Callbacks callbacks) {
-        if (!ensureCreator()) {
-            return null;
+        return create(format, surface, callbacks, new StartupTimeline());
+    }
+
+    /**
+     * Same as {@link #create(MediaFormat, Surface, Callbacks)}, recording startup
+     * milestones of both processes into {@code timeline}.
+     */
+    public static CodecProxy create(MediaFormat format, Surface surface, Callbacks callbacks,
+                                    StartupTimeline timeline) {
+        return create(format, surface, callbacks, timeline, CodecPriority.REALTIME);
+    }
+
+    /**
+     * Same as {@link #create(MediaFormat, Surface, Callbacks, StartupTimeline)}, for a
+     * codec of the given {@link CodecPriority} class.
+     */
+    public static CodecProxy create(MediaFormat format, Surface surface, Callbacks callbacks,
+                                    StartupTimeline timeline, int priority) {
+        return create(format, surface, callbacks, timeline, priority, null);
+    }
+
+    /**
+     * Same as {@link #create(MediaFormat, Surface, Callbacks, StartupTimeline, int)}, for
+     * client {@code clientToken} of this process, e.g. a tab. The service limits and
+     * shares out its resources by client, see {@link #setClientWeight}.
+     */
+    public static CodecProxy create(MediaFormat format, Surface surface, Callbacks callbacks,
+                                    StartupTimeline timeline, int priority, String clientToken) {
+        CodecProxy proxy = new CodecProxy(format, surface, callbacks, timeline, priority,
+                clientToken);
+        proxy.lockControl();
+        try {
+            return proxy.init() ? proxy : null;
+        } finally {
+            proxy.mControlLock.unlock();
         }
+    }
 
-        CodecProxy proxy = new CodecProxy(format, surface, callbacks);
-        if (proxy.init()) {
-            return proxy;
-        } else {
-            return null;
+    /**
+     * Create a codec for track {@code track} of the file or URL at {@code uri}, which
+     * the service demuxes itself, reading ahead: the only calls across processes are
+     * control ones. Such codecs take no {@link #input(Sample)}. A track of -1 is the
+     * first video track. The source is opened in the background: failing that is
+     * reported as {@link Error#REMOTE_SOURCE}.
+     */
+    public static CodecProxy createForSource(String uri, int track, Surface surface,
+                                             Callbacks callbacks) {
+        return createForSource(new CodecProxy(uri, null, track, surface, callbacks));
+    }
+
+    /**
+     * Same as {@link #createForSource(String, int, Surface, Callbacks)}, for a file
+     * opened by the caller, which keeps {@code fd} open until release.
+     */
+    public static CodecProxy createForSource(ParcelFileDescriptor fd, int track, Surface surface,
+                                             Callbacks callbacks) {
+        return createForSource(new CodecProxy(null, fd, track, surface, callbacks));
+    }
+
+    private static CodecProxy createForSource(CodecProxy proxy) {
+        proxy.lockControl();
+        try {
+            return proxy.init() ? proxy : null;
+        } finally {
+            proxy.mControlLock.unlock();
         }
     }
 
-    private CodecProxy(MediaFormat format, Surface surface, Callbacks callbacks) {
-        mFormat = new FormatParam(format);
+    private CodecProxy(MediaFormat format, Surface surface, Callbacks callbacks,
+                       StartupTimeline timeline, int priority, String clientToken) {
+        this(new FormatParam(format), null, null, -1, surface, callbacks, timeline, priority,
+                clientToken);
+    }
+
+    private CodecProxy(String uri, ParcelFileDescriptor fd, int track, Surface surface,
+                       Callbacks callbacks) {
+        this(null, uri, fd, track, surface, callbacks, new StartupTimeline(),
+                CodecPriority.REALTIME, null);
+    }
+
+    private CodecProxy(FormatParam format, String uri, ParcelFileDescriptor fd, int track,
+                       Surface surface, Callbacks callbacks, StartupTimeline timeline,
+                       int priority, String clientToken) {
+        mFormat = format;
+        mSourceUri = uri;
+        mSourceFd = fd;
+        mSourceTrack = track;
         mOutputSurface = surface;
-        mCallbacks = new CallbacksForwarder(callbacks);
+        mTimeline = timeline;
+        mPriority = priority;
+        mClientToken = clientToken;
+        mCallbacks = new CallbacksForwarder(callbacks, timeline);
+    }
+
+    public StartupTimeline getStartupTimeline() {
+        return mTimeline;
     }
 
-    private synchronized boolean init() {
+    /**
+     * Create and start the remote codec, and go active. Must hold mControlLock.
+     * <p>
+     * Takes a single transaction: the service configures and starts the codec
+     * after returning it, and reports failures through the callbacks.
+     */
+    private boolean init() {
         ICodec remote;
+        ParcelFileDescriptor[] pair = null;
 
+        closeInputChannel(); // Of a dead remote.
+        mEpoch = 0; // A new remote codec counts flushes from 0, and stamps its outputs so.
         try {
-            remote = sCreator.createCodec();
-            remote.setCallbacks(mCallbacks);
-            remote.configure(mFormat, mOutputSurface, 0);
-            remote.start();
+            mTimeline.mark(StartupTimeline.BIND_START);
+            // Counted on the shard until created, so placements meanwhile see this codec.
+            ServiceShard shard = placeCodec();
+            try {
+                IMediaService creator = shard.ensureConnected();
+                if (creator == null) {
+                    return false;
+                }
+                mTimeline.mark(StartupTimeline.BIND_DONE);
+                // A local binder is called directly: no transaction size limit to work around.
+                mLocal = creator instanceof IMediaService.Stub;
+                boolean fromSource = mFormat == null;
+                sendClientWeight(creator, mClientToken);
+                pair = mLocal || fromSource ? null : createChannelPair();
+                // Configuration and start go out with the creation.
+                mTimeline.mark(StartupTimeline.START_SENT);
+                try {
+                    remote = fromSource
+                            ? creator.createSourceCodec(mSourceUri, mSourceFd, mSourceTrack,
+                                    mOutputSurface, mCallbacks, 0, mPriority, mClientToken)
+                            : creator.createConfiguredCodec(mFormat, mOutputSurface, mCallbacks,
+                                    pair != null ? pair[1] : null, 0, mPriority, mClientToken);
+                } finally {
+                    if (pair != null) {
+                        closeQuietly(pair[1]); // The remote has its own copy.
+                    }
+                }
+            } finally {
+                endPlacement(shard);
+            }
+            mShard = shard;
+            if (remote == null) {
+                Log.e(LOG_TAG, "remote refused codec");
+                if (pair != null) {
+                    closeQuietly(pair[0]);
+                }
+                return false;
+            }
+            mTimeline.mark(StartupTimeline.CODEC_CREATED);
             remote.asBinder().linkToDeath(this, 0);
         } catch (RemoteException e) {
             e.printStackTrace();
+            if (pair != null) {
+                closeQuietly(pair[0]);
+            }
             return false;
         }
 
         mRemote = remote;
+        if (mClock != null) {
+            sendClock(remote);
+        }
+        mInputChannel = pair != null
+                ? new SampleChannel.Writer(new ParcelFileDescriptor.AutoCloseOutputStream(pair[0]))
+                : null;
+        if (!transition(STATE_CONNECTING, STATE_ACTIVE)) {
+            // Released meanwhile.
+            releaseRemote();
+            return false;
+        }
         return true;
     }
 
-    private static boolean ensureCreator() {
-        synchronized (sConnection) {
-            if (sCreator != null) {
+    /**
+     * Move from state {@code from} to {@code to}, keeping the count of inputs.
+     * @return false if not in state {@code from}.
+     */
+    private boolean transition(int from, int to) {
+        while (true) {
+            int word = mState.get();
+            if ((word & STATE_MASK) != from) {
+                return false;
+            }
+            if (mState.compareAndSet(word, (word & ~STATE_MASK) | to)) {
                 return true;
             }
+        }
+    }
 
-            Context appCtxt = GeckoAppShell.getApplicationContext();
-            appCtxt.bindService(new Intent(appCtxt, MediaService.class),
-                    sConnection, Context.BIND_AUTO_CREATE);
-            try {
-                sServiceLatch = new CountDownLatch(1);
-                while (true) {
-                    Log.d(LOG_TAG, "waiting for creator... latch:" + sServiceLatch);
-                    sServiceLatch.await(1, TimeUnit.SECONDS);
-                    if (sServiceLatch.getCount() == 0) {
-                        break;
-                    }
-                    Log.e(LOG_TAG, "Creator not connected in 1s. Try again.");
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                appCtxt.unbindService(sConnection);
-                return false;
+    /** @return the state, having counted an input in flight if it is active. */
+    private int beginInput() {
+        while (true) {
+            int word = mState.get();
+            int state = word & STATE_MASK;
+            if (state != STATE_ACTIVE || mState.compareAndSet(word, word + ONE_INPUT)) {
+                return state;
+            }
+            mInputContention.incrementAndGet(); // Another input or a state change got in first.
+        }
+    }
+
+    private void endInput() {
+        if (mState.addAndGet(-ONE_INPUT) == STATE_RELEASED) {
+            synchronized (mInputsDone) {
+                mInputsDone.notifyAll();
             }
+        }
+    }
+
+    private void lockControl() {
+        if (mControlLock.tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        mControlLock.lock();
+        mControlContention.incrementAndGet();
+        mControlWaitNs.addAndGet(System.nanoTime() - start);
+    }
 
-            return true;
+    private void lockChannel() {
+        if (mChannelLock.tryLock()) {
+            return;
         }
+        long start = System.nanoTime();
+        mChannelLock.lock();
+        mInputContention.incrementAndGet();
+        mInputWaitNs.addAndGet(System.nanoTime() - start);
     }
 
-    private synchronized void handleRemoteDeath() {
-        sServiceLatch = new CountDownLatch(1);
+    /** @return the write and read ends of a new input channel, or null. */
+    /* package */ static ParcelFileDescriptor[] createChannelPair() {
         try {
-            sServiceLatch.await();
-        } catch (InterruptedException e) {
+            return ParcelFileDescriptor.createSocketPair();
+        } catch (IOException e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void closeInputChannel() {
+        SampleChannel.Writer channel = mInputChannel;
+        mInputChannel = null;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* package */ static void closeQuietly(ParcelFileDescriptor fd) {
+        try {
+            fd.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Give client {@code clientToken} of this process {@code weight} shares of the
+     * service workers when clients compete for them, e.g. more for the tab on
+     * screen. 100 is the default.
+     */
+    public static void setClientWeight(String clientToken, int weight) {
+        synchronized (sClientWeights) {
+            sClientWeights.put(clientToken, weight);
+            for (ServiceShard shard : sShards) {
+                IMediaService service = shard.getConnected();
+                if (service != null) {
+                    sendClientWeight(service, clientToken);
+                }
+            }
+            IMediaService local = sLocalShard.getConnected();
+            if (local != null) {
+                sendClientWeight(local, clientToken);
+            }
+        }
+    }
+
+    /**
+     * Tell {@code service} the weight of {@code clientToken}, if set. Holds
+     * sClientWeights, so weights arrive in the order they were set.
+     */
+    /* package */ static void sendClientWeight(IMediaService service, String clientToken) {
+        synchronized (sClientWeights) {
+            Integer weight = sClientWeights.get(clientToken);
+            if (weight == null) {
+                return;
+            }
+            try {
+                service.setClientWeight(clientToken, weight);
+            } catch (RemoteException e) {
+                e.printStackTrace(); // It will be sent again with the next codec.
+            }
+        }
+    }
+
+    /**
+     * Connect to the least loaded service process for a {@link CodecSession} of
+     * client {@code clientToken}, and tell it the weight of the client.
+     * @return the service, or null.
+     */
+    /* package */ static IMediaService connectSession(String clientToken) {
+        ServiceShard shard = placeCodec();
+        try {
+            IMediaService service = shard.ensureConnected();
+            if (service != null) {
+                sendClientWeight(service, clientToken);
+            }
+            return service;
+        } finally {
+            endPlacement(shard);
         }
+    }
 
-        ensureCreator();
+    /**
+     * Pick the least loaded service process for a new codec, and count it there
+     * until {@link #endPlacement}. Queries the processes without holding sShards,
+     * the placement lock, which only guards the choice.
+     */
+    private static ServiceShard placeCodec() {
+        if (sInProcess) {
+            synchronized (sShards) {
+                sLocalShard.beginPlacement();
+            }
+            return sLocalShard;
+        }
+        Bundle[] stats = new Bundle[sShards.length];
+        for (int i = 0; i < sShards.length; i++) {
+            stats[i] = sShards[i].fetchStats();
+        }
+        synchronized (sShards) {
+            ServiceShard best = null;
+            for (int i = 0; i < sShards.length; i++) {
+                ServiceShard shard = sShards[i];
+                if (!shard.updateLoad(stats[i])) {
+                    continue; // Dead or dying.
+                }
+                if (best == null || shard.isLessLoadedThan(best)) {
+                    best = shard;
+                }
+            }
+            if (best == null) {
+                // Every process is restarting. Wait for the first one to come back.
+                best = sShards[0];
+            }
+            best.beginPlacement();
+            Log.d(LOG_TAG, "place codec on " + best);
+            return best;
+        }
+    }
 
-        init();
+    /** The codec placed on {@code shard} was created, or failed to. */
+    private static void endPlacement(ServiceShard shard) {
+        synchronized (sShards) {
+            shard.endPlacement();
+        }
+    }
+
+    private void handleRemoteDeath() {
+        if (!transition(STATE_ACTIVE, STATE_CONNECTING)) {
+            return; // Released.
+        }
+        // Only codecs placed on the same process are affected. Wait until the
+        // connection notices, so the dead process is not picked again. Inputs
+        // fail fast meanwhile. A codec in this process only dies with it, or in tests.
+        if (!mLocal) {
+            mShard.awaitDisconnect();
+        }
+
+        boolean reconnected;
+        lockControl();
+        try {
+            if ((mState.get() & STATE_MASK) == STATE_RELEASED) {
+                return;
+            }
+            mRemote = null; // Dead; calls fail fast rather than reach it.
+            reconnected = init();
+            if (!reconnected && !transition(STATE_CONNECTING, STATE_RELEASED)) {
+                return; // Released meanwhile.
+            }
+        } finally {
+            mControlLock.unlock();
+        }
 
-        mCallbacks.mCallbacks.onError(Error.REMOTE_DEAD);
+        if (!reconnected) {
+            Log.e(LOG_TAG, "cannot reconnect, codec ended");
+        }
+        mCallbacks.mCallbacks.onError(reconnected ? Error.REMOTE_DEAD : Error.RELEASED);
     }
 
-    public synchronized Error input(Sample sample) {
-        if (mRemote == null) {
+    public Error input(Sample sample) {
+        int state = beginInput();
+        if (state == STATE_RELEASED) {
             Log.e(LOG_TAG, "cannot send input to an ended codec");
             return Error.RELEASED;
+        } else if (state == STATE_CONNECTING) {
+            return Error.REMOTE_DEAD; // Until reconnected.
+        }
+        ICodec remote = mRemote;
+        SampleChannel.Writer channel = mInputChannel;
+        boolean detach = channel != null && SampleChannel.isOversized(sample);
+        if (detach) {
+            // Payloads must follow on the channel in the order of their samples.
+            lockChannel();
         }
         try {
-            mRemote.inputSample(sample);
+            // Send the metadata first: the remote reads the payload once it receives them,
+            // and the channel buffer is much smaller than a large frame.
+            sample.detached = detach;
+            sample.epoch = mEpoch;
+            // The local codec keeps what it gets, while the caller may reuse the sample
+            // once this returns. One copy still beats parceling it out and back.
+            remote.inputSample(mLocal ? sample.copy() : sample);
+            if (detach) {
+                channel.write(sample);
+            }
+            if (!mInputSent) {
+                mInputSent = true;
+                mTimeline.mark(StartupTimeline.FIRST_INPUT_SENT);
+            }
+            SampleTrace.Writer trace = mTrace;
+            if (trace != null) {
+                record(trace, sample);
+            }
         } catch (DeadObjectException e) {
             return Error.REMOTE_DEAD;
         } catch (RemoteException e) {
             e.printStackTrace();
             Log.e(LOG_TAG, "fail to input sample:" + sample);
             return Error.REMOTE_INPUT;
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(LOG_TAG, "fail to stream sample:" + sample);
+            if (mInputChannel == channel) {
+                closeInputChannel(); // Out of sync with the remote.
+            }
+            return remote.asBinder().isBinderAlive() ? Error.REMOTE_INPUT : Error.REMOTE_DEAD;
+        } finally {
+            sample.detached = false;
+            if (detach) {
+                mChannelLock.unlock();
+            }
+            endInput();
         }
         return Error.OK;
     }
 
-    public synchronized Error flush() {
-        if (mRemote == null) {
-            Log.e(LOG_TAG, "cannot flush an ended codec");
-            return Error.RELEASED;
+    /**
+     * Time rendering by {@code clock}, which the caller keeps up to date: frames are
+     * shown when it reaches them and dropped when late, without asking this process.
+     * Frames are shown once decoded if null, or while the clock is stopped.
+     */
+    public Error setClock(MediaClock clock) {
+        lockControl();
+        try {
+            mClock = clock;
+            int state = mState.get() & STATE_MASK;
+            if (state == STATE_RELEASED) {
+                return Error.RELEASED;
+            } else if (state == STATE_CONNECTING) {
+                return Error.OK; // Sent on reconnection.
+            }
+            return sendClock(mRemote);
+        } finally {
+            mControlLock.unlock();
+        }
+    }
+
+    /** Must hold mControlLock. */
+    private Error sendClock(ICodec remote) {
+        ParcelFileDescriptor page = null;
+        try {
+            page = mClock != null ? mClock.getSharedDescriptor().dup() : null;
+            return remote.setClock(page) ? Error.OK : Error.REMOTE_UNKNOWN;
+        } catch (DeadObjectException e) {
+            return Error.REMOTE_DEAD;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return Error.REMOTE_UNKNOWN;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Error.REMOTE_UNKNOWN;
+        } finally {
+            if (page != null && !mLocal) {
+                closeQuietly(page); // The remote has its own copy; a local one closes this.
+            }
+        }
+    }
+
+    /**
+     * Record every sample sent from now on into {@code trace}, e.g. for
+     * {@link TraceReplay}, or stop recording when null. The caller closes it.
+     */
+    public void setTraceRecorder(SampleTrace.Writer trace) {
+        mTrace = trace;
+    }
+
+    private void record(SampleTrace.Writer trace, Sample sample) {
+        try {
+            synchronized (trace) { // Inputs may come from several threads.
+                trace.write(sample, System.nanoTime());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(LOG_TAG, "stop recording trace");
+            if (mTrace == trace) {
+                mTrace = null;
+            }
         }
+    }
+
+    /**
+     * Drop samples sent so far, wherever they are in the remote codec. Returns
+     * without waiting: samples sent after this returns are the next to decode.
+     */
+    public Error flush() {
+        return flush(MediaService.Codec.NO_SEEK_TARGET);
+    }
+
+    /**
+     * Same as {@link #flush()}, for samples from the sync sample before {@code targetUs}:
+     * frames before it are decoded but not rendered, and
+     * {@link Callbacks#onSeekCompleted(long)} reports the first one that is.
+     */
+    public Error seek(long targetUs) {
+        return flush(targetUs);
+    }
+
+    /**
+     * @return whether {@code output}, from {@link Callbacks#onOutput}, was decoded before
+     * the last {@link #flush()} or {@link #seek}, e.g. while its callback was queued.
+     */
+    public boolean isStale(Sample output) {
+        return output.epoch - mEpoch < 0;
+    }
+
+    private Error flush(long seekTargetUs) {
+        lockControl();
         try {
-            mRemote.flush();
+            int state = mState.get() & STATE_MASK;
+            if (state == STATE_RELEASED) {
+                Log.e(LOG_TAG, "cannot flush an ended codec");
+                return Error.RELEASED;
+            } else if (state == STATE_CONNECTING) {
+                return Error.REMOTE_DEAD;
+            }
+            int epoch = mEpoch + 1;
+            mRemote.flush(epoch, seekTargetUs);
+            mEpoch = epoch;
         } catch (DeadObjectException e) {
             return Error.REMOTE_DEAD;
         } catch (RemoteException e) {
             e.printStackTrace();
             return Error.REMOTE_UNKNOWN;
+        } finally {
+            mControlLock.unlock();
         }
         return Error.OK;
     }
 
-    public synchronized Error release() {
-        if (mRemote == null) {
-            Log.d(LOG_TAG, "codec already ended");
-            return Error.OK;
+    /**
+     * Play at {@code rate} times normal speed from the last frame output, showing key
+     * frames only unless 1, backwards if negative. Only for codecs from createForSource().
+     */
+    public Error setPlaybackRate(int rate) {
+        if (mFormat != null || rate == 0) {
+            return Error.REMOTE_INPUT;
         }
+        lockControl();
         try {
-            mRemote.stop();
-            mRemote.release();
-            mRemote.asBinder().unlinkToDeath(this, 0);
-            mRemote = null;
+            int state = mState.get() & STATE_MASK;
+            if (state == STATE_RELEASED) {
+                return Error.RELEASED;
+            } else if (state == STATE_CONNECTING) {
+                return Error.REMOTE_DEAD;
+            }
+            mRemote.setPlaybackRate(rate);
         } catch (DeadObjectException e) {
             return Error.REMOTE_DEAD;
         } catch (RemoteException e) {
             e.printStackTrace();
             return Error.REMOTE_UNKNOWN;
+        } finally {
+            mControlLock.unlock();
         }
         return Error.OK;
     }
-}
\ No newline at end of file
+
+    public Error release() {
+        int word;
+        do {
+            word = mState.get();
+            if ((word & STATE_MASK) == STATE_RELEASED) {
+                Log.d(LOG_TAG, "codec already ended");
+                return Error.OK;
+            }
+        } while (!mState.compareAndSet(word, (word & ~STATE_MASK) | STATE_RELEASED));
+
+        lockControl();
+        try {
+            awaitInputs();
+            return releaseRemote();
+        } finally {
+            mControlLock.unlock();
+            Log.d(LOG_TAG, "released, input contention " + getInputContentionCount() + "/"
+                    + getInputWaitNs() / 1000 + "us, control contention "
+                    + getControlContentionCount() + "/" + getControlWaitNs() / 1000 + "us");
+        }
+    }
+
+    /** Wait until the inputs that started before release are done. */
+    private void awaitInputs() {
+        if ((mState.get() & ~STATE_MASK) == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        synchronized (mInputsDone) {
+            // Only oneway calls, or a payload the remote is reading.
+            while ((mState.get() & ~STATE_MASK) != 0) {
+                try {
+                    mInputsDone.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; // The remote must not be released under an input.
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mControlContention.incrementAndGet();
+        mControlWaitNs.addAndGet(System.nanoTime() - start);
+    }
+
+    /** Must hold mControlLock. */
+    private Error releaseRemote() {
+        ICodec remote = mRemote;
+        mRemote = null;
+        closeInputChannel();
+        if (remote == null) {
+            return Error.OK; // Reconnection failed.
+        }
+        try {
+            remote.stop();
+            remote.release();
+            remote.asBinder().unlinkToDeath(this, 0);
+        } catch (DeadObjectException e) {
+            return Error.REMOTE_DEAD;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return Error.REMOTE_UNKNOWN;
+        }
+        return Error.OK;
+    }
+
+    /** @return how many times an input waited for another input or retried its start. */
+    public long getInputContentionCount() {
+        return mInputContention.get();
+    }
+
+    /** @return total time inputs waited for each other. */
+    public long getInputWaitNs() {
+        return mInputWaitNs.get();
+    }
+
+    /** @return how many times a control operation waited for another one or for inputs. */
+    public long getControlContentionCount() {
+        return mControlContention.get();
+    }
+
+    /** @return total time control operations waited. */
+    public long getControlWaitNs() {
+        return mControlWaitNs.get();
+    }
+}
@@ -0,0 +1,417 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.media.MediaFormat;
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Codecs of the tracks of one playback, e.g. audio and video, in one service
+ * process. Compared to a {@link CodecProxy} per track, the tracks share one
+ * callback binder, one death link, one input channel and one service worker
+ * thread, and {@link #input(Track[], Sample[])} sends samples of several
+ * tracks in a single transaction, each tagged with the ID of its track.
+ * Samples reach the codecs in the order sent, across tracks.
+ * <p>
+ * Unlike {@link CodecProxy}, a session does not reconnect when the service
+ * dies: every track reports {@link CodecProxy.Error#REMOTE_DEAD}, and the
+ * caller creates a new session.
+ */
+public final class CodecSession implements IBinder.DeathRecipient {
+    private static final String LOG_TAG = CodecSession.class.getSimpleName();
+
+    /** One track of the session. */
+    public final class Track {
+        private final int mId;
+        private final CodecProxy.Callbacks mCallbacks;
+        private volatile int mEpoch; // Of samples sent from now on.
+
+        private Track(int id, CodecProxy.Callbacks callbacks) {
+            mId = id;
+            mCallbacks = callbacks;
+        }
+
+        /** Same as {@link CodecProxy#input(Sample)}. */
+        public CodecProxy.Error input(Sample sample) {
+            return CodecSession.this.input(this, sample);
+        }
+
+        /** Same as {@link CodecProxy#flush()}. */
+        public CodecProxy.Error flush() {
+            return flush(MediaService.Codec.NO_SEEK_TARGET);
+        }
+
+        /** Same as {@link CodecProxy#seek(long)}. */
+        public CodecProxy.Error seek(long targetUs) {
+            return flush(targetUs);
+        }
+
+        private synchronized CodecProxy.Error flush(long seekTargetUs) {
+            if (mReleased) {
+                return CodecProxy.Error.RELEASED;
+            }
+            try {
+                int epoch = mEpoch + 1;
+                mRemote.flush(mId, epoch, seekTargetUs);
+                mEpoch = epoch;
+            } catch (DeadObjectException e) {
+                return CodecProxy.Error.REMOTE_DEAD;
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                return CodecProxy.Error.REMOTE_UNKNOWN;
+            }
+            return CodecProxy.Error.OK;
+        }
+
+        /** Pass on {@code output} unless it was decoded before the last flush. */
+        private void output(Sample output) {
+            if (output.epoch - mEpoch < 0) {
+                return; // The flush may already have seeked.
+            }
+            mCallbacks.onOutput(output);
+        }
+
+        /** Release the codec of this track only. */
+        public CodecProxy.Error release() {
+            if (mReleased) {
+                return CodecProxy.Error.OK;
+            }
+            try {
+                mRemote.removeTrack(mId);
+            } catch (DeadObjectException e) {
+                return CodecProxy.Error.REMOTE_DEAD;
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                return CodecProxy.Error.REMOTE_UNKNOWN;
+            }
+            synchronized (CodecSession.this) {
+                mTracks[mId] = null;
+            }
+            return CodecProxy.Error.OK;
+        }
+    }
+
+    private final class CallbacksForwarder extends ISessionCallbacks.Stub {
+        @Override
+        public void onInputConsumed(int track) throws RemoteException {
+            CodecProxy.Callbacks callbacks = getCallbacks(track);
+            if (callbacks != null) {
+                callbacks.onInputConsumed();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(int track, FormatParam format) throws RemoteException {
+            CodecProxy.Callbacks callbacks = getCallbacks(track);
+            if (callbacks != null) {
+                callbacks.onOutputFormatChanged(format.asFormat());
+            }
+        }
+
+        @Override
+        public void onOutput(int track, Sample sample) throws RemoteException {
+            Track target = getTrack(track);
+            if (target != null) {
+                target.output(sample);
+            }
+        }
+
+        @Override
+        public void onError(int track, int error) throws RemoteException {
+            CodecProxy.Callbacks callbacks = getCallbacks(track);
+            if (callbacks != null) {
+                callbacks.onError(CodecProxy.Error.translateRemote(error));
+            }
+        }
+
+        @Override
+        public void onSeekCompleted(int track, long presentationTimeUs, int skippedFrames)
+                throws RemoteException {
+            CodecProxy.Callbacks callbacks = getCallbacks(track);
+            if (callbacks != null) {
+                callbacks.onSeekCompleted(presentationTimeUs);
+            }
+        }
+
+        @Override
+        public void onFramePacing(int track, long[] pacing) throws RemoteException {
+            CodecProxy.Callbacks callbacks = getCallbacks(track);
+            if (callbacks != null) {
+                callbacks.onFramePacing(FramePacing.fromArray(pacing));
+            }
+        }
+
+        @Override
+        public void onPlaced(int track, String codecName, boolean fallback, long waitedMs)
+                throws RemoteException {
+            CodecProxy.Callbacks callbacks = getCallbacks(track);
+            if (callbacks != null) {
+                callbacks.onPlaced(codecName, fallback, waitedMs);
+            }
+        }
+    }
+
+    private final CallbacksForwarder mForwarder = new CallbacksForwarder();
+    private final ReentrantLock mChannelLock = new ReentrantLock(); // For payloads over mInputChannel.
+    private ICodecSession mRemote; // Set once before the session is handed out.
+    private boolean mLocal; // The remote session is in this process.
+    private volatile SampleChannel.Writer mInputChannel; // Null if large samples must be parceled.
+    private Track[] mTracks = new Track[0]; // Indexed by ID. Guarded by this.
+    private volatile boolean mReleased;
+
+    /**
+     * @param priority one of the {@link CodecPriority} classes, for every track.
+     * @return a session in the least loaded service process, or null.
+     */
+    public static CodecSession create(int priority) {
+        return create(priority, null);
+    }
+
+    /**
+     * Same as {@link #create(int)}, for client {@code clientToken} of this process,
+     * as for {@link CodecProxy#create(MediaFormat, Surface, CodecProxy.Callbacks,
+     * StartupTimeline, int, String)}.
+     */
+    public static CodecSession create(int priority, String clientToken) {
+        CodecSession session = new CodecSession();
+        return session.connect(priority, clientToken) ? session : null;
+    }
+
+    private CodecSession() {}
+
+    private boolean connect(int priority, String clientToken) {
+        IMediaService service = CodecProxy.connectSession(clientToken);
+        if (service == null) {
+            return false;
+        }
+        // A local binder is called directly: no transaction size limit to work around.
+        mLocal = service instanceof IMediaService.Stub;
+        ParcelFileDescriptor[] pair = mLocal ? null : CodecProxy.createChannelPair();
+        try {
+            try {
+                mRemote = service.createSession(mForwarder, pair != null ? pair[1] : null, priority,
+                        clientToken);
+            } finally {
+                if (pair != null) {
+                    CodecProxy.closeQuietly(pair[1]); // The remote has its own copy.
+                }
+            }
+            if (mRemote == null) {
+                Log.e(LOG_TAG, "remote refused session");
+            } else {
+                mRemote.asBinder().linkToDeath(this, 0);
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            mRemote = null;
+        }
+        if (mRemote == null) {
+            if (pair != null) {
+                CodecProxy.closeQuietly(pair[0]);
+            }
+            return false;
+        }
+        if (pair != null) {
+            mInputChannel = new SampleChannel.Writer(new ParcelFileDescriptor.AutoCloseOutputStream(pair[0]));
+        }
+        return true;
+    }
+
+    /**
+     * Create, configure and start the codec of a new track. Like
+     * {@link CodecProxy#create}, failures to create the codec are reported later to
+     * {@code callbacks}.
+     * @return the track, or null.
+     */
+    public synchronized Track addTrack(MediaFormat format, Surface surface,
+                                       CodecProxy.Callbacks callbacks) {
+        if (mReleased) {
+            return null;
+        }
+        int id;
+        try {
+            id = mRemote.addTrack(new FormatParam(format), surface, 0);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (id < 0) {
+            return null;
+        }
+        if (id >= mTracks.length) {
+            mTracks = Arrays.copyOf(mTracks, id + 1);
+        }
+        Track track = new Track(id, callbacks);
+        mTracks[id] = track;
+        return track;
+    }
+
+    private synchronized Track getTrack(int track) {
+        return track >= 0 && track < mTracks.length ? mTracks[track] : null;
+    }
+
+    private CodecProxy.Callbacks getCallbacks(int track) {
+        Track target = getTrack(track);
+        return target != null ? target.mCallbacks : null;
+    }
+
+    /** Send {@code sample} to {@code track}. The sample may be reused once this returns. */
+    private CodecProxy.Error input(Track track, Sample sample) {
+        if (mReleased) {
+            Log.e(LOG_TAG, "cannot send input to an ended session");
+            return CodecProxy.Error.RELEASED;
+        }
+        SampleChannel.Writer channel = mInputChannel;
+        boolean detach = tag(track, sample, channel);
+        if (detach) {
+            mChannelLock.lock();
+        }
+        try {
+            // The local codecs keep what they get; see CodecProxy#input(Sample).
+            mRemote.inputSample(mLocal ? sample.copy() : sample);
+            if (detach) {
+                channel.write(sample);
+            }
+        } catch (RemoteException | IOException e) {
+            return onInputError(e, channel);
+        } finally {
+            sample.detached = false;
+            if (detach) {
+                mChannelLock.unlock();
+            }
+        }
+        return CodecProxy.Error.OK;
+    }
+
+    /**
+     * Send {@code samples[i]} to {@code tracks[i]}, all in one transaction. They
+     * reach the codecs in array order. The samples may be reused once this returns.
+     */
+    public CodecProxy.Error input(Track[] tracks, Sample[] samples) {
+        if (mReleased) {
+            Log.e(LOG_TAG, "cannot send input to an ended session");
+            return CodecProxy.Error.RELEASED;
+        }
+        SampleChannel.Writer channel = mInputChannel;
+        Sample[] sent = mLocal ? new Sample[samples.length] : samples;
+        boolean detach = false;
+        for (int i = 0; i < samples.length; i++) {
+            detach |= tag(tracks[i], samples[i], channel);
+            if (mLocal) {
+                sent[i] = samples[i].copy();
+            }
+        }
+        if (detach) {
+            // Payloads must follow on the channel in the order of their samples.
+            mChannelLock.lock();
+        }
+        try {
+            // Send the metadata first: the remote reads the payloads once it receives them.
+            mRemote.inputSamples(sent);
+            if (detach) {
+                for (Sample sample : samples) {
+                    if (sample.detached) {
+                        channel.write(sample);
+                    }
+                }
+            }
+        } catch (RemoteException | IOException e) {
+            return onInputError(e, channel);
+        } finally {
+            for (Sample sample : samples) {
+                sample.detached = false;
+            }
+            if (detach) {
+                mChannelLock.unlock();
+            }
+        }
+        return CodecProxy.Error.OK;
+    }
+
+    /** @return whether the payload of {@code sample} goes over {@code channel}. */
+    private static boolean tag(Track track, Sample sample, SampleChannel.Writer channel) {
+        sample.track = track.mId;
+        sample.epoch = track.mEpoch;
+        sample.detached = channel != null && SampleChannel.isOversized(sample);
+        return sample.detached;
+    }
+
+    private CodecProxy.Error onInputError(Exception e, SampleChannel.Writer channel) {
+        if (e instanceof DeadObjectException) {
+            return CodecProxy.Error.REMOTE_DEAD;
+        }
+        e.printStackTrace();
+        if (e instanceof RemoteException) {
+            return CodecProxy.Error.REMOTE_INPUT;
+        }
+        Log.e(LOG_TAG, "fail to stream samples");
+        if (mInputChannel == channel) {
+            closeInputChannel(); // Out of sync with the remote: parcel payloads from now on.
+        }
+        return mRemote.asBinder().isBinderAlive() ? CodecProxy.Error.REMOTE_INPUT
+                : CodecProxy.Error.REMOTE_DEAD;
+    }
+
+    /** Release the codecs of all tracks. */
+    public CodecProxy.Error release() {
+        synchronized (this) {
+            if (mReleased) {
+                return CodecProxy.Error.OK;
+            }
+            mReleased = true;
+        }
+        mChannelLock.lock(); // Let payloads being written finish.
+        try {
+            mRemote.release();
+            mRemote.asBinder().unlinkToDeath(this, 0);
+        } catch (DeadObjectException e) {
+            return CodecProxy.Error.REMOTE_DEAD;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return CodecProxy.Error.REMOTE_UNKNOWN;
+        } finally {
+            closeInputChannel();
+            mChannelLock.unlock();
+        }
+        return CodecProxy.Error.OK;
+    }
+
+    private void closeInputChannel() {
+        SampleChannel.Writer channel = mInputChannel;
+        mInputChannel = null;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void binderDied() {
+        Log.e(LOG_TAG, "remote session is dead");
+        Track[] tracks;
+        synchronized (this) {
+            mReleased = true;
+            tracks = mTracks.clone();
+        }
+        for (Track track : tracks) {
+            if (track != null) {
+                track.mCallbacks.onError(CodecProxy.Error.REMOTE_DEAD);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Ordering of input work for the codecs sharing a worker thread: weighted fair
+ * share of the thread's CPU time across {@link MediaClient}s, and earliest
+ * deadline first within a client. Only ever used on that thread.
+ * <p>
+ * Each client has a virtual time, advanced by the CPU time its work takes
+ * divided by its weight; the ready client least advanced goes next. A client
+ * coming back from idle starts at the virtual time of the others, instead of
+ * catching up on what it did not use. Clients over their input quota go after
+ * all others.
+ */
+/* package */ final class DeadlineScheduler {
+    /* package */ static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /** Source of the CPU time spent by this thread. */
+    /* package */ interface CpuClock {
+        long nowNs();
+    }
+
+    /* package */ interface Task {
+        /** @return the deadline of the next input ready to be fed, or {@link #NO_DEADLINE} if none is. */
+        long nextDeadlineNs();
+        /** Feed the next ready input. */
+        void runNext();
+    }
+
+    /**
+     * Maps presentation times of one codec to deadlines: the first sample after
+     * a reset is due when it arrives plus the slack of the class, and later ones
+     * are due as much later as they are presented.
+     */
+    /* package */ static final class Clock {
+        private final long mSlackNs;
+        private boolean mAnchored;
+        private long mAnchorPtsUs;
+        private long mAnchorNs;
+
+        Clock(long slackNs) {
+            mSlackNs = slackNs;
+        }
+
+        /** Note a sample arriving at {@code nowNs}. Restarts the mapping when time goes backward. */
+        void observe(long ptsUs, long nowNs) {
+            if (!mAnchored || ptsUs < mAnchorPtsUs) {
+                mAnchored = true;
+                mAnchorPtsUs = ptsUs;
+                mAnchorNs = nowNs;
+            }
+        }
+
+        long deadlineNs(long ptsUs) {
+            if (!mAnchored) {
+                return NO_DEADLINE;
+            }
+            return mAnchorNs + (ptsUs - mAnchorPtsUs) * 1000 + mSlackNs;
+        }
+
+        /** Forget the mapping, e.g. after a flush. */
+        void reset() {
+            mAnchored = false;
+        }
+    }
+
+    /** Share of the thread of one client. */
+    private static final class Account {
+        final MediaClient client; // Null for work of no client in particular.
+        int tasks;
+        long virtualNs;
+
+        Account(MediaClient client) {
+            this.client = client;
+        }
+    }
+
+    private final CpuClock mCpuClock;
+    private final ArrayList<Task> mTasks = new ArrayList<>();
+    private final ArrayList<Account> mTaskAccounts = new ArrayList<>(); // Parallel to mTasks.
+    private final Map<MediaClient, Account> mAccounts = new HashMap<>();
+    private long mVirtualNowNs; // Of the last client picked.
+
+    DeadlineScheduler() {
+        this(new CpuClock() {
+            @Override
+            public long nowNs() {
+                return System.nanoTime();
+            }
+        });
+    }
+
+    DeadlineScheduler(CpuClock cpuClock) {
+        mCpuClock = cpuClock;
+    }
+
+    void add(Task task) {
+        add(task, null);
+    }
+
+    /** Schedule {@code task}, on the share of {@code client}. */
+    void add(Task task, MediaClient client) {
+        if (mTasks.contains(task)) {
+            return;
+        }
+        Account account = mAccounts.get(client);
+        if (account == null) {
+            account = new Account(client);
+            account.virtualNs = mVirtualNowNs;
+            mAccounts.put(client, account);
+        }
+        account.tasks++;
+        mTasks.add(task);
+        mTaskAccounts.add(account);
+    }
+
+    void remove(Task task) {
+        int i = mTasks.indexOf(task);
+        if (i < 0) {
+            return;
+        }
+        mTasks.remove(i);
+        Account account = mTaskAccounts.remove(i);
+        if (--account.tasks == 0) {
+            mAccounts.remove(account.client);
+        }
+    }
+
+    /**
+     * Run all ready work, client by client in fair share order. Linear scans are
+     * fine for the handful of codecs a process hosts.
+     * @return how many inputs were fed.
+     */
+    int drain() {
+        int count = 0;
+        while (true) {
+            long nowNs = System.nanoTime();
+            Task next = null;
+            Account nextAccount = null;
+            boolean nextThrottled = true;
+            long earliest = NO_DEADLINE;
+            for (int i = 0; i < mTasks.size(); i++) {
+                Task task = mTasks.get(i);
+                long deadline = task.nextDeadlineNs();
+                if (deadline == NO_DEADLINE) {
+                    continue;
+                }
+                Account account = mTaskAccounts.get(i);
+                if (account.virtualNs < mVirtualNowNs) {
+                    account.virtualNs = mVirtualNowNs; // Back from idle.
+                }
+                boolean throttled = account.client != null
+                        && account.client.isOverInputQuota(nowNs);
+                if (next == null || goesBefore(throttled, account, deadline,
+                        nextThrottled, nextAccount, earliest)) {
+                    next = task;
+                    nextAccount = account;
+                    nextThrottled = throttled;
+                    earliest = deadline;
+                }
+            }
+            if (next == null) {
+                return count;
+            }
+            mVirtualNowNs = nextAccount.virtualNs;
+            long startNs = mCpuClock.nowNs();
+            next.runNext();
+            long usedNs = Math.max(0, mCpuClock.nowNs() - startNs);
+            if (nextAccount.client != null) {
+                nextAccount.virtualNs += usedNs * MediaClient.DEFAULT_WEIGHT
+                        / nextAccount.client.getWeight();
+                nextAccount.client.addCpuTime(usedNs);
+            } else {
+                nextAccount.virtualNs += usedNs;
+            }
+            count++;
+        }
+    }
+
+    private static boolean goesBefore(boolean throttled, Account account, long deadline,
+                                      boolean otherThrottled, Account other, long otherDeadline) {
+        if (throttled != otherThrottled) {
+            return !throttled;
+        }
+        if (account != other && account.virtualNs != other.virtualNs) {
+            return account.virtualNs < other.virtualNs;
+        }
+        return deadline < otherDeadline;
+    }
+}
@@ -0,0 +1,452 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the decoder that measured fastest on this device, instead of the first
+ * one the platform lists. The first time a mime type and resolution class are
+ * asked for, every capable decoder decodes a short bundled clip of that class,
+ * in the background, through {@link TraceReplay}; decode rate and latency are
+ * kept in shared preferences until the next system update. Until then, and for
+ * classes without a clip, decoders come in platform order.
+ * <p>
+ * Each decoder measured takes a {@link CodecPriority#BACKGROUND} slot of the
+ * {@link CodecAdmission} of the service, as codecs do, and renders to an
+ * {@link ImageReader}, as hardware decoders are slower to output to memory.
+ */
+/* package */ final class DecoderRanking implements CodecBackend.Factory {
+    private static final String LOG_TAG = DecoderRanking.class.getSimpleName();
+
+    private static final String PREFS = "decoder_ranking";
+    private static final String KEY_FINGERPRINT = "fingerprint"; // Of the build measured.
+    private static final String CLIP_DIR = "calibration/"; // In assets.
+    private static final int CALIBRATION_SAMPLES = 120;
+    private static final long CALIBRATION_TIMEOUT_MS = 5000;
+    private static final int MAX_IMAGES = 3;
+
+    /** Measurement of one decoder. */
+    /* package */ static final class Entry {
+        final String name;
+        final float fps; // 0 if it failed to decode the clip.
+        final long latencyUs; // Median, or -1 if unknown.
+
+        Entry(String name, float fps, long latencyUs) {
+            this.name = name;
+            this.fps = fps;
+            this.latencyUs = latencyUs;
+        }
+
+        boolean isCapable() {
+            return fps > 0;
+        }
+    }
+
+    // Best first: fastest, then quickest to output.
+    private static final Comparator<Entry> BEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.fps != b.fps) {
+                return a.fps > b.fps ? -1 : 1;
+            }
+            return a.latencyUs < b.latencyUs ? -1 : a.latencyUs == b.latencyUs ? 0 : 1;
+        }
+    };
+
+    // Frames are only decoded to be timed.
+    private static final ImageReader.OnImageAvailableListener DROP_IMAGES =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    try {
+                        Image image = reader.acquireNextImage();
+                        if (image != null) {
+                            image.close();
+                        }
+                    } catch (IllegalStateException e) {
+                        // Closed after the replay.
+                    }
+                }
+            };
+
+    private static final ExecutorService sCalibrationThread =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "decoder-ranking");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private final Context mContext;
+    private final CodecAdmission mAdmission;
+    private final SharedPreferences mPrefs;
+    private final MediaCodecList mCodecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
+    private final Set<String> mCalibrating = new HashSet<>(); // Or without a clip. Guarded by this.
+
+    /** @param admission of the codecs of the service, which calibration competes with. */
+    DecoderRanking(Context context, CodecAdmission admission) {
+        mContext = context.getApplicationContext();
+        mAdmission = admission;
+        mPrefs = mContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(mPrefs.getString(KEY_FINGERPRINT, null))) {
+            // Decoders may have changed with the system.
+            SharedPreferences.Editor editor = mPrefs.edit();
+            for (String key : mPrefs.getAll().keySet()) {
+                editor.remove(key);
+            }
+            editor.putString(KEY_FINGERPRINT, Build.FINGERPRINT).apply();
+        }
+    }
+
+    @Override
+    public int getMaxInstances(String name, String mime) {
+        return MediaCodecBackend.getMaxInstances(mCodecList, name, mime);
+    }
+
+    @Override
+    public boolean isSoftware(String name) {
+        return MediaCodecBackend.isSoftware(name);
+    }
+
+    @Override
+    public CodecBackend create(String name) throws IOException {
+        return MediaCodecBackend.createByName(name);
+    }
+
+    /** @return names of the decoders for {@code format}, best first. */
+    @Override
+    public List<String> findDecoders(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        List<String> candidates = findCapable(format);
+        if (mime == null || !mime.startsWith("video/") || candidates.size() < 2) {
+            return candidates; // Nothing to choose from.
+        }
+        String cls = resolutionClass(format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT));
+        String key = mime + "@" + cls;
+        String ranking = mPrefs.getString(key, null);
+        if (ranking == null) {
+            calibrateLater(key, mime, cls);
+            return candidates;
+        }
+        return order(candidates, decode(ranking));
+    }
+
+    private List<String> findCapable(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        List<String> names = new ArrayList<>();
+        for (MediaCodecInfo info : mCodecList.getCodecInfos()) {
+            if (info.isEncoder() || !supportsType(info, mime)) {
+                continue;
+            }
+            if (info.getCapabilitiesForType(mime).isFormatSupported(format)) {
+                names.add(info.getName());
+            }
+        }
+        return names;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mime) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void calibrateLater(final String key, final String mime, final String cls) {
+        if (!mCalibrating.add(key)) {
+            return;
+        }
+        sCalibrationThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                calibrate(key, clipPath(mime, cls));
+            }
+        });
+    }
+
+    private synchronized void forget(String key) {
+        mCalibrating.remove(key);
+    }
+
+    /** Decode the clip at asset {@code clipPath} with every capable decoder, and keep the results. */
+    private void calibrate(String key, String clipPath) {
+        File clip = copyAsset(clipPath);
+        if (clip == null) {
+            return; // Stays in mCalibrating: not tried again until the service restarts.
+        }
+        MediaFormat format;
+        byte[] trace;
+        try {
+            Mp4SampleSource source = Mp4SampleSource.open(clip);
+            try {
+                format = source.getFormat();
+                trace = record(source);
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "cannot read " + clipPath, e);
+            return;
+        } finally {
+            clip.delete();
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        HandlerThread output = new HandlerThread("decoder-ranking-output");
+        output.start();
+        try {
+            Handler handler = new Handler(output.getLooper());
+            for (String name : findCapable(format)) {
+                Entry entry = measure(name, format, trace, handler);
+                if (entry == null) {
+                    forget(key); // Calibrated with the next codec of the class.
+                    return;
+                }
+                Log.d(LOG_TAG, key + ": " + name + " " + entry.fps + "fps, " + entry.latencyUs + "us");
+                entries.add(entry);
+            }
+        } finally {
+            output.quit();
+        }
+        Collections.sort(entries, BEST_FIRST);
+        mPrefs.edit().putString(key, encode(entries)).apply();
+    }
+
+    /**
+     * @param handler to drop the rendered frames on.
+     * @return the measurement, or null if interrupted or the decoder stayed full.
+     */
+    private Entry measure(String name, MediaFormat format, byte[] trace, Handler handler) {
+        CodecAdmission.Slot slot;
+        try {
+            slot = admit(name, format.getString(MediaFormat.KEY_MIME));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (slot == null) {
+            Log.d(LOG_TAG, name + " stayed full, calibrate later");
+            return null;
+        }
+        ImageReader reader = ImageReader.newInstance(format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT), ImageFormat.YUV_420_888, MAX_IMAGES);
+        reader.setOnImageAvailableListener(DROP_IMAGES, handler);
+        CodecBackend backend = null;
+        try {
+            backend = create(name);
+            TraceReplay.Result result = new TraceReplay(backend, format, reader.getSurface(), false, null)
+                    .run(new SampleTrace.Reader(new ByteArrayInputStream(trace)), CALIBRATION_TIMEOUT_MS);
+            boolean ok = result.errors == 0 && result.outputs() > 0;
+            return new Entry(name, ok ? (float) result.samplesPerSecond() : 0,
+                    result.latencyPercentileNs(0.5) / 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Log.w(LOG_TAG, name + " failed calibration", e); // E.g. a profile it cannot take.
+            return new Entry(name, 0, -1);
+        } finally {
+            if (backend != null) {
+                backend.release();
+            }
+            reader.close();
+            mAdmission.release(slot);
+        }
+    }
+
+    /**
+     * @return a slot of decoder {@code name}, waiting as long as a background
+     * codec would for one, or null if it stayed full.
+     */
+    private CodecAdmission.Slot admit(String name, String mime) throws InterruptedException {
+        List<String> candidates = Collections.singletonList(name);
+        long deadlineMs = System.currentTimeMillis()
+                + CodecPriority.admissionWaitMs(CodecPriority.BACKGROUND);
+        while (true) {
+            final CountDownLatch released = new CountDownLatch(1);
+            Runnable waiter = new Runnable() {
+                @Override
+                public void run() {
+                    released.countDown();
+                }
+            };
+            // Before trying, not to miss a release in between.
+            mAdmission.await(waiter, CodecPriority.BACKGROUND);
+            try {
+                CodecAdmission.Slot slot = mAdmission.admit(this, candidates, mime,
+                        CodecPriority.BACKGROUND, false);
+                long leftMs = deadlineMs - System.currentTimeMillis();
+                if (slot != null || leftMs <= 0) {
+                    return slot;
+                }
+                released.await(Math.min(leftMs, CodecAdmission.RETRY_MS), TimeUnit.MILLISECONDS);
+            } finally {
+                mAdmission.cancel(waiter);
+            }
+        }
+    }
+
+    /** @return the first samples of {@code source} as a {@link SampleTrace} with payloads. */
+    private static byte[] record(SampleSource source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SampleTrace.Writer writer = new SampleTrace.Writer(out, true);
+        for (int i = 0; i < CALIBRATION_SAMPLES; i++) {
+            Sample sample = source.poll();
+            if (sample == null) {
+                break;
+            }
+            writer.write(sample, 0); // Fed as fast as taken: arrival times do not matter.
+            source.release(sample);
+            if (sample.isEOS()) {
+                break;
+            }
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    /** @return a copy of asset {@code path} in the cache, which the caller deletes, or null. */
+    private File copyAsset(String path) {
+        InputStream in;
+        try {
+            in = mContext.getAssets().open(path);
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "no clip " + path + ", keep platform order");
+            return null;
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("clip", ".mp4", mContext.getCacheDir());
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+            return file;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "cannot copy " + path, e);
+            if (file != null) {
+                file.delete();
+            }
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** @return the asset path of the clip of {@code mime} and resolution class {@code cls}. */
+    /* package */ static String clipPath(String mime, String cls) {
+        return CLIP_DIR + mime.replace('/', '-') + "-" + cls + ".mp4";
+    }
+
+    /** @return "sd", "hd", "fhd" or "uhd". */
+    /* package */ static String resolutionClass(int width, int height) {
+        long pixels = (long) width * height;
+        if (pixels <= 640 * 480) {
+            return "sd";
+        } else if (pixels <= 1280 * 720) {
+            return "hd";
+        } else if (pixels <= 1920 * 1088) {
+            return "fhd";
+        }
+        return "uhd";
+    }
+
+    /**
+     * @return {@code candidates} that decoded the clip, best first, then those not
+     * measured in platform order, then those that failed it as a last resort.
+     */
+    /* package */ static List<String> order(List<String> candidates, List<Entry> ranking) {
+        List<Entry> sorted = new ArrayList<>(ranking);
+        Collections.sort(sorted, BEST_FIRST);
+        List<String> ordered = new ArrayList<>(candidates.size());
+        List<String> failed = new ArrayList<>();
+        for (Entry entry : sorted) {
+            if (candidates.contains(entry.name)) {
+                (entry.isCapable() ? ordered : failed).add(entry.name);
+            }
+        }
+        for (String name : candidates) {
+            if (!ordered.contains(name) && !failed.contains(name)) {
+                ordered.add(name);
+            }
+        }
+        ordered.addAll(failed);
+        return ordered;
+    }
+
+    /* package */ static String encode(List<Entry> entries) {
+        StringBuilder value = new StringBuilder();
+        for (Entry entry : entries) {
+            if (value.length() > 0) {
+                value.append(';');
+            }
+            value.append(entry.name).append(',').append(entry.fps).append(',').append(entry.latencyUs);
+        }
+        return value.toString();
+    }
+
+    /* package */ static List<Entry> decode(String value) {
+        List<Entry> entries = new ArrayList<>();
+        for (String item : value.split(";")) {
+            String[] fields = item.split(",");
+            if (fields.length != 3) {
+                continue;
+            }
+            try {
+                entries.add(new Entry(fields[0], Float.parseFloat(fields[1]), Long.parseLong(fields[2])));
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "bad ranking entry " + item);
+            }
+        }
+        return entries;
+    }
+}
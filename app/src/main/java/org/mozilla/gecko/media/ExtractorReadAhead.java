@@ -0,0 +1,227 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Demuxer thread reading the selected track of a {@link MediaExtractor} into a
+ * {@link SampleRing}, so network stalls are absorbed before they reach the codec.
+ * Owns the extractor once started and releases it when done.
+ * <p>
+ * Key frames read are recorded in a {@link SyncIndex}, along with the stretches
+ * read through without seeking. Seeks into those use the index; others are left
+ * to the extractor, as the index may miss sync samples there.
+ * <p>
+ * In trick play, it seeks from each key frame to the next one to show, so the
+ * ring reads ahead key frames only.
+ */
+public final class ExtractorReadAhead extends Thread implements SampleSource {
+    public interface Listener {
+        /**
+         * Called on the demuxer thread when the sample at {@code timeUs} cannot be
+         * read. No sample follows until the next {@link #seekTo(long)}.
+         */
+        void onReadError(long timeUs);
+    }
+
+    private static final String LOG_TAG = ExtractorReadAhead.class.getSimpleName();
+    private static final long NO_SEEK = -1;
+    private static final long NO_RUN = Long.MIN_VALUE;
+    private static final int MAX_SAMPLE_SIZE = 32 * 1024 * 1024;
+
+    private final MediaExtractor mExtractor; // Access only by this thread.
+    private final SampleRing mRing;
+    private final SyncIndex mIndex;
+    private volatile Listener mListener;
+    private long mPendingSeekUs = NO_SEEK;
+    private long mKeyframeStepUs; // Applied with the next seek.
+    private long mStepUs; // Of the current trick play, or 0. Access only by this thread.
+    private long mLastKeyframeUs; // Access only by this thread.
+    // First key frame read since the last seek, or NO_RUN. Access only by this thread.
+    private long mRunStartUs = NO_RUN;
+    private boolean mQuit;
+    private boolean mEnded; // Access only by this thread.
+
+    public ExtractorReadAhead(MediaExtractor extractor, SampleRing ring, SyncIndex index) {
+        super("demux-read-ahead");
+        mExtractor = extractor;
+        mRing = ring;
+        mIndex = index;
+    }
+
+    /** Set before {@link #start()}. */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public Sample poll() {
+        return mRing.poll();
+    }
+
+    @Override
+    public void release(Sample sample) {
+        mRing.release(sample);
+    }
+
+    /** Drop read-ahead data and continue from the sync sample closest to {@code timeUs}. */
+    @Override
+    public synchronized void seekTo(long timeUs) {
+        // Together with publishing the seek: a slot acquired after the flush sees it.
+        mRing.flush();
+        mPendingSeekUs = timeUs;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void setKeyframeStep(long stepUs) {
+        mKeyframeStepUs = stepUs;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mQuit = true;
+            notifyAll();
+        }
+        mRing.close();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (mEnded && mPendingSeekUs == NO_SEEK && !mQuit) {
+                        wait();
+                    }
+                    if (mQuit) {
+                        break;
+                    }
+                }
+                // Before acquiring, so the slot is of the generation after the seek's flush.
+                long seekUs = takePendingSeek();
+                if (seekUs != NO_SEEK) {
+                    seek(seekUs);
+                    mEnded = false;
+                    mRunStartUs = NO_RUN;
+                }
+                Sample slot = mRing.acquire(0);
+                if (slot == null) {
+                    break;
+                }
+                if (hasPendingSeek()) {
+                    continue; // Flushed while waiting for the slot: seek again first.
+                }
+                if (seekUs == NO_SEEK && mStepUs != 0 && !stepKeyframe()) {
+                    slot.set(0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mEnded = true;
+                    mRing.commit(slot);
+                    continue;
+                }
+                try {
+                    mEnded = !readSample(slot);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "cannot read sample", e);
+                    mEnded = true; // Until the next seek.
+                    Listener listener = mListener;
+                    if (listener != null) {
+                        listener.onReadError(mExtractor.getSampleTime());
+                    }
+                    continue;
+                }
+                mRing.commit(slot);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            Log.d(LOG_TAG, "read-ahead done " + mRing);
+            mExtractor.release();
+        }
+    }
+
+    private synchronized boolean hasPendingSeek() {
+        return mPendingSeekUs != NO_SEEK;
+    }
+
+    private synchronized long takePendingSeek() {
+        long seekUs = mPendingSeekUs;
+        mPendingSeekUs = NO_SEEK;
+        if (seekUs != NO_SEEK) {
+            mStepUs = mKeyframeStepUs;
+        }
+        return seekUs;
+    }
+
+    /** Seek to the key frame to show after the last one read. @return false past either end. */
+    private boolean stepKeyframe() {
+        long targetUs = mLastKeyframeUs + mStepUs;
+        if (targetUs < 0) {
+            return false;
+        }
+        mExtractor.seekTo(targetUs, mStepUs > 0
+                ? MediaExtractor.SEEK_TO_NEXT_SYNC : MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long timeUs = mExtractor.getSampleTime();
+        // Landing on the same key frame again means there is none further.
+        return timeUs >= 0 && (mStepUs > 0 ? timeUs > mLastKeyframeUs : timeUs < mLastKeyframeUs);
+    }
+
+    private void seek(long timeUs) {
+        int i = mIndex.findCovered(timeUs);
+        if (i < 0) {
+            mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            return;
+        }
+        // Exact time of a known sync sample: never lands after the target.
+        mExtractor.seekTo(mIndex.getTimeUs(i), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+    }
+
+    /**
+     * @return false if the track has ended and an EOS sample was written instead.
+     * @throws IOException if the sample is larger than {@link #MAX_SAMPLE_SIZE}.
+     */
+    private boolean readSample(Sample slot) throws IOException {
+        int len;
+        while (true) {
+            try {
+                len = mExtractor.readSampleData(ByteBuffer.wrap(slot.bytes), 0);
+                break;
+            } catch (IllegalArgumentException e) {
+                // Buffer too small for this sample.
+                if (slot.bytes.length >= MAX_SAMPLE_SIZE) {
+                    throw new IOException("sample larger than " + MAX_SAMPLE_SIZE + " bytes");
+                }
+                mRing.grow(slot, Math.min(slot.bytes.length * 2, MAX_SAMPLE_SIZE));
+            }
+        }
+
+        if (len < 0) {
+            slot.set(0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return false;
+        }
+        long pts = mExtractor.getSampleTime();
+        int flags = 0;
+        if ((mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+            flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            mIndex.add(pts, SyncIndex.UNKNOWN_OFFSET); // MediaExtractor does not expose offsets.
+            mLastKeyframeUs = pts;
+            if (mStepUs == 0) { // Trick play skips key frames.
+                if (mRunStartUs == NO_RUN) {
+                    mRunStartUs = pts;
+                }
+                mIndex.cover(mRunStartUs, pts);
+            }
+        }
+        slot.set(len, pts, flags);
+        mExtractor.advance();
+        return true;
+    }
+}
@@ -0,0 +1,151 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+/**
+ * How evenly frames reach the display. Each frame rendered is compared to the
+ * one before: the time between them on screen against the time between them in
+ * the media makes the jitter, kept in a histogram, and rounded to vsyncs tells
+ * whether the earlier frame was repeated for extra vsyncs, or cut short by
+ * skipped ones. Gaps from pauses, seeks and stalls are left out. Not thread safe.
+ */
+public final class FramePacing {
+    /** Upper bounds of the jitter buckets in microseconds; the last bucket has none. */
+    public static final int[] JITTER_BUCKETS_US = { 1000, 2000, 4000, 8000, 16000, 32000 };
+    /* package */ static final long DEFAULT_VSYNC_NS = 16666667;
+
+    private static final long MAX_GAP_US = 500000; // Longer ones are not frame pacing.
+    // Layout of toArray().
+    private static final int FRAMES = 0;
+    private static final int REPEATED_VSYNCS = 1;
+    private static final int SKIPPED_VSYNCS = 2;
+    private static final int JITTER_SUM_US = 3;
+    private static final int HISTOGRAM = 4;
+
+    private final long mVsyncNs;
+    private boolean mHasLast;
+    private long mLastPtsUs;
+    private long mLastRenderNs;
+
+    private long mFrames; // Measured against the one before.
+    private long mRepeatedVsyncs;
+    private long mSkippedVsyncs;
+    private long mJitterSumUs;
+    private final long[] mHistogram = new long[JITTER_BUCKETS_US.length + 1];
+
+    /* package */ FramePacing(long vsyncNs) {
+        mVsyncNs = vsyncNs;
+    }
+
+    /** @param values from {@link #toArray()}. */
+    /* package */ static FramePacing fromArray(long[] values) {
+        FramePacing pacing = new FramePacing(DEFAULT_VSYNC_NS);
+        pacing.mFrames = values[FRAMES];
+        pacing.mRepeatedVsyncs = values[REPEATED_VSYNCS];
+        pacing.mSkippedVsyncs = values[SKIPPED_VSYNCS];
+        pacing.mJitterSumUs = values[JITTER_SUM_US];
+        System.arraycopy(values, HISTOGRAM, pacing.mHistogram, 0,
+                Math.min(pacing.mHistogram.length, values.length - HISTOGRAM));
+        return pacing;
+    }
+
+    /** Frame {@code ptsUs} reached the display at {@code renderNs} of {@link System#nanoTime()}. */
+    /* package */ void onFrameRendered(long ptsUs, long renderNs) {
+        if (mHasLast) {
+            long mediaUs = ptsUs - mLastPtsUs;
+            long shownNs = renderNs - mLastRenderNs;
+            if (mediaUs > 0 && mediaUs <= MAX_GAP_US && shownNs > 0 && shownNs <= MAX_GAP_US * 1000) {
+                long jitterUs = Math.abs(shownNs / 1000 - mediaUs);
+                mHistogram[bucket(jitterUs)]++;
+                mJitterSumUs += jitterUs;
+                mFrames++;
+                long vsyncs = Math.max(1, Math.round((double) shownNs / mVsyncNs));
+                long expected = Math.max(1, Math.round(mediaUs * 1000.0 / mVsyncNs));
+                if (vsyncs > expected) {
+                    mRepeatedVsyncs += vsyncs - expected;
+                } else {
+                    mSkippedVsyncs += expected - vsyncs;
+                }
+            }
+        }
+        mHasLast = true;
+        mLastPtsUs = ptsUs;
+        mLastRenderNs = renderNs;
+    }
+
+    /** The next frame does not follow the last one, e.g. after a flush. */
+    /* package */ void reset() {
+        mHasLast = false;
+    }
+
+    /* package */ void add(FramePacing other) {
+        mFrames += other.mFrames;
+        mRepeatedVsyncs += other.mRepeatedVsyncs;
+        mSkippedVsyncs += other.mSkippedVsyncs;
+        mJitterSumUs += other.mJitterSumUs;
+        for (int i = 0; i < mHistogram.length; i++) {
+            mHistogram[i] += other.mHistogram[i];
+        }
+    }
+
+    /** Zero the counts, keeping track of the last frame. */
+    /* package */ void clearCounts() {
+        mFrames = 0;
+        mRepeatedVsyncs = 0;
+        mSkippedVsyncs = 0;
+        mJitterSumUs = 0;
+        for (int i = 0; i < mHistogram.length; i++) {
+            mHistogram[i] = 0;
+        }
+    }
+
+    /* package */ long[] toArray() {
+        long[] values = new long[HISTOGRAM + mHistogram.length];
+        values[FRAMES] = mFrames;
+        values[REPEATED_VSYNCS] = mRepeatedVsyncs;
+        values[SKIPPED_VSYNCS] = mSkippedVsyncs;
+        values[JITTER_SUM_US] = mJitterSumUs;
+        System.arraycopy(mHistogram, 0, values, HISTOGRAM, mHistogram.length);
+        return values;
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /** @return vsyncs frames stayed on screen beyond their duration. */
+    public long getRepeatedVsyncs() {
+        return mRepeatedVsyncs;
+    }
+
+    /** @return vsyncs frames were cut short of their duration. */
+    public long getSkippedVsyncs() {
+        return mSkippedVsyncs;
+    }
+
+    /** @return mean difference of frame time on screen and in the media, or -1 if unknown. */
+    public long getMeanJitterUs() {
+        return mFrames > 0 ? mJitterSumUs / mFrames : -1;
+    }
+
+    /** @return frame counts in the buckets of {@link #JITTER_BUCKETS_US}. */
+    public long[] getJitterHistogram() {
+        return mHistogram.clone();
+    }
+
+    private static int bucket(long jitterUs) {
+        int i = 0;
+        while (i < JITTER_BUCKETS_US.length && jitterUs >= JITTER_BUCKETS_US[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        return "FramePacing{frames=" + mFrames + ", repeated=" + mRepeatedVsyncs
+                + ", skipped=" + mSkippedVsyncs + ", jitter=" + getMeanJitterUs() + "us}";
+    }
+}
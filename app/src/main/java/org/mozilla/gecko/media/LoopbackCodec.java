@@ -0,0 +1,317 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fake decoder that outputs every input as is, in order, after a fixed decode
+ * time per frame, so the IPC, queueing and callbacks around it can be load
+ * tested without codec hardware. Frames are decoded one at a time: a codec
+ * with latency L sustains at most 1/L frames per second. Callbacks of all
+ * instances run on one thread, like those of platform decoders on a looper.
+ * <p>
+ * Unlike {@link android.media.MediaCodec} in asynchronous mode, it keeps running
+ * after {@link #flush()}: every input buffer is handed back at once. Frames
+ * released for rendering count as rendered at once, or at their render time.
+ */
+/* package */ final class LoopbackCodec implements CodecBackend {
+    /** Value of {@code failAtInput} that never injects an error. */
+    /* package */ static final int NO_ERROR = -1;
+    private static final String NAME = "loopback";
+
+    /* package */ static final class Factory implements CodecBackend.Factory {
+        private final int mBufferCount;
+        private final int mBufferSize;
+        private final long mFrameLatencyUs;
+        private final int mFailAtInput;
+
+        /**
+         * @param failAtInput 1-based number of the input to report an error for
+         *                    instead of outputting it, or {@link #NO_ERROR}. Like a
+         *                    broken decoder, it outputs nothing after that.
+         */
+        Factory(int bufferCount, int bufferSize, long frameLatencyUs, int failAtInput) {
+            mBufferCount = bufferCount;
+            mBufferSize = bufferSize;
+            mFrameLatencyUs = frameLatencyUs;
+            mFailAtInput = failAtInput;
+        }
+
+        @Override
+        public List<String> findDecoders(MediaFormat format) {
+            return Collections.singletonList(NAME);
+        }
+
+        @Override
+        public int getMaxInstances(String name, String mime) {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public boolean isSoftware(String name) {
+            return true;
+        }
+
+        @Override
+        public CodecBackend create(String name) {
+            return new LoopbackCodec(mBufferCount, mBufferSize, mFrameLatencyUs, mFailAtInput);
+        }
+    }
+
+    private static final ScheduledExecutorService sCallbackThread =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "loopback-codec");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final int STATE_UNCONFIGURED = 0;
+    private static final int STATE_CONFIGURED = 1;
+    private static final int STATE_RUNNING = 2;
+    private static final int STATE_RELEASED = 3;
+
+    private final ByteBuffer[] mBuffers;
+    private final boolean[] mOwnedByClient;
+    private final long[] mOutputTimesUs; // Of the output in each buffer.
+    private final long mFrameLatencyNs;
+    private final int mFailAtInput;
+
+    private Callback mCallback;
+    private FrameRenderedListener mRenderedListener;
+    private Handler mRenderedHandler;
+    private MediaFormat mFormat;
+    private boolean mFormatReported;
+    private int mState = STATE_UNCONFIGURED;
+    private int mEpoch; // Changed when queued callbacks become stale.
+    private long mBusyUntilNs; // When the last queued frame is decoded.
+    private int mInputs;
+    private long mOutputs;
+    private long mRendered;
+
+    LoopbackCodec(int bufferCount, int bufferSize, long frameLatencyUs, int failAtInput) {
+        mBuffers = new ByteBuffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            mBuffers[i] = ByteBuffer.allocate(bufferSize);
+        }
+        mOwnedByClient = new boolean[bufferCount];
+        mOutputTimesUs = new long[bufferCount];
+        mFrameLatencyNs = TimeUnit.MICROSECONDS.toNanos(frameLatencyUs);
+        mFailAtInput = failAtInput;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public synchronized void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized boolean setOnFrameRenderedListener(FrameRenderedListener listener,
+                                                           Handler handler) {
+        mRenderedListener = listener;
+        mRenderedHandler = handler;
+        return true;
+    }
+
+    @Override
+    public synchronized void configure(MediaFormat format, Surface surface, int flags) {
+        checkState(STATE_UNCONFIGURED);
+        mFormat = format;
+        mState = STATE_CONFIGURED;
+    }
+
+    @Override
+    public synchronized void start() {
+        checkState(STATE_CONFIGURED);
+        mState = STATE_RUNNING;
+        returnBuffersInFlight();
+    }
+
+    @Override
+    public synchronized void stop() {
+        checkState(STATE_RUNNING);
+        mState = STATE_CONFIGURED;
+        cancel();
+        Arrays.fill(mOwnedByClient, false); // Announced again on start().
+    }
+
+    @Override
+    public synchronized void flush() {
+        checkState(STATE_RUNNING);
+        cancel();
+        Arrays.fill(mOwnedByClient, false);
+        returnBuffersInFlight();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mState = STATE_UNCONFIGURED;
+        mFormatReported = false;
+        cancel();
+        Arrays.fill(mOwnedByClient, false);
+    }
+
+    @Override
+    public synchronized void release() {
+        mState = STATE_RELEASED;
+        cancel();
+    }
+
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int index) {
+        checkState(STATE_RUNNING);
+        checkOwned(index);
+        ByteBuffer buffer = mBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(final int index, int offset, int size,
+                                              final long presentationTimeUs, final int flags) {
+        checkState(STATE_RUNNING);
+        checkOwned(index);
+        mOwnedByClient[index] = false;
+        final boolean fail = ++mInputs == mFailAtInput;
+        final int epoch = mEpoch;
+        long now = System.nanoTime();
+        mBusyUntilNs = Math.max(now, mBusyUntilNs) + mFrameLatencyNs;
+        sCallbackThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                output(epoch, index, presentationTimeUs, flags, fail);
+            }
+        }, mBusyUntilNs - now, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, boolean render) {
+        if (render) {
+            rendered(index, System.nanoTime());
+        }
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, long renderTimeNs) {
+        rendered(index, renderTimeNs);
+    }
+
+    /** Must hold this. */
+    private void rendered(int index, final long renderTimeNs) {
+        mRendered++;
+        final FrameRenderedListener listener = mRenderedListener;
+        if (listener == null) {
+            return;
+        }
+        final long presentationTimeUs = mOutputTimesUs[index];
+        mRenderedHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFrameRendered(presentationTimeUs, renderTimeNs);
+            }
+        });
+    }
+
+    /* package */ synchronized long getOutputCount() {
+        return mOutputs;
+    }
+
+    /* package */ synchronized long getRenderedCount() {
+        return mRendered;
+    }
+
+    private void output(int epoch, int index, long presentationTimeUs, int flags, boolean fail) {
+        Callback callback;
+        MediaFormat format = null;
+        synchronized (this) {
+            if (epoch != mEpoch || mCallback == null) {
+                return;
+            }
+            callback = mCallback;
+            if (fail) {
+                cancel();
+            } else {
+                mOwnedByClient[index] = true;
+                mOutputTimesUs[index] = presentationTimeUs;
+                mOutputs++;
+                if (!mFormatReported) {
+                    mFormatReported = true;
+                    format = mFormat;
+                }
+            }
+        }
+        if (fail) {
+            callback.onError(new IllegalStateException("injected error at input #" + mFailAtInput));
+            return;
+        }
+        if (format != null) {
+            callback.onOutputFormatChanged(format);
+        }
+        callback.onInputBufferAvailable(index);
+        callback.onOutputBufferAvailable(index, presentationTimeUs, flags);
+    }
+
+    /** Drop the frames being decoded. Must hold this. */
+    private void cancel() {
+        mEpoch++;
+        mBusyUntilNs = 0;
+    }
+
+    /** Hand the buffers not owned by the client back to it. Must hold this. */
+    private void returnBuffersInFlight() {
+        final int epoch = mEpoch;
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mOwnedByClient[i]) {
+                continue;
+            }
+            mOwnedByClient[i] = true;
+            final int index = i;
+            sCallbackThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Callback callback;
+                    synchronized (LoopbackCodec.this) {
+                        if (epoch != mEpoch || mCallback == null) {
+                            return;
+                        }
+                        callback = mCallback;
+                    }
+                    callback.onInputBufferAvailable(index);
+                }
+            });
+        }
+    }
+
+    private void checkState(int expected) {
+        if (mState != expected) {
+            throw new IllegalStateException("state " + mState + ", expected " + expected);
+        }
+    }
+
+    private void checkOwned(int index) {
+        if (index < 0 || index >= mBuffers.length || !mOwnedByClient[index]) {
+            throw new IllegalStateException("buffer #" + index + " is not owned by the client");
+        }
+    }
+}
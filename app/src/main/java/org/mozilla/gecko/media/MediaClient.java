@@ -0,0 +1,180 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What one client of the service uses: a calling process, told apart by the
+ * token it passes, e.g. one per tab. Counts its live codecs against
+ * {@link Quotas#maxCodecs}, the bytes of input fed for it against
+ * {@link Quotas#maxInputBytesPerSec}, and worker CPU time spent feeding, which
+ * {@link DeadlineScheduler} shares out by {@link #getWeight() weight}. Thread safe.
+ */
+/* package */ final class MediaClient {
+    /* package */ static final int DEFAULT_WEIGHT = 100;
+
+    /** Limits of each client. */
+    /* package */ static final class Quotas {
+        /** 0 for no limit. */
+        final int maxCodecs;
+        /** Over it, the client is fed only when no other is ready. 0 for no limit. */
+        final long maxInputBytesPerSec;
+
+        Quotas(int maxCodecs, long maxInputBytesPerSec) {
+            this.maxCodecs = maxCodecs;
+            this.maxInputBytesPerSec = maxInputBytesPerSec;
+        }
+    }
+
+    // A few playbacks, and some of the highest bit rates streamed today.
+    /* package */ static final Quotas DEFAULT_QUOTAS = new Quotas(16, 32 * 1024 * 1024);
+
+    private static final long RATE_WINDOW_NS = 1000000000;
+
+    /**
+     * The clients of a service process, each known while it has codecs, or got a
+     * weight for the codecs it is about to create. Thread safe.
+     */
+    /* package */ static final class Registry {
+        private final Map<String, MediaClient> mClients = new HashMap<>(); // By key. Guarded by this.
+        private Quotas mQuotas = DEFAULT_QUOTAS; // Guarded by this.
+
+        private MediaClient get(int uid, int pid, String token) {
+            String key = key(uid, pid, token);
+            MediaClient client = mClients.get(key);
+            if (client == null) {
+                client = new MediaClient(uid, pid, token, mQuotas);
+                mClients.put(key, client);
+            }
+            return client;
+        }
+
+        /** @return the client, counting one more codec, or null if over its quota. */
+        synchronized MediaClient acquire(int uid, int pid, String token) {
+            MediaClient client = get(uid, pid, token);
+            if (client.acquireCodec()) {
+                return client;
+            }
+            if (client.getCodecCount() == 0) {
+                mClients.remove(client.getKey());
+            }
+            return null;
+        }
+
+        /** Stop counting a codec of {@code client}, from {@link #acquire}. */
+        synchronized void release(MediaClient client) {
+            if (client.releaseCodec() == 0) {
+                mClients.remove(client.getKey()); // Gone, or its weight is sent again with the next codec.
+            }
+        }
+
+        synchronized void setWeight(int uid, int pid, String token, int weight) {
+            get(uid, pid, token).setWeight(weight);
+        }
+
+        /** Apply {@code quotas} to every client, now and to come. */
+        synchronized void setQuotas(Quotas quotas) {
+            mQuotas = quotas;
+            for (MediaClient client : mClients.values()) {
+                client.setQuotas(quotas);
+            }
+        }
+
+        synchronized List<MediaClient> getClients() {
+            return new ArrayList<>(mClients.values());
+        }
+    }
+
+    private final String mKey;
+    private volatile Quotas mQuotas;
+    private volatile int mWeight = DEFAULT_WEIGHT;
+    private int mCodecs; // Guarded by this.
+    private long mInputBytes; // Guarded by this.
+    private long mCpuTimeNs; // Guarded by this.
+    private long mWindowStartNs; // Guarded by this.
+    private long mWindowBytes; // Fed since mWindowStartNs. Guarded by this.
+
+    MediaClient(int uid, int pid, String token, Quotas quotas) {
+        mKey = key(uid, pid, token);
+        mQuotas = quotas;
+    }
+
+    /* package */ static String key(int uid, int pid, String token) {
+        return uid + "/" + pid + (token != null ? "/" + token : "");
+    }
+
+    /* package */ String getKey() {
+        return mKey;
+    }
+
+    /* package */ void setQuotas(Quotas quotas) {
+        mQuotas = quotas;
+    }
+
+    /** @return the share of worker time against other clients, relative to {@link #DEFAULT_WEIGHT}. */
+    /* package */ int getWeight() {
+        return mWeight;
+    }
+
+    /* package */ void setWeight(int weight) {
+        mWeight = Math.max(1, weight);
+    }
+
+    /** @return whether a codec may be created for this client; if so, it is counted. */
+    /* package */ synchronized boolean acquireCodec() {
+        int max = mQuotas.maxCodecs;
+        if (max > 0 && mCodecs >= max) {
+            return false;
+        }
+        mCodecs++;
+        return true;
+    }
+
+    /** @return codecs left. */
+    /* package */ synchronized int releaseCodec() {
+        return --mCodecs;
+    }
+
+    /* package */ synchronized int getCodecCount() {
+        return mCodecs;
+    }
+
+    /** Count {@code bytes} of input fed at {@code nowNs}. */
+    /* package */ synchronized void addInput(long bytes, long nowNs) {
+        rollWindow(nowNs);
+        mWindowBytes += bytes;
+        mInputBytes += bytes;
+    }
+
+    /** @return whether more than the quota was fed in the current second. */
+    /* package */ synchronized boolean isOverInputQuota(long nowNs) {
+        long max = mQuotas.maxInputBytesPerSec;
+        if (max <= 0) {
+            return false;
+        }
+        rollWindow(nowNs);
+        return mWindowBytes > max;
+    }
+
+    private void rollWindow(long nowNs) {
+        if (nowNs - mWindowStartNs >= RATE_WINDOW_NS) {
+            mWindowBytes = 0;
+            mWindowStartNs = nowNs;
+        }
+    }
+
+    /* package */ synchronized void addCpuTime(long ns) {
+        mCpuTimeNs += ns;
+    }
+
+    /** @return live codecs, input bytes, worker CPU milliseconds and weight. */
+    /* package */ synchronized long[] toArray() {
+        return new long[] { mCodecs, mInputBytes, mCpuTimeNs / 1000000, mWeight };
+    }
+}
@@ -0,0 +1,176 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Playback position of a client, in a page of memory shared with the service:
+ * the client {@link #set}s an anchor when it starts, seeks or changes rate, and
+ * codecs read the position lock-free at every frame, without any binder call.
+ * <p>
+ * The anchor is a media time, the {@link System#nanoTime()} it was reached at,
+ * which is the same monotonic clock in every process, and a rate. A sequence
+ * number makes it a seqlock: odd while the single writer is changing the
+ * fields, readers retry when it is odd or moved. A writer that dies in the
+ * middle of an update leaves it odd: readers give up after {@link #MAX_READ_TRIES}.
+ */
+public final class MediaClock implements Closeable {
+    private static final String LOG_TAG = MediaClock.class.getSimpleName();
+
+    /** Returned by {@link #renderTimeNs} when the clock is not running. */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    /* package */ static final int SIZE = 32;
+    private static final int SEQUENCE = 0;
+    private static final int ANCHOR_PTS = 8;
+    private static final int ANCHOR_NS = 16;
+    private static final int RATE = 24;
+
+    /* package */ static final int MAX_READ_TRIES = 1000;
+
+    // The page is plain memory to the compiler: loads and stores of other processes
+    // are only ordered by fences. VarHandle has them from API 26 on, but is newer
+    // than the SDK compiled against.
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final Method sAcquireFence = findFence("acquireFence");
+    private static final Method sReleaseFence = findFence("releaseFence");
+    private static volatile int sFence;
+
+    private static Method findFence(String name) {
+        try {
+            return Class.forName("java.lang.invoke.VarHandle").getMethod(name);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /** Keep loads before it ahead of loads and stores after it. */
+    private static void acquireFence() {
+        fence(sAcquireFence);
+    }
+
+    /** Keep loads and stores before it ahead of stores after it. */
+    private static void releaseFence() {
+        fence(sReleaseFence);
+    }
+
+    private static void fence(Method fence) {
+        if (fence != null) {
+            try {
+                fence.invoke(null, NO_ARGS);
+                return;
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                Log.w(LOG_TAG, "cannot fence, fall back to a volatile store", e);
+            }
+        }
+        // Before API 26, ART compiles a volatile store to a full barrier on both sides.
+        sFence = 0;
+    }
+
+    private final ByteBuffer mPage;
+    private final ParcelFileDescriptor mShared; // Read-only end for the service, or null.
+
+    /* package */ MediaClock(ByteBuffer page, ParcelFileDescriptor shared) {
+        mPage = page.order(ByteOrder.nativeOrder());
+        mShared = shared;
+    }
+
+    /** Create a stopped clock, backed by a file in {@code dir} that is deleted right away. */
+    public static MediaClock create(File dir) throws IOException {
+        File file = File.createTempFile("clock", null, dir);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(SIZE);
+                ByteBuffer page = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+                return new MediaClock(page, ParcelFileDescriptor.open(file,
+                        ParcelFileDescriptor.MODE_READ_ONLY));
+            } finally {
+                raf.close(); // The mapping stays valid.
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /** Map the page behind {@code fd}, read-only. The caller closes {@code fd}. */
+    /* package */ static MediaClock map(ParcelFileDescriptor fd) throws IOException {
+        FileInputStream in = new FileInputStream(fd.getFileDescriptor());
+        ByteBuffer page = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+        return new MediaClock(page, null);
+    }
+
+    /** @return the end of the page to send to codecs. */
+    /* package */ ParcelFileDescriptor getSharedDescriptor() {
+        return mShared;
+    }
+
+    /**
+     * Media time {@code ptsUs} is reached at {@code nowNs} and advances at {@code rate}
+     * from there; 0 stops the clock. Only one thread may write.
+     */
+    public void set(long ptsUs, long nowNs, float rate) {
+        int sequence = mPage.getInt(SEQUENCE);
+        mPage.putInt(SEQUENCE, sequence + 1);
+        releaseFence();
+        mPage.putLong(ANCHOR_PTS, ptsUs);
+        mPage.putLong(ANCHOR_NS, nowNs);
+        mPage.putFloat(RATE, rate);
+        releaseFence();
+        mPage.putInt(SEQUENCE, sequence + 2);
+    }
+
+    /** Stop the clock, e.g. on pause or before a seek. */
+    public void stop() {
+        set(0, 0, 0);
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which media time {@code ptsUs} is
+     * reached, possibly in the past, or {@link #NO_TIME} if the clock is stopped
+     * or its writer never finished updating it.
+     */
+    public long renderTimeNs(long ptsUs) {
+        for (int tries = 1; ; tries++) {
+            int sequence = mPage.getInt(SEQUENCE);
+            acquireFence();
+            long anchorPtsUs = mPage.getLong(ANCHOR_PTS);
+            long anchorNs = mPage.getLong(ANCHOR_NS);
+            float rate = mPage.getFloat(RATE);
+            acquireFence();
+            if ((sequence & 1) != 0 || mPage.getInt(SEQUENCE) != sequence) {
+                if (tries == MAX_READ_TRIES) {
+                    return NO_TIME; // E.g. the client died in the middle of an update.
+                }
+                Thread.yield(); // The writer is in the middle of an update.
+                continue;
+            }
+            if (rate <= 0) {
+                return NO_TIME; // Stopped, or played backward one key frame at a time.
+            }
+            return anchorNs + (long) ((ptsUs - anchorPtsUs) * 1000 / (double) rate);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mShared != null) {
+            mShared.close();
+        }
+    }
+}
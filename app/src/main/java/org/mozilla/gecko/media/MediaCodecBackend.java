@@ -0,0 +1,174 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/** {@link CodecBackend} of a platform decoder. */
+/* package */ final class MediaCodecBackend implements CodecBackend {
+    /* package */ static final Factory FACTORY = new Factory() {
+        private final MediaCodecList mCodecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
+
+        @Override
+        public List<String> findDecoders(MediaFormat format) {
+            String name = mCodecList.findDecoderForFormat(format);
+            return name == null ? Collections.<String>emptyList() : Collections.singletonList(name);
+        }
+
+        @Override
+        public int getMaxInstances(String name, String mime) {
+            return MediaCodecBackend.getMaxInstances(mCodecList, name, mime);
+        }
+
+        @Override
+        public boolean isSoftware(String name) {
+            return MediaCodecBackend.isSoftware(name);
+        }
+
+        @Override
+        public CodecBackend create(String name) throws IOException {
+            return createByName(name);
+        }
+    };
+
+    /** Decoders before M tell no limit: assume they have one. */
+    private static final int DEFAULT_MAX_INSTANCES = 16;
+
+    /* package */ static int getMaxInstances(MediaCodecList list, String name, String mime) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return DEFAULT_MAX_INSTANCES;
+        }
+        for (MediaCodecInfo info : list.getCodecInfos()) {
+            if (info.getName().equals(name)) {
+                return info.getCapabilitiesForType(mime).getMaxSupportedInstances();
+            }
+        }
+        return DEFAULT_MAX_INSTANCES;
+    }
+
+    /** @return whether {@code name} is one of the platform's software decoders. */
+    /* package */ static boolean isSoftware(String name) {
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+
+    /* package */ static MediaCodecBackend createByName(String name) throws IOException {
+        return new MediaCodecBackend(MediaCodec.createByCodecName(name));
+    }
+
+    private final MediaCodec mCodec;
+
+    private MediaCodecBackend(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    @Override
+    public String getName() {
+        return mCodec.getName();
+    }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                                @NonNull MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info.presentationTimeUs, info.flags);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        });
+    }
+
+    @Override
+    public void configure(MediaFormat format, Surface surface, int flags) {
+        mCodec.configure(format, surface, null, flags);
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void flush() {
+        mCodec.flush();
+        mCodec.start(); // Asynchronous mode stops on flush.
+    }
+
+    @Override
+    public void reset() {
+        mCodec.reset();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public boolean setOnFrameRenderedListener(final FrameRenderedListener listener, Handler handler) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        mCodec.setOnFrameRenderedListener(new MediaCodec.OnFrameRenderedListener() {
+            @Override
+            public void onFrameRendered(@NonNull MediaCodec codec, long presentationTimeUs,
+                                        long nanoTime) {
+                listener.onFrameRendered(presentationTimeUs, nanoTime);
+            }
+        }, handler);
+        return true;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimeNs) {
+        mCodec.releaseOutputBuffer(index, renderTimeNs);
+    }
+}
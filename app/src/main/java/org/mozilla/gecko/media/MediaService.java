@@ -6,53 +6,573 @@ package org.mozilla.gecko.media;
 
 import android.app.Service;
 import android.content.Intent;
+import android.hardware.display.DisplayManager;
 import android.media.MediaCodec;
-import android.media.MediaCodecList;
+import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
-import android.support.annotation.NonNull;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Display;
 import android.view.Surface;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
-public final class MediaService extends Service {
+/**
+ * Hosts remote codecs. One instance runs in each of the processes declared for
+ * the subclasses in {@link #SHARDS}, so a crashing codec only takes down the
+ * codecs sharing its process.
+ */
+public class MediaService extends Service {
     private static final String LOG_TAG = MediaService.class.getSimpleName();
 
+    public static final class Remote0 extends MediaService {}
+    public static final class Remote1 extends MediaService {}
+    public static final class Remote2 extends MediaService {}
+    public static final class Remote3 extends MediaService {}
+    /** Runs in the client process, see {@link CodecProxy#setInProcess(boolean)}. */
+    public static final class Local extends MediaService {}
+
+    /** Service classes of the pool. Each must be declared in its own process in the manifest. */
+    /* package */ static final Class<?>[] SHARDS = {
+        Remote0.class, Remote1.class, Remote2.class, Remote3.class,
+    };
+
+    /* package */ static final String STATS_CODEC_COUNT = "codecCount";
+    /* package */ static final String STATS_CPU_TIME_MS = "cpuTimeMs";
+    /* package */ static final String STATS_UPTIME_MS = "uptimeMs";
+    // Followed by CodecPriority.name().
+    /* package */ static final String STATS_INPUTS = "inputs.";
+    /* package */ static final String STATS_MISSED_DEADLINES = "missedDeadlines.";
+    // Long array from FramePacing.toArray(), of every codec since the service started.
+    /* package */ static final String STATS_FRAME_PACING = "framePacing";
+    // Codecs placed on another decoder than the best one, and codecs waiting for one.
+    /* package */ static final String STATS_FALLBACKS = "fallbacks";
+    /* package */ static final String STATS_ADMISSION_WAITING = "admissionWaiting";
+    // Followed by the key of a client: long array from MediaClient.toArray().
+    /* package */ static final String STATS_CLIENT = "client.";
+
+    private static final long sStartRealtimeMs = SystemClock.elapsedRealtime();
+    private static final AtomicInteger sCodecCount = new AtomicInteger();
+    private static final AtomicLongArray sInputs = new AtomicLongArray(CodecPriority.COUNT);
+    private static final AtomicLongArray sMissedDeadlines = new AtomicLongArray(CodecPriority.COUNT);
+    private static final SharedWorker[] sWorkers = new SharedWorker[CodecPriority.COUNT];
+    private static final FramePacing sFramePacing = new FramePacing(FramePacing.DEFAULT_VSYNC_NS);
+    private static volatile long sVsyncNs = FramePacing.DEFAULT_VSYNC_NS;
+    private static final CodecAdmission sAdmission = new CodecAdmission();
+    private static final AtomicLong sFallbacks = new AtomicLong();
+    private static final MediaClient.Registry sClients = new MediaClient.Registry();
+
     private Binder mBinder = new IMediaService.Stub() {
         @Override
         public ICodec createCodec() throws RemoteException {
-            return new Codec();
+            MediaClient client = acquireClient(null);
+            return client != null ? new Codec(client) : null;
+        }
+
+        @Override
+        public ICodec createConfiguredCodec(FormatParam format, Surface surface,
+                                           ICodecCallbacks callbacks,
+                                           ParcelFileDescriptor inputChannel, int flags,
+                                           int priority, String clientToken)
+                throws RemoteException {
+            if (callbacks == null || !CodecPriority.isValid(priority)) {
+                Log.e(LOG_TAG, "FAIL: invalid callbacks or priority " + priority);
+                return null;
+            }
+            MediaClient client = acquireClient(clientToken);
+            if (client == null) {
+                return null;
+            }
+            Codec codec = new Codec(client);
+            codec.setCallbacks(callbacks);
+            if (inputChannel != null) {
+                codec.setInputChannel(inputChannel);
+            }
+            codec.configureAndStart(format, surface, flags, priority);
+            return codec;
+        }
+
+        @Override
+        public ICodec createSourceCodec(String uri, ParcelFileDescriptor fd, int track,
+                                        Surface surface, ICodecCallbacks callbacks, int flags,
+                                        int priority, String clientToken) throws RemoteException {
+            if (callbacks == null || !CodecPriority.isValid(priority)) {
+                Log.e(LOG_TAG, "FAIL: invalid callbacks or priority " + priority);
+                return null;
+            }
+            MediaClient client = acquireClient(clientToken);
+            if (client == null) {
+                return null;
+            }
+            Codec codec = new Codec(client);
+            codec.setCallbacks(callbacks);
+            codec.openSourceAndStart(uri, fd, track, surface, flags, priority);
+            return codec;
+        }
+
+        @Override
+        public ICodecSession createSession(ISessionCallbacks callbacks,
+                                           ParcelFileDescriptor inputChannel, int priority,
+                                           String clientToken) throws RemoteException {
+            if (callbacks == null || !CodecPriority.isValid(priority)) {
+                Log.e(LOG_TAG, "FAIL: invalid callbacks or priority " + priority);
+                return null;
+            }
+            return new Session(callbacks, inputChannel, priority, clientToken);
+        }
+
+        @Override
+        public void setClientWeight(String clientToken, int weight) throws RemoteException {
+            // Not oneway: those have no calling PID.
+            sClients.setWeight(Binder.getCallingUid(), Binder.getCallingPid(), clientToken, weight);
+        }
+
+        @Override
+        public Bundle getStats() throws RemoteException {
+            Bundle stats = new Bundle();
+            stats.putInt(STATS_CODEC_COUNT, sCodecCount.get());
+            stats.putLong(STATS_CPU_TIME_MS, Process.getElapsedCpuTime());
+            stats.putLong(STATS_UPTIME_MS, SystemClock.elapsedRealtime() - sStartRealtimeMs);
+            for (int i = 0; i < CodecPriority.COUNT; i++) {
+                stats.putLong(STATS_INPUTS + CodecPriority.name(i), sInputs.get(i));
+                stats.putLong(STATS_MISSED_DEADLINES + CodecPriority.name(i), sMissedDeadlines.get(i));
+            }
+            synchronized (sFramePacing) {
+                stats.putLongArray(STATS_FRAME_PACING, sFramePacing.toArray());
+            }
+            stats.putLong(STATS_FALLBACKS, sFallbacks.get());
+            stats.putInt(STATS_ADMISSION_WAITING, sAdmission.getWaiting());
+            for (MediaClient client : sClients.getClients()) {
+                stats.putLongArray(STATS_CLIENT + client.getKey(), client.toArray());
+            }
+            return stats;
         }
     };
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Display display = ((DisplayManager) getSystemService(DISPLAY_SERVICE))
+                .getDisplay(Display.DEFAULT_DISPLAY);
+        if (display != null && display.getRefreshRate() > 0) {
+            sVsyncNs = (long) (1000000000 / display.getRefreshRate());
+        }
+        // Shared by the service processes: decoder instances are a device-wide resource.
+        sAdmission.setLockDir(new File(getNoBackupFilesDir(), "codec_instances"));
+        synchronized (MediaService.class) {
+            if (sBackendFactory == MediaCodecBackend.FACTORY) { // Not replaced for tests.
+                sBackendFactory = new DecoderRanking(this, sAdmission);
+            }
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
     }
 
-    private static MediaCodecList sCodecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
+    /** @return an extractor of {@code fd}, or of {@code uri} if null, or null if it cannot be opened. */
+    private static MediaExtractor openExtractor(String uri, ParcelFileDescriptor fd) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            if (fd != null) {
+                extractor.setDataSource(fd.getFileDescriptor());
+            } else {
+                extractor.setDataSource(uri);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Log.e(LOG_TAG, "FAIL: cannot open source " + (fd != null ? fd : uri));
+            extractor.release();
+            return null;
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close(); // The extractor has its own reference.
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return extractor;
+    }
+
+    /**
+     * Select {@code track} of {@code extractor}, or its first video track if -1.
+     * @return the format of the track, or null if there is none.
+     */
+    private static MediaFormat selectTrack(MediaExtractor extractor, int track) {
+        if (track < 0) {
+            track = findVideoTrack(extractor);
+        }
+        if (track < 0 || track >= extractor.getTrackCount()) {
+            Log.e(LOG_TAG, "FAIL: no track " + track + " in source");
+            return null;
+        }
+        extractor.selectTrack(track);
+        return extractor.getTrackFormat(track);
+    }
+
+    private static int findVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static volatile CodecBackend.Factory sBackendFactory = MediaCodecBackend.FACTORY;
+
+    /** Apply {@code quotas} to every client, e.g. to load test a single one. */
+    /* package */ static void setClientQuotas(MediaClient.Quotas quotas) {
+        sClients.setQuotas(quotas);
+    }
+
+    /**
+     * @return the client {@code token} of the binder call being handled, counting one
+     * more codec, or null if over its quota.
+     */
+    private static MediaClient acquireClient(String token) {
+        MediaClient client = sClients.acquire(Binder.getCallingUid(), Binder.getCallingPid(), token);
+        if (client == null) {
+            Log.e(LOG_TAG, "FAIL: client " + MediaClient.key(Binder.getCallingUid(),
+                    Binder.getCallingPid(), token) + " over codec quota");
+        }
+        return client;
+    }
+
+    private static void releaseClient(MediaClient client) {
+        sClients.release(client);
+    }
+
+    /** Make codecs created from now on use {@code factory}, e.g. {@link LoopbackCodec} for load tests. */
+    /* package */ static void setBackendFactory(CodecBackend.Factory factory) {
+        sBackendFactory = factory;
+    }
+
+    private static final DeadlineScheduler.CpuClock THREAD_CPU_CLOCK = new DeadlineScheduler.CpuClock() {
+        @Override
+        public long nowNs() {
+            return Debug.threadCpuTimeNanos();
+        }
+    };
+
+    /**
+     * Thread shared by the codecs of one priority class, feeding their inputs
+     * in fair share across clients, and earliest deadline first within one.
+     */
+    private static final class SharedWorker extends Handler {
+        // Access only by this thread.
+        private final DeadlineScheduler mScheduler = new DeadlineScheduler(THREAD_CPU_CLOCK);
+        private boolean mDrainPending; // Access only by this thread.
+
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                mDrainPending = false;
+                mScheduler.drain();
+            }
+        };
+
+        SharedWorker(Looper looper) {
+            super(looper);
+        }
+
+        /** Feed ready inputs once messages already queued have been handled. Call on this thread. */
+        void requestDrain() {
+            if (!mDrainPending) {
+                mDrainPending = true;
+                post(mDrain);
+            }
+        }
+    }
+
+    private static synchronized SharedWorker getWorker(int priority) {
+        if (sWorkers[priority] == null) {
+            HandlerThread thread = new HandlerThread("codec-worker-" + CodecPriority.name(priority),
+                    getThreadPriority(priority));
+            thread.start();
+            sWorkers[priority] = new SharedWorker(thread.getLooper());
+        }
+        return sWorkers[priority];
+    }
+
+    private static int getThreadPriority(int priority) {
+        switch (priority) {
+            case CodecPriority.REALTIME:
+                return Process.THREAD_PRIORITY_DISPLAY;
+            case CodecPriority.BACKGROUND:
+                return Process.THREAD_PRIORITY_BACKGROUND;
+            default:
+                return Process.THREAD_PRIORITY_DEFAULT;
+        }
+    }
+
+    /**
+     * Tracks of one playback. Each has a {@link Codec} of the session's priority,
+     * so they all share one worker thread, and their callbacks go through one binder
+     * with a single death link. Inputs of all tracks arrive in one oneway queue and
+     * reach the codecs in the order sent.
+     */
+    /* package */ static final class Session extends ICodecSession.Stub
+            implements IBinder.DeathRecipient {
+        private final ISessionCallbacks mCallbacks;
+        private final int mPriority;
+        private final String mClientToken; // Of the codecs of the tracks.
+        private volatile Codec[] mTracks = new Codec[0]; // Copied on write, under this. Null if removed.
+        private SampleChannel.Reader mInputChannel; // Access only in the oneway queue.
+        private boolean mReleased; // Guarded by this.
+
+        Session(ISessionCallbacks callbacks, ParcelFileDescriptor inputChannel, int priority,
+                String clientToken) throws RemoteException {
+            mCallbacks = callbacks;
+            mPriority = priority;
+            mClientToken = clientToken;
+            if (inputChannel != null) {
+                mInputChannel = new SampleChannel.Reader(new ParcelFileDescriptor.AutoCloseInputStream(inputChannel));
+            }
+            callbacks.asBinder().linkToDeath(this, 0);
+        }
+
+        /** Forwards the callbacks of one track's codec to the session's binder. */
+        private static final class TrackCallbacks extends ICodecCallbacks.Stub {
+            private final ISessionCallbacks mCallbacks;
+            private final int mTrack;
+
+            TrackCallbacks(ISessionCallbacks callbacks, int track) {
+                mCallbacks = callbacks;
+                mTrack = track;
+            }
+
+            @Override
+            public void onInputConsumed() throws RemoteException {
+                mCallbacks.onInputConsumed(mTrack);
+            }
+
+            @Override
+            public void onOutputFormatChanged(FormatParam format) throws RemoteException {
+                mCallbacks.onOutputFormatChanged(mTrack, format);
+            }
+
+            @Override
+            public void onOutput(Sample sample) throws RemoteException {
+                mCallbacks.onOutput(mTrack, sample);
+            }
+
+            @Override
+            public void onError(int error) throws RemoteException {
+                mCallbacks.onError(mTrack, error);
+            }
+
+            @Override
+            public void onSeekCompleted(long presentationTimeUs, int skippedFrames)
+                    throws RemoteException {
+                mCallbacks.onSeekCompleted(mTrack, presentationTimeUs, skippedFrames);
+            }
+
+            @Override
+            public void onFramePacing(long[] pacing) throws RemoteException {
+                mCallbacks.onFramePacing(mTrack, pacing);
+            }
+
+            @Override
+            public void onPlaced(String codecName, boolean fallback, long waitedMs)
+                    throws RemoteException {
+                mCallbacks.onPlaced(mTrack, codecName, fallback, waitedMs);
+            }
+
+            @Override
+            public void onStartupMilestones(long[] timestampsNs) {} // Per track timelines are not kept.
+        }
+
+        @Override
+        public synchronized int addTrack(FormatParam format, Surface surface, int flags)
+                throws RemoteException {
+            if (mReleased) {
+                return -1;
+            }
+            MediaClient client = acquireClient(mClientToken);
+            if (client == null) {
+                return -1;
+            }
+            int track = mTracks.length;
+            Codec codec = new Codec(client);
+            // A local binder: nothing more to link to death.
+            codec.setCallbacks(new TrackCallbacks(mCallbacks, track));
+            codec.configureAndStart(format, surface, flags, mPriority);
+            Codec[] tracks = Arrays.copyOf(mTracks, track + 1);
+            tracks[track] = codec;
+            mTracks = tracks;
+            return track;
+        }
+
+        private Codec getTrack(int track) {
+            Codec[] tracks = mTracks;
+            return track >= 0 && track < tracks.length ? tracks[track] : null;
+        }
+
+        @Override
+        public void inputSample(Sample sample) throws RemoteException {
+            // Take the payload off the channel even if the sample is dropped, to stay in sync.
+            if (sample.detached && !readPayload(sample)) {
+                mCallbacks.onError(sample.track, Codec.ERROR_INPUT);
+                return;
+            }
+            Codec codec = getTrack(sample.track);
+            if (codec != null) {
+                codec.inputSample(sample);
+            }
+        }
+
+        @Override
+        public void inputSamples(Sample[] samples) throws RemoteException {
+            for (Sample sample : samples) {
+                inputSample(sample);
+            }
+        }
+
+        private boolean readPayload(Sample sample) {
+            if (mInputChannel == null) {
+                Log.e(LOG_TAG, "FAIL: no input channel for sample:" + sample);
+                return false;
+            }
+            try {
+                mInputChannel.read(sample);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.e(LOG_TAG, "FAIL: cannot read sample:" + sample);
+                closeInputChannel(); // Out of sync with the client.
+                return false;
+            }
+        }
+
+        private void closeInputChannel() {
+            if (mInputChannel == null) {
+                return;
+            }
+            try {
+                mInputChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mInputChannel = null;
+        }
+
+        @Override
+        public void flush(int track, int epoch, long seekTargetUs) throws RemoteException {
+            Codec codec = getTrack(track);
+            if (codec != null) {
+                codec.flush(epoch, seekTargetUs);
+            }
+        }
+
+        @Override
+        public void removeTrack(int track) throws RemoteException {
+            Codec codec;
+            synchronized (this) {
+                codec = getTrack(track);
+                if (codec == null) {
+                    return;
+                }
+                Codec[] tracks = mTracks.clone();
+                tracks[track] = null;
+                mTracks = tracks;
+            }
+            codec.release();
+        }
+
+        @Override
+        public void release() throws RemoteException {
+            Codec[] tracks;
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                tracks = mTracks;
+                mTracks = new Codec[0];
+            }
+            for (Codec codec : tracks) {
+                if (codec != null) {
+                    codec.release();
+                }
+            }
+            mCallbacks.asBinder().unlinkToDeath(this, 0);
+            closeInputChannel();
+        }
+
+        // IBinder.DeathRecipient
+        @Override
+        public void binderDied() {
+            Log.e(LOG_TAG, "session callbacks are dead");
+            Codec[] tracks;
+            synchronized (this) {
+                mReleased = true;
+                tracks = mTracks;
+                mTracks = new Codec[0];
+            }
+            for (Codec codec : tracks) {
+                if (codec != null) {
+                    codec.binderDied();
+                }
+            }
+        }
+    }
 
     /* package */ static final class Codec extends ICodec.Stub  implements IBinder.DeathRecipient {
         private static final int CODEC_MSG_CONFIG = 1;
         private static final int CODEC_MSG_INPUT_SAMPLE = 2;
         private static final int CODEC_MSG_INPUT_BUFFER_AVAILABLE = 3;
         private static final int CODEC_MSG_REPORT_FORMAT_CHANGE = 4;
+        private static final int CODEC_MSG_CREATE = 5; // Create, configure and start.
+        private static final int CODEC_MSG_TRICK_OUTPUT = 6;
 
         /* package */ static final int ERROR_CODEC_NOT_READY = -1;
         /* package */ static final int ERROR_INPUT = -2;
         /* package */ static final int ERROR_UNKNOWN = -3;
+        /* package */ static final int ERROR_SOURCE = -4;
+
+        /* package */ static final long NO_SEEK_TARGET = Long.MIN_VALUE;
+
+        // Read-ahead limits of sources demuxed in the service.
+        private static final int SOURCE_READ_AHEAD_SAMPLES = 32;
+        private static final long SOURCE_READ_AHEAD_BYTES = 8 * 1024 * 1024;
+        private static final long SOURCE_READ_AHEAD_US = 2000000;
+        private static final int SOURCE_SAMPLE_SIZE = 64 * 1024; // Initial one, slots grow as needed.
+        // Frames later than this on the client clock are dropped.
+        private static final long MAX_LATENESS_NS = 40000000;
+        // MediaCodec renders at most this far ahead.
+        private static final long MAX_RENDER_AHEAD_NS = 1000000000;
+        // Frame pacing is reported to the client after this many frames, about 2s at 60fps.
+        private static final int PACING_REPORT_FRAMES = 120;
 
         final class Config {
             final MediaFormat format;
@@ -66,14 +586,30 @@ public final class MediaService extends Service {
             }
         }
 
-        final class ImplWorker extends Handler {
+        final class ImplWorker extends Handler implements DeadlineScheduler.Task {
             private Queue<Sample> mInputSamples = new LinkedList<>(); // Access only by mWorker.
             private Queue<Integer> mAvailableInputBuffers = new LinkedList<>(); // Access only by mWorker.
+            private final SharedWorker mShared;
+            private final DeadlineScheduler.Clock mClock; // Access only by mWorker.
+            private long mLastDeadlineNs; // Access only by mWorker.
+            private Sample mSourceSample; // Polled from mSource and not fed yet. Access only by mWorker.
+            private final TrickPlay mTrickPlay = new TrickPlay(); // Of the source. Access only by mWorker.
+            // Whether mTrickPlay is active, read on codec callback threads.
+            private volatile boolean mTrick;
+            private final FramePacing mPacing = new FramePacing(sVsyncNs); // Access only by mWorker.
+            private List<String> mCandidates; // Decoders to create. Access only by mWorker.
+            private long mAdmissionStartMs; // First try to create. Access only by mWorker.
+            // Sent while waiting for a decoder, to handle once created. Access only by mWorker.
+            private final List<Message> mDeferred = new ArrayList<>();
+            // Bumped by flushes, to drop input buffers announced before. Read on codec callback threads.
+            private volatile int mBufferGeneration;
 
             private CountDownLatch mInitLock = new CountDownLatch(1);
 
-            ImplWorker(Looper looper) {
-                super(looper);
+            ImplWorker(SharedWorker shared) {
+                super(shared.getLooper());
+                mShared = shared;
+                mClock = new DeadlineScheduler.Clock(CodecPriority.slackNs(mPriority));
             }
 
             void waitForConfig() {
@@ -84,19 +620,45 @@ public final class MediaService extends Service {
                 }
             }
 
+            @Override
+            public void dispatchMessage(Message msg) {
+                if (mCreating && mImpl == null && msg.what != CODEC_MSG_CREATE) {
+                    mDeferred.add(Message.obtain(msg)); // Waiting for a decoder.
+                    return;
+                }
+                if (msg.getCallback() != null && mImpl == null) {
+                    return; // A command for a codec that could not be created, reported already.
+                }
+                super.dispatchMessage(msg);
+            }
+
             @Override
             public void handleMessage(Message msg) {
                 switch (msg.what) {
+                    case CODEC_MSG_CREATE:
+                        createImpl((Config) msg.obj);
+                        break;
+                    case CODEC_MSG_TRICK_OUTPUT:
+                        onTrickOutput(msg.arg1);
+                        break;
                     case CODEC_MSG_CONFIG:
                         Config config = (Config)msg.obj;
+                        mShared.mScheduler.add(this, mClient);
                         configImpl(config);
+                        mTimeline.mark(StartupTimeline.SVC_CONFIGURED);
                         mInitLock.countDown();
                         break;
                     case CODEC_MSG_INPUT_SAMPLE:
                         Sample sample = (Sample)msg.obj;
                         //Log.v(LOG_TAG, "input sample=" + sample);
+                        if (isStale(sample)) {
+                            break;
+                        }
+                        if (!sample.isEOS()) {
+                            mClock.observe(sample.presentationTimeUs, System.nanoTime());
+                        }
                         if (mInputSamples.offer(sample)) {
-                            feedSampleToBuffer();
+                            mShared.requestDrain();
                         } else {
                             try {
                                 mCallbacks.onError(ERROR_INPUT);
@@ -106,8 +668,11 @@ public final class MediaService extends Service {
                         }
                         break;
                     case CODEC_MSG_INPUT_BUFFER_AVAILABLE:
+                        if (msg.arg2 != mBufferGeneration) {
+                            break; // Flushed since.
+                        }
                         if (mAvailableInputBuffers.offer(msg.arg1)) {
-                            feedSampleToBuffer();
+                            mShared.requestDrain();
                         } else {
                             try {
                                 mCallbacks.onError(ERROR_INPUT);
@@ -121,83 +686,607 @@ public final class MediaService extends Service {
                 }
             }
 
-            private void feedSampleToBuffer() {
-                while (true) {
-                    if (mInputSamples.isEmpty() || mAvailableInputBuffers.isEmpty()) {
-                        break;
-                    }
-                    int index = mAvailableInputBuffers.poll();
-                    Sample sample = mInputSamples.poll();
-                    //Log.v(LOG_TAG, "feed sample=" + sample + "to buffer#" + index);
-                    int len = 0;
-                    if (!sample.isEOS() && sample.bytes != null) {
-                        len = sample.bytes.length;
-                        ByteBuffer buf = mImpl.getInputBuffer(index);
-                        buf.put(sample.bytes, 0, len);
-                    }
-                    mImpl.queueInputBuffer(index, 0, len, sample.presentationTimeUs, sample.flags);
+            private void createImpl(final Config config) {
+                if (!mCreating) {
+                    return; // Created at an earlier try.
+                }
+                if (mReleased) {
+                    mCreating = false;
+                    removeCallbacksAndMessages(null);
+                    mDeferred.clear();
+                    return;
+                }
+                if (config == null) {
+                    failCreation(ERROR_SOURCE);
+                    return;
+                }
+                long nowMs = SystemClock.uptimeMillis();
+                if (mCandidates == null) {
+                    mCandidates = sBackendFactory.findDecoders(config.format);
+                    mAdmissionStartMs = nowMs;
+                }
+                long deadlineMs = mAdmissionStartMs + CodecPriority.admissionWaitMs(mPriority);
+                // Until the deadline, wait for hardware rather than take a software decoder.
+                boolean mayWait = nowMs < deadlineMs;
+                mImpl = createAdmitted(mCandidates, config.format, mayWait);
+                if (mImpl == null && mayWait && !mCandidates.isEmpty()) {
+                    // Try again when a decoder is released here, now and then for those
+                    // released in other processes, and take any at the deadline.
+                    cancelAdmission(); // Of the try before.
+                    mAdmissionWaiter = new Runnable() {
+                        @Override
+                        public void run() {
+                            sendMessage(obtainMessage(CODEC_MSG_CREATE, config));
+                        }
+                    };
+                    sAdmission.await(mAdmissionWaiter, mPriority);
+                    removeMessages(CODEC_MSG_CREATE);
+                    sendMessageAtTime(obtainMessage(CODEC_MSG_CREATE, config),
+                            Math.min(deadlineMs, nowMs + CodecAdmission.RETRY_MS));
+                    return;
+                }
+                cancelAdmission();
+                removeMessages(CODEC_MSG_CREATE);
+                mCreating = false;
+                if (mImpl != null && mReleased) {
+                    mImpl.release(); // Released while it was created.
+                    mImpl = null;
+                    releaseSlot();
+                    return;
+                }
+                if (mImpl == null) {
+                    Log.e(LOG_TAG, "FAIL: cannot create codec");
+                    failCreation(ERROR_CODEC_NOT_READY);
+                    return;
+                }
+                mTimeline.mark(StartupTimeline.SVC_CREATED);
+                reportPlacement(mCandidates, nowMs - mAdmissionStartMs);
+                mShared.mScheduler.add(this, mClient);
+                configImpl(config);
+                mTimeline.mark(StartupTimeline.SVC_CONFIGURED);
+                mImpl.start();
+                mTimeline.mark(StartupTimeline.SVC_STARTED);
+                for (int i = mDeferred.size() - 1; i >= 0; i--) {
+                    sendMessageAtFrontOfQueue(mDeferred.get(i)); // In the order they came.
+                }
+                mDeferred.clear();
+            }
+
+            /** Give up on creating the codec, dropping what was sent meanwhile, and tell the client. */
+            private void failCreation(int error) {
+                mCreating = false;
+                removeCallbacksAndMessages(null); // Inputs sent meanwhile.
+                mDeferred.clear();
+                ICodecCallbacks callbacks = mCallbacks;
+                if (callbacks != null) {
                     try {
-                        mCallbacks.onInputConsumed();
+                        callbacks.onError(error);
                     } catch (RemoteException e) {
                         e.printStackTrace();
                     }
                 }
             }
+
+            /** Drop the samples and input buffers that came before the flush to {@link #mEpoch}. */
+            void flushImpl(long seekTargetUs) {
+                if (mSource != null) {
+                    releaseSourceSample();
+                    if (seekTargetUs != NO_SEEK_TARGET) {
+                        mSource.seekTo(seekTargetUs);
+                    }
+                    mTrickPlay.reset();
+                }
+                for (Iterator<Sample> i = mInputSamples.iterator(); i.hasNext(); ) {
+                    if (isStale(i.next())) {
+                        i.remove();
+                    }
+                }
+                mAvailableInputBuffers.clear();
+                mBufferGeneration++;
+                mImpl.flush(); // Announces every input buffer again.
+                mOutputEpoch = mEpoch;
+                mClock.reset();
+                mPacing.reset();
+                mSeekTargetUs = seekTargetUs;
+            }
+
+            void onFrameRendered(long presentationTimeUs, long renderTimeNs) {
+                if (!mTimelineReported) {
+                    mTimeline.mark(StartupTimeline.SVC_FIRST_RENDER, renderTimeNs);
+                    reportStartupTimeline();
+                }
+                mPacing.onFrameRendered(presentationTimeUs, renderTimeNs);
+                if (mPacing.getFrames() >= PACING_REPORT_FRAMES) {
+                    reportPacing();
+                }
+            }
+
+            /** Report the frames rendered since the last report, if any. */
+            private void reportPacing() {
+                if (mPacing.getFrames() == 0) {
+                    return;
+                }
+                long[] report = mPacing.toArray();
+                synchronized (sFramePacing) {
+                    sFramePacing.add(mPacing);
+                }
+                mPacing.clearCounts();
+                ICodecCallbacks callbacks = mCallbacks;
+                if (callbacks == null) {
+                    return;
+                }
+                try {
+                    callbacks.onFramePacing(report);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            void setRateImpl(int rate) {
+                if (!mTrickPlay.setRate(rate)) {
+                    return;
+                }
+                mTrick = mTrickPlay.isActive();
+                mSource.setKeyframeStep(mTrickPlay.getKeyframeStepUs());
+                // Back to normal speed from the sync sample before, without showing what precedes.
+                flushImpl(mLastOutputUs);
+                mSeekTargetUs = mTrick ? NO_SEEK_TARGET : mLastOutputUs;
+            }
+
+            /**
+             * An output in trick play, decoded in input buffer {@code generation}: once the
+             * key frame is out, start the next one from a clean decoder, when due.
+             */
+            private void onTrickOutput(int generation) {
+                if (generation != mBufferGeneration || !mTrickPlay.onOutput()) {
+                    return; // Of a sample fed before a flush.
+                }
+                mAvailableInputBuffers.clear();
+                mBufferGeneration++;
+                mImpl.flush(); // So none waits for reordering.
+                long waitMs = mTrickPlay.getFeedDelayMs(SystemClock.uptimeMillis());
+                if (waitMs > 0) {
+                    postDelayed(mWake, waitMs);
+                }
+            }
+
+            private final Runnable mWake = new Runnable() {
+                @Override
+                public void run() {
+                    mShared.requestDrain();
+                }
+            };
+
+            /** Wake up for data from mSource. Any thread. */
+            void onSourceData() {
+                post(mWake);
+            }
+
+            private Sample peekSource() {
+                if (mSourceSample == null) {
+                    if (mTrickPlay.getFeedDelayMs(SystemClock.uptimeMillis()) != 0) {
+                        return null;
+                    }
+                    mSourceSample = mSource.poll();
+                    if (mSourceSample != null && !mSourceSample.isEOS()) {
+                        mClock.observe(mSourceSample.presentationTimeUs, System.nanoTime());
+                    }
+                }
+                return mSourceSample;
+            }
+
+            private void releaseSourceSample() {
+                if (mSourceSample != null) {
+                    mSource.release(mSourceSample);
+                    mSourceSample = null;
+                }
+            }
+
+            @Override
+            public long nextDeadlineNs() {
+                // Samples queued before a flush that has not reached this thread yet.
+                while (!mInputSamples.isEmpty() && isStale(mInputSamples.peek())) {
+                    mInputSamples.poll();
+                }
+                Sample sample = mSource != null ? peekSource() : mInputSamples.peek();
+                if (sample == null || mAvailableInputBuffers.isEmpty()) {
+                    return DeadlineScheduler.NO_DEADLINE;
+                }
+                long deadline = sample.isEOS() ? DeadlineScheduler.NO_DEADLINE
+                        : mClock.deadlineNs(sample.presentationTimeUs);
+                // EOS is due with the sample before it.
+                return deadline != DeadlineScheduler.NO_DEADLINE ? deadline : mLastDeadlineNs;
+            }
+
+            @Override
+            public void runNext() {
+                long deadline = nextDeadlineNs();
+                int index = mAvailableInputBuffers.poll();
+                Sample sample = mSource != null ? mSourceSample : mInputSamples.poll();
+                //Log.v(LOG_TAG, "feed sample=" + sample + "to buffer#" + index);
+                int len = 0;
+                if (!sample.isEOS() && sample.size > 0) {
+                    len = sample.size;
+                    sample.writeTo(mImpl.getInputBuffer(index));
+                }
+                mImpl.queueInputBuffer(index, 0, len, sample.presentationTimeUs, sample.flags);
+                mClient.addInput(len, System.nanoTime());
+                mTimeline.mark(StartupTimeline.SVC_FIRST_INPUT);
+                if (!sample.isEOS()) {
+                    sInputs.incrementAndGet(mPriority);
+                    if (System.nanoTime() > deadline) {
+                        sMissedDeadlines.incrementAndGet(mPriority);
+                    }
+                    mLastDeadlineNs = deadline;
+                }
+                if (mSource != null) {
+                    releaseSourceSample();
+                    mTrickPlay.onFed(SystemClock.uptimeMillis());
+                    return; // The client does not feed.
+                }
+                ICodecCallbacks callbacks = mCallbacks;
+                if (callbacks == null) {
+                    return; // The client died before this codec was detached.
+                }
+                try {
+                    callbacks.onInputConsumed();
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            /**
+             * Stop scheduling this codec, after the work already queued.
+             * @param orphan codec to release as well since nobody else will, or null.
+             */
+            void detach(final CodecBackend orphan) {
+                mShared.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mShared.mScheduler.remove(ImplWorker.this);
+                        reportPacing(); // Of the frames since the last full report.
+                        if (orphan != null) {
+                            // Its callbacks run on the shared thread and must stop.
+                            orphan.release();
+                        }
+                        releaseSlot(); // After the decoder is released, if it was.
+                    }
+                });
+            }
         }
 
-        private MediaCodec mImpl;
+        private volatile CodecBackend mImpl;
+        private volatile boolean mCreating; // Until the worker tried to create mImpl.
+        private volatile boolean mReleased;
+        // Instance of a decoder held by mImpl, given back once it is released.
+        private final AtomicReference<CodecAdmission.Slot> mSlot = new AtomicReference<>();
+        private volatile Runnable mAdmissionWaiter; // Until a decoder is released, or null.
+        private volatile int mEpoch; // Of the last flush. Older samples are dropped.
+        private volatile int mOutputEpoch; // Of the last flush of mImpl. Written by mWorker.
+        // Outputs before it are not rendered. Set by mWorker, read on codec callback thread.
+        private volatile long mSeekTargetUs = NO_SEEK_TARGET;
+        private volatile long mLastOutputUs; // Written on codec callback thread.
+        // Feeds the codec instead of the client, or null. Set before the worker creates the codec.
+        private volatile SampleSource mSource;
+        private volatile boolean mFedByService; // From mSource, once it is open.
+        private int mSkippedOutputs; // Access only by codec callback thread.
+        private volatile MediaClock mClock; // Of the client, or null.
+        private int mLateOutputs; // Access only by codec callback thread.
         private volatile ICodecCallbacks mCallbacks;
+        private volatile SampleChannel.Reader mInputChannel;
+        private final StartupTimeline mTimeline = new StartupTimeline();
+        // Reported on the first frame rendered, or output if renders are not reported.
+        private volatile boolean mRendersReported; // Set by mWorker on configuration.
+        private volatile boolean mTimelineReported;
 
         private ImplWorker mWorker; // Do everything here!
+        private int mPriority = CodecPriority.REALTIME;
+        private final AtomicBoolean mCounted = new AtomicBoolean(true);
+        private final MediaClient mClient; // Counting this codec.
+
+        /** @param client from {@link #acquireClient}. */
+        Codec(MediaClient client) {
+            mClient = client;
+            sCodecCount.incrementAndGet();
+        }
+
+        /** Stop counting this codec in the load reported by {@link IMediaService#getStats()}. */
+        private void uncount() {
+            if (mCounted.getAndSet(false)) {
+                sCodecCount.decrementAndGet();
+                releaseClient(mClient);
+            }
+        }
 
         public void setCallbacks(ICodecCallbacks callbacks) throws RemoteException {
             mCallbacks = callbacks;
             callbacks.asBinder().linkToDeath(this, 0);
         }
 
+        /** Feed the codec from the selected track of {@code extractor}, with read-ahead. */
+        /* package */ void setSource(MediaExtractor extractor, MediaFormat format) {
+            int slotSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : SOURCE_SAMPLE_SIZE;
+            SampleRing ring = new SampleRing(SOURCE_READ_AHEAD_SAMPLES, slotSize,
+                    SOURCE_READ_AHEAD_BYTES, SOURCE_READ_AHEAD_US);
+            ring.setListener(new SampleRing.Listener() {
+                @Override
+                public void onSampleAvailable() {
+                    ImplWorker worker = mWorker;
+                    if (worker != null) {
+                        worker.onSourceData();
+                    }
+                }
+            });
+            ExtractorReadAhead readAhead = new ExtractorReadAhead(extractor, ring, new SyncIndex());
+            readAhead.setListener(new ExtractorReadAhead.Listener() {
+                @Override
+                public void onReadError(long timeUs) {
+                    Log.e(LOG_TAG, "FAIL: cannot read source at " + timeUs);
+                    ICodecCallbacks callbacks = mCallbacks;
+                    if (callbacks != null) {
+                        try {
+                            callbacks.onError(ERROR_SOURCE);
+                        } catch (RemoteException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            });
+            readAhead.start();
+            mSource = readAhead;
+        }
+
+        private void closeSource() {
+            if (mSource != null) {
+                mSource.close(); // Any thread; the read-ahead releases the extractor.
+            }
+        }
+
+        @Override
+        public boolean setInputChannel(ParcelFileDescriptor channel) throws RemoteException {
+            closeInputChannel();
+            mInputChannel = new SampleChannel.Reader(new ParcelFileDescriptor.AutoCloseInputStream(channel));
+            return true;
+        }
+
+        @Override
+        public boolean setClock(ParcelFileDescriptor clock) throws RemoteException {
+            if (clock == null) {
+                mClock = null;
+                return true;
+            }
+            try {
+                mClock = MediaClock.map(clock);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.e(LOG_TAG, "FAIL: cannot map clock");
+                return false;
+            } finally {
+                try {
+                    clock.close(); // The mapping stays.
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /** Render output {@code index} when the client clock reaches it, or drop it if too late. */
+        private void renderOutput(int index, long presentationTimeUs, int flags) {
+            MediaClock clock = mClock;
+            long renderNs = clock != null && (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0
+                    ? clock.renderTimeNs(presentationTimeUs) : MediaClock.NO_TIME;
+            if (renderNs == MediaClock.NO_TIME) {
+                mImpl.releaseOutputBuffer(index, true);
+                return;
+            }
+            long nowNs = System.nanoTime();
+            if (renderNs < nowNs - MAX_LATENESS_NS) {
+                mImpl.releaseOutputBuffer(index, false);
+                mLateOutputs++;
+                return;
+            }
+            mImpl.releaseOutputBuffer(index, Math.min(renderNs, nowNs + MAX_RENDER_AHEAD_NS));
+        }
+
+        private void closeInputChannel() {
+            SampleChannel.Reader channel = mInputChannel;
+            mInputChannel = null;
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         // IBinder.DeathRecipient
         @Override
         public void binderDied() {
             Log.e(LOG_TAG, "Callbacks is dead");
-            deinitWorker(true /* now */);
+            mReleased = true;
+            cancelAdmission();
+            deinitWorker(true /* now */, mImpl);
+            closeInputChannel();
+            closeSource();
             mCallbacks = null;
+            uncount();
         }
 
         @Override
-        public boolean configure(FormatParam format, Surface surface, int flags) throws RemoteException {
+        public boolean configure(FormatParam format, Surface surface, int flags, int priority)
+                throws RemoteException {
             if (mCallbacks == null) {
                 Log.e(LOG_TAG, "FAIL: callbacks must be set before calling configure().");
                 return false;
             }
+            if (!CodecPriority.isValid(priority)) {
+                Log.e(LOG_TAG, "FAIL: invalid priority " + priority);
+                return false;
+            }
 
             if (mImpl != null) {
                 Log.d(LOG_TAG, "shut down previous codec:" + mImpl.getName());
                 shutdownImpl();
             }
 
-            MediaFormat fmt = format.asFormat();
-            String codecName = sCodecList.findDecoderForFormat(fmt);
-            if (codecName == null) {
+            MediaFormat fmt = asFormat(format, priority);
+            List<String> candidates = sBackendFactory.findDecoders(fmt);
+            if (mWorker == null) {
+                mPriority = priority; // The worker cannot change thread.
+            }
+            mImpl = createAdmitted(candidates, fmt, false); // The caller is blocked: no waiting.
+            if (mImpl == null) {
                 Log.e(LOG_TAG, "FAIL: cannot find codec");
                 return false;
             }
+            reportPlacement(candidates, 0);
 
-            try {
-                mImpl = MediaCodec.createByCodecName(codecName);
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.e(LOG_TAG, "FAIL: cannot create codec:" + codecName);
-                return false;
+            return initWorker(new Config(fmt, surface, flags));
+        }
+
+        /**
+         * Same as {@link #configure} then {@link #start()}, but returns at once: the
+         * worker creates the codec, and failures are reported to the callbacks.
+         * Inputs and commands sent meanwhile wait for the codec on the worker.
+         */
+        /* package */ synchronized void configureAndStart(FormatParam format, Surface surface,
+                                                          int flags, int priority) {
+            if (mWorker != null) {
+                Log.w(LOG_TAG, "codec-worker already initialized.");
+                return;
             }
+            startWorker(priority);
+            Message msg = mWorker.obtainMessage(CODEC_MSG_CREATE,
+                    new Config(asFormat(format, priority), surface, flags));
+            mWorker.sendMessage(msg);
+        }
 
-            return initWorker(new Config(fmt, surface, flags));
+        /**
+         * Same as {@link #configureAndStart}, for a codec fed from {@code track} of
+         * {@code fd}, or of {@code uri} if null. The source is opened on a thread of
+         * its own, as it may take long over the network; failing to open it is
+         * reported as {@link #ERROR_SOURCE}.
+         */
+        /* package */ synchronized void openSourceAndStart(final String uri,
+                                                           final ParcelFileDescriptor fd,
+                                                           final int track, final Surface surface,
+                                                           final int flags, final int priority) {
+            if (mWorker != null) {
+                Log.w(LOG_TAG, "codec-worker already initialized.");
+                return;
+            }
+            mFedByService = true;
+            startWorker(priority);
+            new Thread("source-open") {
+                @Override
+                public void run() {
+                    Config config = null;
+                    MediaExtractor extractor = openExtractor(uri, fd);
+                    MediaFormat format = extractor != null ? selectTrack(extractor, track) : null;
+                    if (format == null && extractor != null) {
+                        extractor.release();
+                    } else if (format != null) {
+                        setSource(extractor, format);
+                        if (mReleased) {
+                            closeSource(); // Released while opening.
+                        }
+                        config = new Config(asFormat(new FormatParam(format), priority), surface, flags);
+                    }
+                    mWorker.sendMessage(mWorker.obtainMessage(CODEC_MSG_CREATE, config));
+                }
+            }.start();
+        }
+
+        /** Start the worker, which creates the codec on {@link #CODEC_MSG_CREATE}. */
+        private void startWorker(int priority) {
+            mPriority = priority;
+            mCreating = true;
+            Log.d(LOG_TAG, "start worker, priority " + CodecPriority.name(mPriority));
+            mWorker = new ImplWorker(getWorker(mPriority));
+        }
+
+        /**
+         * @param hardwareOnly see {@link CodecAdmission#admit}.
+         * @return the first of {@code candidates} admitted and created, holding {@link #mSlot}, or null.
+         */
+        private CodecBackend createAdmitted(List<String> candidates, MediaFormat format,
+                                            boolean hardwareOnly) {
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            List<String> left = new ArrayList<>(candidates);
+            while (true) {
+                CodecAdmission.Slot slot = sAdmission.admit(sBackendFactory, left, mime, mPriority,
+                        hardwareOnly);
+                if (slot == null) {
+                    return null;
+                }
+                try {
+                    CodecBackend backend = sBackendFactory.create(slot.name);
+                    mSlot.set(slot);
+                    return backend;
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    Log.w(LOG_TAG, "cannot create " + slot.name);
+                    sAdmission.release(slot);
+                    left.remove(slot.name);
+                }
+            }
+        }
+
+        /** Tell the client which of {@code candidates} its codec was placed on. */
+        private void reportPlacement(List<String> candidates, long waitedMs) {
+            String name = mSlot.get().name;
+            boolean fallback = !name.equals(candidates.get(0));
+            if (fallback) {
+                sFallbacks.incrementAndGet();
+            }
+            Log.d(LOG_TAG, "placed on " + name + (fallback ? " (fallback)" : "")
+                    + " after " + waitedMs + "ms");
+            ICodecCallbacks callbacks = mCallbacks;
+            if (callbacks != null) {
+                try {
+                    callbacks.onPlaced(name, fallback, waitedMs);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void cancelAdmission() {
+            Runnable waiter = mAdmissionWaiter;
+            if (waiter != null) {
+                sAdmission.cancel(waiter);
+                mAdmissionWaiter = null;
+            }
+        }
+
+        private void releaseSlot() {
+            CodecAdmission.Slot slot = mSlot.getAndSet(null);
+            if (slot != null) {
+                sAdmission.release(slot);
+            }
+        }
+
+        private static MediaFormat asFormat(FormatParam format, int priority) {
+            MediaFormat fmt = format.asFormat();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                // 0 is realtime, 1 best effort.
+                fmt.setInteger(MediaFormat.KEY_PRIORITY, priority == CodecPriority.REALTIME ? 0 : 1);
+            }
+            return fmt;
         }
 
         @Override
         public void start() throws RemoteException {
             if (!reportCodecNotReady()) {
                 mWorker.post(new Runnable() {
-                    public void run() { mImpl.start(); }
+                    public void run() {
+                        mImpl.start();
+                        mTimeline.mark(StartupTimeline.SVC_STARTED);
+                    }
                 });
             }
         }
@@ -212,14 +1301,25 @@ public final class MediaService extends Service {
         }
 
         @Override
-        public void flush() throws RemoteException {
+        public void flush(int epoch, final long seekTargetUs) throws RemoteException {
+            // Takes effect at once for samples on their way, and once the worker flushes
+            // for the codec.
+            mEpoch = epoch;
             if (!reportCodecNotReady()) {
-                mWorker.post(new Runnable() {
-                    public void run() { mImpl.flush(); }
+                final ImplWorker worker = mWorker;
+                worker.post(new Runnable() {
+                    public void run() {
+                        worker.flushImpl(seekTargetUs);
+                    }
                 });
             }
         }
 
+        /** @return whether {@code sample} was sent before the last flush. */
+        private boolean isStale(Sample sample) {
+            return sample.epoch - mEpoch < 0;
+        }
+
         @Override
         public void reset() throws RemoteException {
             if (!reportCodecNotReady()) {
@@ -231,26 +1331,84 @@ public final class MediaService extends Service {
 
         @Override
         public void release() throws RemoteException {
+            mReleased = true;
+            cancelAdmission(); // A creation on its way bails out.
             if (!reportCodecNotReady()) {
                 mWorker.post(new Runnable() {
                     public void run() { mImpl.release(); }
                 });
+                mWorker.detach(null);
             }
             if (mCallbacks != null) {
                 mCallbacks.asBinder().unlinkToDeath(this, 0);
             }
+            closeInputChannel();
+            closeSource();
+            if (mLateOutputs > 0) {
+                Log.d(LOG_TAG, "dropped " + mLateOutputs + " late frames");
+            }
+            uncount();
+        }
+
+        @Override
+        public void setPlaybackRate(final int rate) throws RemoteException {
+            if (!mFedByService || rate == 0) {
+                Log.e(LOG_TAG, "FAIL: cannot change rate to " + rate);
+                return;
+            }
+            if (!reportCodecNotReady()) {
+                final ImplWorker worker = mWorker;
+                worker.post(new Runnable() {
+                    public void run() {
+                        worker.setRateImpl(rate);
+                    }
+                });
+            }
         }
 
         @Override
         public void inputSample(Sample sample) throws RemoteException {
+            // Take the payload off the channel even if the sample is dropped, to stay in sync.
+            // This blocks only the binder thread of this oneway call.
+            if (sample.detached && !readPayload(sample)) {
+                if (mCallbacks != null) {
+                    mCallbacks.onError(ERROR_INPUT);
+                }
+                return;
+            }
+            if (isStale(sample)) {
+                return;
+            }
+            if (mFedByService) {
+                Log.e(LOG_TAG, "FAIL: input to a codec fed by the service");
+                return;
+            }
             if (!reportCodecNotReady()) {
                 Message msg = mWorker.obtainMessage(CODEC_MSG_INPUT_SAMPLE, sample);
                 mWorker.sendMessage(msg);
             }
         }
 
+        private boolean readPayload(Sample sample) {
+            SampleChannel.Reader channel = mInputChannel;
+            if (channel == null) {
+                Log.e(LOG_TAG, "FAIL: no input channel for sample:" + sample);
+                return false;
+            }
+            try {
+                channel.read(sample);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.e(LOG_TAG, "FAIL: cannot read sample:" + sample);
+                closeInputChannel(); // Out of sync with the client.
+                return false;
+            }
+        }
+
         private boolean reportCodecNotReady() throws RemoteException {
-            boolean notReady = mImpl == null;
+            // mCreating first: it is cleared after mImpl is set.
+            boolean notReady = !mCreating && mImpl == null;
             if (notReady && mCallbacks != null) {
                 Log.e(LOG_TAG, "FAIL: codec not ready.");
                 mCallbacks.onError(ERROR_CODEC_NOT_READY);
@@ -259,44 +1417,64 @@ public final class MediaService extends Service {
             return notReady;
         }
 
-        /** Use {@link MediaCodec.Callback} to process buffers asynchronously. */
+        /** Use {@link CodecBackend.Callback} to process buffers asynchronously. */
         private boolean asynchronize() {
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
                 return false;
             }
 
-            mImpl.setCallback(new MediaCodec.Callback() {
+            final ImplWorker worker = mWorker; // Outlives deinitWorker() until the codec is released.
+            mImpl.setCallback(new CodecBackend.Callback() {
                 @Override
-                public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                public void onInputBufferAvailable(int index) {
                     //Log.v(LOG_TAG, "available input buffer#" + index);
-                    Message msg = mWorker.obtainMessage(CODEC_MSG_INPUT_BUFFER_AVAILABLE, index, 0);
-                    mWorker.sendMessage(msg);
+                    Message msg = worker.obtainMessage(CODEC_MSG_INPUT_BUFFER_AVAILABLE, index,
+                            worker.mBufferGeneration);
+                    worker.sendMessage(msg);
                 }
 
                 @Override
-                public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+                public void onOutputBufferAvailable(int index, long presentationTimeUs, int flags) {
+                    if (mCallbacks == null) {
+                        return; // The client is dead and the codec about to be released.
+                    }
+                    mTimeline.mark(StartupTimeline.SVC_FIRST_OUTPUT);
+                    if (skipToSeekTarget(index, presentationTimeUs, flags)) {
+                        return;
+                    }
+                    mLastOutputUs = presentationTimeUs;
                     try {
-                        mCallbacks.onOutput(new Sample(null, info.presentationTimeUs, info.flags));
+                        Sample output = new Sample(null, presentationTimeUs, flags);
+                        output.epoch = mOutputEpoch; // So the client drops what it flushed.
+                        mCallbacks.onOutput(output);
                     } catch (RemoteException e) {
                         e.printStackTrace();
                     }
                     /*
                     StringBuffer str = new StringBuffer();
                     str.append("available output buffer#").append(index).append("=").
-                            append("{ offset=").append(info.offset).
-                            append(", size=").append(info.size).
-                            append(", pts=").append(info.presentationTimeUs).
-                            append(", flags=").append(info.flags).append(" }");
+                            append("{ pts=").append(presentationTimeUs).
+                            append(", flags=").append(flags).append(" }");
                     Log.v(LOG_TAG, str.toString());
                     */
-                    mImpl.releaseOutputBuffer(index, true);
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    renderOutput(index, presentationTimeUs, flags);
+                    if (worker.mTrick) {
+                        worker.sendMessage(worker.obtainMessage(CODEC_MSG_TRICK_OUTPUT,
+                                worker.mBufferGeneration, 0));
+                    }
+                    if (!mTimelineReported && !mRendersReported) {
+                        reportStartupTimeline(); // Without SVC_FIRST_RENDER.
+                    }
+                    if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         // TODO: EOS seen.
                     }
                 }
 
                 @Override
-                public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                public void onError(Exception e) {
+                    if (mCallbacks == null) {
+                        return;
+                    }
                     try {
                         mCallbacks.onError(ERROR_UNKNOWN);
                     } catch (RemoteException e1) {
@@ -305,23 +1483,75 @@ public final class MediaService extends Service {
                 }
 
                 @Override
-                public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
-                    Message msg = mWorker.obtainMessage(CODEC_MSG_REPORT_FORMAT_CHANGE, format);
-                    mWorker.sendMessage(msg);
+                public void onOutputFormatChanged(MediaFormat format) {
+                    Message msg = worker.obtainMessage(CODEC_MSG_REPORT_FORMAT_CHANGE, format);
+                    worker.sendMessage(msg);
                 }
             });
             return true;
         }
 
+        /**
+         * Release an output before the seek target without rendering it, sparing the
+         * surface frames decoded only as references of the target.
+         * @return whether the output was skipped.
+         */
+        private boolean skipToSeekTarget(int index, long presentationTimeUs, int flags) {
+            long target = mSeekTargetUs;
+            if (target == NO_SEEK_TARGET) {
+                return false;
+            }
+            if (presentationTimeUs < target && (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+                mImpl.releaseOutputBuffer(index, false);
+                mSkippedOutputs++;
+                return true;
+            }
+            mSeekTargetUs = NO_SEEK_TARGET;
+            int skipped = mSkippedOutputs;
+            mSkippedOutputs = 0;
+            Log.d(LOG_TAG, "seek to " + target + " done at " + presentationTimeUs + ", skipped " + skipped);
+            try {
+                mCallbacks.onSeekCompleted(presentationTimeUs, skipped);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+
+        private void reportStartupTimeline() {
+            mTimelineReported = true;
+            ICodecCallbacks callbacks = mCallbacks;
+            if (callbacks == null) {
+                return;
+            }
+            try {
+                callbacks.onStartupMilestones(mTimeline.toArray());
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+
         private void configImpl(Config config) {
             asynchronize();
-            mImpl.configure(config.format, config.surface, null, config.flags);
+            mRendersReported = false;
+            if (config.surface != null) {
+                final ImplWorker worker = mWorker;
+                CodecBackend.FrameRenderedListener listener = new CodecBackend.FrameRenderedListener() {
+                    @Override
+                    public void onFrameRendered(long presentationTimeUs, long renderTimeNs) {
+                        worker.onFrameRendered(presentationTimeUs, renderTimeNs);
+                    }
+                };
+                mRendersReported = mImpl.setOnFrameRenderedListener(listener, worker);
+            }
+            mImpl.configure(config.format, config.surface, config.flags);
         }
 
         private void shutdownImpl() {
             mImpl.stop();
             mImpl.release();
             mImpl = null;
+            releaseSlot();
         }
 
         private synchronized boolean initWorker(Config config) {
@@ -330,17 +1560,15 @@ public final class MediaService extends Service {
                 return true;
             }
 
-            HandlerThread thread = new HandlerThread("codec-worker");
-            thread.start();
-            Log.d(LOG_TAG, "start worker");
-            mWorker = new ImplWorker(thread.getLooper());
+            Log.d(LOG_TAG, "start worker, priority " + CodecPriority.name(mPriority));
+            mWorker = new ImplWorker(getWorker(mPriority));
             Message msg = mWorker.obtainMessage(CODEC_MSG_CONFIG, config);
             mWorker.sendMessage(msg);
             mWorker.waitForConfig();
             return mImpl != null;
         }
 
-        private synchronized void deinitWorker(boolean now) {
+        private synchronized void deinitWorker(boolean now, CodecBackend orphan) {
             if (mWorker == null) {
                 Log.w(LOG_TAG, "no initialized codec-worker.");
                 return;
@@ -349,7 +1577,8 @@ public final class MediaService extends Service {
             if (now) {
                 mWorker.removeCallbacksAndMessages(null); // Clear the task queue.
             }
-            mWorker.getLooper().quitSafely();
+            // The thread is shared with other codecs and keeps running.
+            mWorker.detach(orphan);
 
             mWorker = null;
             Log.d(LOG_TAG, "stop worker");
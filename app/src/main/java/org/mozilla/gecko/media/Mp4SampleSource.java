@@ -0,0 +1,185 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link SampleSource} over a local MP4 file. The file is memory mapped and its
+ * sample tables parsed once, then samples are handed out as slices of the
+ * mapping: the payload is only copied when it is sent to the codec.
+ * <p>
+ * The mapping is read-only. Samples with 4 byte NAL unit lengths keep them, and
+ * {@link Sample} replaces them with start codes as it copies the payload out,
+ * which keeps the size. Other length sizes are converted to Annex B by a copy.
+ */
+public final class Mp4SampleSource implements SampleSource {
+    private static final String LOG_TAG = Mp4SampleSource.class.getSimpleName();
+    private static final String KEY_CONFIG_0 = "csd-0";
+    private static final String KEY_CONFIG_1 = "csd-1";
+
+    private final Mp4SampleTable mTable;
+    private final ByteBuffer mMap;
+    private final boolean mSliced; // Samples are slices of mMap, else copies in mScratch.
+    private final Sample mSample = new Sample(null, 0, 0);
+    private ByteBuffer mReader; // Fallback path only.
+    private byte[] mScratch; // Fallback path only.
+    private int mNext;
+    private long mKeyframeStepUs; // Requested, applied on seekTo().
+    private long mStepUs; // Of the current trick play, or 0.
+    private int mNextSync; // Into mTable.syncSamples, during trick play; -1 at the end.
+
+    public static Mp4SampleSource open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file too large to map: " + channel.size());
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Mp4SampleSource source = new Mp4SampleSource(map, Mp4SampleTable.parse(map));
+            Log.d(LOG_TAG, "mapped " + source.mTable.getSampleCount() + " samples, sliced:" + source.mSliced);
+            return source;
+        } finally {
+            raf.close(); // The mapping stays valid.
+        }
+    }
+
+    /* package */ Mp4SampleSource(ByteBuffer map, Mp4SampleTable table) {
+        mMap = map;
+        mTable = table;
+        mSliced = table.nalLengthSize == 4;
+    }
+
+    public Mp4SampleTable getTable() {
+        return mTable;
+    }
+
+    public MediaFormat getFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(mTable.mime, mTable.width, mTable.height);
+        format.setLong(MediaFormat.KEY_DURATION, mTable.durationUs);
+        int maxSize = 0;
+        for (int size : mTable.sizes) {
+            maxSize = Math.max(maxSize, size);
+        }
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxSize);
+        if (mTable.csd0 != null) {
+            format.setByteBuffer(KEY_CONFIG_0, ByteBuffer.wrap(mTable.csd0));
+        }
+        if (mTable.csd1 != null) {
+            format.setByteBuffer(KEY_CONFIG_1, ByteBuffer.wrap(mTable.csd1));
+        }
+        return format;
+    }
+
+    @Override
+    public Sample poll() {
+        int i = mStepUs != 0 ? nextKeyframe() : nextSample();
+        if (i < 0) {
+            mSample.buffer = null;
+            mSample.nalLengthPrefixed = false;
+            mSample.set(0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return mSample;
+        }
+        int flags = mTable.isSync(i) ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        mSample.set(getSampleData(i), mTable.presentationTimesUs[i], flags);
+        mSample.nalLengthPrefixed = mSliced;
+        return mSample;
+    }
+
+    private int nextSample() {
+        return mNext < mTable.getSampleCount() ? mNext++ : -1;
+    }
+
+    private int nextKeyframe() {
+        if (mNextSync < 0) {
+            return -1;
+        }
+        int i = mTable.syncSamples[mNextSync];
+        mNextSync = mTable.nextSyncSample(mNextSync, mStepUs);
+        return i;
+    }
+
+    @Override
+    public void release(Sample sample) {
+        sample.buffer = null; // Nothing to recycle; slices are views of the mapping.
+    }
+
+    @Override
+    public void seekTo(long timeUs) {
+        mNextSync = mTable.findSyncSample(timeUs);
+        mNext = mTable.syncSamples[mNextSync];
+        mStepUs = mKeyframeStepUs;
+    }
+
+    @Override
+    public void setKeyframeStep(long stepUs) {
+        mKeyframeStepUs = stepUs;
+    }
+
+    @Override
+    public void close() {
+        mNext = mTable.getSampleCount(); // The mapping goes away with the last slice.
+        mNextSync = -1;
+    }
+
+    /** @return sample {@code i}, in Annex B format unless sliced. */
+    private ByteBuffer getSampleData(int i) {
+        int offset = (int) mTable.offsets[i];
+        int size = mTable.sizes[i];
+        if (mSliced) {
+            ByteBuffer slice = mMap.duplicate();
+            slice.position(offset);
+            slice.limit(offset + size);
+            return slice.slice();
+        }
+
+        // Start codes can be longer than length fields: 1 byte lengths of 1 byte NAL units grow 2.5x.
+        int capacity = size * 5 / 2 + 4;
+        if (mScratch == null || mScratch.length < capacity) {
+            mScratch = new byte[capacity];
+        }
+        if (mReader == null) {
+            mReader = mMap.duplicate();
+        }
+        int len = toAnnexB(mReader, offset, size, mTable.nalLengthSize, mScratch);
+        return ByteBuffer.wrap(mScratch, 0, len);
+    }
+
+    /**
+     * Copy NAL units with {@code lengthSize} byte length fields into {@code dst}
+     * with start codes instead.
+     * @return number of bytes written.
+     */
+    /* package */ static int toAnnexB(ByteBuffer src, int offset, int size, int lengthSize, byte[] dst) {
+        int end = offset + size, out = 0;
+        for (int pos = offset; pos + lengthSize <= end; ) {
+            int len = 0;
+            for (int i = 0; i < lengthSize; i++) {
+                len = (len << 8) | (src.get(pos + i) & 0xFF);
+            }
+            pos += lengthSize;
+            len = Math.min(len, end - pos);
+            dst[out++] = 0;
+            dst[out++] = 0;
+            dst[out++] = 0;
+            dst[out++] = 1;
+            src.position(pos);
+            src.get(dst, out, len);
+            out += len;
+            pos += len;
+        }
+        return out;
+    }
+}
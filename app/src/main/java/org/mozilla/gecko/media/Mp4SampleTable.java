@@ -0,0 +1,370 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sample tables of the first supported video track of a non-fragmented MP4
+ * file, parsed once into primitive arrays indexed by sample number in decode
+ * order. Plain Java so it can be tested off device.
+ * <p>
+ * Edit lists are not applied; presentation times are composition times.
+ */
+public final class Mp4SampleTable {
+    private static final int HEADER_SIZE = 8;
+    private static final int FULL_HEADER_SIZE = 12;
+    // Size of VisualSampleEntry fields before its child boxes, after the box header.
+    private static final int VISUAL_SAMPLE_ENTRY_SIZE = 78;
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+
+    public int trackId;
+    public String mime;
+    public int width;
+    public int height;
+    public long timescale;
+    public long durationUs;
+    /** Parameter sets in Annex B format, as expected in "csd-0" and "csd-1". */
+    public byte[] csd0;
+    public byte[] csd1;
+    /** Size of the length field in front of each NAL unit in the samples. */
+    public int nalLengthSize;
+
+    /** Absolute file offset of each sample. */
+    public long[] offsets;
+    public int[] sizes;
+    public long[] presentationTimesUs;
+    /** Sample indices of sync samples, ascending. */
+    public int[] syncSamples;
+
+    public int getSampleCount() {
+        return sizes.length;
+    }
+
+    public boolean isSync(int sample) {
+        return Arrays.binarySearch(syncSamples, sample) >= 0;
+    }
+
+    /**
+     * @return the index into {@link #syncSamples} of the last sync sample presented
+     * at or before {@code timeUs}, or of the first one if there is none.
+     */
+    public int findSyncSample(long timeUs) {
+        int lo = 0, hi = syncSamples.length - 1, found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (presentationTimesUs[syncSamples[mid]] <= timeUs) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the index into {@link #syncSamples} of the one to show after sync sample
+     * {@code current} when scanning {@code stepUs} of media time at a time, backwards
+     * if negative: the last one presented at or before the target time, but at least
+     * one further. -1 past either end.
+     */
+    public int nextSyncSample(int current, long stepUs) {
+        int next = findSyncSample(presentationTimesUs[syncSamples[current]] + stepUs);
+        if (stepUs > 0) {
+            next = Math.max(next, current + 1);
+            return next < syncSamples.length ? next : -1;
+        }
+        return Math.min(next, current - 1);
+    }
+
+    /**
+     * Parse the sample tables from a whole file.
+     * @throws IOException if the file is malformed or has no supported video track.
+     */
+    public static Mp4SampleTable parse(ByteBuffer file) throws IOException {
+        try {
+            int moov = findChild(file, 0, file.limit(), "moov");
+            if (moov < 0) {
+                throw new IOException("no moov box");
+            }
+            int end = boxEnd(file, moov);
+            for (int trak = findChild(file, moov + HEADER_SIZE, end, "trak"); trak >= 0;
+                 trak = findChild(file, boxEnd(file, trak), end, "trak")) {
+                Mp4SampleTable table = parseTrack(file, trak);
+                if (table != null) {
+                    return table;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("truncated box", e);
+        }
+        throw new IOException("no supported video track");
+    }
+
+    private static Mp4SampleTable parseTrack(ByteBuffer file, int trak) throws IOException {
+        int trakEnd = boxEnd(file, trak);
+        int mdia = requireChild(file, trak + HEADER_SIZE, trakEnd, "mdia");
+        int mdiaEnd = boxEnd(file, mdia);
+        int hdlr = requireChild(file, mdia + HEADER_SIZE, mdiaEnd, "hdlr");
+        if (file.getInt(hdlr + FULL_HEADER_SIZE + 4) != fourcc("vide")) {
+            return null;
+        }
+        int minf = requireChild(file, mdia + HEADER_SIZE, mdiaEnd, "minf");
+        int stbl = requireChild(file, minf + HEADER_SIZE, boxEnd(file, minf), "stbl");
+        int stblEnd = boxEnd(file, stbl);
+
+        Mp4SampleTable table = new Mp4SampleTable();
+        if (!table.parseSampleDescription(file, requireChild(file, stbl + HEADER_SIZE, stblEnd, "stsd"))) {
+            return null;
+        }
+
+        int tkhd = requireChild(file, trak + HEADER_SIZE, trakEnd, "tkhd");
+        table.trackId = file.getInt(tkhd + FULL_HEADER_SIZE + (file.get(tkhd + HEADER_SIZE) == 1 ? 16 : 8));
+
+        int mdhd = requireChild(file, mdia + HEADER_SIZE, mdiaEnd, "mdhd");
+        long duration;
+        if (file.get(mdhd + HEADER_SIZE) == 1) {
+            table.timescale = file.getInt(mdhd + FULL_HEADER_SIZE + 16) & 0xFFFFFFFFL;
+            duration = file.getLong(mdhd + FULL_HEADER_SIZE + 20);
+        } else {
+            table.timescale = file.getInt(mdhd + FULL_HEADER_SIZE + 8) & 0xFFFFFFFFL;
+            duration = file.getInt(mdhd + FULL_HEADER_SIZE + 12) & 0xFFFFFFFFL;
+        }
+        if (table.timescale == 0) {
+            throw new IOException("zero timescale");
+        }
+        table.durationUs = duration * 1000000L / table.timescale;
+
+        table.parseSizes(file, requireChild(file, stbl + HEADER_SIZE, stblEnd, "stsz"));
+        if (table.getSampleCount() == 0) {
+            return null; // Fragmented file; samples live in moof boxes.
+        }
+        table.parseOffsets(file, stbl, stblEnd);
+        table.parseTimes(file, requireChild(file, stbl + HEADER_SIZE, stblEnd, "stts"),
+                findChild(file, stbl + HEADER_SIZE, stblEnd, "ctts"));
+        table.parseSyncSamples(file, findChild(file, stbl + HEADER_SIZE, stblEnd, "stss"));
+        return table;
+    }
+
+    private boolean parseSampleDescription(ByteBuffer file, int stsd) throws IOException {
+        int entry = stsd + FULL_HEADER_SIZE + 4;
+        int type = file.getInt(entry + 4);
+        int config;
+        if (type == fourcc("avc1") || type == fourcc("avc3")) {
+            mime = MIME_AVC;
+            config = requireChild(file, entry + HEADER_SIZE + VISUAL_SAMPLE_ENTRY_SIZE, boxEnd(file, entry), "avcC");
+        } else if (type == fourcc("hvc1") || type == fourcc("hev1")) {
+            mime = MIME_HEVC;
+            config = requireChild(file, entry + HEADER_SIZE + VISUAL_SAMPLE_ENTRY_SIZE, boxEnd(file, entry), "hvcC");
+        } else {
+            return false;
+        }
+        width = file.getShort(entry + HEADER_SIZE + 24) & 0xFFFF;
+        height = file.getShort(entry + HEADER_SIZE + 26) & 0xFFFF;
+
+        int pos = config + HEADER_SIZE;
+        if (MIME_AVC.equals(mime)) {
+            nalLengthSize = (file.get(pos + 4) & 0x3) + 1;
+            int count = file.get(pos + 5) & 0x1F;
+            ByteArrayOutputStream sps = new ByteArrayOutputStream();
+            pos = copyParameterSets(file, pos + 6, count, sps);
+            count = file.get(pos) & 0xFF;
+            ByteArrayOutputStream pps = new ByteArrayOutputStream();
+            copyParameterSets(file, pos + 1, count, pps);
+            csd0 = sps.toByteArray();
+            csd1 = pps.toByteArray();
+        } else {
+            nalLengthSize = (file.get(pos + 21) & 0x3) + 1;
+            int arrays = file.get(pos + 22) & 0xFF;
+            ByteArrayOutputStream params = new ByteArrayOutputStream();
+            pos += 23;
+            for (int i = 0; i < arrays; i++) {
+                int count = file.getShort(pos + 1) & 0xFFFF;
+                pos = copyParameterSets(file, pos + 3, count, params);
+            }
+            csd0 = params.toByteArray();
+        }
+        return true;
+    }
+
+    /** Copy {@code count} 16-bit length prefixed NAL units as Annex B. @return the end position. */
+    private static int copyParameterSets(ByteBuffer file, int pos, int count, ByteArrayOutputStream out) {
+        for (int i = 0; i < count; i++) {
+            int len = file.getShort(pos) & 0xFFFF;
+            out.write(START_CODE, 0, START_CODE.length);
+            for (int j = 0; j < len; j++) {
+                out.write(file.get(pos + 2 + j));
+            }
+            pos += 2 + len;
+        }
+        return pos;
+    }
+
+    private void parseSizes(ByteBuffer file, int stsz) throws IOException {
+        int pos = stsz + FULL_HEADER_SIZE;
+        int fixedSize = file.getInt(pos);
+        int count = file.getInt(pos + 4);
+        // The samples are in the file, and their sizes in the box unless fixed.
+        long maxCount = fixedSize != 0 ? file.limit() / Math.max(1, fixedSize)
+                                       : (boxEnd(file, stsz) - pos - 8) / 4;
+        if (fixedSize < 0 || count < 0 || count > maxCount) {
+            throw new IOException("malformed stsz: " + count + " samples");
+        }
+        sizes = new int[count];
+        if (fixedSize != 0) {
+            Arrays.fill(sizes, fixedSize);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            sizes[i] = file.getInt(pos + 8 + i * 4);
+            if (sizes[i] < 0) {
+                throw new IOException("malformed stsz: sample " + i + " of " + sizes[i] + " bytes");
+            }
+        }
+    }
+
+    private void parseOffsets(ByteBuffer file, int stbl, int stblEnd) throws IOException {
+        boolean wide = false;
+        int stco = findChild(file, stbl + HEADER_SIZE, stblEnd, "stco");
+        if (stco < 0) {
+            stco = requireChild(file, stbl + HEADER_SIZE, stblEnd, "co64");
+            wide = true;
+        }
+        int chunks = file.getInt(stco + FULL_HEADER_SIZE);
+        int stsc = requireChild(file, stbl + HEADER_SIZE, stblEnd, "stsc");
+        int runs = file.getInt(stsc + FULL_HEADER_SIZE);
+
+        offsets = new long[sizes.length];
+        int sample = 0;
+        for (int run = 0; run < runs; run++) {
+            int entry = stsc + FULL_HEADER_SIZE + 4 + run * 12;
+            int firstChunk = file.getInt(entry) - 1;
+            int samplesPerChunk = file.getInt(entry + 4);
+            int lastChunk = run + 1 < runs ? file.getInt(entry + 12) - 1 : chunks;
+            for (int chunk = firstChunk; chunk < lastChunk; chunk++) {
+                int pos = stco + FULL_HEADER_SIZE + 4;
+                long offset = wide ? file.getLong(pos + chunk * 8)
+                                   : file.getInt(pos + chunk * 4) & 0xFFFFFFFFL;
+                for (int i = 0; i < samplesPerChunk; i++) {
+                    if (sample == sizes.length) {
+                        throw new IOException("stsc describes more samples than stsz");
+                    }
+                    offsets[sample] = offset;
+                    offset += sizes[sample++];
+                }
+            }
+        }
+        if (sample != sizes.length) {
+            throw new IOException("stsc describes fewer samples than stsz");
+        }
+    }
+
+    private void parseTimes(ByteBuffer file, int stts, int ctts) throws IOException {
+        long[] times = new long[sizes.length];
+        int runs = file.getInt(stts + FULL_HEADER_SIZE);
+        int sample = 0;
+        long dts = 0;
+        for (int run = 0; run < runs; run++) {
+            int entry = stts + FULL_HEADER_SIZE + 4 + run * 8;
+            int count = file.getInt(entry);
+            long delta = file.getInt(entry + 4) & 0xFFFFFFFFL;
+            for (int i = 0; i < count && sample < times.length; i++) {
+                times[sample++] = dts;
+                dts += delta;
+            }
+        }
+        if (sample != times.length) {
+            throw new IOException("stts describes fewer samples than stsz");
+        }
+
+        if (ctts >= 0) {
+            runs = file.getInt(ctts + FULL_HEADER_SIZE);
+            sample = 0;
+            for (int run = 0; run < runs; run++) {
+                int entry = ctts + FULL_HEADER_SIZE + 4 + run * 8;
+                int count = file.getInt(entry);
+                int offset = file.getInt(entry + 4); // Signed in version 1, small in version 0.
+                for (int i = 0; i < count && sample < times.length; i++) {
+                    times[sample++] += offset;
+                }
+            }
+        }
+
+        for (int i = 0; i < times.length; i++) {
+            times[i] = times[i] * 1000000L / timescale;
+        }
+        presentationTimesUs = times;
+    }
+
+    private void parseSyncSamples(ByteBuffer file, int stss) throws IOException {
+        if (stss < 0) {
+            // Every sample is a sync sample.
+            syncSamples = new int[sizes.length];
+            for (int i = 0; i < syncSamples.length; i++) {
+                syncSamples[i] = i;
+            }
+            return;
+        }
+        int count = file.getInt(stss + FULL_HEADER_SIZE);
+        int maxCount = Math.min(sizes.length, (boxEnd(file, stss) - stss - FULL_HEADER_SIZE - 4) / 4);
+        if (count <= 0 || count > maxCount) {
+            throw new IOException("malformed stss: " + count + " sync samples");
+        }
+        syncSamples = new int[count];
+        for (int i = 0; i < count; i++) {
+            int sample = file.getInt(stss + FULL_HEADER_SIZE + 4 + i * 4) - 1;
+            // Ascending, for the binary search of findSyncSample().
+            if (sample < 0 || sample >= sizes.length || (i > 0 && sample <= syncSamples[i - 1])) {
+                throw new IOException("malformed stss: sync sample " + sample);
+            }
+            syncSamples[i] = sample;
+        }
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static int boxEnd(ByteBuffer file, int box) {
+        long size = file.getInt(box) & 0xFFFFFFFFL;
+        if (size == 1) {
+            size = file.getLong(box + HEADER_SIZE);
+        } else if (size == 0) {
+            return file.limit();
+        }
+        return (int) Math.min(box + size, file.limit());
+    }
+
+    /** @return position of the first child box of {@code type} in [start, end), or -1. */
+    private static int findChild(ByteBuffer file, int start, int end, String type) {
+        int wanted = fourcc(type);
+        for (int pos = start; pos + HEADER_SIZE <= end; ) {
+            int next = boxEnd(file, pos);
+            if (next <= pos) {
+                return -1; // Corrupted size.
+            }
+            if (file.getInt(pos + 4) == wanted) {
+                return pos;
+            }
+            pos = next;
+        }
+        return -1;
+    }
+
+    private static int requireChild(ByteBuffer file, int start, int end, String type) throws IOException {
+        int box = findChild(file, start, end, type);
+        if (box < 0) {
+            throw new IOException("missing " + type + " box");
+        }
+        return box;
+    }
+}
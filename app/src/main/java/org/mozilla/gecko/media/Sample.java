@@ -9,6 +9,9 @@ import android.media.MediaCodec.BufferInfo;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /** POD carrying input sample data and info */
 public final class Sample implements Parcelable {
     public static final Sample EOS =
@@ -19,20 +22,121 @@ public final class Sample implements Parcelable {
     /** Same as {@link BufferInfo#flags} */
     public int flags;
     public byte[] bytes;
+    /** Number of valid bytes at the start of {@link #bytes}, which may be a larger reused buffer. */
+    public int size;
+    /**
+     * Data between position and limit, used instead of {@link #bytes} when set,
+     * e.g. a slice of a memory mapped file. Never parceled as is; it arrives as {@link #bytes}.
+     */
+    public ByteBuffer buffer;
+    /**
+     * Whether the data are NAL units with 4 byte lengths, as mapped from an MP4 file.
+     * Every copy replaces the lengths with start codes, so codecs get Annex B.
+     */
+    /* package */ boolean nalLengthPrefixed;
+    /** Parceled without data, which follows on the codec's {@link SampleChannel}. */
+    /* package */ boolean detached;
+    /** Number of flushes before this sample was sent, see {@link CodecProxy#flush()}. */
+    /* package */ int epoch;
+    /** ID of the {@link CodecSession.Track} this sample is for, if sent in a session. */
+    /* package */ int track;
+
+    // Bounce buffer for parceling {@link #buffer}, as Parcel only takes arrays.
+    private static final ThreadLocal<byte[]> sParcelScratch = new ThreadLocal<>();
+
+    /** Replace the 4 byte NAL unit lengths in {@code size} bytes at {@code offset} with start codes. */
+    /* package */ static void toStartCodes(ByteBuffer buf, int offset, int size) {
+        int end = offset + size;
+        for (int pos = offset; pos + 4 <= end; ) {
+            int len = buf.getInt(pos);
+            buf.putInt(pos, 1); // 00 00 00 01
+            if (len < 0) {
+                break;
+            }
+            pos += 4 + len;
+        }
+    }
+
+    /** Same as {@link #toStartCodes(ByteBuffer, int, int)}, for an array. */
+    /* package */ static void toStartCodes(byte[] data, int offset, int size) {
+        int end = offset + size;
+        for (int pos = offset; pos + 4 <= end; ) {
+            int len = (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16
+                    | (data[pos + 2] & 0xFF) << 8 | (data[pos + 3] & 0xFF);
+            data[pos] = data[pos + 1] = data[pos + 2] = 0;
+            data[pos + 3] = 1;
+            if (len < 0) {
+                break;
+            }
+            pos += 4 + len;
+        }
+    }
 
     public BufferInfo asBufferInfo() {
         BufferInfo info = new BufferInfo();
         info.offset = 0;
-        info.size = bytes == null ? 0 : bytes.length;
+        info.size = size;
         info.presentationTimeUs = presentationTimeUs;
         info.flags = flags;
         return info;
     }
 
     public Sample(byte[] bytes, long presentationTimeUs, int flags) {
+        this(bytes, bytes == null ? 0 : bytes.length, presentationTimeUs, flags);
+    }
+
+    public Sample(byte[] bytes, int size, long presentationTimeUs, int flags) {
         this.presentationTimeUs = presentationTimeUs;
         this.flags = flags;
         this.bytes = bytes;
+        this.size = size;
+    }
+
+    /** Reuse this sample for data in {@code buffer} between its position and limit. */
+    public void set(ByteBuffer buffer, long presentationTimeUs, int flags) {
+        this.buffer = buffer;
+        nalLengthPrefixed = false;
+        set(buffer.remaining(), presentationTimeUs, flags);
+    }
+
+    /** Copy the data into {@code dst}, e.g. a codec input buffer. */
+    public void writeTo(ByteBuffer dst) {
+        int start = dst.position();
+        if (buffer != null) {
+            int pos = buffer.position();
+            dst.put(buffer);
+            buffer.position(pos);
+        } else if (bytes != null) {
+            dst.put(bytes, 0, size);
+        }
+        if (nalLengthPrefixed) {
+            toStartCodes(dst, start, size);
+        }
+    }
+
+    /** @return a sample with a copy of the data, still valid once this one is reused. */
+    public Sample copy() {
+        byte[] data = null;
+        if (buffer != null) {
+            data = new byte[size];
+            buffer.duplicate().get(data, 0, size);
+        } else if (bytes != null) {
+            data = Arrays.copyOf(bytes, size);
+        }
+        if (nalLengthPrefixed && data != null) {
+            toStartCodes(data, 0, size);
+        }
+        Sample copy = new Sample(data, size, presentationTimeUs, flags);
+        copy.epoch = epoch;
+        copy.track = track;
+        return copy;
+    }
+
+    /** Reuse this sample and its buffer for other data. */
+    public void set(int size, long presentationTimeUs, int flags) {
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
     }
 
     protected Sample(Parcel in) {
@@ -59,14 +163,50 @@ public final class Sample implements Parcelable {
     public void readFromParcel(Parcel in) {
         presentationTimeUs = in.readLong();
         flags = in.readInt();
+        epoch = in.readInt();
+        track = in.readInt();
+        int detachedSize = in.readInt();
+        if (detachedSize >= 0) {
+            detached = true;
+            bytes = null;
+            size = detachedSize;
+            return;
+        }
+        detached = false;
         bytes = in.createByteArray();
+        size = bytes == null ? 0 : bytes.length;
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeLong(presentationTimeUs);
         dest.writeInt(flags);
-        dest.writeByteArray(bytes);
+        dest.writeInt(epoch);
+        dest.writeInt(track);
+        dest.writeInt(detached ? size : -1);
+        if (detached) {
+            return;
+        }
+        if (buffer == null && !nalLengthPrefixed) {
+            dest.writeByteArray(bytes, 0, size);
+            return;
+        }
+        byte[] scratch = sParcelScratch.get();
+        if (scratch == null || scratch.length < size) {
+            scratch = new byte[size];
+            sParcelScratch.set(scratch);
+        }
+        if (buffer != null) {
+            int pos = buffer.position();
+            buffer.get(scratch, 0, size);
+            buffer.position(pos);
+        } else {
+            System.arraycopy(bytes, 0, scratch, 0, size);
+        }
+        if (nalLengthPrefixed) {
+            toStartCodes(scratch, 0, size);
+        }
+        dest.writeByteArray(scratch, 0, size);
     }
 
     @Override
@@ -76,8 +216,8 @@ public final class Sample implements Parcelable {
         } else {
             StringBuilder str = new StringBuilder();
             str.append("{ pts=").append(presentationTimeUs);
-            if (bytes != null) {
-                str.append(", size=").append(bytes.length);
+            if (bytes != null || buffer != null) {
+                str.append(", size=").append(size);
             }
             str.append(", flags=").append(Integer.toHexString(flags)).append(" }");
             return str.toString();
@@ -0,0 +1,112 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Per-codec byte stream for sample payloads too large to parcel. The sample
+ * itself is still sent with {@link ICodec#inputSample}, marked as detached and
+ * without data; its payload follows on the channel, in the same order.
+ */
+/* package */ final class SampleChannel {
+    /**
+     * Larger payloads go over the channel. Oneway transactions share half of the
+     * 1 MB binder buffer of the receiving process with every other codec in it.
+     */
+    /* package */ static final int INLINE_LIMIT = 128 * 1024;
+
+    private SampleChannel() {}
+
+    /* package */ static boolean isOversized(Sample sample) {
+        return !sample.isEOS() && sample.size > INLINE_LIMIT;
+    }
+
+    /** Sending end, owned by the client. */
+    /* package */ static final class Writer implements Closeable {
+        private final OutputStream mOut;
+        private final WritableByteChannel mChannel;
+        private final ByteBuffer mStartCode = ByteBuffer.wrap(new byte[] { 0, 0, 0, 1 });
+
+        Writer(OutputStream out) {
+            mOut = out;
+            // A file channel writes mapped buffers without copying them to the heap first.
+            mChannel = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel()
+                    : Channels.newChannel(out);
+        }
+
+        /** Write the payload of {@code sample}. Blocks until the remote end has taken most of it. */
+        void write(Sample sample) throws IOException {
+            if (sample.nalLengthPrefixed) {
+                writeWithStartCodes(sample);
+            } else if (sample.buffer != null) {
+                writeFully(sample.buffer.duplicate());
+            } else {
+                mOut.write(sample.bytes, 0, sample.size);
+            }
+        }
+
+        /** Write each NAL unit of {@code sample} after a start code instead of its length. */
+        private void writeWithStartCodes(Sample sample) throws IOException {
+            ByteBuffer src = sample.buffer != null ? sample.buffer.duplicate()
+                    : ByteBuffer.wrap(sample.bytes, 0, sample.size);
+            int end = src.limit();
+            for (int pos = src.position(); pos + 4 <= end; ) {
+                // Same size as Sample#toStartCodes() makes it, which the reader expects.
+                int len = src.getInt(pos);
+                int next = len < 0 || len > end - pos - 4 ? end : pos + 4 + len;
+                mStartCode.rewind();
+                writeFully(mStartCode);
+                src.limit(next);
+                src.position(pos + 4);
+                writeFully(src);
+                src.limit(end);
+                pos = next;
+            }
+            writeFully(src); // A tail too short for a length, as is.
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                mChannel.write(src);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /** Receiving end, owned by the codec in the service. */
+    /* package */ static final class Reader implements Closeable {
+        private final DataInputStream mIn;
+
+        Reader(InputStream in) {
+            mIn = new DataInputStream(in);
+        }
+
+        /** Read the payload of a detached {@code sample} into its {@link Sample#bytes}. */
+        void read(Sample sample) throws IOException {
+            byte[] bytes = new byte[sample.size];
+            mIn.readFully(bytes);
+            sample.bytes = bytes;
+            sample.detached = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+/**
+ * Bounded ring of reusable {@link Sample}s between a demuxer thread and a codec
+ * driver. The producer fills slots ahead of the consumer until the ring holds
+ * as many samples, bytes or microseconds of media as allowed.
+ * <p>
+ * Producer: {@link #acquire(int)}, fill {@link Sample#bytes}, {@link #commit(Sample)}.
+ * Consumer: {@link #poll()}, use the sample, {@link #release(Sample)} in order.
+ */
+public final class SampleRing {
+    public interface Listener {
+        /** Called on the producer thread when a sample arrives after {@link #poll()} came back empty. */
+        void onSampleAvailable();
+    }
+
+    private final Sample[] mSlots;
+    private final long mMaxBytes;
+    private final long mMaxDurationUs;
+    private Listener mListener;
+
+    private int mTail; // Oldest unreleased slot.
+    private int mSize; // Committed and unreleased slots, from mTail.
+    private int mPolled; // Slots handed to the consumer, from mTail.
+    private long mQueuedBytes;
+    private long mLastPts;
+    private int mGeneration; // Bumped by flush() to drop samples being written.
+    private int mWriteGeneration;
+    private boolean mStarved;
+    private boolean mClosed;
+
+    // Metrics.
+    private long mHighWaterBytes;
+    private int mStarvationCount;
+    private long mSamplesIn;
+
+    /**
+     * @param slots maximum number of queued samples.
+     * @param slotCapacity initial buffer size of each slot, in bytes.
+     * @param maxBytes stop reading ahead when this many bytes are queued.
+     * @param maxDurationUs stop reading ahead when this much media is queued.
+     */
+    public SampleRing(int slots, int slotCapacity, long maxBytes, long maxDurationUs) {
+        mSlots = new Sample[slots];
+        for (int i = 0; i < slots; i++) {
+            mSlots[i] = new Sample(new byte[slotCapacity], 0, 0, 0);
+        }
+        mMaxBytes = maxBytes;
+        mMaxDurationUs = maxDurationUs;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Wait for a free slot with room for at least {@code minCapacity} bytes.
+     * @return the slot to fill, or null if the ring was closed.
+     */
+    public synchronized Sample acquire(int minCapacity) throws InterruptedException {
+        while (!mClosed && isFull()) {
+            wait();
+        }
+        if (mClosed) {
+            return null;
+        }
+        Sample slot = mSlots[(mTail + mSize) % mSlots.length];
+        grow(slot, minCapacity);
+        mWriteGeneration = mGeneration;
+        return slot;
+    }
+
+    /** Grow the buffer of an acquired slot that turned out to be too small. */
+    public void grow(Sample slot, int minCapacity) {
+        if (slot.bytes.length < minCapacity) {
+            slot.bytes = new byte[Math.max(minCapacity, slot.bytes.length * 2)];
+        }
+    }
+
+    /** Queue the slot returned by {@link #acquire(int)}, unless the ring was flushed meanwhile. */
+    public void commit(Sample slot) {
+        Listener listener = null;
+        synchronized (this) {
+            if (mClosed || mWriteGeneration != mGeneration) {
+                return;
+            }
+            mSize++;
+            mSamplesIn++;
+            mQueuedBytes += slot.size;
+            mHighWaterBytes = Math.max(mHighWaterBytes, mQueuedBytes);
+            if (!slot.isEOS()) {
+                mLastPts = slot.presentationTimeUs;
+            }
+            if (mStarved) {
+                mStarved = false;
+                listener = mListener;
+            }
+        }
+        if (listener != null) {
+            listener.onSampleAvailable();
+        }
+    }
+
+    /**
+     * @return the next queued sample, or null if none is ready. An empty poll counts
+     * as starvation and the listener will be called when data arrives.
+     */
+    public synchronized Sample poll() {
+        if (mPolled == mSize) {
+            if (!mStarved && mSamplesIn > 0) {
+                mStarvationCount++; // Not counting the initial fill.
+            }
+            mStarved = true;
+            return null;
+        }
+        return mSlots[(mTail + mPolled++) % mSlots.length];
+    }
+
+    /** Give back the oldest polled sample so its buffer can be reused. */
+    public synchronized void release(Sample sample) {
+        if (mPolled == 0 || mSlots[mTail] != sample) {
+            throw new IllegalStateException("samples must be released in poll order");
+        }
+        mQueuedBytes -= sample.size;
+        mTail = (mTail + 1) % mSlots.length;
+        mSize--;
+        mPolled--;
+        notifyAll();
+    }
+
+    /** Drop all queued samples, including one being written. Polled samples must be released first. */
+    public synchronized void flush() {
+        if (mPolled != 0) {
+            throw new IllegalStateException("release polled samples before flushing");
+        }
+        mTail = (mTail + mSize) % mSlots.length;
+        mSize = 0;
+        mQueuedBytes = 0;
+        mGeneration++;
+        mStarved = false;
+        notifyAll();
+    }
+
+    /** Wake up and stop the producer. */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    private boolean isFull() {
+        if (mSize == 0) {
+            return false; // Always let one sample in, whatever its size.
+        }
+        return mSize == mSlots.length
+                || mQueuedBytes >= mMaxBytes
+                || getQueuedDurationUs() >= mMaxDurationUs;
+    }
+
+    public synchronized int getQueuedSamples() {
+        return mSize - mPolled;
+    }
+
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /** @return media time covered by unreleased samples. */
+    public synchronized long getQueuedDurationUs() {
+        if (mSize == 0) {
+            return 0;
+        }
+        Sample oldest = mSlots[mTail];
+        return oldest.isEOS() ? 0 : Math.max(0, mLastPts - oldest.presentationTimeUs);
+    }
+
+    public synchronized long getHighWaterBytes() {
+        return mHighWaterBytes;
+    }
+
+    /** @return how many times the consumer found the ring empty after the initial fill. */
+    public synchronized int getStarvationCount() {
+        return mStarvationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ queued=" + (mSize - mPolled) + "/" + mSlots.length
+                + ", bytes=" + mQueuedBytes + ", durationUs=" + getQueuedDurationUs()
+                + ", highWaterBytes=" + mHighWaterBytes + ", samples=" + mSamplesIn
+                + ", starvations=" + mStarvationCount + " }";
+    }
+}
@@ -0,0 +1,30 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+/** Compressed samples of one track, pulled by a codec driver. */
+public interface SampleSource {
+    /**
+     * @return the next sample in decode order, an EOS sample at the end, or null
+     * if none is ready yet.
+     */
+    Sample poll();
+
+    /** Give back the sample returned by {@link #poll()} once it has been sent. */
+    void release(Sample sample);
+
+    /** Continue from the sync sample closest to {@code timeUs}. */
+    void seekTo(long timeUs);
+
+    /**
+     * From the next {@link #seekTo(long)} on, return only sync samples about
+     * {@code stepUs} of media time apart, in reverse if negative, for trick play;
+     * or every sample again if 0.
+     */
+    void setKeyframeStep(long stepUs);
+
+    /** Stop reading and free the underlying resources. */
+    void close();
+}
@@ -0,0 +1,176 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary trace of the samples fed to a codec, for replaying real sessions
+ * in benchmarks. After a header ("STRC", version, flags), each sample is a record
+ * of variable-length integers: presentation time delta (zigzag), size, flags and
+ * microseconds since the previous sample arrived, then optionally its payload.
+ */
+public final class SampleTrace {
+    private static final int MAGIC = 0x53545243; // "STRC"
+    private static final int VERSION = 1;
+    private static final int FLAG_PAYLOADS = 1;
+
+    private SampleTrace() {}
+
+    /** Records samples. Not thread safe. */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream mOut;
+        private final boolean mWithPayloads;
+        private long mLastTimeUs;
+        private long mLastArrivalNs = -1;
+        private byte[] mScratch; // For payloads not in an array.
+
+        /** @param withPayloads also record sample data, or only their sizes. */
+        public Writer(OutputStream out, boolean withPayloads) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mWithPayloads = withPayloads;
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+            mOut.writeByte(withPayloads ? FLAG_PAYLOADS : 0);
+        }
+
+        /** @param arrivalNs when the sample was input, on the {@link System#nanoTime()} clock. */
+        public void write(Sample sample, long arrivalNs) throws IOException {
+            long delta = sample.presentationTimeUs - mLastTimeUs;
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            writeVarLong(sample.size);
+            writeVarLong(sample.flags & 0xffffffffL);
+            writeVarLong(mLastArrivalNs < 0 ? 0 : Math.max(0, (arrivalNs - mLastArrivalNs) / 1000));
+            mLastTimeUs = sample.presentationTimeUs;
+            mLastArrivalNs = arrivalNs;
+            if (!mWithPayloads || sample.size == 0) {
+                return;
+            }
+            ByteBuffer src = sample.buffer;
+            if (!sample.nalLengthPrefixed) {
+                if (src == null) {
+                    mOut.write(sample.bytes, 0, sample.size);
+                    return;
+                }
+                if (src.hasArray()) {
+                    mOut.write(src.array(), src.arrayOffset() + src.position(), sample.size);
+                    return;
+                }
+            }
+            if (mScratch == null || mScratch.length < sample.size) {
+                mScratch = new byte[sample.size];
+            }
+            if (src != null) {
+                src.duplicate().get(mScratch, 0, sample.size);
+            } else {
+                System.arraycopy(sample.bytes, 0, mScratch, 0, sample.size);
+            }
+            if (sample.nalLengthPrefixed) {
+                Sample.toStartCodes(mScratch, 0, sample.size); // Replayed as is.
+            }
+            mOut.write(mScratch, 0, sample.size);
+        }
+
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                mOut.writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mOut.writeByte((int) value);
+        }
+    }
+
+    /** Reads samples recorded by {@link Writer}. Not thread safe. */
+    public static final class Reader implements Closeable {
+        private final DataInputStream mIn;
+        private final boolean mHasPayloads;
+        private long mLastTimeUs;
+        private long mInterArrivalUs;
+
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(in));
+            if (mIn.readInt() != MAGIC || mIn.readUnsignedByte() != VERSION) {
+                throw new IOException("not a sample trace");
+            }
+            mHasPayloads = (mIn.readUnsignedByte() & FLAG_PAYLOADS) != 0;
+        }
+
+        public boolean hasPayloads() {
+            return mHasPayloads;
+        }
+
+        /**
+         * Read the next sample into {@code sample}, reusing its array when large enough.
+         * Without payloads, only the size is set and {@link Sample#bytes} is left alone.
+         * @return false at the end of the trace.
+         */
+        public boolean read(Sample sample) throws IOException {
+            int first = mIn.read();
+            if (first < 0) {
+                return false;
+            }
+            long zigzag = readVarLong(first);
+            mLastTimeUs += (zigzag >>> 1) ^ -(zigzag & 1);
+            int size = (int) readVarLong(mIn.readUnsignedByte());
+            int flags = (int) readVarLong(mIn.readUnsignedByte());
+            mInterArrivalUs = readVarLong(mIn.readUnsignedByte());
+            sample.buffer = null;
+            sample.set(size, mLastTimeUs, flags);
+            if (mHasPayloads) {
+                if (sample.bytes == null || sample.bytes.length < size) {
+                    sample.bytes = new byte[size];
+                }
+                mIn.readFully(sample.bytes, 0, size);
+            }
+            return true;
+        }
+
+        /** @return microseconds between the arrival of the last sample read and the one before. */
+        public long getInterArrivalUs() {
+            return mInterArrivalUs;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private long readVarLong(int first) throws IOException {
+            long value = first & 0x7f;
+            int shift = 7;
+            int b = first;
+            while ((b & 0x80) != 0) {
+                if (shift > 63) {
+                    throw new IOException("malformed sample trace");
+                }
+                b = mIn.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import org.mozilla.gecko.GeckoAppShell;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Client side connection to one {@link MediaService} process of the pool. */
+/* package */ final class ServiceShard {
+    private static final String LOG_TAG = ServiceShard.class.getSimpleName();
+
+    private final int mId;
+    private final Class<?> mServiceClass;
+
+    private volatile IMediaService mCreator;
+    private volatile CountDownLatch mServiceLatch;
+    private final Object mDisconnectLock = new Object(); // Notified when mCreator is dropped.
+    private boolean mBound;
+
+    // Load reported by the service, and codecs being placed on it, which it does not
+    // count yet. Access only under CodecProxy's placement lock.
+    private int mCodecCount;
+    private int mPlacing;
+    private long mLastCpuTimeMs;
+    private long mLastUptimeMs;
+    private float mCpuLoad;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Log.d(LOG_TAG, "shard#" + mId + " connected latch:" + mServiceLatch);
+            mCreator = IMediaService.Stub.asInterface(service);
+            mServiceLatch.countDown();
+        }
+
+        /**
+         * Called when the process hosting the service has crashed or been killed.
+         * The binding remains active and {@link #onServiceConnected} will be called
+         * again when the service is next running.
+         */
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.d(LOG_TAG, "shard#" + mId + " disconnected");
+            synchronized (mDisconnectLock) {
+                mCreator = null;
+                mDisconnectLock.notifyAll();
+            }
+            mServiceLatch.countDown();
+        }
+    };
+
+    ServiceShard(int id, Class<?> serviceClass) {
+        mId = id;
+        mServiceClass = serviceClass;
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    synchronized boolean isBound() {
+        return mBound;
+    }
+
+    /** @return the service if connected, without binding; null otherwise. */
+    IMediaService getConnected() {
+        return mCreator;
+    }
+
+    /** @return the connected service, binding and waiting for it if needed; null on failure. */
+    synchronized IMediaService ensureConnected() {
+        IMediaService creator = mCreator;
+        if (creator != null) {
+            return creator;
+        }
+
+        Context appCtxt = GeckoAppShell.getApplicationContext();
+        if (!mBound) {
+            mServiceLatch = new CountDownLatch(1);
+            appCtxt.bindService(new Intent(appCtxt, mServiceClass),
+                    mConnection, Context.BIND_AUTO_CREATE);
+            mBound = true;
+        }
+        try {
+            while ((creator = mCreator) == null) {
+                Log.d(LOG_TAG, "waiting for shard#" + mId + "... latch:" + mServiceLatch);
+                mServiceLatch.await(1, TimeUnit.SECONDS);
+                if (mServiceLatch.getCount() == 0 && mCreator == null) {
+                    // Disconnected; wait for the automatic reconnection.
+                    mServiceLatch = new CountDownLatch(1);
+                } else if (mCreator == null) {
+                    Log.e(LOG_TAG, "Shard#" + mId + " not connected in 1s. Try again.");
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            appCtxt.unbindService(mConnection);
+            mBound = false;
+            return null;
+        }
+
+        return creator;
+    }
+
+    /**
+     * Block until the connection notices the death of the service process: it
+     * dropped the dead service, and maybe connected to a new one. Every codec of
+     * the process waits here.
+     */
+    void awaitDisconnect() {
+        synchronized (mDisconnectLock) {
+            IMediaService creator;
+            while ((creator = mCreator) != null && !creator.asBinder().isBinderAlive()) {
+                try {
+                    mDisconnectLock.wait(1000); // Reconnections are not notified.
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Query live codec count and CPU usage of the service process, for
+     * {@link #updateLoad}. Makes a call to the service: do not hold the placement lock.
+     * @return the stats, or null if not connected or the service cannot be reached.
+     */
+    Bundle fetchStats() {
+        IMediaService creator = mCreator;
+        if (creator == null) {
+            return null;
+        }
+        try {
+            return creator.getStats();
+        } catch (RemoteException e) {
+            Log.w(LOG_TAG, "cannot get load of shard#" + mId);
+            return null;
+        }
+    }
+
+    /**
+     * Take the load in {@code stats} from {@link #fetchStats}. Must hold the placement lock.
+     * @return false if the service is bound but cannot be reached.
+     */
+    boolean updateLoad(Bundle stats) {
+        if (stats == null) {
+            if (mCreator != null) {
+                return false; // Dying.
+            }
+            mCodecCount = 0;
+            mCpuLoad = 0;
+            mLastCpuTimeMs = 0;
+            mLastUptimeMs = 0;
+            return !mBound;
+        }
+        mCodecCount = stats.getInt(MediaService.STATS_CODEC_COUNT);
+        long cpuTimeMs = stats.getLong(MediaService.STATS_CPU_TIME_MS);
+        long uptimeMs = stats.getLong(MediaService.STATS_UPTIME_MS);
+        if (uptimeMs < mLastUptimeMs || cpuTimeMs < mLastCpuTimeMs) {
+            // The process restarted since the last query: its load starts over.
+            mLastCpuTimeMs = 0;
+            mLastUptimeMs = 0;
+            mCpuLoad = 0;
+        }
+        if (uptimeMs > mLastUptimeMs) {
+            // CPU share used since last query; the whole lifetime on first query.
+            long elapsedMs = mLastUptimeMs == 0 ? uptimeMs : uptimeMs - mLastUptimeMs;
+            mCpuLoad = (float) (cpuTimeMs - mLastCpuTimeMs) / elapsedMs;
+        }
+        mLastCpuTimeMs = cpuTimeMs;
+        mLastUptimeMs = uptimeMs;
+        return true;
+    }
+
+    /** A codec is being placed on this process. Must hold the placement lock. */
+    void beginPlacement() {
+        mPlacing++;
+    }
+
+    /** The codec was created, or failed to. Must hold the placement lock. */
+    void endPlacement() {
+        mPlacing--;
+    }
+
+    /**
+     * Order by live codec count, including those being placed, then prefer already
+     * running processes, then by recent CPU usage. Must hold the placement lock.
+     */
+    boolean isLessLoadedThan(ServiceShard other) {
+        int count = mCodecCount + mPlacing, otherCount = other.mCodecCount + other.mPlacing;
+        if (count != otherCount) {
+            return count < otherCount;
+        }
+        boolean running = mCreator != null, otherRunning = other.mCreator != null;
+        if (running != otherRunning) {
+            return running;
+        }
+        return mCpuLoad < other.mCpuLoad;
+    }
+
+    @Override
+    public String toString() {
+        return "shard#" + mId + "{ codecs=" + mCodecCount + ", placing=" + mPlacing
+                + ", cpu=" + mCpuLoad + " }";
+    }
+}
@@ -0,0 +1,193 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import java.util.Arrays;
+
+/**
+ * Records decoder startup milestones of one playback session, from the client
+ * and from the remote codec, so time-to-first-frame can be broken down by phase.
+ * <p>
+ * Timestamps come from {@link System#nanoTime()}, which is CLOCK_MONOTONIC on
+ * Android and therefore comparable across the app and media service processes.
+ * The service records its own milestones and hands them over with
+ * {@link #toArray()}; the client folds them in with {@link #merge(long[])}.
+ */
+public final class StartupTimeline {
+    public interface Listener {
+        /** Called once all milestones up to the first decoded frame are known. */
+        void onFirstFrame(StartupTimeline timeline);
+    }
+
+    // Client milestones.
+    public static final int SESSION_START = 0;
+    public static final int BIND_START = 1;
+    public static final int BIND_DONE = 2;
+    public static final int CODEC_CREATED = 3;
+    // Not marked by CodecProxy, which sends configuration with the creation: see SVC_CONFIGURED.
+    public static final int CONFIGURED = 4;
+    public static final int START_SENT = 5; // With the creation, for CodecProxy.
+    public static final int FIRST_INPUT_SENT = 6;
+    public static final int FIRST_OUTPUT = 7;
+    // Service milestones.
+    public static final int SVC_CONFIGURED = 8;
+    public static final int SVC_STARTED = 9;
+    public static final int SVC_FIRST_INPUT = 10;
+    public static final int SVC_FIRST_OUTPUT = 11;
+    public static final int SVC_FIRST_RENDER = 12;
+    public static final int SVC_CREATED = 13; // A decoder was admitted and created.
+
+    public static final int MILESTONE_COUNT = 14;
+
+    private static final String[] NAMES = {
+        "session", "bind", "bound", "created", "configured", "start", "input", "output",
+        "svc_configured", "svc_started", "svc_input", "svc_output", "svc_render", "svc_created",
+    };
+
+    private static final long UNSET = 0;
+
+    private final long[] mNanos = new long[MILESTONE_COUNT];
+    private Listener mListener;
+    private boolean mRemoteMerged;
+    private boolean mReported;
+
+    public static String nameOf(int milestone) {
+        return NAMES[milestone];
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /** Record {@code milestone} now. Only the first call for each milestone counts. */
+    public void mark(int milestone) {
+        mark(milestone, System.nanoTime());
+    }
+
+    public void mark(int milestone, long nanos) {
+        if (mNanos[milestone] != UNSET) {
+            return; // Cheap check for the per-sample callers.
+        }
+        synchronized (this) {
+            if (mNanos[milestone] == UNSET) {
+                mNanos[milestone] = nanos;
+            }
+        }
+        if (milestone == FIRST_OUTPUT) {
+            maybeReport();
+        }
+    }
+
+    public synchronized boolean isMarked(int milestone) {
+        return mNanos[milestone] != UNSET;
+    }
+
+    /** @return the timestamp of {@code milestone} in nanoseconds, or 0 if not reached. */
+    public synchronized long getNanos(int milestone) {
+        return mNanos[milestone];
+    }
+
+    /** Snapshot of all timestamps, indexed by milestone. Used to ship the remote half. */
+    public synchronized long[] toArray() {
+        return Arrays.copyOf(mNanos, MILESTONE_COUNT);
+    }
+
+    /** Fold in milestones recorded by the other process. Already known milestones win. */
+    public void merge(long[] nanos) {
+        synchronized (this) {
+            int count = Math.min(nanos.length, MILESTONE_COUNT);
+            for (int i = 0; i < count; i++) {
+                if (mNanos[i] == UNSET) {
+                    mNanos[i] = nanos[i];
+                }
+            }
+            mRemoteMerged = true;
+        }
+        maybeReport();
+    }
+
+    /** @return time from the first to the last recorded milestone, in nanoseconds. */
+    public synchronized long getTotalNanos() {
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (long t : mNanos) {
+            if (t != UNSET) {
+                first = Math.min(first, t);
+                last = Math.max(last, t);
+            }
+        }
+        return first == Long.MAX_VALUE ? 0 : last - first;
+    }
+
+    /**
+     * Milestones reached so far, in the order they happened.
+     * @return milestone ids sorted by timestamp.
+     */
+    public synchronized int[] getOrder() {
+        int count = 0;
+        for (long t : mNanos) {
+            if (t != UNSET) {
+                count++;
+            }
+        }
+        int[] order = new int[count];
+        for (int i = 0, n = 0; i < MILESTONE_COUNT; i++) {
+            if (mNanos[i] == UNSET) {
+                continue;
+            }
+            // Insertion sort; there are only a handful of milestones.
+            int j = n++;
+            while (j > 0 && mNanos[order[j - 1]] > mNanos[i]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Time spent reaching each milestone from the previous one.
+     * @return durations in nanoseconds, indexed by milestone; 0 for the first or unreached ones.
+     */
+    public synchronized long[] getPhaseNanos() {
+        long[] phases = new long[MILESTONE_COUNT];
+        int[] order = getOrder();
+        for (int i = 1; i < order.length; i++) {
+            phases[order[i]] = mNanos[order[i]] - mNanos[order[i - 1]];
+        }
+        return phases;
+    }
+
+    /** One line "ttff=<ms> <milestone>=+<ms> ..." breakdown, stable for log scraping. */
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("ttff=").append(toMillis(getTotalNanos()));
+        long[] phases = getPhaseNanos();
+        for (int m : getOrder()) {
+            str.append(' ').append(NAMES[m]).append("=+").append(toMillis(phases[m]));
+        }
+        return str.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        long tenths = nanos / 100000;
+        return (tenths / 10) + "." + (tenths % 10);
+    }
+
+    private void maybeReport() {
+        Listener listener;
+        synchronized (this) {
+            if (mReported || !mRemoteMerged || mNanos[FIRST_OUTPUT] == UNSET) {
+                return;
+            }
+            mReported = true;
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onFirstFrame(this);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sync sample presentation times of one track and, when the demuxer knows them,
+ * their byte offsets, sorted by time. Built from sample tables or from key frames
+ * seen while playing, so seeks can land on a known sync sample after one binary
+ * search. Thread safe.
+ * <p>
+ * An index built while playing knows only the stretches that were played through:
+ * {@link #cover} records them, and {@link #findCovered} answers only inside them.
+ */
+public final class SyncIndex {
+    public static final long UNKNOWN_OFFSET = -1;
+
+    private static final int MAGIC = 0x53594e43; // "SYNC"
+    private static final int VERSION = 2;
+    private static final int MAX_ENTRIES = 1 << 20;
+    private static final int MAX_RANGES = 1 << 10;
+
+    private long[] mTimesUs;
+    private long[] mOffsets;
+    private int mCount;
+    // Sorted, disjoint time ranges in which every sync sample is known.
+    private long[] mCoveredFromUs = new long[4];
+    private long[] mCoveredToUs = new long[4];
+    private int mRangeCount;
+    private int mModCount; // Changes since creation or loading.
+
+    public SyncIndex() {
+        this(16);
+    }
+
+    private SyncIndex(int capacity) {
+        mTimesUs = new long[capacity];
+        mOffsets = new long[capacity];
+    }
+
+    /** @return the complete index of an MP4 track. */
+    public static SyncIndex fromTable(Mp4SampleTable table) {
+        SyncIndex index = new SyncIndex(Math.max(1, table.syncSamples.length));
+        for (int sample : table.syncSamples) {
+            index.add(table.presentationTimesUs[sample], table.offsets[sample]);
+        }
+        index.cover(Long.MIN_VALUE, Long.MAX_VALUE);
+        index.mModCount = 0;
+        return index;
+    }
+
+    /**
+     * Record a sync sample. Samples already known are ignored, except that a known
+     * offset replaces {@link #UNKNOWN_OFFSET}.
+     */
+    public synchronized void add(long timeUs, long offset) {
+        int i;
+        if (mCount == 0 || mTimesUs[mCount - 1] < timeUs) {
+            i = mCount; // Common case: playing forward.
+        } else {
+            i = Arrays.binarySearch(mTimesUs, 0, mCount, timeUs);
+            if (i >= 0) {
+                if (mOffsets[i] == UNKNOWN_OFFSET && offset != UNKNOWN_OFFSET) {
+                    mOffsets[i] = offset;
+                    mModCount++;
+                }
+                return;
+            }
+            i = -i - 1;
+        }
+        if (mCount == MAX_ENTRIES) {
+            return;
+        }
+        if (mCount == mTimesUs.length) {
+            mTimesUs = Arrays.copyOf(mTimesUs, mCount * 2);
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+        }
+        System.arraycopy(mTimesUs, i, mTimesUs, i + 1, mCount - i);
+        System.arraycopy(mOffsets, i, mOffsets, i + 1, mCount - i);
+        mTimesUs[i] = timeUs;
+        mOffsets[i] = offset;
+        mCount++;
+        mModCount++;
+    }
+
+    /**
+     * Record that every sync sample from {@code fromUs} to {@code toUs} has been
+     * {@link #add}ed, e.g. the key frames read since the last seek.
+     */
+    public synchronized void cover(long fromUs, long toUs) {
+        if (toUs < fromUs) {
+            return;
+        }
+        // Ranges [first, last) overlap the new one and are merged into it.
+        int first = 0;
+        while (first < mRangeCount && mCoveredToUs[first] < fromUs) {
+            first++;
+        }
+        int last = first;
+        while (last < mRangeCount && mCoveredFromUs[last] <= toUs) {
+            last++;
+        }
+        if (last > first) {
+            fromUs = Math.min(fromUs, mCoveredFromUs[first]);
+            toUs = Math.max(toUs, mCoveredToUs[last - 1]);
+            if (last == first + 1 && fromUs == mCoveredFromUs[first] && toUs == mCoveredToUs[first]) {
+                return; // Covered already.
+            }
+        } else if (mRangeCount == MAX_RANGES) {
+            return;
+        }
+        int count = mRangeCount - (last - first) + 1;
+        if (count > mCoveredFromUs.length) {
+            mCoveredFromUs = Arrays.copyOf(mCoveredFromUs, mCoveredFromUs.length * 2);
+            mCoveredToUs = Arrays.copyOf(mCoveredToUs, mCoveredToUs.length * 2);
+        }
+        System.arraycopy(mCoveredFromUs, last, mCoveredFromUs, first + 1, mRangeCount - last);
+        System.arraycopy(mCoveredToUs, last, mCoveredToUs, first + 1, mRangeCount - last);
+        mCoveredFromUs[first] = fromUs;
+        mCoveredToUs[first] = toUs;
+        mRangeCount = count;
+        mModCount++;
+    }
+
+    /** Add the sync samples and covered ranges of {@code other}, e.g. one cached earlier. */
+    public void addAll(SyncIndex other) {
+        long[] timesUs, offsets, fromUs, toUs;
+        synchronized (other) {
+            timesUs = Arrays.copyOf(other.mTimesUs, other.mCount);
+            offsets = Arrays.copyOf(other.mOffsets, other.mCount);
+            fromUs = Arrays.copyOf(other.mCoveredFromUs, other.mRangeCount);
+            toUs = Arrays.copyOf(other.mCoveredToUs, other.mRangeCount);
+        }
+        synchronized (this) {
+            for (int i = 0; i < timesUs.length; i++) {
+                add(timesUs[i], offsets[i]);
+            }
+            for (int i = 0; i < fromUs.length; i++) {
+                cover(fromUs[i], toUs[i]);
+            }
+        }
+    }
+
+    /** @return the position of the last sync sample at or before {@code timeUs}, or -1 if none is known. */
+    public synchronized int find(long timeUs) {
+        int i = Arrays.binarySearch(mTimesUs, 0, mCount, timeUs);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Same as {@link #find}, but -1 unless the index knows every sync sample from
+     * that one to {@code timeUs}, so that it is the one a demuxer would find.
+     */
+    public synchronized int findCovered(long timeUs) {
+        int i = find(timeUs);
+        if (i < 0) {
+            return -1;
+        }
+        long syncUs = mTimesUs[i];
+        for (int r = 0; r < mRangeCount && mCoveredFromUs[r] <= syncUs; r++) {
+            if (mCoveredToUs[r] >= timeUs) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized long getTimeUs(int position) {
+        checkPosition(position);
+        return mTimesUs[position];
+    }
+
+    public synchronized long getOffset(int position) {
+        checkPosition(position);
+        return mOffsets[position];
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /** @return whether entries were added since this index was created or read. */
+    public synchronized boolean isModified() {
+        return mModCount != 0;
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException("position " + position + " of " + mCount);
+        }
+    }
+
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(mCount);
+        for (int i = 0; i < mCount; i++) {
+            out.writeLong(mTimesUs[i]);
+            out.writeLong(mOffsets[i]);
+        }
+        out.writeInt(mRangeCount);
+        for (int i = 0; i < mRangeCount; i++) {
+            out.writeLong(mCoveredFromUs[i]);
+            out.writeLong(mCoveredToUs[i]);
+        }
+    }
+
+    /** @throws IOException if the data was not written by {@link #writeTo(DataOutput)}. */
+    public static SyncIndex readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not a sync index");
+        }
+        int count = in.readInt();
+        if (count < 0 || count > MAX_ENTRIES) {
+            throw new IOException("bad entry count " + count);
+        }
+        SyncIndex index = new SyncIndex(Math.max(1, count));
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            long timeUs = in.readLong();
+            if (timeUs <= last) {
+                throw new IOException("entries out of order");
+            }
+            index.mTimesUs[i] = last = timeUs;
+            index.mOffsets[i] = in.readLong();
+        }
+        index.mCount = count;
+        int ranges = in.readInt();
+        if (ranges < 0 || ranges > MAX_RANGES) {
+            throw new IOException("bad range count " + ranges);
+        }
+        last = Long.MIN_VALUE;
+        for (int i = 0; i < ranges; i++) {
+            long fromUs = in.readLong();
+            long toUs = in.readLong();
+            if (toUs < fromUs || (i > 0 && fromUs <= last)) {
+                throw new IOException("ranges out of order");
+            }
+            index.cover(fromUs, last = toUs);
+        }
+        index.mModCount = 0;
+        return index;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{ syncSamples=" + mCount
+                + (mCount > 0 ? ", " + mTimesUs[0] + ".." + mTimesUs[mCount - 1] + "us" : "")
+                + ", coveredRanges=" + mRangeCount + " }";
+    }
+}
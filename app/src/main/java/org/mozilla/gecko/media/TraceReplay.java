@@ -0,0 +1,236 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Regression benchmark: feeds a {@link SampleTrace} to a {@link CodecBackend},
+ * as recorded or as fast as it takes them, and measures throughput, input to
+ * output latency and allocations. The trace is loaded before timing starts.
+ * Traces without payloads only make sense with fake backends such as
+ * {@link LoopbackCodec}.
+ */
+/* package */ final class TraceReplay {
+    /** Running count of allocations, e.g. from {@code android.os.Debug#getGlobalAllocCount()}. */
+    /* package */ interface AllocationCounter {
+        long get();
+    }
+
+    /* package */ static final class Result {
+        final int samples;
+        final long elapsedNs;
+        final int errors;
+        /** Allocations during the replay, or -1 if not counted. */
+        final long allocations;
+        private final long[] mLatenciesNs; // Sorted.
+
+        Result(int samples, long elapsedNs, int errors, long allocations, long[] latenciesNs) {
+            this.samples = samples;
+            this.elapsedNs = elapsedNs;
+            this.errors = errors;
+            this.allocations = allocations;
+            mLatenciesNs = latenciesNs;
+        }
+
+        double samplesPerSecond() {
+            return elapsedNs > 0 ? samples * 1e9 / elapsedNs : 0;
+        }
+
+        /** @return the latency of the given fraction of outputs or less, or -1 if none. */
+        long latencyPercentileNs(double fraction) {
+            if (mLatenciesNs.length == 0) {
+                return -1;
+            }
+            int i = (int) Math.ceil(fraction * mLatenciesNs.length) - 1;
+            return mLatenciesNs[Math.max(0, Math.min(i, mLatenciesNs.length - 1))];
+        }
+
+        int outputs() {
+            return mLatenciesNs.length;
+        }
+
+        @Override
+        public String toString() {
+            return samples + " samples in " + TimeUnit.NANOSECONDS.toMillis(elapsedNs) + " ms ("
+                    + Math.round(samplesPerSecond()) + "/s), latency us p50="
+                    + latencyPercentileNs(0.5) / 1000 + " p90=" + latencyPercentileNs(0.9) / 1000
+                    + " p99=" + latencyPercentileNs(0.99) / 1000 + " max=" + latencyPercentileNs(1) / 1000
+                    + ", errors=" + errors + ", allocations=" + allocations;
+        }
+    }
+
+    private static final int MAX_BUFFERS = 256;
+
+    private final CodecBackend mBackend;
+    private final MediaFormat mFormat;
+    private final Surface mSurface;
+    private final boolean mRealTime;
+    private final AllocationCounter mCounter;
+
+    /**
+     * @param backend created but not configured yet; stopped after the replay.
+     * @param surface to render every output to, or null to drop them.
+     * @param realTime keep the recorded arrival times, or feed inputs as soon as possible.
+     * @param counter or null not to count allocations.
+     */
+    TraceReplay(CodecBackend backend, MediaFormat format, Surface surface, boolean realTime,
+                AllocationCounter counter) {
+        mBackend = backend;
+        mFormat = format;
+        mSurface = surface;
+        mRealTime = realTime;
+        mCounter = counter;
+    }
+
+    Result run(SampleTrace.Reader trace, long timeoutMs) throws IOException, InterruptedException {
+        final List<Sample> samples = new ArrayList<>();
+        List<Long> arrivals = new ArrayList<>();
+        long arrivalUs = 0;
+        boolean hasPayloads = trace.hasPayloads();
+        Sample sample = new Sample(null, 0, 0, 0);
+        while (trace.read(sample)) {
+            arrivalUs += trace.getInterArrivalUs();
+            arrivals.add(arrivalUs);
+            samples.add(sample);
+            if (sample.isEOS()) {
+                break;
+            }
+            sample = new Sample(null, 0, 0, 0);
+        }
+        if (samples.isEmpty() || !samples.get(samples.size() - 1).isEOS()) {
+            samples.add(new Sample(null, 0, Long.MIN_VALUE, MediaCodec.BUFFER_FLAG_END_OF_STREAM));
+            arrivals.add(arrivalUs);
+        }
+
+        final int count = samples.size();
+        // Outputs are matched to inputs by presentation time.
+        final long[] sortedPts = new long[count];
+        final int[] order = new int[count];
+        Integer[] boxed = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            boxed[i] = i;
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ta = samples.get(a).presentationTimeUs;
+                long tb = samples.get(b).presentationTimeUs;
+                return ta < tb ? -1 : ta == tb ? 0 : 1;
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            order[i] = boxed[i];
+            sortedPts[i] = samples.get(order[i]).presentationTimeUs;
+        }
+        final long[] queuedNs = new long[count];
+        final long[] doneNs = new long[count];
+        final AtomicInteger errors = new AtomicInteger();
+        final BlockingQueue<Integer> inputs = new ArrayBlockingQueue<>(MAX_BUFFERS);
+        final CountDownLatch ended = new CountDownLatch(1);
+
+        mBackend.setCallback(new CodecBackend.Callback() {
+            @Override
+            public void onInputBufferAvailable(int index) {
+                inputs.offer(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(int index, long presentationTimeUs, int flags) {
+                long now = System.nanoTime();
+                mBackend.releaseOutputBuffer(index, mSurface != null);
+                if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    ended.countDown();
+                    return;
+                }
+                int i = Arrays.binarySearch(sortedPts, presentationTimeUs);
+                if (i >= 0 && doneNs[order[i]] == 0) {
+                    doneNs[order[i]] = now;
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaFormat format) {}
+
+            @Override
+            public void onError(Exception e) {
+                errors.incrementAndGet();
+                ended.countDown();
+            }
+        });
+        mBackend.configure(mFormat, mSurface, 0);
+
+        long allocationsBefore = mCounter != null ? mCounter.get() : 0;
+        long startNs = System.nanoTime();
+        mBackend.start();
+        for (int i = 0; i < count && ended.getCount() > 0; i++) {
+            if (mRealTime) {
+                long waitNs = startNs + arrivals.get(i) * 1000 - System.nanoTime();
+                if (waitNs > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNs);
+                }
+            }
+            Integer index = pollInput(inputs, ended, timeoutMs);
+            if (index == null) {
+                break; // Failed.
+            }
+            Sample s = samples.get(i);
+            ByteBuffer buffer = mBackend.getInputBuffer(index);
+            int size = Math.min(s.size, buffer.capacity());
+            if (hasPayloads && s.bytes != null) {
+                buffer.put(s.bytes, 0, size);
+            }
+            queuedNs[i] = System.nanoTime();
+            mBackend.queueInputBuffer(index, 0, size, s.presentationTimeUs, s.flags);
+        }
+        if (!ended.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+            throw new IOException("no end of stream in " + timeoutMs + " ms");
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        long allocations = mCounter != null ? mCounter.get() - allocationsBefore : -1;
+        mBackend.stop();
+
+        int outputs = 0;
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            if (doneNs[i] != 0) {
+                latencies[outputs++] = doneNs[i] - queuedNs[i];
+            }
+        }
+        latencies = Arrays.copyOf(latencies, outputs);
+        Arrays.sort(latencies);
+        return new Result(count - 1, elapsedNs, errors.get(), allocations, latencies);
+    }
+
+    /** @return the next free input buffer, or null if the backend failed first. */
+    private static Integer pollInput(BlockingQueue<Integer> inputs, CountDownLatch ended, long timeoutMs)
+            throws IOException, InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + timeoutMs;
+        while (ended.getCount() > 0) {
+            Integer index = inputs.poll(10, TimeUnit.MILLISECONDS);
+            if (index != null) {
+                return index;
+            }
+            if (System.currentTimeMillis() > deadlineMs) {
+                throw new IOException("no input buffer in " + timeoutMs + " ms");
+            }
+        }
+        return null;
+    }
+}
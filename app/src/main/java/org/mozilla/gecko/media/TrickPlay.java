@@ -0,0 +1,88 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+/**
+ * Pacing of trick play, for whoever feeds the codec from a {@link SampleSource}:
+ * the client, or the service for codecs it demuxes for. At rates other than 1,
+ * the source steps from key frame to key frame, one is fed at a time, and the
+ * codec is flushed once it is out, so none waits for reordering; each is shown
+ * {@link #FRAME_MS} at least. Scan speed is then bounded by I-frame decode time.
+ * Not thread safe.
+ */
+public final class TrickPlay {
+    /** Trick play shows one key frame at a time, at most this often. */
+    public static final long FRAME_MS = 100;
+    /** From {@link #getFeedDelayMs}: wait for the key frame in the codec to come out. */
+    public static final long WAIT_FOR_OUTPUT = -1;
+
+    private int mRate = 1;
+    private int mInFlight; // Key frames fed and not output.
+    private long mFrameDueMs; // Of uptime, when the next key frame may be fed.
+
+    /** @return times normal speed, negative in reverse. */
+    public int getRate() {
+        return mRate;
+    }
+
+    public boolean isActive() {
+        return mRate != 1;
+    }
+
+    /**
+     * Play at {@code rate}; the caller flushes the codec and seeks the source.
+     * @return false if the rate is the same.
+     */
+    public boolean setRate(int rate) {
+        if (rate == mRate) {
+            return false;
+        }
+        mRate = rate;
+        reset();
+        return true;
+    }
+
+    /** @return the step for {@link SampleSource#setKeyframeStep}, 0 at normal speed. */
+    public long getKeyframeStepUs() {
+        return isActive() ? mRate * FRAME_MS * 1000 : 0;
+    }
+
+    /** Forget the key frame in the codec, e.g. when it is flushed. */
+    public void reset() {
+        mInFlight = 0;
+        mFrameDueMs = 0;
+    }
+
+    /**
+     * @return how long to wait before feeding the next sample: 0 to feed it now,
+     * always at normal speed, or {@link #WAIT_FOR_OUTPUT}.
+     */
+    public long getFeedDelayMs(long nowMs) {
+        if (mInFlight > 0) {
+            return WAIT_FOR_OUTPUT;
+        }
+        return Math.max(0, mFrameDueMs - nowMs);
+    }
+
+    /** A sample was fed at {@code nowMs} of uptime. */
+    public void onFed(long nowMs) {
+        if (isActive()) {
+            mInFlight++;
+            mFrameDueMs = nowMs + FRAME_MS;
+        }
+    }
+
+    /**
+     * An output of a sample fed since the last {@link #reset}, which the caller
+     * tells apart from those of samples fed before.
+     * @return whether to flush the codec before feeding the next key frame.
+     */
+    public boolean onOutput() {
+        if (!isActive() || mInFlight == 0) {
+            return false; // E.g. decoded before the rate changed.
+        }
+        return --mInFlight == 0;
+    }
+}
@@ -48,18 +48,68 @@ import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.video.VideoRendererEventListener;
 import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
  * Logs player events using {@link Log}.
+ * <p>
+ * In asynchronous mode, callbacks only copy their arguments into a preallocated
+ * {@link EventRing} and a background thread formats and logs them, so logging
+ * costs the playback thread no formatting or allocation. Each event type has a
+ * level and can be sampled, in both modes.
  */
 /* package */ final class EventLogger implements ExoPlayer.EventListener,
     AudioRendererEventListener, VideoRendererEventListener, AdaptiveMediaSourceEventListener,
     ExtractorMediaSource.EventListener, StreamingDrmSessionManager.EventListener,
     MetadataRenderer.Output {
 
+  public static final int EVENT_LOADING = 0;
+  public static final int EVENT_STATE = 1;
+  public static final int EVENT_DISCONTINUITY = 2;
+  public static final int EVENT_TIMELINE = 3;
+  public static final int EVENT_PLAYER_ERROR = 4;
+  public static final int EVENT_TRACKS = 5;
+  public static final int EVENT_METADATA = 6;
+  public static final int EVENT_AUDIO_ENABLED = 7;
+  public static final int EVENT_AUDIO_SESSION_ID = 8;
+  public static final int EVENT_AUDIO_DECODER_INITIALIZED = 9;
+  public static final int EVENT_AUDIO_FORMAT = 10;
+  public static final int EVENT_AUDIO_DISABLED = 11;
+  public static final int EVENT_AUDIO_UNDERRUN = 12;
+  public static final int EVENT_VIDEO_ENABLED = 13;
+  public static final int EVENT_VIDEO_DECODER_INITIALIZED = 14;
+  public static final int EVENT_VIDEO_FORMAT = 15;
+  public static final int EVENT_VIDEO_DISABLED = 16;
+  public static final int EVENT_DROPPED_FRAMES = 17;
+  public static final int EVENT_DRM_ERROR = 18;
+  public static final int EVENT_DRM_KEYS_LOADED = 19;
+  public static final int EVENT_LOAD_ERROR = 20;
+  public static final int EVENT_LOAD_STARTED = 21;
+  public static final int EVENT_LOAD_COMPLETED = 22;
+  public static final int EVENT_LOAD_CANCELED = 23;
+  public static final int EVENT_UPSTREAM_DISCARDED = 24;
+  public static final int EVENT_DOWNSTREAM_FORMAT = 25;
+  public static final int EVENT_COUNT = 26;
+
+  // Log level of each event type. Per-chunk load events are only for debugging.
+  private static final int[] LEVELS = new int[EVENT_COUNT];
+  static {
+    Arrays.fill(LEVELS, Log.DEBUG);
+    LEVELS[EVENT_PLAYER_ERROR] = Log.ERROR;
+    LEVELS[EVENT_AUDIO_UNDERRUN] = Log.ERROR;
+    LEVELS[EVENT_DRM_ERROR] = Log.ERROR;
+    LEVELS[EVENT_LOAD_ERROR] = Log.ERROR;
+    LEVELS[EVENT_LOAD_STARTED] = Log.VERBOSE;
+    LEVELS[EVENT_LOAD_COMPLETED] = Log.VERBOSE;
+    LEVELS[EVENT_LOAD_CANCELED] = Log.VERBOSE;
+    LEVELS[EVENT_UPSTREAM_DISCARDED] = Log.VERBOSE;
+    LEVELS[EVENT_DOWNSTREAM_FORMAT] = Log.VERBOSE;
+  }
+
   private static final String TAG = "EventLogger";
   private static final int MAX_TIMELINE_ITEM_LINES = 3;
+  private static final long FLUSH_INTERVAL_MS = 250;
   private static final NumberFormat TIME_FORMAT;
   static {
     TIME_FORMAT = NumberFormat.getInstance(Locale.US);
@@ -72,30 +122,79 @@ import java.util.Locale;
   private final Timeline.Window window;
   private final Timeline.Period period;
   private final long startTimeMs;
-
+  private final EventRing ring; // Null in synchronous mode.
+  private final Thread flusher;
+  private final int[] sampleIntervals;
+  private final int[] sampleCounters; // Racy across threads; sampling need not be exact.
+  private volatile int minLevel = Log.DEBUG;
+  private long reportedDropped; // Access only by the flusher.
+
+  /** Logs events on the thread reporting them. */
   public EventLogger(MappingTrackSelector trackSelector) {
+    this(trackSelector, 0);
+  }
+
+  /**
+   * @param ringCapacity number of events buffered for the background thread, or 0 to
+   *     log on the thread reporting them.
+   */
+  public EventLogger(MappingTrackSelector trackSelector, int ringCapacity) {
     this.trackSelector = trackSelector;
     window = new Timeline.Window();
     period = new Timeline.Period();
     startTimeMs = SystemClock.elapsedRealtime();
+    sampleIntervals = new int[EVENT_COUNT];
+    Arrays.fill(sampleIntervals, 1);
+    sampleCounters = new int[EVENT_COUNT];
+    if (ringCapacity > 0) {
+      ring = new EventRing(ringCapacity);
+      flusher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          flushLoop();
+        }
+      }, "event-logger");
+      flusher.setDaemon(true);
+      flusher.setPriority(Thread.MIN_PRIORITY);
+      flusher.start();
+    } else {
+      ring = null;
+      flusher = null;
+    }
+  }
+
+  /** Skip events below {@code level}, one of the {@link Log} levels. */
+  public void setMinLevel(int level) {
+    minLevel = level;
+  }
+
+  /** Log only one in {@code interval} events of {@code type}. 0 disables the type. */
+  public void setSampling(int type, int interval) {
+    sampleIntervals[type] = interval;
+  }
+
+  /** Stop the background thread after logging what it has. */
+  public void release() {
+    if (flusher != null) {
+      flusher.interrupt();
+    }
   }
 
   // ExoPlayer.EventListener
 
   @Override
   public void onLoadingChanged(boolean isLoading) {
-    Log.d(TAG, "loading [" + isLoading + "]");
+    event(EVENT_LOADING, isLoading ? 1 : 0, 0, 0, null, null);
   }
 
   @Override
   public void onPlayerStateChanged(boolean playWhenReady, int state) {
-    Log.d(TAG, "state [" + getSessionTimeString() + ", " + playWhenReady + ", "
-        + getStateString(state) + "]");
+    event(EVENT_STATE, playWhenReady ? 1 : 0, state, 0, null, null);
   }
 
   @Override
   public void onPositionDiscontinuity() {
-    Log.d(TAG, "positionDiscontinuity");
+    event(EVENT_DISCONTINUITY, 0, 0, 0, null, null);
   }
 
   @Override
@@ -103,169 +202,86 @@ import java.util.Locale;
     if (timeline == null) {
       return;
     }
-    int periodCount = timeline.getPeriodCount();
-    int windowCount = timeline.getWindowCount();
-    Log.d(TAG, "sourceInfo [periodCount=" + periodCount + ", windowCount=" + windowCount);
-    for (int i = 0; i < Math.min(periodCount, MAX_TIMELINE_ITEM_LINES); i++) {
-      timeline.getPeriod(i, period);
-      Log.d(TAG, "  " +  "period [" + getTimeString(period.getDurationMs()) + "]");
-    }
-    if (periodCount > MAX_TIMELINE_ITEM_LINES) {
-      Log.d(TAG, "  ...");
-    }
-    for (int i = 0; i < Math.min(windowCount, MAX_TIMELINE_ITEM_LINES); i++) {
-      timeline.getWindow(i, window);
-      Log.d(TAG, "  " +  "window [" + getTimeString(window.getDurationMs()) + ", "
-          + window.isSeekable + ", " + window.isDynamic + "]");
-    }
-    if (windowCount > MAX_TIMELINE_ITEM_LINES) {
-      Log.d(TAG, "  ...");
-    }
-    Log.d(TAG, "]");
+    event(EVENT_TIMELINE, 0, 0, 0, timeline, null);
   }
 
   @Override
   public void onPlayerError(ExoPlaybackException e) {
-    Log.e(TAG, "playerFailed [" + getSessionTimeString() + "]", e);
+    event(EVENT_PLAYER_ERROR, 0, 0, 0, e, null);
   }
 
   @Override
   public void onTracksChanged(TrackGroupArray ignored, TrackSelectionArray trackSelections) {
-    MappedTrackInfo mappedTrackInfo = trackSelector.getCurrentMappedTrackInfo();
-    if (mappedTrackInfo == null) {
-      Log.d(TAG, "Tracks []");
-      return;
-    }
-    Log.d(TAG, "Tracks [");
-    // Log tracks associated to renderers.
-    for (int rendererIndex = 0; rendererIndex < mappedTrackInfo.length; rendererIndex++) {
-      TrackGroupArray rendererTrackGroups = mappedTrackInfo.getTrackGroups(rendererIndex);
-      TrackSelection trackSelection = trackSelections.get(rendererIndex);
-      if (rendererTrackGroups.length > 0) {
-        Log.d(TAG, "  Renderer:" + rendererIndex + " [");
-        for (int groupIndex = 0; groupIndex < rendererTrackGroups.length; groupIndex++) {
-          TrackGroup trackGroup = rendererTrackGroups.get(groupIndex);
-          String adaptiveSupport = getAdaptiveSupportString(trackGroup.length,
-              mappedTrackInfo.getAdaptiveSupport(rendererIndex, groupIndex, false));
-          Log.d(TAG, "    Group:" + groupIndex + ", adaptive_supported=" + adaptiveSupport + " [");
-          for (int trackIndex = 0; trackIndex < trackGroup.length; trackIndex++) {
-            String status = getTrackStatusString(trackSelection, trackGroup, trackIndex);
-            String formatSupport = getFormatSupportString(
-                mappedTrackInfo.getTrackFormatSupport(rendererIndex, groupIndex, trackIndex));
-            Log.d(TAG, "      " + status + " Track:" + trackIndex + ", "
-                + getFormatString(trackGroup.getFormat(trackIndex))
-                + ", supported=" + formatSupport);
-          }
-          Log.d(TAG, "    ]");
-        }
-        // Log metadata for at most one of the tracks selected for the renderer.
-        if (trackSelection != null) {
-          for (int selectionIndex = 0; selectionIndex < trackSelection.length(); selectionIndex++) {
-            Metadata metadata = trackSelection.getFormat(selectionIndex).metadata;
-            if (metadata != null) {
-              Log.d(TAG, "    Metadata [");
-              printMetadata(metadata, "      ");
-              Log.d(TAG, "    ]");
-              break;
-            }
-          }
-        }
-        Log.d(TAG, "  ]");
-      }
-    }
-    // Log tracks not associated with a renderer.
-    TrackGroupArray unassociatedTrackGroups = mappedTrackInfo.getUnassociatedTrackGroups();
-    if (unassociatedTrackGroups.length > 0) {
-      Log.d(TAG, "  Renderer:None [");
-      for (int groupIndex = 0; groupIndex < unassociatedTrackGroups.length; groupIndex++) {
-        Log.d(TAG, "    Group:" + groupIndex + " [");
-        TrackGroup trackGroup = unassociatedTrackGroups.get(groupIndex);
-        for (int trackIndex = 0; trackIndex < trackGroup.length; trackIndex++) {
-          String status = getTrackStatusString(false);
-          String formatSupport = getFormatSupportString(
-              RendererCapabilities.FORMAT_UNSUPPORTED_TYPE);
-          Log.d(TAG, "      " + status + " Track:" + trackIndex + ", "
-              + getFormatString(trackGroup.getFormat(trackIndex))
-              + ", supported=" + formatSupport);
-        }
-        Log.d(TAG, "    ]");
-      }
-      Log.d(TAG, "  ]");
-    }
-    Log.d(TAG, "]");
+    // Both are immutable, so they can be printed later.
+    event(EVENT_TRACKS, 0, 0, 0, trackSelector.getCurrentMappedTrackInfo(), trackSelections);
   }
 
   // MetadataRenderer.Output
 
   @Override
   public void onMetadata(Metadata metadata) {
-    Log.d(TAG, "onMetadata [");
-    printMetadata(metadata, "  ");
-    Log.d(TAG, "]");
+    event(EVENT_METADATA, 0, 0, 0, metadata, null);
   }
 
   // AudioRendererEventListener
 
   @Override
   public void onAudioEnabled(DecoderCounters counters) {
-    Log.d(TAG, "audioEnabled [" + getSessionTimeString() + "]");
+    event(EVENT_AUDIO_ENABLED, 0, 0, 0, null, null);
   }
 
   @Override
   public void onAudioSessionId(int audioSessionId) {
-    Log.d(TAG, "audioSessionId [" + audioSessionId + "]");
+    event(EVENT_AUDIO_SESSION_ID, audioSessionId, 0, 0, null, null);
   }
 
   @Override
   public void onAudioDecoderInitialized(String decoderName, long elapsedRealtimeMs,
       long initializationDurationMs) {
-    Log.d(TAG, "audioDecoderInitialized [" + getSessionTimeString() + ", " + decoderName + "]");
+    event(EVENT_AUDIO_DECODER_INITIALIZED, 0, 0, 0, decoderName, null);
   }
 
   @Override
   public void onAudioInputFormatChanged(Format format) {
-    Log.d(TAG, "audioFormatChanged [" + getSessionTimeString() + ", " + getFormatString(format)
-        + "]");
+    event(EVENT_AUDIO_FORMAT, 0, 0, 0, format, null);
   }
 
   @Override
   public void onAudioDisabled(DecoderCounters counters) {
-    Log.d(TAG, "audioDisabled [" + getSessionTimeString() + "]");
+    event(EVENT_AUDIO_DISABLED, 0, 0, 0, null, null);
   }
 
   @Override
   public void onAudioTrackUnderrun(int bufferSize, long bufferSizeMs, long elapsedSinceLastFeedMs) {
-    printInternalError("audioTrackUnderrun [" + bufferSize + ", " + bufferSizeMs + ", "
-        + elapsedSinceLastFeedMs + "]", null);
+    event(EVENT_AUDIO_UNDERRUN, bufferSize, bufferSizeMs, elapsedSinceLastFeedMs, null, null);
   }
 
   // VideoRendererEventListener
 
   @Override
   public void onVideoEnabled(DecoderCounters counters) {
-    Log.d(TAG, "videoEnabled [" + getSessionTimeString() + "]");
+    event(EVENT_VIDEO_ENABLED, 0, 0, 0, null, null);
   }
 
   @Override
   public void onVideoDecoderInitialized(String decoderName, long elapsedRealtimeMs,
       long initializationDurationMs) {
-    Log.d(TAG, "videoDecoderInitialized [" + getSessionTimeString() + ", " + decoderName + "]");
+    event(EVENT_VIDEO_DECODER_INITIALIZED, 0, 0, 0, decoderName, null);
   }
 
   @Override
   public void onVideoInputFormatChanged(Format format) {
-    Log.d(TAG, "videoFormatChanged [" + getSessionTimeString() + ", " + getFormatString(format)
-        + "]");
+    event(EVENT_VIDEO_FORMAT, 0, 0, 0, format, null);
   }
 
   @Override
   public void onVideoDisabled(DecoderCounters counters) {
-    Log.d(TAG, "videoDisabled [" + getSessionTimeString() + "]");
+    event(EVENT_VIDEO_DISABLED, 0, 0, 0, null, null);
   }
 
   @Override
   public void onDroppedFrames(int count, long elapsed) {
-    Log.d(TAG, "droppedFrames [" + getSessionTimeString() + ", " + count + "]");
+    event(EVENT_DROPPED_FRAMES, count, 0, 0, null, null);
   }
 
   @Override
@@ -283,19 +299,19 @@ import java.util.Locale;
 
   @Override
   public void onDrmSessionManagerError(Exception e) {
-    printInternalError("drmSessionManagerError", e);
+    event(EVENT_DRM_ERROR, 0, 0, 0, e, null);
   }
 
   @Override
   public void onDrmKeysLoaded() {
-    Log.d(TAG, "drmKeysLoaded [" + getSessionTimeString() + "]");
+    event(EVENT_DRM_KEYS_LOADED, 0, 0, 0, null, null);
   }
 
   // ExtractorMediaSource.EventListener
 
   @Override
   public void onLoadError(IOException error) {
-    printInternalError("loadError", error);
+    event(EVENT_LOAD_ERROR, 0, 0, 0, error, null);
   }
 
   // AdaptiveMediaSourceEventListener
@@ -304,7 +320,7 @@ import java.util.Locale;
   public void onLoadStarted(DataSpec dataSpec, int dataType, int trackType, Format trackFormat,
       int trackSelectionReason, Object trackSelectionData, long mediaStartTimeMs,
       long mediaEndTimeMs, long elapsedRealtimeMs) {
-    // Do nothing.
+    event(EVENT_LOAD_STARTED, trackType, mediaStartTimeMs, mediaEndTimeMs, dataSpec, null);
   }
 
   @Override
@@ -312,38 +328,265 @@ import java.util.Locale;
       int trackSelectionReason, Object trackSelectionData, long mediaStartTimeMs,
       long mediaEndTimeMs, long elapsedRealtimeMs, long loadDurationMs, long bytesLoaded,
       IOException error, boolean wasCanceled) {
-    printInternalError("loadError", error);
+    event(EVENT_LOAD_ERROR, 0, 0, 0, error, null);
   }
 
   @Override
   public void onLoadCanceled(DataSpec dataSpec, int dataType, int trackType, Format trackFormat,
       int trackSelectionReason, Object trackSelectionData, long mediaStartTimeMs,
       long mediaEndTimeMs, long elapsedRealtimeMs, long loadDurationMs, long bytesLoaded) {
-    // Do nothing.
+    event(EVENT_LOAD_CANCELED, trackType, loadDurationMs, bytesLoaded, dataSpec, null);
   }
 
   @Override
   public void onLoadCompleted(DataSpec dataSpec, int dataType, int trackType, Format trackFormat,
       int trackSelectionReason, Object trackSelectionData, long mediaStartTimeMs,
       long mediaEndTimeMs, long elapsedRealtimeMs, long loadDurationMs, long bytesLoaded) {
-    // Do nothing.
+    event(EVENT_LOAD_COMPLETED, trackType, loadDurationMs, bytesLoaded, dataSpec, null);
   }
 
   @Override
   public void onUpstreamDiscarded(int trackType, long mediaStartTimeMs, long mediaEndTimeMs) {
-    // Do nothing.
+    event(EVENT_UPSTREAM_DISCARDED, trackType, mediaStartTimeMs, mediaEndTimeMs, null, null);
   }
 
   @Override
   public void onDownstreamFormatChanged(int trackType, Format trackFormat, int trackSelectionReason,
       Object trackSelectionData, long mediaTimeMs) {
-    // Do nothing.
+    event(EVENT_DOWNSTREAM_FORMAT, trackType, mediaTimeMs, 0, trackFormat, null);
   }
 
   // Internal methods
 
-  private void printInternalError(String type, Exception e) {
-    Log.e(TAG, "internalError [" + getSessionTimeString() + ", " + type + "]", e);
+  /**
+   * Log an event now, or queue it in asynchronous mode. Objects must not change
+   * afterwards, which holds for everything ExoPlayer reports.
+   */
+  private void event(int type, long a, long b, long c, Object ref1, Object ref2) {
+    if (LEVELS[type] < minLevel) {
+      return;
+    }
+    int interval = sampleIntervals[type];
+    if (interval != 1) {
+      if (interval <= 0 || sampleCounters[type]++ % interval != 0) {
+        return;
+      }
+    }
+    long timeMs = SystemClock.elapsedRealtime();
+    if (ring != null) {
+      ring.offer(type, timeMs, a, b, c, ref1, ref2); // Counted as dropped if full.
+    } else {
+      print(type, timeMs, a, b, c, ref1, ref2);
+    }
+  }
+
+  private void flushLoop() {
+    EventRing.Reader reader = new EventRing.Reader() {
+      @Override
+      public void onEvent(int type, long timeMs, long a, long b, long c, Object ref1,
+          Object ref2) {
+        print(type, timeMs, a, b, c, ref1, ref2);
+      }
+    };
+    boolean running = true;
+    while (running) {
+      try {
+        Thread.sleep(FLUSH_INTERVAL_MS);
+      } catch (InterruptedException e) {
+        running = false;
+      }
+      ring.drain(reader);
+      long dropped = ring.getDropped();
+      if (dropped != reportedDropped) {
+        Log.w(TAG, "dropped " + (dropped - reportedDropped) + " events, ring of "
+            + ring.capacity() + " full");
+        reportedDropped = dropped;
+      }
+    }
+  }
+
+  private void print(int type, long timeMs, long a, long b, long c, Object ref1, Object ref2) {
+    switch (type) {
+      case EVENT_LOADING:
+        Log.d(TAG, "loading [" + (a != 0) + "]");
+        break;
+      case EVENT_STATE:
+        Log.d(TAG, "state [" + getSessionTimeString(timeMs) + ", " + (a != 0) + ", "
+            + getStateString((int) b) + "]");
+        break;
+      case EVENT_DISCONTINUITY:
+        Log.d(TAG, "positionDiscontinuity");
+        break;
+      case EVENT_TIMELINE:
+        printTimeline((Timeline) ref1);
+        break;
+      case EVENT_PLAYER_ERROR:
+        Log.e(TAG, "playerFailed [" + getSessionTimeString(timeMs) + "]", (Throwable) ref1);
+        break;
+      case EVENT_TRACKS:
+        printTracks((MappedTrackInfo) ref1, (TrackSelectionArray) ref2);
+        break;
+      case EVENT_METADATA:
+        Log.d(TAG, "onMetadata [");
+        printMetadata((Metadata) ref1, "  ");
+        Log.d(TAG, "]");
+        break;
+      case EVENT_AUDIO_ENABLED:
+        Log.d(TAG, "audioEnabled [" + getSessionTimeString(timeMs) + "]");
+        break;
+      case EVENT_AUDIO_SESSION_ID:
+        Log.d(TAG, "audioSessionId [" + a + "]");
+        break;
+      case EVENT_AUDIO_DECODER_INITIALIZED:
+        Log.d(TAG, "audioDecoderInitialized [" + getSessionTimeString(timeMs) + ", " + ref1 + "]");
+        break;
+      case EVENT_AUDIO_FORMAT:
+        Log.d(TAG, "audioFormatChanged [" + getSessionTimeString(timeMs) + ", "
+            + getFormatString((Format) ref1) + "]");
+        break;
+      case EVENT_AUDIO_DISABLED:
+        Log.d(TAG, "audioDisabled [" + getSessionTimeString(timeMs) + "]");
+        break;
+      case EVENT_AUDIO_UNDERRUN:
+        printInternalError(timeMs, "audioTrackUnderrun [" + a + ", " + b + ", " + c + "]", null);
+        break;
+      case EVENT_VIDEO_ENABLED:
+        Log.d(TAG, "videoEnabled [" + getSessionTimeString(timeMs) + "]");
+        break;
+      case EVENT_VIDEO_DECODER_INITIALIZED:
+        Log.d(TAG, "videoDecoderInitialized [" + getSessionTimeString(timeMs) + ", " + ref1 + "]");
+        break;
+      case EVENT_VIDEO_FORMAT:
+        Log.d(TAG, "videoFormatChanged [" + getSessionTimeString(timeMs) + ", "
+            + getFormatString((Format) ref1) + "]");
+        break;
+      case EVENT_VIDEO_DISABLED:
+        Log.d(TAG, "videoDisabled [" + getSessionTimeString(timeMs) + "]");
+        break;
+      case EVENT_DROPPED_FRAMES:
+        Log.d(TAG, "droppedFrames [" + getSessionTimeString(timeMs) + ", " + a + "]");
+        break;
+      case EVENT_DRM_ERROR:
+        printInternalError(timeMs, "drmSessionManagerError", (Exception) ref1);
+        break;
+      case EVENT_DRM_KEYS_LOADED:
+        Log.d(TAG, "drmKeysLoaded [" + getSessionTimeString(timeMs) + "]");
+        break;
+      case EVENT_LOAD_ERROR:
+        printInternalError(timeMs, "loadError", (Exception) ref1);
+        break;
+      case EVENT_LOAD_STARTED:
+        Log.v(TAG, "loadStarted [" + getSessionTimeString(timeMs) + ", " + a + ", "
+            + getTimeString(b) + "-" + getTimeString(c) + ", " + ((DataSpec) ref1).uri + "]");
+        break;
+      case EVENT_LOAD_COMPLETED:
+      case EVENT_LOAD_CANCELED:
+        Log.v(TAG, (type == EVENT_LOAD_COMPLETED ? "loadCompleted [" : "loadCanceled [")
+            + getSessionTimeString(timeMs) + ", " + a + ", " + b + "ms, " + c + " bytes, "
+            + ((DataSpec) ref1).uri + "]");
+        break;
+      case EVENT_UPSTREAM_DISCARDED:
+        Log.v(TAG, "upstreamDiscarded [" + getSessionTimeString(timeMs) + ", " + a + ", "
+            + getTimeString(b) + "-" + getTimeString(c) + "]");
+        break;
+      case EVENT_DOWNSTREAM_FORMAT:
+        Log.v(TAG, "downstreamFormatChanged [" + getSessionTimeString(timeMs) + ", " + a + ", "
+            + getTimeString(b) + ", " + getFormatString((Format) ref1) + "]");
+        break;
+      default:
+        Log.w(TAG, "unknown event " + type);
+        break;
+    }
+  }
+
+  private void printTimeline(Timeline timeline) {
+    int periodCount = timeline.getPeriodCount();
+    int windowCount = timeline.getWindowCount();
+    Log.d(TAG, "sourceInfo [periodCount=" + periodCount + ", windowCount=" + windowCount);
+    for (int i = 0; i < Math.min(periodCount, MAX_TIMELINE_ITEM_LINES); i++) {
+      timeline.getPeriod(i, period);
+      Log.d(TAG, "  " +  "period [" + getTimeString(period.getDurationMs()) + "]");
+    }
+    if (periodCount > MAX_TIMELINE_ITEM_LINES) {
+      Log.d(TAG, "  ...");
+    }
+    for (int i = 0; i < Math.min(windowCount, MAX_TIMELINE_ITEM_LINES); i++) {
+      timeline.getWindow(i, window);
+      Log.d(TAG, "  " +  "window [" + getTimeString(window.getDurationMs()) + ", "
+          + window.isSeekable + ", " + window.isDynamic + "]");
+    }
+    if (windowCount > MAX_TIMELINE_ITEM_LINES) {
+      Log.d(TAG, "  ...");
+    }
+    Log.d(TAG, "]");
+  }
+
+  private void printTracks(MappedTrackInfo mappedTrackInfo, TrackSelectionArray trackSelections) {
+    if (mappedTrackInfo == null) {
+      Log.d(TAG, "Tracks []");
+      return;
+    }
+    Log.d(TAG, "Tracks [");
+    // Log tracks associated to renderers.
+    for (int rendererIndex = 0; rendererIndex < mappedTrackInfo.length; rendererIndex++) {
+      TrackGroupArray rendererTrackGroups = mappedTrackInfo.getTrackGroups(rendererIndex);
+      TrackSelection trackSelection = trackSelections.get(rendererIndex);
+      if (rendererTrackGroups.length > 0) {
+        Log.d(TAG, "  Renderer:" + rendererIndex + " [");
+        for (int groupIndex = 0; groupIndex < rendererTrackGroups.length; groupIndex++) {
+          TrackGroup trackGroup = rendererTrackGroups.get(groupIndex);
+          String adaptiveSupport = getAdaptiveSupportString(trackGroup.length,
+              mappedTrackInfo.getAdaptiveSupport(rendererIndex, groupIndex, false));
+          Log.d(TAG, "    Group:" + groupIndex + ", adaptive_supported=" + adaptiveSupport + " [");
+          for (int trackIndex = 0; trackIndex < trackGroup.length; trackIndex++) {
+            String status = getTrackStatusString(trackSelection, trackGroup, trackIndex);
+            String formatSupport = getFormatSupportString(
+                mappedTrackInfo.getTrackFormatSupport(rendererIndex, groupIndex, trackIndex));
+            Log.d(TAG, "      " + status + " Track:" + trackIndex + ", "
+                + getFormatString(trackGroup.getFormat(trackIndex))
+                + ", supported=" + formatSupport);
+          }
+          Log.d(TAG, "    ]");
+        }
+        // Log metadata for at most one of the tracks selected for the renderer.
+        if (trackSelection != null) {
+          for (int selectionIndex = 0; selectionIndex < trackSelection.length(); selectionIndex++) {
+            Metadata metadata = trackSelection.getFormat(selectionIndex).metadata;
+            if (metadata != null) {
+              Log.d(TAG, "    Metadata [");
+              printMetadata(metadata, "      ");
+              Log.d(TAG, "    ]");
+              break;
+            }
+          }
+        }
+        Log.d(TAG, "  ]");
+      }
+    }
+    // Log tracks not associated with a renderer.
+    TrackGroupArray unassociatedTrackGroups = mappedTrackInfo.getUnassociatedTrackGroups();
+    if (unassociatedTrackGroups.length > 0) {
+      Log.d(TAG, "  Renderer:None [");
+      for (int groupIndex = 0; groupIndex < unassociatedTrackGroups.length; groupIndex++) {
+        Log.d(TAG, "    Group:" + groupIndex + " [");
+        TrackGroup trackGroup = unassociatedTrackGroups.get(groupIndex);
+        for (int trackIndex = 0; trackIndex < trackGroup.length; trackIndex++) {
+          String status = getTrackStatusString(false);
+          String formatSupport = getFormatSupportString(
+              RendererCapabilities.FORMAT_UNSUPPORTED_TYPE);
+          Log.d(TAG, "      " + status + " Track:" + trackIndex + ", "
+              + getFormatString(trackGroup.getFormat(trackIndex))
+              + ", supported=" + formatSupport);
+        }
+        Log.d(TAG, "    ]");
+      }
+      Log.d(TAG, "  ]");
+    }
+    Log.d(TAG, "]");
+  }
+
+  private void printInternalError(long timeMs, String type, Exception e) {
+    Log.e(TAG, "internalError [" + getSessionTimeString(timeMs) + ", " + type + "]", e);
   }
 
   private void printMetadata(Metadata metadata, String prefix) {
@@ -379,8 +622,8 @@ import java.util.Locale;
     }
   }
 
-  private String getSessionTimeString() {
-    return getTimeString(SystemClock.elapsedRealtime() - startTimeMs);
+  private String getSessionTimeString(long timeMs) {
+    return getTimeString(timeMs - startTimeMs);
   }
 
   private static String getTimeString(long timeMs) {
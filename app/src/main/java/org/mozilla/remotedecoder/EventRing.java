@@ -0,0 +1,105 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.remotedecoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preallocated ring of fixed-size event records: a type, a timestamp, three
+ * numbers and two object references. Any thread may {@link #offer}; it never
+ * blocks or allocates, and drops the record when the ring is full. One thread
+ * at a time may {@link #drain}.
+ * <p>
+ * Each slot has a sequence number telling whose turn it is, as in Dmitry
+ * Vyukov's bounded queue: producers claim positions with a CAS and publish a
+ * record by advancing its slot sequence.
+ */
+/* package */ final class EventRing {
+    /* package */ interface Reader {
+        void onEvent(int type, long timeMs, long a, long b, long c, Object ref1, Object ref2);
+    }
+
+    private static final int LONGS = 5; // type, time, a, b, c
+
+    private final int mMask;
+    private final long[] mLongs;
+    private final Object[] mRefs;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private long mHead; // Access only by the draining thread.
+
+    /** @param capacity number of records, rounded up to a power of two. */
+    EventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mMask = size - 1;
+        mLongs = new long[size * LONGS];
+        mRefs = new Object[size * 2];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /** @return false if the ring was full and the record dropped. */
+    boolean offer(int type, long timeMs, long a, long b, long c, Object ref1, Object ref2) {
+        long pos;
+        int slot;
+        while (true) {
+            pos = mTail.get();
+            slot = (int) pos & mMask;
+            long diff = mSequences.get(slot) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                mDropped.incrementAndGet(); // Not drained yet.
+                return false;
+            }
+            // Otherwise another producer took this position; try the next one.
+        }
+        int base = slot * LONGS;
+        mLongs[base] = type;
+        mLongs[base + 1] = timeMs;
+        mLongs[base + 2] = a;
+        mLongs[base + 3] = b;
+        mLongs[base + 4] = c;
+        mRefs[slot * 2] = ref1;
+        mRefs[slot * 2 + 1] = ref2;
+        mSequences.lazySet(slot, pos + 1); // Publishes the fields above.
+        return true;
+    }
+
+    /** Hand published records to {@code reader} in order. @return how many. */
+    int drain(Reader reader) {
+        int count = 0;
+        while (true) {
+            int slot = (int) mHead & mMask;
+            if (mSequences.get(slot) != mHead + 1) {
+                return count; // Empty, or the next record is still being written.
+            }
+            int base = slot * LONGS;
+            Object ref1 = mRefs[slot * 2];
+            Object ref2 = mRefs[slot * 2 + 1];
+            mRefs[slot * 2] = null;
+            mRefs[slot * 2 + 1] = null;
+            reader.onEvent((int) mLongs[base], mLongs[base + 1],
+                    mLongs[base + 2], mLongs[base + 3], mLongs[base + 4], ref1, ref2);
+            mSequences.lazySet(slot, mHead + mMask + 1); // Free for the next lap.
+            mHead++;
+            count++;
+        }
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    long getDropped() {
+        return mDropped.get();
+    }
+}
@@ -40,7 +40,9 @@ public class GeckoHlsPlayer implements ExoPlayer.EventListener {
     private Handler mainHandler;
     public final String extension = null;
     public static final String EXTENSION_EXTRA = "extension";
+    private static final int EVENT_LOG_CAPACITY = 256;
     private EventLogger eventLogger;
+    private QoeCollector qoeCollector;
 
     private ExoPlayer player;
 
@@ -63,13 +65,24 @@ public class GeckoHlsPlayer implements ExoPlayer.EventListener {
                 : uri.getLastPathSegment());
         switch (type) {
             case C.TYPE_HLS:
-                return new HlsMediaSource(uri, mediaDataSourceFactory, mainHandler, null);
+                return new HlsMediaSource(uri, mediaDataSourceFactory, mainHandler, qoeCollector);
             default: {
                 throw new IllegalStateException("Unsupported type: " + type);
             }
         }
     }
 
+    /** Stop playback, then the thread of the event log once it logged what it has. */
+    public void release() {
+        player.release();
+        eventLogger.release();
+    }
+
+    /** @return playback quality of the session so far, as JSON. */
+    public String getQoeSummary() {
+        return qoeCollector.getSummary();
+    }
+
     public void setSurface(Surface surface) {
         player.prepare(mediaSource);
 
@@ -113,8 +126,11 @@ public class GeckoHlsPlayer implements ExoPlayer.EventListener {
         player = ExoPlayerFactory.newInstance(renderers, trackSelector);
         player.addListener(this);
 
-        eventLogger = new EventLogger(trackSelector);
+        // Formatted off the playback thread.
+        eventLogger = new EventLogger(trackSelector, EVENT_LOG_CAPACITY);
         player.addListener(eventLogger);
+        qoeCollector = new QoeCollector();
+        player.addListener(qoeCollector);
 
         intent.setData(Uri.parse(HLS_URL));
         intent.putExtra(EXTENSION_EXTRA, extension);
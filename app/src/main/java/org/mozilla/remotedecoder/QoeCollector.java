@@ -0,0 +1,174 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.remotedecoder;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.decoder.DecoderCounters;
+import com.google.android.exoplayer2.source.AdaptiveMediaSourceEventListener;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.video.VideoRendererEventListener;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Feeds player, media source and video renderer events of one session into
+ * {@link QoeStats}, and logs the summary when the session ends.
+ */
+/* package */ final class QoeCollector implements ExoPlayer.EventListener,
+        AdaptiveMediaSourceEventListener, VideoRendererEventListener {
+    private static final String LOG_TAG = QoeCollector.class.getSimpleName();
+
+    private final QoeStats mStats = new QoeStats(); // Guarded by this.
+
+    QoeCollector() {
+        mStats.start(SystemClock.elapsedRealtime());
+    }
+
+    /** @return the session so far as compact JSON. */
+    public synchronized String getSummary() {
+        return mStats.toJson(SystemClock.elapsedRealtime());
+    }
+
+    /** Write the session so far in the binary format of {@link QoeStats}. */
+    public synchronized void writeSummary(DataOutput out) throws IOException {
+        mStats.writeTo(out, SystemClock.elapsedRealtime());
+    }
+
+    private void reportEnd() {
+        Log.i(LOG_TAG, "session " + mStats.toJson(SystemClock.elapsedRealtime()));
+    }
+
+    // ExoPlayer.EventListener
+
+    @Override
+    public void onLoadingChanged(boolean isLoading) {}
+
+    @Override
+    public synchronized void onPlayerStateChanged(boolean playWhenReady, int state) {
+        long now = SystemClock.elapsedRealtime();
+        switch (state) {
+            case ExoPlayer.STATE_BUFFERING:
+                mStats.onBuffering(now, playWhenReady);
+                break;
+            case ExoPlayer.STATE_READY:
+                mStats.onReady(now, playWhenReady);
+                break;
+            case ExoPlayer.STATE_ENDED:
+                if (!mStats.hasEnded()) {
+                    mStats.onEnded(now);
+                    reportEnd();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public synchronized void onPositionDiscontinuity() {
+        mStats.onSeek();
+    }
+
+    @Override
+    public void onTimelineChanged(Timeline timeline, Object manifest) {}
+
+    @Override
+    public void onTracksChanged(TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {}
+
+    @Override
+    public synchronized void onPlayerError(ExoPlaybackException error) {
+        if (!mStats.hasEnded()) {
+            mStats.onFatalError(SystemClock.elapsedRealtime());
+            reportEnd();
+        }
+    }
+
+    // AdaptiveMediaSourceEventListener
+
+    @Override
+    public void onLoadStarted(DataSpec dataSpec, int dataType, int trackType, Format trackFormat,
+                              int trackSelectionReason, Object trackSelectionData,
+                              long mediaStartTimeMs, long mediaEndTimeMs, long elapsedRealtimeMs) {}
+
+    @Override
+    public synchronized void onLoadCompleted(DataSpec dataSpec, int dataType, int trackType,
+                                             Format trackFormat, int trackSelectionReason,
+                                             Object trackSelectionData, long mediaStartTimeMs,
+                                             long mediaEndTimeMs, long elapsedRealtimeMs,
+                                             long loadDurationMs, long bytesLoaded) {
+        if (dataType == C.DATA_TYPE_MEDIA) {
+            mStats.onLoadCompleted(bytesLoaded, loadDurationMs);
+        }
+    }
+
+    @Override
+    public void onLoadCanceled(DataSpec dataSpec, int dataType, int trackType, Format trackFormat,
+                               int trackSelectionReason, Object trackSelectionData,
+                               long mediaStartTimeMs, long mediaEndTimeMs, long elapsedRealtimeMs,
+                               long loadDurationMs, long bytesLoaded) {}
+
+    @Override
+    public synchronized void onLoadError(DataSpec dataSpec, int dataType, int trackType,
+                                         Format trackFormat, int trackSelectionReason,
+                                         Object trackSelectionData, long mediaStartTimeMs,
+                                         long mediaEndTimeMs, long elapsedRealtimeMs,
+                                         long loadDurationMs, long bytesLoaded,
+                                         IOException error, boolean wasCanceled) {
+        mStats.onLoadError();
+    }
+
+    @Override
+    public void onUpstreamDiscarded(int trackType, long mediaStartTimeMs, long mediaEndTimeMs) {}
+
+    @Override
+    public synchronized void onDownstreamFormatChanged(int trackType, Format trackFormat,
+                                                       int trackSelectionReason,
+                                                       Object trackSelectionData,
+                                                       long mediaTimeMs) {
+        // HLS variants with muxed audio and video are reported as TRACK_TYPE_DEFAULT.
+        if ((trackType == C.TRACK_TYPE_VIDEO || trackType == C.TRACK_TYPE_DEFAULT)
+                && trackFormat != null && trackFormat.bitrate != Format.NO_VALUE) {
+            mStats.onBitrate(SystemClock.elapsedRealtime(), trackFormat.bitrate);
+        }
+    }
+
+    // VideoRendererEventListener
+
+    @Override
+    public void onVideoEnabled(DecoderCounters counters) {}
+
+    @Override
+    public void onVideoDecoderInitialized(String decoderName, long initializedTimestampMs,
+                                          long initializationDurationMs) {}
+
+    @Override
+    public void onVideoInputFormatChanged(Format format) {}
+
+    @Override
+    public synchronized void onDroppedFrames(int count, long elapsedMs) {
+        mStats.onDroppedFrames(count);
+    }
+
+    @Override
+    public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees,
+                                   float pixelWidthHeightRatio) {}
+
+    @Override
+    public void onRenderedFirstFrame(Surface surface) {}
+
+    @Override
+    public void onVideoDisabled(DecoderCounters counters) {}
+}
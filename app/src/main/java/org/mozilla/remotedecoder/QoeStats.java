@@ -0,0 +1,310 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.remotedecoder;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Quality of experience of one playback session: join time, stalls, time spent
+ * at each bitrate, throughput and errors, kept in primitive running totals and
+ * fixed histograms. Times are passed in by the caller, in milliseconds of any
+ * monotonic clock. Not thread safe.
+ */
+/* package */ final class QoeStats {
+    /** Upper bounds of the rebuffer duration buckets; the last bucket has none. */
+    static final int[] REBUFFER_BUCKETS_MS = { 250, 500, 1000, 2000, 5000 };
+    /** Upper bounds of the per-load throughput buckets; the last bucket has none. */
+    static final int[] THROUGHPUT_BUCKETS_KBPS = { 500, 1000, 2000, 4000, 8000, 16000 };
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_JOINING = 1; // Started, nothing played yet.
+    private static final int STATE_PLAYING = 2;
+    private static final int STATE_PAUSED = 3;
+    private static final int STATE_REBUFFERING = 4; // Stalled while meant to play.
+    private static final int STATE_SEEKING = 5; // Buffering after a seek, not a stall.
+    private static final int STATE_ENDED = 6;
+
+    private int mState = STATE_IDLE;
+    private long mStateSinceMs;
+    private long mStartMs;
+    private boolean mSeekPending;
+
+    private long mJoinTimeMs = -1;
+    private long mPlayMs;
+    private long mPausedMs;
+    private long mSeekMs;
+    private int mRebufferCount;
+    private long mRebufferMs;
+    private long mRebufferStartMs;
+    private final int[] mRebufferHistogram = new int[REBUFFER_BUCKETS_MS.length + 1];
+
+    private int mBitrate = -1; // Of the media being played, in bits per second.
+    private int mMinBitrate = Integer.MAX_VALUE;
+    private int mMaxBitrate;
+    private int mVariantSwitches;
+    private double mBitrateMsSum; // Bitrate times play time.
+    private long mBitratePlayMs; // Play time with a known bitrate.
+
+    private long mBytesLoaded;
+    private long mLoadMs;
+    private int mLoads;
+    private final int[] mThroughputHistogram = new int[THROUGHPUT_BUCKETS_KBPS.length + 1];
+    private int mLoadErrors;
+    private long mDroppedFrames;
+    private boolean mFatalError;
+
+    void start(long nowMs) {
+        mStartMs = nowMs;
+        enter(STATE_JOINING, nowMs);
+    }
+
+    void onBuffering(long nowMs, boolean playWhenReady) {
+        if (mState != STATE_PLAYING && mState != STATE_PAUSED) {
+            return; // Joining, ended, or already buffering.
+        }
+        if (mSeekPending) {
+            mSeekPending = false;
+            enter(STATE_SEEKING, nowMs);
+        } else if (playWhenReady && mState == STATE_PLAYING) {
+            mRebufferCount++;
+            enter(STATE_REBUFFERING, nowMs);
+        } else {
+            enter(STATE_PAUSED, nowMs);
+        }
+    }
+
+    void onReady(long nowMs, boolean playWhenReady) {
+        if (mState == STATE_IDLE || mState == STATE_ENDED) {
+            return;
+        }
+        if (playWhenReady && mJoinTimeMs < 0) {
+            mJoinTimeMs = nowMs - mStartMs;
+        }
+        if (mState == STATE_JOINING && !playWhenReady) {
+            return; // Still waiting for the user: not part of the join time, but not playing either.
+        }
+        mSeekPending = false;
+        enter(playWhenReady ? STATE_PLAYING : STATE_PAUSED, nowMs);
+    }
+
+    void onEnded(long nowMs) {
+        enter(STATE_ENDED, nowMs);
+    }
+
+    /** The next buffering is caused by a seek. */
+    void onSeek() {
+        mSeekPending = true;
+    }
+
+    /** The media being played changed to {@code bitrate} bits per second. */
+    void onBitrate(long nowMs, int bitrate) {
+        accrue(nowMs);
+        if (mBitrate >= 0 && bitrate != mBitrate) {
+            mVariantSwitches++;
+        }
+        mBitrate = bitrate;
+        mMinBitrate = Math.min(mMinBitrate, bitrate);
+        mMaxBitrate = Math.max(mMaxBitrate, bitrate);
+    }
+
+    void onLoadCompleted(long bytes, long durationMs) {
+        mBytesLoaded += bytes;
+        mLoadMs += durationMs;
+        mLoads++;
+        long kbps = durationMs > 0 ? bytes * 8 / durationMs : Long.MAX_VALUE;
+        mThroughputHistogram[bucket(THROUGHPUT_BUCKETS_KBPS, kbps)]++;
+    }
+
+    void onLoadError() {
+        mLoadErrors++;
+    }
+
+    void onDroppedFrames(int count) {
+        mDroppedFrames += count;
+    }
+
+    void onFatalError(long nowMs) {
+        mFatalError = true;
+        enter(STATE_ENDED, nowMs);
+    }
+
+    boolean hasEnded() {
+        return mState == STATE_ENDED;
+    }
+
+    long getJoinTimeMs() {
+        return mJoinTimeMs;
+    }
+
+    long getPlayMs() {
+        return mPlayMs;
+    }
+
+    int getRebufferCount() {
+        return mRebufferCount;
+    }
+
+    long getRebufferMs() {
+        return mRebufferMs;
+    }
+
+    int getVariantSwitches() {
+        return mVariantSwitches;
+    }
+
+    /** @return stall time over stall and play time, 0 before anything played. */
+    double getRebufferRatio() {
+        long total = mPlayMs + mRebufferMs;
+        return total > 0 ? (double) mRebufferMs / total : 0;
+    }
+
+    /** @return mean bitrate over play time, or -1 if unknown. */
+    long getAverageBitrate() {
+        return mBitratePlayMs > 0 ? Math.round(mBitrateMsSum / mBitratePlayMs) : -1;
+    }
+
+    /** @return mean download throughput in bits per second, or -1 if unknown. */
+    long getAverageThroughput() {
+        return mLoadMs > 0 ? mBytesLoaded * 8000 / mLoadMs : -1;
+    }
+
+    /** @return how much of the available throughput was played, or -1 if unknown. */
+    double getBitrateEfficiency() {
+        long bitrate = getAverageBitrate();
+        long throughput = getAverageThroughput();
+        return bitrate > 0 && throughput > 0 ? (double) bitrate / throughput : -1;
+    }
+
+    int[] getRebufferHistogram() {
+        return mRebufferHistogram.clone();
+    }
+
+    /** Compact JSON of the session up to {@code nowMs}. */
+    String toJson(long nowMs) {
+        accrue(nowMs);
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"v\":").append(FORMAT_VERSION)
+                .append(",\"durationMs\":").append(nowMs - mStartMs)
+                .append(",\"joinMs\":").append(mJoinTimeMs)
+                .append(",\"playMs\":").append(mPlayMs)
+                .append(",\"pausedMs\":").append(mPausedMs)
+                .append(",\"seekMs\":").append(mSeekMs)
+                .append(",\"rebuffers\":").append(mRebufferCount)
+                .append(",\"rebufferMs\":").append(mRebufferMs)
+                .append(",\"rebufferRatio\":").append(round(getRebufferRatio()))
+                .append(",\"rebufferHist\":");
+        appendArray(json, mRebufferHistogram);
+        json.append(",\"bitrate\":{\"avg\":").append(getAverageBitrate())
+                .append(",\"min\":").append(mMaxBitrate > 0 ? mMinBitrate : -1)
+                .append(",\"max\":").append(mMaxBitrate > 0 ? mMaxBitrate : -1)
+                .append(",\"switches\":").append(mVariantSwitches)
+                .append("},\"loads\":{\"count\":").append(mLoads)
+                .append(",\"bytes\":").append(mBytesLoaded)
+                .append(",\"throughput\":").append(getAverageThroughput())
+                .append(",\"hist\":");
+        appendArray(json, mThroughputHistogram);
+        json.append(",\"errors\":").append(mLoadErrors)
+                .append("},\"efficiency\":").append(round(getBitrateEfficiency()))
+                .append(",\"droppedFrames\":").append(mDroppedFrames)
+                .append(",\"fatal\":").append(mFatalError)
+                .append('}');
+        return json.toString();
+    }
+
+    /** Same fields as {@link #toJson(long)}, in a versioned binary record. */
+    void writeTo(DataOutput out, long nowMs) throws IOException {
+        accrue(nowMs);
+        out.writeByte(FORMAT_VERSION);
+        out.writeLong(nowMs - mStartMs);
+        out.writeLong(mJoinTimeMs);
+        out.writeLong(mPlayMs);
+        out.writeLong(mPausedMs);
+        out.writeLong(mSeekMs);
+        out.writeInt(mRebufferCount);
+        out.writeLong(mRebufferMs);
+        writeArray(out, mRebufferHistogram);
+        out.writeLong(getAverageBitrate());
+        out.writeInt(mMaxBitrate > 0 ? mMinBitrate : -1);
+        out.writeInt(mMaxBitrate > 0 ? mMaxBitrate : -1);
+        out.writeInt(mVariantSwitches);
+        out.writeInt(mLoads);
+        out.writeLong(mBytesLoaded);
+        out.writeLong(getAverageThroughput());
+        writeArray(out, mThroughputHistogram);
+        out.writeInt(mLoadErrors);
+        out.writeLong(mDroppedFrames);
+        out.writeBoolean(mFatalError);
+    }
+
+    private void enter(int state, long nowMs) {
+        accrue(nowMs);
+        if (mState == STATE_REBUFFERING && state != STATE_REBUFFERING) {
+            mRebufferHistogram[bucket(REBUFFER_BUCKETS_MS, nowMs - mRebufferStartMs)]++;
+        }
+        if (state == STATE_REBUFFERING) {
+            mRebufferStartMs = nowMs;
+        }
+        mState = state;
+    }
+
+    /** Add the time since the last call to the current state. */
+    private void accrue(long nowMs) {
+        long elapsed = Math.max(0, nowMs - mStateSinceMs);
+        mStateSinceMs = nowMs;
+        switch (mState) {
+            case STATE_PLAYING:
+                mPlayMs += elapsed;
+                if (mBitrate >= 0) {
+                    mBitrateMsSum += (double) mBitrate * elapsed;
+                    mBitratePlayMs += elapsed;
+                }
+                break;
+            case STATE_PAUSED:
+                mPausedMs += elapsed;
+                break;
+            case STATE_SEEKING:
+                mSeekMs += elapsed;
+                break;
+            case STATE_REBUFFERING:
+                mRebufferMs += elapsed;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int bucket(int[] bounds, long value) {
+        int i = 0;
+        while (i < bounds.length && value >= bounds[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private static void appendArray(StringBuilder json, int[] values) {
+        json.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(values[i]);
+        }
+        json.append(']');
+    }
+
+    private static void writeArray(DataOutput out, int[] values) throws IOException {
+        out.writeByte(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+}
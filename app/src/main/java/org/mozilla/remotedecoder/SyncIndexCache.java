@@ -0,0 +1,159 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.remotedecoder;
+
+import android.util.Log;
+
+import org.mozilla.gecko.media.SyncIndex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * {@link SyncIndex}es stored on disk, keyed by media URL and a validator of its
+ * content (ETag or Last-Modified), so a changed resource never reuses a stale index.
+ * Blocking; do not use on the UI thread.
+ */
+/* package */ final class SyncIndexCache {
+    private static final String LOG_TAG = SyncIndexCache.class.getSimpleName();
+    private static final int MAX_FILES = 32;
+    private static final int TIMEOUT_MS = 5000;
+
+    private final File mDir;
+
+    SyncIndexCache(File cacheDir) {
+        mDir = new File(cacheDir, "sync-index");
+    }
+
+    /**
+     * Ask the server for the validator of {@code url}.
+     * @return the ETag, or Last-Modified if the server sends no ETag, or null.
+     */
+    static String fetchValidator(String url) {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setRequestMethod("HEAD");
+            conn.setConnectTimeout(TIMEOUT_MS);
+            conn.setReadTimeout(TIMEOUT_MS);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            String etag = conn.getHeaderField("ETag");
+            return etag != null ? etag : conn.getHeaderField("Last-Modified");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "no validator for " + url, e);
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /** @return the cached index, or null if there is none or it cannot be read. */
+    SyncIndex load(String url, String validator) {
+        File file = fileFor(url, validator);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            SyncIndex index = SyncIndex.readFrom(in);
+            file.setLastModified(System.currentTimeMillis()); // For LRU eviction.
+            return index;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "drop unreadable " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    void store(String url, String validator, SyncIndex index) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(LOG_TAG, "cannot create " + mDir);
+            return;
+        }
+        File file = fileFor(url, validator);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            index.writeTo(out);
+            out.close();
+            out = null;
+            // Readers see either the old or the new file, never a partial one.
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "cannot store " + file, e);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+        evict();
+    }
+
+    private void evict() {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_FILES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = b.lastModified() - a.lastModified();
+                return diff > 0 ? 1 : (diff < 0 ? -1 : 0); // Newest first.
+            }
+        });
+        for (int i = MAX_FILES; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    private File fileFor(String url, String validator) {
+        return new File(mDir, sha1Hex(url + '\n' + validator));
+    }
+
+    private static String sha1Hex(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e); // Both are always available.
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+}
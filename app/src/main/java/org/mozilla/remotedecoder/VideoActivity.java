@@ -4,6 +4,7 @@
 
 package org.mozilla.remotedecoder;
 
+import android.app.ActivityManager;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.media.MediaExtractor;
@@ -13,8 +14,10 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
@@ -26,14 +29,25 @@ import com.google.android.exoplayer2.ui.SimpleExoPlayerView;
 
 import org.mozilla.gecko.GeckoAppShell;
 import org.mozilla.gecko.media.CodecProxy;
+import org.mozilla.gecko.media.ExtractorReadAhead;
+import org.mozilla.gecko.media.FramePacing;
+import org.mozilla.gecko.media.MediaClock;
+import org.mozilla.gecko.media.Mp4SampleSource;
 import org.mozilla.gecko.media.Sample;
+import org.mozilla.gecko.media.SampleRing;
+import org.mozilla.gecko.media.SampleSource;
+import org.mozilla.gecko.media.StartupTimeline;
+import org.mozilla.gecko.media.SyncIndex;
+import org.mozilla.gecko.media.TrickPlay;
 import org.mozilla.remotedecoder.GeckoHlsPlayer;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Callback {
     private static final String LOG_TAG = VideoActivity.class.getSimpleName();
+    /** Boolean extra: let the service demux and feed the codec, see CodecProxy#createForSource. */
+    public static final String DEMUX_IN_SERVICE_EXTRA = "demux_in_service";
 
     private View mFrameView;
     private Drawable mFrameDrawable;
@@ -44,11 +58,29 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
 
     private MediaExtractor mExtractor;
     private CodecProxy mDecoder;
+    private boolean mDemuxInService;
+
+    // Read-ahead limits of the demuxer thread.
+    private static final int READ_AHEAD_SAMPLES = 32;
+    private static final long READ_AHEAD_BYTES = 8 * 1024 * 1024;
+    private static final long READ_AHEAD_US = 2000000;
+    private SampleSource mSource;
+
+    private SyncIndexCache mSyncIndexCache;
+    private SyncIndex mSyncIndex;
+    private String mSyncIndexValidator; // Of mSyncIndex, null until known. Guarded by this.
 
     private MediaFormat mFormat;
     private int mInputFrameCount;
     private int mOutputFrameCount;
     private long mOutputFrameUs;
+    private boolean mInputEnded;
+    // Paces rendering in the codec. Started by the first frame out after (re)starting. Written by mWorker.
+    private MediaClock mClock;
+    private boolean mClockRunning;
+
+    private volatile int mRate = 1; // Of playback, negative in reverse. Written by mWorker.
+    private final TrickPlay mTrickPlay = new TrickPlay(); // Of mSource. Access only by mWorker.
 
     private static final int MSG_INPUT = 1;
     private static final int MSG_OUTPUT = 2;
@@ -56,6 +88,8 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
 
     private CodecWorker mWorker;
 
+    private StartupTimeline mTimeline; // Of the current session. Access only by mWorker.
+
     private GeckoHlsPlayer geckoHlsPlayer;
 
     class CodecWorker extends Handler {
@@ -64,25 +98,49 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_OUTPUT:
-                    long pts = (Long)msg.obj;
+                    Sample output = (Sample)msg.obj;
+                    if (mDecoder == null || mDecoder.isStale(output)) {
+                        break; // Flushed while queued, e.g. by changeRate() or a trick frame.
+                    }
+                    long pts = output.presentationTimeUs;
                     mOutputFrameCount++;
                     mOutputFrameUs = pts;
+                    if (mRate == 1 && !mClockRunning && mClock != null) {
+                        mClock.set(pts, System.nanoTime(), 1);
+                        mClockRunning = true;
+                    }
+                    if (mTrickPlay.onOutput()) {
+                        // Start each key frame from a clean decoder, so none waits for reordering.
+                        mDecoder.flush();
+                        sendEmptyMessage(MSG_INPUT);
+                    }
                     break;
                 case MSG_INPUT:
-                    doFrame();
+                    if (mTrickPlay.isActive()) {
+                        doTrickFrame();
+                    } else {
+                        doFrame();
+                    }
                     break;
                 case MSG_RECOVER:
                     removeCallbacksAndMessages(null); // just in case...
                     Log.d(LOG_TAG, "Recover: seek to " + (mOutputFrameUs / 1000));
-                    mExtractor.seekTo(mOutputFrameUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-                    sendEmptyMessage(MSG_INPUT);
-                    mFrameView.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            Log.d(LOG_TAG, "restore bkg");
-                            mFrameView.setBackground(mFrameDrawable);
+                    stopClock();
+                    if (mSource == null) {
+                        // The service demuxes for the new codec, from the start at normal speed.
+                        mDecoder.seek(mOutputFrameUs);
+                        if (mRate != 1) {
+                            mDecoder.setPlaybackRate(mRate);
                         }
-                    });
+                        break;
+                    }
+                    mSource.seekTo(mOutputFrameUs);
+                    // Resume at the last frame shown, not at the sync sample before it.
+                    mDecoder.seek(mOutputFrameUs);
+                    mInputFrameCount = mOutputFrameCount;
+                    mInputEnded = false;
+                    mTrickPlay.reset();
+                    sendEmptyMessage(MSG_INPUT);
                     break;
                 default:
                     super.handleMessage(msg);
@@ -104,10 +162,32 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
 
         @Override
         public void onOutput(Sample sample) {
-            Message msg = mWorker.obtainMessage(MSG_OUTPUT, new Long(sample.presentationTimeUs));
+            Message msg = mWorker.obtainMessage(MSG_OUTPUT, sample);
             mWorker.sendMessage(msg);
         }
 
+        @Override
+        public void onSeekCompleted(long presentationTimeUs) {
+            mFrameView.post(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(LOG_TAG, "restore bkg");
+                    mFrameView.setBackground(mFrameDrawable);
+                }
+            });
+        }
+
+        @Override
+        public void onFramePacing(FramePacing pacing) {
+            Log.d(LOG_TAG, "pacing " + pacing);
+        }
+
+        @Override
+        public void onPlaced(String codecName, boolean fallback, long waitedMs) {
+            Log.d(LOG_TAG, "decoding on " + codecName + (fallback ? " (fallback)" : "")
+                    + ", waited " + waitedMs + "ms");
+        }
+
         @Override
         public void onError(CodecProxy.Error error) {
             switch (error) {
@@ -118,7 +198,9 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
                     mWorker.sendEmptyMessage(MSG_RECOVER);
                     break;
                 case RELEASED:
+                case REMOTE_CODEC_NOT_READY: // No decoder for the format.
                 case REMOTE_INPUT:
+                case REMOTE_SOURCE: // The service cannot demux VIDEO_URL.
                 case REMOTE_UNKNOWN:
                     mWorker.removeCallbacksAndMessages(null);
                     break;
@@ -126,10 +208,19 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
         }
     };
 
+    private final StartupTimeline.Listener mTimelineListener = new StartupTimeline.Listener() {
+        @Override
+        public void onFirstFrame(StartupTimeline timeline) {
+            Log.i(LOG_TAG, "startup " + timeline);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         // Init mock app shell.
         GeckoAppShell.setAppContext(getApplicationContext());
+        // Spare low-RAM devices a service process per codec.
+        CodecProxy.setInProcess(((ActivityManager) getSystemService(ACTIVITY_SERVICE)).isLowRamDevice());
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         SurfaceView view = (SurfaceView) findViewById(R.id.videoView);
@@ -137,10 +228,18 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
         mFrameView = findViewById(R.id.frameView);
         mFrameDrawable = mFrameView.getBackground();
         mFrameDrawableDeath = new ColorDrawable(getResources().getColor(android.R.color.holo_orange_light));
+        mSyncIndexCache = new SyncIndexCache(getCacheDir());
+        mDemuxInService = getIntent().getBooleanExtra(DEMUX_IN_SERVICE_EXTRA, false);
 
         geckoHlsPlayer = new GeckoHlsPlayer(this, getIntent());
     }
 
+    @Override
+    protected void onDestroy() {
+        geckoHlsPlayer.release();
+        super.onDestroy();
+    }
+
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         mHolder = holder;
@@ -164,6 +263,7 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
+        Log.i(LOG_TAG, "qoe " + geckoHlsPlayer.getQoeSummary());
         mWorker.removeCallbacksAndMessages(null);
         mWorker.post(new Runnable() {
             public void run() {
@@ -173,6 +273,19 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
     }
 
     private void startDecoding() {
+        // Each session reports its own startup.
+        mTimeline = new StartupTimeline();
+        mTimeline.setListener(mTimelineListener);
+        mTimeline.mark(StartupTimeline.SESSION_START);
+        if (mDemuxInService) {
+            startSourceCodec();
+            return;
+        }
+        if (isLocal(VIDEO_URL) && openLocalSource(VIDEO_URL)) {
+            startCodec();
+            return;
+        }
+
         if (mExtractor == null) {
             mExtractor = new MediaExtractor();
         }
@@ -195,13 +308,126 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
 
         if (vTrack >= 0) {
             mExtractor.selectTrack(vTrack);
-            mInputFrameCount = 0;
-            mOutputFrameCount = 0;
+            loadSyncIndex(VIDEO_URL);
+            startReadAhead();
+            startCodec();
+        }
+    }
+
+    private void startCodec() {
+        mInputFrameCount = 0;
+        mOutputFrameCount = 0;
+        if (mDecoder == null) {
+            mDecoder = CodecProxy.create(mFormat, mHolder.getSurface(), mCallbacks, mTimeline);
             if (mDecoder == null) {
-                mDecoder = CodecProxy.create(mFormat, mHolder.getSurface(), mCallbacks);
+                Log.e(LOG_TAG, "cannot create codec for " + mFormat);
+                return;
             }
-            mWorker.sendEmptyMessage(MSG_INPUT);
+            attachClock();
+        }
+        mWorker.sendEmptyMessage(MSG_INPUT);
+    }
+
+    /** Let the service demux {@link #VIDEO_URL} and feed the codec: nothing to send but commands. */
+    private void startSourceCodec() {
+        mDecoder = CodecProxy.createForSource(VIDEO_URL, -1, mHolder.getSurface(), mCallbacks);
+        if (mDecoder == null) {
+            Log.e(LOG_TAG, "cannot create codec for " + VIDEO_URL);
+            return;
+        }
+        attachClock();
+    }
+
+    private void attachClock() {
+        try {
+            mClock = MediaClock.create(getCacheDir());
+            mDecoder.setClock(mClock);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "no clock, render frames once decoded", e);
+        }
+    }
+
+    private static boolean isLocal(String url) {
+        return url.startsWith("/") || url.startsWith("file://");
+    }
+
+    /** Memory map local MP4 files instead of going through {@link MediaExtractor}. */
+    private boolean openLocalSource(String url) {
+        String path = url.startsWith("file://") ? url.substring("file://".length()) : url;
+        Mp4SampleSource source;
+        try {
+            source = Mp4SampleSource.open(new File(path));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "cannot map " + path + ", use MediaExtractor", e);
+            return false;
+        }
+        mFormat = source.getFormat();
+        mSource = source;
+        return true;
+    }
+
+    private void startReadAhead() {
+        SampleRing ring = new SampleRing(READ_AHEAD_SAMPLES, getMaxInputSize(mFormat),
+                READ_AHEAD_BYTES, READ_AHEAD_US);
+        ring.setListener(new SampleRing.Listener() {
+            @Override
+            public void onSampleAvailable() {
+                mWorker.sendEmptyMessage(MSG_INPUT);
+            }
+        });
+        // The read-ahead thread owns the extractor from now on.
+        ExtractorReadAhead readAhead = new ExtractorReadAhead(mExtractor, ring, mSyncIndex);
+        readAhead.setListener(new ExtractorReadAhead.Listener() {
+            @Override
+            public void onReadError(long timeUs) {
+                Log.e(LOG_TAG, "cannot read sample at " + (timeUs / 1000) + ", stop decoding");
+                mWorker.removeCallbacksAndMessages(null);
+            }
+        });
+        mExtractor = null;
+        readAhead.start();
+        mSource = readAhead;
+    }
+
+    /**
+     * Start with an empty index, and add the key frames seen in earlier sessions once
+     * the server confirms the resource has not changed. That takes a request, so it
+     * is done on a thread of its own; seeks use the index as far as it is known.
+     */
+    private void loadSyncIndex(final String url) {
+        final SyncIndex index = new SyncIndex();
+        synchronized (this) {
+            mSyncIndex = index;
+            mSyncIndexValidator = null;
+        }
+        new Thread("sync-index-load") {
+            @Override
+            public void run() {
+                String validator = SyncIndexCache.fetchValidator(url);
+                if (validator == null) {
+                    return; // Not cached.
+                }
+                SyncIndex cached = mSyncIndexCache.load(url, validator);
+                if (cached != null) {
+                    index.addAll(cached);
+                }
+                synchronized (VideoActivity.this) {
+                    if (mSyncIndex == index) { // Else stored already, or for another session.
+                        mSyncIndexValidator = validator;
+                    }
+                }
+                Log.d(LOG_TAG, "sync index: " + index);
+            }
+        }.start();
+    }
+
+    private static int getMaxInputSize(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            return format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
         }
+        // Assume compression ratio of at least 2 for YUV 4:2:0, like ExoPlayer does.
+        int w = format.getInteger(MediaFormat.KEY_WIDTH), h = format.getInteger(MediaFormat.KEY_HEIGHT);
+        return w * h * 3 / 4;
     }
 
     private void stopDecoding() {
@@ -209,6 +435,29 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
             mDecoder.release();
             mDecoder = null;
         }
+        if (mClock != null) {
+            try {
+                mClock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mClock = null;
+        }
+        if (mSource != null) {
+            mSource.close();
+            mSource = null;
+        }
+        SyncIndex index;
+        String validator;
+        synchronized (this) {
+            index = mSyncIndex;
+            validator = mSyncIndexValidator;
+            mSyncIndex = null;
+            mSyncIndexValidator = null;
+        }
+        if (index != null && validator != null && index.isModified()) {
+            mSyncIndexCache.store(VIDEO_URL, validator, index);
+        }
         if (mExtractor != null) {
             mExtractor.release();
             mExtractor = null;
@@ -226,6 +475,90 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
         mWorker.removeCallbacksAndMessages(null);
     }
 
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_MEDIA_FAST_FORWARD:
+                setPlaybackRate(mRate >= 8 ? 16 : 8);
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_REWIND:
+                setPlaybackRate(mRate <= -8 ? -16 : -8);
+                return true;
+            case KeyEvent.KEYCODE_MEDIA_PLAY:
+                setPlaybackRate(1);
+                return true;
+            default:
+                return super.onKeyDown(keyCode, event);
+        }
+    }
+
+    /**
+     * Play at {@code rate} times normal speed, backwards if negative. Other rates
+     * than 1 feed key frames only, so scanning costs one I-frame decode per frame shown.
+     */
+    /* package */ void setPlaybackRate(final int rate) {
+        if (mWorker == null || rate == 0) {
+            return;
+        }
+        mWorker.post(new Runnable() {
+            public void run() {
+                changeRate(rate);
+            }
+        });
+    }
+
+    private void changeRate(int rate) {
+        if (rate == mRate || mDecoder == null || (mSource == null && !mDemuxInService)) {
+            return;
+        }
+        Log.d(LOG_TAG, "rate " + mRate + " -> " + rate + " at " + (mOutputFrameUs / 1000));
+        mRate = rate;
+        stopClock(); // Key frames are shown as they come.
+        if (mDemuxInService) {
+            mDecoder.setPlaybackRate(rate); // The service paces key frames the same way.
+            return;
+        }
+        mWorker.removeMessages(MSG_INPUT);
+        mTrickPlay.setRate(rate);
+        mSource.setKeyframeStep(mTrickPlay.getKeyframeStepUs());
+        mSource.seekTo(mOutputFrameUs);
+        if (mTrickPlay.isActive()) {
+            mDecoder.flush();
+        } else {
+            mDecoder.seek(mOutputFrameUs);
+        }
+        mInputFrameCount = mOutputFrameCount; // Dropped by the flush.
+        mInputEnded = false;
+        mWorker.sendEmptyMessage(MSG_INPUT);
+    }
+
+    /** Render frames once decoded until the next one out restarts the clock. */
+    private void stopClock() {
+        if (mClock != null) {
+            mClock.stop();
+        }
+        mClockRunning = false;
+    }
+
+    /** Send the next key frame once the last one is out and was shown long enough. */
+    private void doTrickFrame() {
+        long nowMs = SystemClock.uptimeMillis();
+        long waitMs = mTrickPlay.getFeedDelayMs(nowMs);
+        if (mInputEnded || waitMs == TrickPlay.WAIT_FOR_OUTPUT) {
+            return; // Its output asks again.
+        }
+        if (waitMs > 0) {
+            mWorker.removeMessages(MSG_INPUT);
+            mWorker.sendEmptyMessageDelayed(MSG_INPUT, waitMs);
+            return;
+        }
+        int sent = mInputFrameCount;
+        doFrame();
+        if (mInputFrameCount > sent) {
+            mTrickPlay.onFed(nowMs);
+        }
+    }
+
     private boolean sendFrame(Sample sample) {
         CodecProxy.Error err = mDecoder.input(sample);
         switch (err) {
@@ -242,32 +575,18 @@ public class VideoActivity extends AppCompatActivity implements SurfaceHolder.Ca
     }
 
     private boolean doFrame() {
-        if (mExtractor == null) {
+        if (mSource == null) {
             return false;
         }
 
-        String mime = mFormat.getString(MediaFormat.KEY_MIME);
-        if (mime == null) {
-            return false; // No video.
+        Sample sample = mSource.poll();
+        if (sample == null) {
+            return false; // Starved. The read-ahead asks again when data arrives.
         }
-        boolean hasNext = false;
-
-        int w = mFormat.getInteger(MediaFormat.KEY_WIDTH), h = mFormat.getInteger(MediaFormat.KEY_HEIGHT);
-
-        ByteBuffer buf = ByteBuffer.allocate(w * h * 3 / 2);
-        int len = mExtractor.readSampleData(buf, 0);
-
-        Sample sample;
-        if (len > 0) {
-            byte[] bytes = new byte[len];
-            buf.get(bytes, 0, len);
-            sample = new Sample(bytes, mExtractor.getSampleTime(), 0);
-            hasNext = mExtractor.advance();
-        } else {
-            sample = Sample.EOS;
-        }
-
+        boolean hasNext = !sample.isEOS();
+        mInputEnded = !hasNext;
         boolean ok = sendFrame(sample);
+        mSource.release(sample);
         boolean wantMore = (mInputFrameCount - mOutputFrameCount) < 5;
 
         return ok && hasNext && wantMore;
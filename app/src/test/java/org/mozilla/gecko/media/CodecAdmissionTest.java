@@ -0,0 +1,123 @@
+package org.mozilla.gecko.media;
+
+import android.media.MediaFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CodecAdmissionTest {
+    private static final String MIME = "video/avc";
+    private static final List<String> DECODERS = Arrays.asList("hw", "sw");
+
+    /** Two instances of "hw", four of "sw". */
+    private static final CodecBackend.Factory FACTORY = new CodecBackend.Factory() {
+        @Override
+        public List<String> findDecoders(MediaFormat format) {
+            return DECODERS;
+        }
+
+        @Override
+        public int getMaxInstances(String name, String mime) {
+            return name.equals("hw") ? 2 : 4;
+        }
+
+        @Override
+        public boolean isSoftware(String name) {
+            return name.equals("sw");
+        }
+
+        @Override
+        public CodecBackend create(String name) {
+            return null;
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mLockDir = new TemporaryFolder();
+
+    @Test
+    public void fallsBackToSoftwareWhenHardwareIsFull() {
+        CodecAdmission admission = new CodecAdmission();
+        assertEquals("hw", admission.admit(FACTORY, DECODERS, MIME, CodecPriority.REALTIME, false).name);
+        assertEquals("hw", admission.admit(FACTORY, DECODERS, MIME, CodecPriority.REALTIME, false).name);
+        CodecAdmission.Slot slot = admission.admit(FACTORY, DECODERS, MIME, CodecPriority.REALTIME, false);
+        assertEquals("sw", slot.name);
+        assertTrue(slot.software);
+        assertEquals(2, admission.getLive("hw"));
+    }
+
+    @Test
+    public void keepsLastHardwareInstanceForRealtime() {
+        CodecAdmission admission = new CodecAdmission();
+        CodecAdmission.Slot prefetch = admission.admit(FACTORY, DECODERS, MIME, CodecPriority.PREFETCH, true);
+        assertEquals("hw", prefetch.name);
+        assertNull(admission.admit(FACTORY, DECODERS, MIME, CodecPriority.BACKGROUND, true));
+        assertEquals("sw", admission.admit(FACTORY, DECODERS, MIME, CodecPriority.BACKGROUND, false).name);
+        assertEquals("hw", admission.admit(FACTORY, DECODERS, MIME, CodecPriority.REALTIME, false).name);
+
+        admission.release(prefetch);
+        assertEquals(1, admission.getLive("hw"));
+        assertNull(admission.admit(FACTORY, DECODERS, MIME, CodecPriority.PREFETCH, true));
+    }
+
+    @Test
+    public void wakesWaitersByPriorityOnRelease() {
+        CodecAdmission admission = new CodecAdmission();
+        final List<String> woken = new ArrayList<>();
+        Runnable background = new Runnable() {
+            @Override
+            public void run() {
+                woken.add("background");
+            }
+        };
+        Runnable prefetch = new Runnable() {
+            @Override
+            public void run() {
+                woken.add("prefetch");
+            }
+        };
+        Runnable cancelled = new Runnable() {
+            @Override
+            public void run() {
+                woken.add("cancelled");
+            }
+        };
+        admission.await(background, CodecPriority.BACKGROUND);
+        admission.await(cancelled, CodecPriority.REALTIME);
+        admission.await(prefetch, CodecPriority.PREFETCH);
+        admission.cancel(cancelled);
+        assertEquals(2, admission.getWaiting());
+
+        CodecAdmission.Slot slot = admission.admit(FACTORY, DECODERS, MIME, CodecPriority.REALTIME, false);
+        admission.release(slot);
+        assertEquals(Arrays.asList("prefetch", "background"), woken);
+        assertEquals(0, admission.getWaiting());
+        assertEquals(0, admission.getLive("hw"));
+    }
+
+    @Test
+    public void countsInstancesOfOtherProcesses() {
+        // Two admissions on one lock directory stand for two service processes.
+        CodecAdmission shard0 = new CodecAdmission();
+        CodecAdmission shard1 = new CodecAdmission();
+        shard0.setLockDir(mLockDir.getRoot());
+        shard1.setLockDir(mLockDir.getRoot());
+
+        CodecAdmission.Slot first = shard0.admit(FACTORY, DECODERS, MIME, CodecPriority.REALTIME, false);
+        assertEquals("hw", first.name);
+        // The last hardware instance is left for realtime codecs of any process.
+        assertNull(shard1.admit(FACTORY, DECODERS, MIME, CodecPriority.PREFETCH, true));
+        assertEquals("hw", shard1.admit(FACTORY, DECODERS, MIME, CodecPriority.REALTIME, false).name);
+        assertEquals("sw", shard0.admit(FACTORY, DECODERS, MIME, CodecPriority.REALTIME, false).name);
+
+        shard0.release(first);
+        assertEquals("hw", shard0.admit(FACTORY, DECODERS, MIME, CodecPriority.REALTIME, false).name);
+    }
+}
@@ -0,0 +1,154 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeadlineSchedulerTest {
+    /** Codec with queued inputs of known deadlines and a number of free input buffers. */
+    private static final class FakeCodec implements DeadlineScheduler.Task {
+        final String name;
+        final List<String> log;
+        final ArrayDeque<Long> deadlines = new ArrayDeque<>();
+        int buffers;
+
+        FakeCodec(String name, List<String> log) {
+            this.name = name;
+            this.log = log;
+        }
+
+        @Override
+        public long nextDeadlineNs() {
+            return buffers > 0 && !deadlines.isEmpty() ? deadlines.peek() : DeadlineScheduler.NO_DEADLINE;
+        }
+
+        @Override
+        public void runNext() {
+            buffers--;
+            log.add(name + deadlines.poll());
+        }
+    }
+
+    @Test
+    public void feedsEarliestDeadlineFirstAcrossCodecs() {
+        List<String> log = new ArrayList<>();
+        FakeCodec a = new FakeCodec("a", log);
+        FakeCodec b = new FakeCodec("b", log);
+        DeadlineScheduler scheduler = new DeadlineScheduler();
+        scheduler.add(a);
+        scheduler.add(b);
+        scheduler.add(a);
+
+        a.deadlines.add(10L);
+        a.deadlines.add(30L);
+        a.deadlines.add(50L);
+        b.deadlines.add(20L);
+        b.deadlines.add(25L);
+        a.buffers = 4;
+        b.buffers = 1;
+
+        assertEquals(4, scheduler.drain());
+        assertEquals("[a10, b20, a30, a50]", log.toString());
+
+        // b25 waits for a buffer.
+        log.clear();
+        assertEquals(0, scheduler.drain());
+        b.buffers = 1;
+        assertEquals(1, scheduler.drain());
+        assertEquals("[b25]", log.toString());
+    }
+
+    @Test
+    public void sharesTimeAcrossClientsByWeight() {
+        final List<String> log = new ArrayList<>();
+        FakeCodec a = new FakeCodec("a", log);
+        FakeCodec b = new FakeCodec("b", log);
+        MediaClient light = new MediaClient(1, 1, "light", MediaClient.DEFAULT_QUOTAS);
+        MediaClient heavy = new MediaClient(1, 1, "heavy", MediaClient.DEFAULT_QUOTAS);
+        heavy.setWeight(3 * MediaClient.DEFAULT_WEIGHT);
+        // Every input takes 30ns of CPU.
+        DeadlineScheduler scheduler = new DeadlineScheduler(new DeadlineScheduler.CpuClock() {
+            @Override
+            public long nowNs() {
+                return log.size() * 30;
+            }
+        });
+        scheduler.add(a, light);
+        scheduler.add(b, heavy);
+
+        for (long i = 1; i <= 3; i++) {
+            a.deadlines.add(i); // Earlier than all of b.
+        }
+        for (long i = 11; i <= 16; i++) {
+            b.deadlines.add(i);
+        }
+        a.buffers = 3;
+        b.buffers = 6;
+
+        assertEquals(9, scheduler.drain());
+        assertEquals("[a1, b11, b12, b13, a2, b14, b15, b16, a3]", log.toString());
+    }
+
+    @Test
+    public void feedsClientsOverInputQuotaLast() {
+        List<String> log = new ArrayList<>();
+        FakeCodec a = new FakeCodec("a", log);
+        FakeCodec b = new FakeCodec("b", log);
+        MediaClient greedy = new MediaClient(1, 1, "greedy", new MediaClient.Quotas(0, 100));
+        greedy.addInput(200, System.nanoTime());
+        DeadlineScheduler scheduler = new DeadlineScheduler();
+        scheduler.add(a, greedy);
+        scheduler.add(b, new MediaClient(1, 1, "other", MediaClient.DEFAULT_QUOTAS));
+        a.deadlines.add(1L);
+        b.deadlines.add(5L);
+        a.buffers = 1;
+        b.buffers = 1;
+
+        assertEquals(2, scheduler.drain());
+        assertEquals("[b5, a1]", log.toString());
+    }
+
+    @Test
+    public void skipsRemovedCodecs() {
+        List<String> log = new ArrayList<>();
+        FakeCodec a = new FakeCodec("a", log);
+        DeadlineScheduler scheduler = new DeadlineScheduler();
+        scheduler.add(a);
+        scheduler.remove(a);
+        a.deadlines.add(1L);
+        a.buffers = 1;
+        assertEquals(0, scheduler.drain());
+    }
+
+    @Test
+    public void clockMapsPresentationTimesToDeadlines() {
+        DeadlineScheduler.Clock clock = new DeadlineScheduler.Clock(5000);
+        assertEquals(DeadlineScheduler.NO_DEADLINE, clock.deadlineNs(0));
+
+        clock.observe(1000000, 100000);
+        clock.observe(1033333, 200000); // Arrival of later samples does not matter.
+        assertEquals(105000, clock.deadlineNs(1000000));
+        assertEquals(105000 + 33333000, clock.deadlineNs(1033333));
+
+        // Seeking back restarts the mapping.
+        clock.observe(0, 900000);
+        assertEquals(905000, clock.deadlineNs(0));
+
+        clock.reset();
+        assertEquals(DeadlineScheduler.NO_DEADLINE, clock.deadlineNs(0));
+        clock.observe(5000000, 2000000);
+        assertEquals(2005000, clock.deadlineNs(5000000));
+    }
+
+    @Test
+    public void lowerClassesGetMoreSlack() {
+        assertTrue(CodecPriority.slackNs(CodecPriority.REALTIME) < CodecPriority.slackNs(CodecPriority.PREFETCH));
+        assertTrue(CodecPriority.slackNs(CodecPriority.PREFETCH) < CodecPriority.slackNs(CodecPriority.BACKGROUND));
+        assertFalse(CodecPriority.isValid(CodecPriority.COUNT));
+        assertFalse(CodecPriority.isValid(-1));
+    }
+}
@@ -0,0 +1,63 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DecoderRankingTest {
+    @Test
+    public void classifiesResolutions() {
+        assertEquals("sd", DecoderRanking.resolutionClass(640, 360));
+        assertEquals("sd", DecoderRanking.resolutionClass(640, 480));
+        assertEquals("hd", DecoderRanking.resolutionClass(1280, 720));
+        assertEquals("fhd", DecoderRanking.resolutionClass(1920, 1080));
+        assertEquals("uhd", DecoderRanking.resolutionClass(3840, 2160));
+    }
+
+    @Test
+    public void ordersMeasuredThenUnknownThenFailed() {
+        List<DecoderRanking.Entry> ranking = DecoderRanking.decode(
+                "sw,120.0,9000;hw,240.5,20000;broken,0.0,-1;gone,500.0,1000;garbage");
+        assertEquals(4, ranking.size());
+        assertEquals(240.5f, ranking.get(1).fps, 0);
+
+        List<String> candidates = Arrays.asList("broken", "sw", "new", "hw");
+        assertEquals(Arrays.asList("hw", "sw", "new", "broken"),
+                DecoderRanking.order(candidates, ranking));
+    }
+
+    @Test
+    public void breaksTiesByLatency() {
+        List<DecoderRanking.Entry> ranking = Arrays.asList(
+                new DecoderRanking.Entry("slow", 60, 30000),
+                new DecoderRanking.Entry("quick", 60, 10000));
+        assertEquals(Arrays.asList("quick", "slow"),
+                DecoderRanking.order(Arrays.asList("slow", "quick"), ranking));
+        assertEquals("slow,60.0,30000;quick,60.0,10000", DecoderRanking.encode(ranking));
+    }
+
+    @Test
+    public void bundlesAvcClipsOfTheirClass() throws IOException {
+        for (String cls : new String[] { "sd", "hd" }) {
+            // Unit tests run in the module directory.
+            File clip = new File("src/main/assets", DecoderRanking.clipPath(Mp4SampleTable.MIME_AVC, cls));
+            RandomAccessFile file = new RandomAccessFile(clip, "r");
+            try {
+                Mp4SampleTable table = Mp4SampleTable.parse(
+                        file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+                assertEquals(Mp4SampleTable.MIME_AVC, table.mime);
+                assertEquals(cls, DecoderRanking.resolutionClass(table.width, table.height));
+                assertEquals(0, table.syncSamples[0]);
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
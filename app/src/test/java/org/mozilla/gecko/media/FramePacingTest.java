@@ -0,0 +1,61 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FramePacingTest {
+    private static final long VSYNC_NS = 16666667;
+    private static final long FRAME_US = 33333; // 30 fps, two vsyncs a frame.
+
+    @Test
+    public void countsRepeatedAndSkippedVsyncs() {
+        FramePacing pacing = new FramePacing(VSYNC_NS);
+        pacing.onFrameRendered(0, 0);
+        pacing.onFrameRendered(FRAME_US, 2 * VSYNC_NS); // On time.
+        pacing.onFrameRendered(2 * FRAME_US, 5 * VSYNC_NS); // Last frame repeated once.
+        pacing.onFrameRendered(3 * FRAME_US, 6 * VSYNC_NS); // Last frame cut short.
+
+        assertEquals(3, pacing.getFrames());
+        assertEquals(1, pacing.getRepeatedVsyncs());
+        assertEquals(1, pacing.getSkippedVsyncs());
+        assertArrayEquals(new long[] { 1, 0, 0, 0, 0, 2, 0 }, pacing.getJitterHistogram());
+        assertEquals((0 + 16667 + 16666) / 3, pacing.getMeanJitterUs(), 1);
+    }
+
+    @Test
+    public void leavesOutGapsAndResets() {
+        FramePacing pacing = new FramePacing(VSYNC_NS);
+        assertEquals(-1, pacing.getMeanJitterUs());
+        pacing.onFrameRendered(0, 0);
+        pacing.onFrameRendered(FRAME_US, 2000000000L); // Stalled.
+        pacing.onFrameRendered(100 * FRAME_US, 2000000000L + 2 * VSYNC_NS); // Seek without reset.
+        pacing.reset();
+        pacing.onFrameRendered(0, 3000000000L); // Back to the start.
+        assertEquals(0, pacing.getFrames());
+
+        pacing.onFrameRendered(FRAME_US, 3000000000L + 2 * VSYNC_NS);
+        assertEquals(1, pacing.getFrames());
+    }
+
+    @Test
+    public void travelsAsArray() {
+        FramePacing pacing = new FramePacing(VSYNC_NS);
+        pacing.onFrameRendered(0, 0);
+        pacing.onFrameRendered(FRAME_US, 3 * VSYNC_NS);
+        FramePacing copy = FramePacing.fromArray(pacing.toArray());
+        assertEquals(pacing.toString(), copy.toString());
+        assertArrayEquals(pacing.getJitterHistogram(), copy.getJitterHistogram());
+
+        FramePacing total = new FramePacing(VSYNC_NS);
+        total.add(pacing);
+        total.add(copy);
+        assertEquals(2, total.getFrames());
+        assertEquals(2, total.getRepeatedVsyncs());
+
+        pacing.clearCounts();
+        assertEquals(0, pacing.getFrames());
+        pacing.onFrameRendered(2 * FRAME_US, 5 * VSYNC_NS); // Still follows the last frame.
+        assertEquals(1, pacing.getFrames());
+    }
+}
@@ -0,0 +1,131 @@
+package org.mozilla.gecko.media;
+
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LoopbackCodecTest {
+    private static final int EOS = 4; // MediaCodec.BUFFER_FLAG_END_OF_STREAM
+
+    private static final class Recorder implements CodecBackend.Callback {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onInputBufferAvailable(int index) {
+            events.add("in" + index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(int index, long presentationTimeUs, int flags) {
+            events.add("out" + index + "@" + presentationTimeUs + (flags == EOS ? "/eos" : ""));
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            events.add("format");
+        }
+
+        @Override
+        public void onError(Exception e) {
+            events.add("error");
+        }
+
+        String next() throws InterruptedException {
+            String event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull("timed out", event);
+            return event;
+        }
+
+        int nextInput() throws InterruptedException {
+            String event;
+            do {
+                event = next();
+            } while (!event.startsWith("in"));
+            return Integer.parseInt(event.substring(2));
+        }
+    }
+
+    private static LoopbackCodec start(Recorder recorder, int buffers, long latencyUs, int failAt) {
+        LoopbackCodec codec = new LoopbackCodec(buffers, 16, latencyUs, failAt);
+        codec.setCallback(recorder);
+        codec.configure(null, null, 0);
+        codec.start();
+        return codec;
+    }
+
+    @Test
+    public void outputsInputsInOrderAtFrameRate() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        LoopbackCodec codec = start(recorder, 2, 5000, LoopbackCodec.NO_ERROR);
+        assertEquals("in0", recorder.next());
+        assertEquals("in1", recorder.next());
+
+        long startNs = System.nanoTime();
+        codec.getInputBuffer(0).put((byte) 1);
+        codec.queueInputBuffer(0, 0, 1, 0, 0);
+        codec.queueInputBuffer(1, 0, 0, 33000, EOS);
+        assertEquals("in0", recorder.next());
+        assertEquals("out0@0", recorder.next());
+        assertEquals("in1", recorder.next());
+        assertEquals("out1@33000/eos", recorder.next());
+        // One frame at a time.
+        assertTrue(System.nanoTime() - startNs >= TimeUnit.MICROSECONDS.toNanos(10000));
+        assertEquals(2, codec.getOutputCount());
+        codec.release();
+    }
+
+    @Test
+    public void injectsErrors() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        LoopbackCodec codec = start(recorder, 1, 0, 2);
+        assertEquals(0, recorder.nextInput());
+        codec.queueInputBuffer(0, 0, 0, 0, 0);
+        assertEquals(0, recorder.nextInput());
+        codec.queueInputBuffer(0, 0, 0, 1, 0);
+        assertEquals("out0@0", recorder.next());
+        assertEquals("error", recorder.next());
+        codec.release();
+    }
+
+    @Test
+    public void flushDropsFramesInFlight() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        LoopbackCodec codec = start(recorder, 1, 1000000, LoopbackCodec.NO_ERROR);
+        assertEquals(0, recorder.nextInput());
+        codec.queueInputBuffer(0, 0, 0, 0, 0);
+        codec.flush();
+        assertEquals("in0", recorder.next()); // Handed back, not decoded.
+        assertNull(recorder.events.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(0, codec.getOutputCount());
+        codec.release();
+    }
+
+    @Test
+    public void flushHandsBackEveryBuffer() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        LoopbackCodec codec = start(recorder, 2, 1000000, LoopbackCodec.NO_ERROR);
+        assertEquals("in0", recorder.next());
+        assertEquals("in1", recorder.next());
+        codec.queueInputBuffer(0, 0, 0, 0, 0); // Buffer 1 stays with the client.
+        codec.flush();
+        assertEquals("in0", recorder.next());
+        assertEquals("in1", recorder.next());
+        assertNull(recorder.events.poll(50, TimeUnit.MILLISECONDS));
+        codec.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsBuffersNotOwned() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        LoopbackCodec codec = start(recorder, 1, 1000000, LoopbackCodec.NO_ERROR);
+        assertEquals(0, recorder.nextInput());
+        codec.queueInputBuffer(0, 0, 0, 0, 0);
+        codec.queueInputBuffer(0, 0, 0, 1, 0);
+    }
+}
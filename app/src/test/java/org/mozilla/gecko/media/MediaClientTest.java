@@ -0,0 +1,112 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MediaClientTest {
+    @Test
+    public void limitsCodecCount() {
+        MediaClient client = new MediaClient(10001, 42, "tab1", new MediaClient.Quotas(2, 0));
+        assertEquals("10001/42/tab1", client.getKey());
+        assertEquals("10001/42", MediaClient.key(10001, 42, null));
+        assertTrue(client.acquireCodec());
+        assertTrue(client.acquireCodec());
+        assertFalse(client.acquireCodec());
+        assertEquals(1, client.releaseCodec());
+        assertTrue(client.acquireCodec());
+
+        client.setQuotas(new MediaClient.Quotas(0, 0)); // No limit.
+        assertTrue(client.acquireCodec());
+        assertEquals(3, client.getCodecCount());
+    }
+
+    @Test
+    public void limitsInputRatePerSecond() {
+        MediaClient client = new MediaClient(1, 1, null, new MediaClient.Quotas(0, 1000));
+        long startNs = 5000000000L;
+        client.addInput(600, startNs);
+        assertFalse(client.isOverInputQuota(startNs));
+        client.addInput(600, startNs + 500000000L);
+        assertTrue(client.isOverInputQuota(startNs + 900000000L));
+        assertFalse(client.isOverInputQuota(startNs + 1000000000L)); // A new second.
+        assertEquals(1200, client.toArray()[1]);
+    }
+
+    @Test
+    public void keepsWeightPositive() {
+        MediaClient client = new MediaClient(1, 1, null, MediaClient.DEFAULT_QUOTAS);
+        assertEquals(MediaClient.DEFAULT_WEIGHT, client.getWeight());
+        client.setWeight(0);
+        assertEquals(1, client.getWeight());
+    }
+
+    /** Codec with {@code inputs} ready inputs, all due at once. */
+    private static final class Inputs implements DeadlineScheduler.Task {
+        final String name;
+        final List<String> log;
+        int inputs;
+
+        Inputs(String name, List<String> log, int inputs) {
+            this.name = name;
+            this.log = log;
+            this.inputs = inputs;
+        }
+
+        @Override
+        public long nextDeadlineNs() {
+            return inputs > 0 ? 0 : DeadlineScheduler.NO_DEADLINE;
+        }
+
+        @Override
+        public void runNext() {
+            inputs--;
+            log.add(name);
+        }
+    }
+
+    @Test
+    public void weightSetBeforeCodecsChangesScheduling() {
+        MediaClient.Registry registry = new MediaClient.Registry();
+        registry.setWeight(10001, 42, "onscreen", 3 * MediaClient.DEFAULT_WEIGHT);
+        MediaClient hidden = registry.acquire(10001, 42, "hidden");
+        MediaClient onScreen = registry.acquire(10001, 42, "onscreen");
+        assertEquals(3 * MediaClient.DEFAULT_WEIGHT, onScreen.getWeight());
+        assertEquals(MediaClient.DEFAULT_WEIGHT, hidden.getWeight());
+
+        final List<String> log = new ArrayList<>();
+        // Every input takes 30ns of CPU.
+        DeadlineScheduler scheduler = new DeadlineScheduler(new DeadlineScheduler.CpuClock() {
+            @Override
+            public long nowNs() {
+                return log.size() * 30;
+            }
+        });
+        scheduler.add(new Inputs("hidden", log, 4), hidden);
+        scheduler.add(new Inputs("onscreen", log, 4), onScreen);
+        assertEquals(8, scheduler.drain());
+        assertEquals("[hidden, onscreen, onscreen, onscreen, hidden, onscreen, hidden, hidden]",
+                log.toString());
+
+        // Forgotten with the last codec.
+        registry.release(onScreen);
+        assertEquals(1, registry.getClients().size());
+        assertEquals(MediaClient.DEFAULT_WEIGHT,
+                registry.acquire(10001, 42, "onscreen").getWeight());
+    }
+
+    @Test
+    public void refusesCodecsOverQuota() {
+        MediaClient.Registry registry = new MediaClient.Registry();
+        registry.setQuotas(new MediaClient.Quotas(1, 0));
+        MediaClient client = registry.acquire(1, 2, null);
+        assertNotNull(client);
+        assertNull(registry.acquire(1, 2, null));
+        assertNotNull(registry.acquire(1, 3, null)); // Another process.
+        registry.release(client);
+        assertNotNull(registry.acquire(1, 2, null));
+    }
+}
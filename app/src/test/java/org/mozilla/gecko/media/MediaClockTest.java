@@ -0,0 +1,60 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class MediaClockTest {
+    private static MediaClock newClock() {
+        return new MediaClock(ByteBuffer.allocateDirect(MediaClock.SIZE), null);
+    }
+
+    @Test
+    public void mapsMediaTimeToRenderTime() {
+        MediaClock clock = newClock();
+        assertEquals(MediaClock.NO_TIME, clock.renderTimeNs(0)); // Stopped until set.
+
+        clock.set(1000000, 5000000000L, 1);
+        assertEquals(5000000000L, clock.renderTimeNs(1000000));
+        assertEquals(5033000000L, clock.renderTimeNs(1033000));
+        assertEquals(4000000000L, clock.renderTimeNs(0)); // In the past.
+
+        clock.set(1000000, 5000000000L, 2);
+        assertEquals(5016500000L, clock.renderTimeNs(1033000));
+
+        clock.stop();
+        assertEquals(MediaClock.NO_TIME, clock.renderTimeNs(1033000));
+    }
+
+    @Test
+    public void readsNoTornAnchor() throws InterruptedException {
+        final MediaClock clock = newClock();
+        clock.set(0, 7, 1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (long i = 1; i <= 1000000; i++) {
+                    clock.set(i, i * 1000 + 7, 1); // Media time 0 always maps to 7.
+                }
+            }
+        };
+        writer.start();
+        boolean consistent = true;
+        while (writer.isAlive()) {
+            consistent &= clock.renderTimeNs(0) == 7;
+        }
+        assertTrue(consistent);
+    }
+
+    @Test
+    public void givesUpOnUnfinishedUpdate() {
+        ByteBuffer page = ByteBuffer.allocateDirect(MediaClock.SIZE);
+        MediaClock clock = new MediaClock(page, null);
+        clock.set(0, 7, 1);
+        page.order(ByteOrder.nativeOrder()).putInt(0, 3); // Odd: a writer died while updating.
+        assertEquals(MediaClock.NO_TIME, clock.renderTimeNs(0));
+    }
+}
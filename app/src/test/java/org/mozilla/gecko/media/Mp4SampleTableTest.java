@@ -0,0 +1,473 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses sample files written by {@link Mp4Writer}, which lays out boxes the way
+ * common muxers do, and maps them like {@link Mp4SampleSource} does.
+ */
+public class Mp4SampleTableTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xC0, 0x1E, 0x01 };
+    private static final byte[] PPS = { 0x68, (byte) 0xCE, 0x3C, (byte) 0x80 };
+
+    /** Minimal MP4 muxer for test files. Samples are in mdat before moov. */
+    private static final class Mp4Writer {
+        String videoType = "avc1";
+        boolean audioTrackFirst;
+        boolean wideOffsets;
+        boolean allSync;
+        int timescale = 90000;
+        int[] samplesPerChunk = { 3, 2 }; // Last one repeats.
+        int[] syncSamples = { 0, 4 };
+        int[] compositionOffsets; // Per sample, in timescale units.
+        byte[][] samples;
+
+        File write(File file) throws IOException {
+            ByteArrayOutputStream mdat = new ByteArrayOutputStream();
+            long[] chunkOffsets = new long[samples.length];
+            int[] chunkSizes = new int[samples.length];
+            int chunks = 0;
+            long base = 24 + 8; // ftyp + mdat header.
+            for (int i = 0, run = 0; i < samples.length; run = Math.min(run + 1, samplesPerChunk.length - 1)) {
+                chunkOffsets[chunks] = base + mdat.size();
+                for (int n = 0; n < samplesPerChunk[run] && i < samples.length; n++) {
+                    mdat.write(samples[i++]);
+                    chunkSizes[chunks]++;
+                }
+                chunks++;
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(box("ftyp", bytes("isom"), ints(0x200), bytes("isomavc1")));
+            out.write(box("mdat", mdat.toByteArray()));
+            byte[] video = videoTrack(Arrays.copyOf(chunkOffsets, chunks), chunkSizes);
+            if (audioTrackFirst) {
+                out.write(box("moov", audioTrack(), video));
+            } else {
+                out.write(box("moov", video));
+            }
+            FileOutputStream stream = new FileOutputStream(file);
+            stream.write(out.toByteArray());
+            stream.close();
+            return file;
+        }
+
+        private byte[] videoTrack(long[] chunkOffsets, int[] chunkSizes) throws IOException {
+            // One entry per run of chunks with the same number of samples.
+            int[] stsc = new int[chunkOffsets.length * 3];
+            int runs = 0;
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                if (i == 0 || chunkSizes[i] != chunkSizes[i - 1]) {
+                    stsc[runs * 3] = i + 1;
+                    stsc[runs * 3 + 1] = chunkSizes[i];
+                    stsc[runs * 3 + 2] = 1;
+                    runs++;
+                }
+            }
+            int[] stsz = new int[samples.length];
+            for (int i = 0; i < samples.length; i++) {
+                stsz[i] = samples[i].length;
+            }
+            int[] stss = new int[syncSamples.length];
+            for (int i = 0; i < stss.length; i++) {
+                stss[i] = syncSamples[i] + 1;
+            }
+            ByteArrayOutputStream stbl = new ByteArrayOutputStream();
+            stbl.write(fullBox("stsd", 0, ints(1), sampleEntry()));
+            stbl.write(fullBox("stts", 0, ints(1, samples.length, 3000)));
+            if (compositionOffsets != null) {
+                int[] ctts = new int[1 + samples.length * 2];
+                ctts[0] = samples.length;
+                for (int i = 0; i < samples.length; i++) {
+                    ctts[1 + i * 2] = 1;
+                    ctts[2 + i * 2] = compositionOffsets[i];
+                }
+                stbl.write(fullBox("ctts", 1, ints(ctts)));
+            }
+            if (!allSync) {
+                stbl.write(fullBox("stss", 0, ints(stss.length), ints(stss)));
+            }
+            stbl.write(fullBox("stsz", 0, ints(0, samples.length), ints(stsz)));
+            stbl.write(fullBox("stsc", 0, ints(runs), ints(Arrays.copyOf(stsc, runs * 3))));
+            if (wideOffsets) {
+                stbl.write(fullBox("co64", 0, ints(chunkOffsets.length), longs(chunkOffsets)));
+            } else {
+                int[] stco = new int[chunkOffsets.length];
+                for (int i = 0; i < stco.length; i++) {
+                    stco[i] = (int) chunkOffsets[i];
+                }
+                stbl.write(fullBox("stco", 0, ints(stco.length), ints(stco)));
+            }
+
+            long duration = samples.length * 3000L;
+            return box("trak",
+                    fullBox("tkhd", 0, ints(0, 0, 7, 0, (int) duration), new byte[60]),
+                    box("mdia",
+                            fullBox("mdhd", 0, ints(0, 0, timescale, (int) duration, 0)),
+                            fullBox("hdlr", 0, ints(0), bytes("vide"), new byte[13]),
+                            box("minf", box("stbl", stbl.toByteArray()))));
+        }
+
+        private byte[] sampleEntry() throws IOException {
+            ByteArrayOutputStream entry = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(entry);
+            data.write(new byte[6]);
+            data.writeShort(1); // data_reference_index
+            data.write(new byte[16]);
+            data.writeShort(320);
+            data.writeShort(240);
+            data.write(new byte[46]); // Resolution, frame count, compressor name.
+            data.writeShort(0x18);
+            data.writeShort(-1);
+            if (videoType.startsWith("avc")) {
+                data.write(box("avcC", new byte[] { 1, 0x42, (byte) 0xC0, 0x1E, (byte) 0xFF, (byte) 0xE1 },
+                        shortPrefixed(SPS), new byte[] { 1 }, shortPrefixed(PPS)));
+            } else {
+                byte[] header = new byte[23];
+                header[0] = 1;
+                header[21] = 0x0F; // lengthSizeMinusOne = 3
+                header[22] = 2; // Arrays.
+                data.write(box("hvcC", header,
+                        new byte[] { 33, 0, 1 }, shortPrefixed(SPS),
+                        new byte[] { 34, 0, 1 }, shortPrefixed(PPS)));
+            }
+            return box(videoType, entry.toByteArray());
+        }
+
+        private static byte[] audioTrack() throws IOException {
+            return box("trak",
+                    fullBox("tkhd", 0, ints(0, 0, 1, 0, 0), new byte[60]),
+                    box("mdia",
+                            fullBox("mdhd", 0, ints(0, 0, 44100, 0, 0)),
+                            fullBox("hdlr", 0, ints(0), bytes("soun"), new byte[13])));
+        }
+    }
+
+    private static byte[] box(String type, byte[]... payloads) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] payload : payloads) {
+            body.write(payload);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(8 + body.size());
+        data.write(bytes(type));
+        data.write(body.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static byte[] fullBox(String type, int version, byte[]... payloads) throws IOException {
+        byte[][] all = new byte[payloads.length + 1][];
+        all[0] = ints(version << 24);
+        System.arraycopy(payloads, 0, all, 1, payloads.length);
+        return box(type, all);
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 4);
+        for (int v : values) {
+            buf.putInt(v);
+        }
+        return buf.array();
+    }
+
+    private static byte[] longs(long... values) {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 8);
+        for (long v : values) {
+            buf.putLong(v);
+        }
+        return buf.array();
+    }
+
+    private static byte[] bytes(String ascii) {
+        return ascii.getBytes();
+    }
+
+    private static byte[] shortPrefixed(byte[] nal) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + nal.length);
+        buf.putShort((short) nal.length).put(nal);
+        return buf.array();
+    }
+
+    /** A sample of NAL units with 4 byte length prefixes, filled with a recognizable pattern. */
+    private static byte[] sample(int index, int... nalSizes) {
+        int total = 0;
+        for (int size : nalSizes) {
+            total += 4 + size;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(total);
+        for (int size : nalSizes) {
+            buf.putInt(size);
+            for (int i = 0; i < size; i++) {
+                buf.put((byte) (index * 16 + i));
+            }
+        }
+        return buf.array();
+    }
+
+    private static byte[][] samples(int count) {
+        byte[][] samples = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            samples[i] = sample(i, 10 + i, 3);
+        }
+        return samples;
+    }
+
+    /** Overwrites the int {@code offset} bytes past the full box header of the first {@code type} box. */
+    private static ByteBuffer patch(File file, String type, int offset, int value) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.readFully(content);
+        raf.close();
+        int box = new String(content, "ISO-8859-1").indexOf(type) - 4;
+        assertTrue(type, box >= 0);
+        ByteBuffer buf = ByteBuffer.wrap(content);
+        buf.putInt(box + 12 + offset, value);
+        return buf;
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            return raf.getChannel().map(mode, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void parsesSampleTablesOfAvcFile() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = samples(8);
+        // I P B B I P B B in decode order.
+        writer.compositionOffsets = new int[] { 3000, 9000, 0, 0, 3000, 9000, 0, 0 };
+        File file = writer.write(mFolder.newFile("avc.mp4"));
+
+        Mp4SampleTable table = Mp4SampleTable.parse(map(file, FileChannel.MapMode.READ_ONLY));
+        assertEquals(Mp4SampleTable.MIME_AVC, table.mime);
+        assertEquals(7, table.trackId);
+        assertEquals(320, table.width);
+        assertEquals(240, table.height);
+        assertEquals(90000, table.timescale);
+        assertEquals(8 * 3000 * 1000000L / 90000, table.durationUs);
+        assertEquals(4, table.nalLengthSize);
+        assertArrayEquals(new byte[] { 0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1E, 0x01 }, table.csd0);
+        assertArrayEquals(new byte[] { 0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80 }, table.csd1);
+
+        assertEquals(8, table.getSampleCount());
+        byte[] content = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.readFully(content);
+        raf.close();
+        for (int i = 0; i < 8; i++) {
+            assertEquals(writer.samples[i].length, table.sizes[i]);
+            int offset = (int) table.offsets[i];
+            assertArrayEquals("sample " + i, writer.samples[i],
+                    Arrays.copyOfRange(content, offset, offset + table.sizes[i]));
+        }
+
+        // Decode time plus composition offset: frames 1 4 2 3 5 8 6 7.
+        int[] frames = { 1, 4, 2, 3, 5, 8, 6, 7 };
+        for (int i = 0; i < 8; i++) {
+            assertEquals(frames[i] * 3000 * 1000000L / 90000, table.presentationTimesUs[i]);
+        }
+
+        assertArrayEquals(new int[] { 0, 4 }, table.syncSamples);
+        assertTrue(table.isSync(0));
+        assertFalse(table.isSync(1));
+        assertTrue(table.isSync(4));
+        assertEquals(0, table.findSyncSample(0));
+        assertEquals(0, table.findSyncSample(table.presentationTimesUs[4] - 1));
+        assertEquals(1, table.findSyncSample(table.presentationTimesUs[4]));
+        assertEquals(1, table.findSyncSample(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void skipsAudioAndReadsWideOffsetsHevcWithoutSyncTable() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.videoType = "hvc1";
+        writer.audioTrackFirst = true;
+        writer.wideOffsets = true;
+        writer.allSync = true;
+        writer.samplesPerChunk = new int[] { 1 };
+        writer.samples = samples(3);
+        File file = writer.write(mFolder.newFile("hevc.mp4"));
+
+        Mp4SampleTable table = Mp4SampleTable.parse(map(file, FileChannel.MapMode.READ_ONLY));
+        assertEquals(Mp4SampleTable.MIME_HEVC, table.mime);
+        assertEquals(4, table.nalLengthSize);
+        assertArrayEquals(new byte[] {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1E, 0x01,
+            0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80,
+        }, table.csd0);
+        assertNull(table.csd1);
+        assertArrayEquals(new int[] { 0, 1, 2 }, table.syncSamples);
+        assertArrayEquals(new long[] { 0, 33333, 66666 }, table.presentationTimesUs);
+        assertEquals(table.offsets[0] + table.sizes[0], table.offsets[1]);
+    }
+
+    @Test
+    public void convertsSamplesToAnnexBWhileCopying() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = samples(2);
+        writer.syncSamples = new int[] { 0 };
+        File file = writer.write(mFolder.newFile("annexb.mp4"));
+        byte[] original = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.readFully(original);
+        raf.close();
+
+        ByteBuffer map = map(file, FileChannel.MapMode.READ_ONLY);
+        Mp4SampleSource source = new Mp4SampleSource(map, Mp4SampleTable.parse(map));
+        source.poll();
+        Sample sample = source.poll();
+        byte[] expected = writer.samples[1].clone();
+        assertEquals(expected.length, sample.size);
+        byte[] sliced = new byte[sample.size];
+        sample.buffer.duplicate().get(sliced);
+        assertArrayEquals(expected, sliced); // Still length prefixed.
+
+        expected[3] = 1; // First NAL: 0x0000000B -> 00 00 00 01.
+        expected[4 + 11 + 3] = 1; // Second NAL: 0x00000003 -> 00 00 00 01.
+        expected[4 + 11] = 0;
+        expected[4 + 11 + 1] = 0;
+        expected[4 + 11 + 2] = 0;
+        ByteBuffer input = ByteBuffer.allocate(sample.size + 8);
+        input.position(8);
+        sample.writeTo(input);
+        assertArrayEquals(expected, Arrays.copyOfRange(input.array(), 8, input.position()));
+        assertArrayEquals(expected, sample.copy().bytes);
+
+        ByteArrayOutputStream channel = new ByteArrayOutputStream();
+        new SampleChannel.Writer(channel).write(sample);
+        assertArrayEquals(expected, channel.toByteArray());
+
+        // The file itself must be untouched.
+        byte[] after = new byte[(int) file.length()];
+        raf = new RandomAccessFile(file, "r");
+        raf.readFully(after);
+        raf.close();
+        assertArrayEquals(original, after);
+    }
+
+    @Test
+    public void convertsShortLengthFieldsByCopy() {
+        ByteBuffer src = ByteBuffer.wrap(new byte[] { 9, 9, 0, 2, 0x65, 0x66, 0, 1, 0x41 });
+        byte[] dst = new byte[32];
+        int len = Mp4SampleSource.toAnnexB(src, 2, 7, 2, dst);
+        assertArrayEquals(new byte[] { 0, 0, 0, 1, 0x65, 0x66, 0, 0, 0, 1, 0x41 },
+                Arrays.copyOf(dst, len));
+    }
+
+    @Test
+    public void stepsSyncSamplesForTrickPlay() {
+        Mp4SampleTable table = new Mp4SampleTable();
+        table.presentationTimesUs = new long[10];
+        for (int i = 0; i < 10; i++) {
+            table.presentationTimesUs[i] = i * 500000;
+        }
+        table.syncSamples = new int[] { 0, 2, 4, 6, 8 }; // Every second.
+
+        assertEquals(2, table.nextSyncSample(0, 2000000));
+        assertEquals(1, table.nextSyncSample(0, 100000)); // At least one further.
+        assertEquals(4, table.nextSyncSample(3, 2000000)); // The last one, short of the target.
+        assertEquals(-1, table.nextSyncSample(4, 2000000));
+        assertEquals(-1, table.nextSyncSample(4, 100000));
+        assertEquals(1, table.nextSyncSample(4, -2500000));
+        assertEquals(2, table.nextSyncSample(3, -100000));
+        assertEquals(0, table.nextSyncSample(1, -8000000));
+        assertEquals(-1, table.nextSyncSample(0, -100000));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileWithoutMoov() throws Exception {
+        Mp4SampleTable.parse(ByteBuffer.wrap(box("ftyp", bytes("isom"))));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFile() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = samples(4);
+        File file = writer.write(mFolder.newFile("truncated.mp4"));
+        ByteBuffer map = map(file, FileChannel.MapMode.READ_ONLY);
+        map.limit(map.limit() - 40);
+        Mp4SampleTable.parse(map.slice());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFragmentedFile() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = new byte[0][];
+        writer.syncSamples = new int[0];
+        Mp4SampleTable.parse(map(writer.write(mFolder.newFile("fragmented.mp4")),
+                FileChannel.MapMode.READ_ONLY));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativeSampleCount() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = samples(4);
+        Mp4SampleTable.parse(patch(writer.write(mFolder.newFile("negative.mp4")), "stsz", 4, -1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFixedSizeSamplesBeyondFile() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = samples(4);
+        File file = writer.write(mFolder.newFile("huge.mp4"));
+        patch(file, "stsz", 0, 1); // A byte each...
+        Mp4SampleTable.parse(patch(file, "stsz", 4, Integer.MAX_VALUE)); // ...but more than the file.
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptySyncTable() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = samples(4);
+        writer.syncSamples = new int[0];
+        Mp4SampleTable.parse(map(writer.write(mFolder.newFile("nosync.mp4")),
+                FileChannel.MapMode.READ_ONLY));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsSyncTableLongerThanBox() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = samples(4);
+        Mp4SampleTable.parse(patch(writer.write(mFolder.newFile("longsync.mp4")), "stss", 0, 3));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsSyncSampleOutOfRange() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = samples(4);
+        writer.syncSamples = new int[] { 0, 4 };
+        Mp4SampleTable.parse(map(writer.write(mFolder.newFile("syncrange.mp4")),
+                FileChannel.MapMode.READ_ONLY));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnorderedSyncSamples() throws Exception {
+        Mp4Writer writer = new Mp4Writer();
+        writer.samples = samples(8);
+        writer.syncSamples = new int[] { 4, 0 };
+        Mp4SampleTable.parse(map(writer.write(mFolder.newFile("syncorder.mp4")),
+                FileChannel.MapMode.READ_ONLY));
+    }
+}
@@ -0,0 +1,68 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SampleChannelTest {
+    private static byte[] payload(int size, int seed) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void detachesOnlyLargeSamples() {
+        int limit = SampleChannel.INLINE_LIMIT;
+        assertFalse(SampleChannel.isOversized(new Sample(new byte[limit], 0, 0)));
+        assertTrue(SampleChannel.isOversized(new Sample(new byte[limit + 1], 0, 0)));
+        assertFalse(SampleChannel.isOversized(Sample.EOS));
+    }
+
+    @Test
+    public void streamsPayloadsInOrder() throws IOException {
+        byte[] first = payload(300000, 1);
+        byte[] second = payload(200000, 2);
+        ByteBuffer mapped = ByteBuffer.wrap(payload(250000, 3));
+        mapped.position(1000);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SampleChannel.Writer writer = new SampleChannel.Writer(out);
+        writer.write(new Sample(first, 0, 0));
+        writer.write(new Sample(second, 150000, 33000, 0)); // Only the valid part of a reused array.
+        Sample slice = new Sample(null, 0, 0);
+        slice.set(mapped, 66000, 0);
+        writer.write(slice);
+        assertEquals(1000, mapped.position()); // Left as it was.
+
+        SampleChannel.Reader reader = new SampleChannel.Reader(new ByteArrayInputStream(out.toByteArray()));
+        Sample received = new Sample(null, 300000, 0, 0);
+        received.detached = true;
+        reader.read(received);
+        assertFalse(received.detached);
+        assertArrayEquals(first, received.bytes);
+
+        received = new Sample(null, 150000, 33000, 0);
+        reader.read(received);
+        assertArrayEquals(Arrays.copyOf(second, 150000), received.bytes);
+
+        received = new Sample(null, 249000, 66000, 0);
+        reader.read(received);
+        assertArrayEquals(Arrays.copyOfRange(mapped.array(), 1000, 250000), received.bytes);
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsOnTruncatedPayload() throws IOException {
+        SampleChannel.Reader reader = new SampleChannel.Reader(new ByteArrayInputStream(new byte[10]));
+        reader.read(new Sample(null, 11, 0, 0));
+    }
+}
@@ -0,0 +1,125 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SampleRingTest {
+    private static final int END_OF_STREAM = 4; // MediaCodec.BUFFER_FLAG_END_OF_STREAM
+
+    private static void produce(SampleRing ring, int size, long pts) throws InterruptedException {
+        Sample slot = ring.acquire(size);
+        slot.set(size, pts, 0);
+        ring.commit(slot);
+    }
+
+    @Test
+    public void reusesSlotsInOrder() throws Exception {
+        SampleRing ring = new SampleRing(2, 16, 1024, 1000000);
+        produce(ring, 10, 0);
+        produce(ring, 20, 33000);
+        assertEquals(2, ring.getQueuedSamples());
+        assertEquals(30, ring.getQueuedBytes());
+        assertEquals(33000, ring.getQueuedDurationUs());
+
+        Sample first = ring.poll();
+        assertEquals(0, first.presentationTimeUs);
+        byte[] buffer = first.bytes;
+        ring.release(first);
+
+        produce(ring, 8, 66000);
+        Sample second = ring.poll();
+        assertEquals(33000, second.presentationTimeUs);
+        ring.release(second);
+        Sample third = ring.poll();
+        assertSame(first, third);
+        assertSame(buffer, third.bytes);
+        assertEquals(8, third.size);
+    }
+
+    @Test
+    public void boundedByBytesAndDuration() throws Exception {
+        final SampleRing byBytes = new SampleRing(8, 16, 100, Long.MAX_VALUE);
+        produce(byBytes, 60, 0);
+        produce(byBytes, 60, 1);
+        assertFull(byBytes);
+
+        final SampleRing byTime = new SampleRing(8, 16, Long.MAX_VALUE, 100000);
+        produce(byTime, 1, 0);
+        produce(byTime, 1, 100000);
+        assertFull(byTime);
+    }
+
+    private static void assertFull(final SampleRing ring) throws Exception {
+        final AtomicInteger acquired = new AtomicInteger();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (ring.acquire(1) != null) {
+                        acquired.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        producer.start();
+        producer.join(100);
+        assertEquals("producer must block", 0, acquired.get());
+        ring.release(ring.poll());
+        producer.join(5000);
+        assertEquals(1, acquired.get());
+    }
+
+    @Test
+    public void countsStarvationAndNotifies() throws Exception {
+        SampleRing ring = new SampleRing(4, 16, 1024, 1000000);
+        final AtomicInteger notified = new AtomicInteger();
+        ring.setListener(new SampleRing.Listener() {
+            @Override
+            public void onSampleAvailable() {
+                notified.incrementAndGet();
+            }
+        });
+
+        assertNull(ring.poll()); // Initial fill does not count.
+        produce(ring, 1, 0);
+        assertEquals(1, notified.get());
+        ring.release(ring.poll());
+        assertNull(ring.poll());
+        assertNull(ring.poll());
+        assertEquals(1, ring.getStarvationCount());
+        produce(ring, 1, 1);
+        produce(ring, 1, 2);
+        assertEquals(2, notified.get());
+    }
+
+    @Test
+    public void flushDropsQueuedAndInFlightSamples() throws Exception {
+        SampleRing ring = new SampleRing(4, 16, 1024, 1000000);
+        produce(ring, 5, 0);
+        Sample inFlight = ring.acquire(5);
+        inFlight.set(5, 1, 0);
+        ring.flush();
+        ring.commit(inFlight);
+        assertEquals(0, ring.getQueuedSamples());
+        assertEquals(0, ring.getQueuedBytes());
+        assertNull(ring.poll());
+
+        Sample eos = ring.acquire(0);
+        eos.set(0, 0, END_OF_STREAM);
+        ring.commit(eos);
+        assertTrue(ring.poll().isEOS());
+    }
+
+    @Test
+    public void closeWakesProducer() throws Exception {
+        SampleRing ring = new SampleRing(1, 16, 1024, 1000000);
+        produce(ring, 1, 0);
+        ring.close();
+        assertNull(ring.acquire(1));
+    }
+}
@@ -0,0 +1,35 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SampleTest {
+    @Test
+    public void copyOutlivesReuse() {
+        byte[] reused = { 1, 2, 3, 4 };
+        Sample sample = new Sample(reused, 3, 1000, 0);
+        sample.epoch = 2;
+        Sample copy = sample.copy();
+        reused[0] = 9;
+        sample.set(4, 2000, 0);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, copy.bytes);
+        assertEquals(3, copy.size);
+        assertEquals(1000, copy.presentationTimeUs);
+        assertEquals(2, copy.epoch);
+
+        ByteBuffer mapped = ByteBuffer.wrap(new byte[] { 5, 6, 7, 8 });
+        mapped.position(2);
+        sample.set(mapped, 3000, 0);
+        copy = sample.copy();
+        assertArrayEquals(new byte[] { 7, 8 }, copy.bytes);
+        assertNull(copy.buffer);
+        assertEquals(2, mapped.position());
+
+        copy = Sample.EOS.copy();
+        assertNull(copy.bytes);
+        assertEquals(Sample.EOS.flags, copy.flags);
+    }
+}
@@ -0,0 +1,80 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SampleTraceTest {
+    @Test
+    public void roundTripsPayloads() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SampleTrace.Writer writer = new SampleTrace.Writer(out, true);
+        writer.write(new Sample(new byte[] { 1, 2, 3, 9 }, 3, 66000, 1), 5000000000L);
+        writer.write(new Sample(new byte[] { 4 }, 33000, 0), 5040000000L); // Reordered frame.
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.put(new byte[] { 0, 5, 6, 7 }).position(1);
+        Sample mapped = new Sample(null, 0, 0);
+        mapped.set(direct, 100000, 0);
+        writer.write(mapped, 5045000000L);
+        writer.close();
+
+        SampleTrace.Reader reader = new SampleTrace.Reader(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(reader.hasPayloads());
+        Sample sample = new Sample(null, 0, 0);
+        assertTrue(reader.read(sample));
+        assertEquals(66000, sample.presentationTimeUs);
+        assertEquals(1, sample.flags);
+        assertEquals(3, sample.size);
+        assertEquals(0, reader.getInterArrivalUs());
+        assertEquals(3, sample.bytes[2]);
+
+        assertTrue(reader.read(sample));
+        assertEquals(33000, sample.presentationTimeUs);
+        assertEquals(1, sample.size);
+        assertEquals(4, sample.bytes[0]);
+        assertEquals(40000, reader.getInterArrivalUs());
+
+        assertTrue(reader.read(sample));
+        assertEquals(100000, sample.presentationTimeUs);
+        assertArrayEquals(new byte[] { 5, 6, 7 }, Arrays.copyOf(sample.bytes, sample.size));
+        assertEquals(5000, reader.getInterArrivalUs());
+        assertFalse(reader.read(sample));
+    }
+
+    @Test
+    public void recordsOnlySizesWithoutPayloads() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SampleTrace.Writer writer = new SampleTrace.Writer(out, false);
+        for (int i = 0; i < 100; i++) {
+            writer.write(new Sample(new byte[50000], i * 33333L, 0), i * 33333000L);
+        }
+        writer.write(Sample.EOS, 3400000000L);
+        writer.close();
+        assertTrue(out.size() < 100 * 12); // A few bytes per sample.
+
+        SampleTrace.Reader reader = new SampleTrace.Reader(new ByteArrayInputStream(out.toByteArray()));
+        assertFalse(reader.hasPayloads());
+        Sample sample = new Sample(null, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(reader.read(sample));
+            assertEquals(i * 33333L, sample.presentationTimeUs);
+            assertEquals(50000, sample.size);
+            assertNull(sample.bytes);
+        }
+        assertTrue(reader.read(sample));
+        assertTrue(sample.isEOS());
+        assertEquals(Long.MIN_VALUE, sample.presentationTimeUs);
+        assertFalse(reader.read(sample));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws IOException {
+        new SampleTrace.Reader(new ByteArrayInputStream(new byte[] { 'S', 'Y', 'N', 'C', 1, 0 }));
+    }
+}
@@ -0,0 +1,155 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the startup sequence of {@link CodecProxy} against a fake codec running on
+ * its own thread, the way {@link MediaService} would, and checks the breakdown.
+ */
+public class StartupTimelineTest {
+    /** Stands in for the remote codec: own timeline, own thread, ordered callbacks. */
+    private static final class FakeCodec implements Runnable {
+        private final StartupTimeline mTimeline = new StartupTimeline();
+        private final LinkedBlockingQueue<Integer> mCommands = new LinkedBlockingQueue<>();
+        private final StartupTimeline mClient;
+        private final long mFrameDelayMs;
+
+        static final int CMD_START = 1;
+        static final int CMD_INPUT = 2;
+        static final int CMD_QUIT = 3;
+
+        FakeCodec(StartupTimeline client, long frameDelayMs) {
+            mClient = client;
+            mFrameDelayMs = frameDelayMs;
+        }
+
+        void configure() throws InterruptedException {
+            mTimeline.mark(StartupTimeline.SVC_CREATED);
+            Thread.sleep(2);
+            mTimeline.mark(StartupTimeline.SVC_CONFIGURED);
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean reported = false;
+                while (true) {
+                    int cmd = mCommands.take();
+                    if (cmd == CMD_QUIT) {
+                        return;
+                    } else if (cmd == CMD_START) {
+                        mTimeline.mark(StartupTimeline.SVC_STARTED);
+                    } else if (cmd == CMD_INPUT) {
+                        mTimeline.mark(StartupTimeline.SVC_FIRST_INPUT);
+                        Thread.sleep(mFrameDelayMs);
+                        mTimeline.mark(StartupTimeline.SVC_FIRST_OUTPUT);
+                        mClient.mark(StartupTimeline.FIRST_OUTPUT); // onOutput()
+                        mTimeline.mark(StartupTimeline.SVC_FIRST_RENDER);
+                        if (!reported) {
+                            reported = true;
+                            mClient.merge(mTimeline.toArray()); // onStartupMilestones()
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    @Test
+    public void breakdownCoversPipelineAgainstFakeCodec() throws Exception {
+        final StartupTimeline timeline = new StartupTimeline();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger reports = new AtomicInteger();
+        timeline.setListener(new StartupTimeline.Listener() {
+            @Override
+            public void onFirstFrame(StartupTimeline t) {
+                reports.incrementAndGet();
+                done.countDown();
+            }
+        });
+
+        timeline.mark(StartupTimeline.SESSION_START);
+        timeline.mark(StartupTimeline.BIND_START);
+        timeline.mark(StartupTimeline.BIND_DONE);
+        FakeCodec codec = new FakeCodec(timeline, 5);
+        Thread worker = new Thread(codec, "fake-codec");
+        worker.start();
+        timeline.mark(StartupTimeline.CODEC_CREATED);
+        codec.configure();
+        timeline.mark(StartupTimeline.CONFIGURED);
+        codec.mCommands.put(FakeCodec.CMD_START);
+        timeline.mark(StartupTimeline.START_SENT);
+        for (int i = 0; i < 3; i++) {
+            codec.mCommands.put(FakeCodec.CMD_INPUT);
+            timeline.mark(StartupTimeline.FIRST_INPUT_SENT);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        codec.mCommands.put(FakeCodec.CMD_QUIT);
+        worker.join();
+
+        assertEquals(1, reports.get());
+        for (int m = 0; m < StartupTimeline.MILESTONE_COUNT; m++) {
+            assertTrue(StartupTimeline.nameOf(m), timeline.isMarked(m));
+        }
+
+        int[] order = timeline.getOrder();
+        assertEquals(StartupTimeline.MILESTONE_COUNT, order.length);
+        assertEquals(StartupTimeline.SESSION_START, order[0]);
+        for (int i = 1; i < order.length; i++) {
+            assertTrue(timeline.getNanos(order[i - 1]) <= timeline.getNanos(order[i]));
+        }
+
+        long sum = 0;
+        for (long phase : timeline.getPhaseNanos()) {
+            assertTrue(phase >= 0);
+            sum += phase;
+        }
+        assertEquals(timeline.getTotalNanos(), sum);
+        assertTrue(timeline.getTotalNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue(timeline.toString().startsWith("ttff="));
+    }
+
+    @Test
+    public void firstMarkWinsAndMergeKeepsLocalValues() {
+        StartupTimeline timeline = new StartupTimeline();
+        timeline.mark(StartupTimeline.FIRST_INPUT_SENT, 100);
+        timeline.mark(StartupTimeline.FIRST_INPUT_SENT, 200);
+        assertEquals(100, timeline.getNanos(StartupTimeline.FIRST_INPUT_SENT));
+
+        long[] remote = new long[StartupTimeline.MILESTONE_COUNT];
+        remote[StartupTimeline.FIRST_INPUT_SENT] = 300;
+        remote[StartupTimeline.SVC_FIRST_INPUT] = 150;
+        timeline.merge(remote);
+        assertEquals(100, timeline.getNanos(StartupTimeline.FIRST_INPUT_SENT));
+        assertEquals(150, timeline.getNanos(StartupTimeline.SVC_FIRST_INPUT));
+        assertEquals(50, timeline.getPhaseNanos()[StartupTimeline.SVC_FIRST_INPUT]);
+    }
+
+    @Test
+    public void reportsOnlyAfterBothHalvesArrive() {
+        StartupTimeline timeline = new StartupTimeline();
+        final AtomicInteger reports = new AtomicInteger();
+        timeline.setListener(new StartupTimeline.Listener() {
+            @Override
+            public void onFirstFrame(StartupTimeline t) {
+                reports.incrementAndGet();
+            }
+        });
+        timeline.mark(StartupTimeline.FIRST_OUTPUT, 10);
+        assertEquals(0, reports.get());
+        timeline.merge(new long[StartupTimeline.MILESTONE_COUNT]);
+        assertEquals(1, reports.get());
+        timeline.merge(new long[StartupTimeline.MILESTONE_COUNT]);
+        assertEquals(1, reports.get());
+    }
+}
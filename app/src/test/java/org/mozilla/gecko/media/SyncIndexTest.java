@@ -0,0 +1,152 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class SyncIndexTest {
+    @Test
+    public void findsLastSyncSampleAtOrBeforeTime() {
+        SyncIndex index = new SyncIndex();
+        assertEquals(-1, index.find(0));
+        for (int i = 0; i < 100; i++) {
+            index.add(i * 2000000L, SyncIndex.UNKNOWN_OFFSET);
+        }
+        assertEquals(100, index.size());
+        assertEquals(-1, index.find(-1));
+        assertEquals(0, index.find(0));
+        assertEquals(0, index.find(1999999));
+        assertEquals(1, index.find(2000000));
+        assertEquals(99, index.find(Long.MAX_VALUE));
+        assertEquals(198000000L, index.getTimeUs(99));
+    }
+
+    @Test
+    public void keepsEntriesSortedAfterSeeks() {
+        SyncIndex index = new SyncIndex();
+        // Play from 60s, then seek back to the start.
+        for (long t : new long[] { 60, 62, 64, 0, 2, 4, 60, 62 }) {
+            index.add(t * 1000000, SyncIndex.UNKNOWN_OFFSET);
+        }
+        assertEquals(6, index.size());
+        long last = -1;
+        for (int i = 0; i < index.size(); i++) {
+            assertTrue(index.getTimeUs(i) > last);
+            last = index.getTimeUs(i);
+        }
+        assertEquals(4000000, index.getTimeUs(index.find(30000000)));
+    }
+
+    @Test
+    public void answersOnlyInsideCoveredRanges() {
+        SyncIndex index = new SyncIndex();
+        // Played 0..10s, then seeked to 60s and played to 70s.
+        for (long t = 0; t <= 10; t += 2) {
+            index.add(t * 1000000, SyncIndex.UNKNOWN_OFFSET);
+            index.cover(0, t * 1000000);
+        }
+        for (long t = 60; t <= 70; t += 2) {
+            index.add(t * 1000000, SyncIndex.UNKNOWN_OFFSET);
+            index.cover(60000000, t * 1000000);
+        }
+        assertEquals(2, index.findCovered(5000000));
+        assertEquals(5, index.findCovered(10000000));
+        assertEquals(-1, index.findCovered(10000001)); // Sync samples after 10s are unknown.
+        assertEquals(-1, index.findCovered(40000000));
+        assertEquals(5, index.find(40000000));
+        assertEquals(8, index.findCovered(65000000));
+
+        index.cover(10000000, 60000000); // Played through the gap.
+        assertEquals(5, index.findCovered(40000000));
+    }
+
+    @Test
+    public void mergesCachedIndex() throws IOException {
+        SyncIndex cached = new SyncIndex();
+        cached.add(0, SyncIndex.UNKNOWN_OFFSET);
+        cached.add(2000000, SyncIndex.UNKNOWN_OFFSET);
+        cached.cover(0, 2000000);
+        cached = SyncIndex.readFrom(new DataInputStream(new ByteArrayInputStream(toBytes(cached))));
+        assertEquals(1, cached.findCovered(2000000)); // Ranges are read back.
+        assertEquals(-1, cached.findCovered(2000001));
+
+        SyncIndex index = new SyncIndex();
+        index.add(2000000, SyncIndex.UNKNOWN_OFFSET);
+        index.add(4000000, SyncIndex.UNKNOWN_OFFSET);
+        index.cover(2000000, 4000000);
+        index.addAll(cached);
+        assertEquals(3, index.size());
+        assertEquals(1, index.findCovered(3000000));
+        assertEquals(0, index.findCovered(1000000));
+    }
+
+    @Test
+    public void knownOffsetReplacesUnknownOne() {
+        SyncIndex index = new SyncIndex();
+        index.add(1000, SyncIndex.UNKNOWN_OFFSET);
+        index.add(1000, 4096);
+        index.add(1000, SyncIndex.UNKNOWN_OFFSET);
+        assertEquals(1, index.size());
+        assertEquals(4096, index.getOffset(0));
+    }
+
+    @Test
+    public void roundTripsThroughStream() throws IOException {
+        SyncIndex index = new SyncIndex();
+        index.add(0, 48);
+        index.add(2000000, 100000);
+        index.add(4000000, SyncIndex.UNKNOWN_OFFSET);
+        assertTrue(index.isModified());
+
+        SyncIndex read = SyncIndex.readFrom(new DataInputStream(new ByteArrayInputStream(toBytes(index))));
+        assertFalse(read.isModified());
+        assertEquals(3, read.size());
+        assertEquals(2000000, read.getTimeUs(1));
+        assertEquals(100000, read.getOffset(1));
+        assertEquals(SyncIndex.UNKNOWN_OFFSET, read.getOffset(2));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignData() throws IOException {
+        byte[] data = toBytes(new SyncIndex());
+        data[0] ^= 1;
+        SyncIndex.readFrom(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedData() throws IOException {
+        SyncIndex index = new SyncIndex();
+        index.add(0, 0);
+        index.add(1, 1);
+        byte[] data = toBytes(index);
+        SyncIndex.readFrom(new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 1)));
+    }
+
+    @Test
+    public void buildsFromSampleTable() {
+        Mp4SampleTable table = new Mp4SampleTable();
+        table.offsets = new long[] { 100, 200, 300, 400 };
+        table.sizes = new int[] { 100, 100, 100, 100 };
+        table.presentationTimesUs = new long[] { 0, 66666, 33333, 100000 };
+        table.syncSamples = new int[] { 0, 3 };
+
+        SyncIndex index = SyncIndex.fromTable(table);
+        assertFalse(index.isModified());
+        assertEquals(2, index.size());
+        assertEquals(400, index.getOffset(index.find(100000)));
+        assertEquals(100, index.getOffset(index.find(99999)));
+        assertEquals(1, index.findCovered(Long.MAX_VALUE)); // Complete.
+    }
+
+    private static byte[] toBytes(SyncIndex index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,59 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TraceReplayTest {
+    private static byte[] record(int frames, long frameIntervalUs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SampleTrace.Writer writer = new SampleTrace.Writer(out, false);
+        for (int i = 0; i < frames; i++) {
+            writer.write(new Sample(new byte[1000 + i], i * 33333L, 0), i * frameIntervalUs * 1000);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static TraceReplay.Result replay(byte[] trace, long latencyUs, int failAt, boolean realTime)
+            throws IOException, InterruptedException {
+        LoopbackCodec codec = new LoopbackCodec(4, 4096, latencyUs, failAt);
+        TraceReplay replay = new TraceReplay(codec, null, null, realTime, null);
+        TraceReplay.Result result = replay.run(new SampleTrace.Reader(new ByteArrayInputStream(trace)), 5000);
+        codec.release();
+        return result;
+    }
+
+    @Test
+    public void replaysAsFastAsPossible() throws IOException, InterruptedException {
+        TraceReplay.Result result = replay(record(200, 33333), 0, LoopbackCodec.NO_ERROR, false);
+        assertEquals(200, result.samples);
+        assertEquals(200, result.outputs());
+        assertEquals(0, result.errors);
+        assertEquals(-1, result.allocations);
+        assertTrue(result.toString(), result.elapsedNs < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(result.latencyPercentileNs(0.5) <= result.latencyPercentileNs(0.99));
+        assertTrue(result.latencyPercentileNs(0.99) <= result.latencyPercentileNs(1));
+    }
+
+    @Test
+    public void keepsRecordedArrivalTimes() throws IOException, InterruptedException {
+        TraceReplay.Result result = replay(record(11, 3000), 1000, LoopbackCodec.NO_ERROR, true);
+        assertEquals(11, result.outputs());
+        assertTrue(result.toString(), result.elapsedNs >= TimeUnit.MILLISECONDS.toNanos(30));
+        // Each frame waits for nothing but its own decoding.
+        assertTrue(result.toString(), result.latencyPercentileNs(0.5) >= TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void stopsAtErrors() throws IOException, InterruptedException {
+        TraceReplay.Result result = replay(record(50, 0), 0, 10, false);
+        assertEquals(1, result.errors);
+        assertEquals(9, result.outputs());
+    }
+}
@@ -0,0 +1,47 @@
+package org.mozilla.gecko.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrickPlayTest {
+    @Test
+    public void feedsFreelyAtNormalSpeed() {
+        TrickPlay trick = new TrickPlay();
+        assertFalse(trick.setRate(1));
+        assertEquals(0, trick.getKeyframeStepUs());
+        trick.onFed(0);
+        trick.onFed(0);
+        assertEquals(0, trick.getFeedDelayMs(0));
+        assertFalse(trick.onOutput());
+    }
+
+    @Test
+    public void feedsOneKeyFrameAtATime() {
+        TrickPlay trick = new TrickPlay();
+        assertTrue(trick.setRate(-8));
+        assertEquals(-8 * TrickPlay.FRAME_MS * 1000, trick.getKeyframeStepUs());
+        assertEquals(0, trick.getFeedDelayMs(1000));
+
+        trick.onFed(1000);
+        assertEquals(TrickPlay.WAIT_FOR_OUTPUT, trick.getFeedDelayMs(1000));
+        assertTrue(trick.onOutput());
+        // Shown for FRAME_MS before the next.
+        assertEquals(TrickPlay.FRAME_MS - 30, trick.getFeedDelayMs(1030));
+        assertEquals(0, trick.getFeedDelayMs(1000 + TrickPlay.FRAME_MS));
+    }
+
+    @Test
+    public void ignoresOutputsOfFlushedFrames() {
+        TrickPlay trick = new TrickPlay();
+        trick.setRate(4);
+        trick.onFed(0);
+        trick.reset(); // Flushed before it came out.
+        assertFalse(trick.onOutput());
+        assertEquals(0, trick.getFeedDelayMs(0));
+
+        trick.onFed(0);
+        assertTrue(trick.setRate(1));
+        assertFalse(trick.onOutput());
+    }
+}
@@ -0,0 +1,103 @@
+package org.mozilla.remotedecoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventRingTest {
+    private static final class Recorder implements EventRing.Reader {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onEvent(int type, long timeMs, long a, long b, long c, Object ref1, Object ref2) {
+            events.add(type + "@" + timeMs + ":" + a + "," + b + "," + c + "," + ref1 + "," + ref2);
+        }
+    }
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(2, new EventRing(1).capacity());
+        assertEquals(8, new EventRing(8).capacity());
+        assertEquals(16, new EventRing(9).capacity());
+    }
+
+    @Test
+    public void drainsInOrderAndDropsWhenFull() {
+        EventRing ring = new EventRing(4);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, ring.offer(i, 100 + i, i, -i, Long.MAX_VALUE, "r" + i, null));
+        }
+        assertEquals(2, ring.getDropped());
+
+        Recorder recorder = new Recorder();
+        assertEquals(4, ring.drain(recorder));
+        assertEquals("0@100:0,0,9223372036854775807,r0,null", recorder.events.get(0));
+        assertEquals("3@103:3,-3,9223372036854775807,r3,null", recorder.events.get(3));
+        assertEquals(0, ring.drain(recorder));
+    }
+
+    @Test
+    public void reusesSlotsAcrossLaps() {
+        EventRing ring = new EventRing(4);
+        Recorder recorder = new Recorder();
+        for (int lap = 0; lap < 10; lap++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ring.offer(1, lap, i, 0, 0, null, "x"));
+            }
+            assertEquals(3, ring.drain(recorder));
+        }
+        assertEquals(30, recorder.events.size());
+        assertEquals("1@9:2,0,0,null,x", recorder.events.get(29));
+        assertEquals(0, ring.getDropped());
+    }
+
+    @Test
+    public void keepsEveryProducersOrderUnderContention() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 100000;
+        final EventRing ring = new EventRing(64);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        ring.offer(id, 0, i, i * 2, i * 3, null, null);
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        final long[] last = { -1, -1, -1, -1 };
+        final long[] received = new long[1];
+        final boolean[] consistent = { true };
+        EventRing.Reader reader = new EventRing.Reader() {
+            @Override
+            public void onEvent(int type, long timeMs, long a, long b, long c, Object ref1, Object ref2) {
+                // A torn record or a reordering would show up here.
+                if (a <= last[type] || b != a * 2 || c != a * 3) {
+                    consistent[0] = false;
+                }
+                last[type] = a;
+                received[0]++;
+            }
+        };
+        boolean alive = true;
+        while (alive) {
+            alive = false;
+            for (Thread t : threads) {
+                alive |= t.isAlive();
+            }
+            ring.drain(reader);
+        }
+        ring.drain(reader);
+
+        assertTrue(consistent[0]);
+        assertEquals((long) producers * perProducer, received[0] + ring.getDropped());
+    }
+}
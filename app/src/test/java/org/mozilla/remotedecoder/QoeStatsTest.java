@@ -0,0 +1,88 @@
+package org.mozilla.remotedecoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class QoeStatsTest {
+    @Test
+    public void accountsSessionTime() {
+        QoeStats stats = new QoeStats();
+        stats.start(0);
+        stats.onBuffering(100, true); // Initial buffering is part of joining.
+        stats.onReady(1200, true);
+        stats.onBitrate(1200, 1000000);
+        stats.onBuffering(5000, true); // Stall.
+        stats.onReady(5600, true);
+        stats.onBitrate(7600, 2000000);
+        stats.onSeek();
+        stats.onBuffering(9600, true); // Not a stall.
+        stats.onReady(10000, true);
+        stats.onLoadCompleted(1000000, 2000);
+        stats.onLoadCompleted(500, 0); // Cached, infinitely fast.
+        stats.onEnded(12000);
+
+        assertEquals(1200, stats.getJoinTimeMs());
+        assertEquals(9800, stats.getPlayMs());
+        assertEquals(1, stats.getRebufferCount());
+        assertEquals(600, stats.getRebufferMs());
+        assertEquals(600.0 / 10400, stats.getRebufferRatio(), 1e-9);
+        assertArrayEquals(new int[] { 0, 0, 1, 0, 0, 0 }, stats.getRebufferHistogram());
+        assertEquals(1, stats.getVariantSwitches());
+        assertEquals((5800L * 1000000 + 4000L * 2000000) / 9800, stats.getAverageBitrate());
+        assertEquals(1000500 * 8000L / 2000, stats.getAverageThroughput());
+        assertTrue(stats.hasEnded());
+
+        String json = stats.toJson(12000);
+        assertTrue(json, json.startsWith("{\"v\":1,\"durationMs\":12000,\"joinMs\":1200,\"playMs\":9800,"
+                + "\"pausedMs\":0,\"seekMs\":400,\"rebuffers\":1,\"rebufferMs\":600,\"rebufferRatio\":0.058,"
+                + "\"rebufferHist\":[0,0,1,0,0,0],\"bitrate\":{\"avg\":1408163,\"min\":1000000,"
+                + "\"max\":2000000,\"switches\":1},\"loads\":{\"count\":2,\"bytes\":1000500,"
+                + "\"throughput\":4002000,\"hist\":[0,0,0,0,1,0,1],\"errors\":0}"));
+    }
+
+    @Test
+    public void bufferingWhilePausedIsNoStall() {
+        QoeStats stats = new QoeStats();
+        stats.start(0);
+        stats.onReady(500, false); // Waiting for the user.
+        stats.onReady(2000, true);
+        assertEquals(2000, stats.getJoinTimeMs());
+        stats.onReady(3000, false);
+        stats.onBuffering(4000, false);
+        stats.onReady(4500, false);
+        stats.onReady(5000, true);
+        stats.onBuffering(6000, true);
+        stats.onReady(12000, true);
+        stats.onEnded(13000);
+
+        assertEquals(1000 + 1000 + 1000, stats.getPlayMs());
+        assertEquals(1, stats.getRebufferCount());
+        assertEquals(6000, stats.getRebufferMs());
+        assertArrayEquals(new int[] { 0, 0, 0, 0, 0, 1 }, stats.getRebufferHistogram());
+    }
+
+    @Test
+    public void reportsUnknownsBeforePlayback() throws IOException {
+        QoeStats stats = new QoeStats();
+        stats.start(1000);
+        stats.onLoadError();
+        stats.onFatalError(1500);
+
+        assertEquals(-1, stats.getJoinTimeMs());
+        assertEquals(0, stats.getRebufferRatio(), 0);
+        assertEquals(-1, stats.getAverageBitrate());
+        assertEquals(-1, stats.getBitrateEfficiency(), 0);
+        String json = stats.toJson(1500);
+        assertTrue(json, json.contains("\"min\":-1,\"max\":-1"));
+        assertTrue(json, json.endsWith("\"errors\":1},\"efficiency\":-1.0,\"droppedFrames\":0,\"fatal\":true}"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        stats.writeTo(new DataOutputStream(bytes), 1500);
+        assertEquals(1, bytes.toByteArray()[0]);
+    }
+}
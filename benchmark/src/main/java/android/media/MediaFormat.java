@@ -0,0 +1,56 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/** JVM shim of the Android class, for benchmarks. */
+public final class MediaFormat {
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+
+    private final Map<String, Object> mMap = new HashMap<>();
+
+    public boolean containsKey(String name) {
+        return mMap.containsKey(name);
+    }
+
+    public void setString(String name, String value) {
+        mMap.put(name, value);
+    }
+
+    public String getString(String name) {
+        return (String) mMap.get(name);
+    }
+
+    public void setInteger(String name, int value) {
+        mMap.put(name, value);
+    }
+
+    public int getInteger(String name) {
+        return (Integer) mMap.get(name);
+    }
+
+    public void setByteBuffer(String name, ByteBuffer bytes) {
+        mMap.put(name, bytes);
+    }
+
+    public ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) mMap.get(name);
+    }
+
+    public static MediaFormat createVideoFormat(String mime, int width, int height) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+}
@@ -0,0 +1,55 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package android.os;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/** JVM shim of the Android class, for benchmarks. Holds what {@link Parcel} can write. */
+public final class Bundle {
+    private final Map<String, Object> mMap = new LinkedHashMap<>();
+
+    public int size() {
+        return mMap.size();
+    }
+
+    public Set<String> keySet() {
+        return mMap.keySet();
+    }
+
+    public boolean containsKey(String key) {
+        return mMap.containsKey(key);
+    }
+
+    public Object get(String key) {
+        return mMap.get(key);
+    }
+
+    public void putString(String key, String value) {
+        mMap.put(key, value);
+    }
+
+    public String getString(String key) {
+        return (String) mMap.get(key);
+    }
+
+    public void putInt(String key, int value) {
+        mMap.put(key, value);
+    }
+
+    public int getInt(String key) {
+        Object value = mMap.get(key);
+        return value == null ? 0 : (Integer) value;
+    }
+
+    public void putByteArray(String key, byte[] value) {
+        mMap.put(key, value);
+    }
+
+    public byte[] getByteArray(String key) {
+        return (byte[]) mMap.get(key);
+    }
+}
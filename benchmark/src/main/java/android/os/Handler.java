@@ -0,0 +1,13 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package android.os;
+
+/** JVM shim of the Android class, for benchmarks. Runs posted work at once. */
+public class Handler {
+    public final boolean post(Runnable r) {
+        r.run();
+        return true;
+    }
+}
@@ -0,0 +1,208 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package android.os;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * JVM shim of the Android class, for benchmarks. Lays data out like the native
+ * Parcel: little endian, every item padded to 4 bytes, arrays and strings
+ * prefixed with their length or -1 for null, strings in UTF-16 with a null
+ * terminator, bundles as length, magic and typed key-value pairs.
+ */
+public final class Parcel {
+    private static final int BUNDLE_MAGIC = 0x4C444E42; // "BNDL"
+    private static final int VAL_STRING = 0;
+    private static final int VAL_INTEGER = 1;
+    private static final int VAL_BYTEARRAY = 13;
+
+    private byte[] mData = new byte[256];
+    private ByteBuffer mBuffer = wrap(mData);
+    private int mSize;
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void recycle() {
+        mBuffer.clear();
+        mSize = 0;
+    }
+
+    public int dataSize() {
+        return mSize;
+    }
+
+    public void setDataPosition(int pos) {
+        mBuffer.position(pos);
+    }
+
+    public void writeInt(int val) {
+        ensure(4).putInt(val);
+        grown();
+    }
+
+    public void writeLong(long val) {
+        ensure(8).putLong(val);
+        grown();
+    }
+
+    public int readInt() {
+        return mBuffer.getInt();
+    }
+
+    public long readLong() {
+        return mBuffer.getLong();
+    }
+
+    public void writeByteArray(byte[] b) {
+        writeByteArray(b, 0, b == null ? 0 : b.length);
+    }
+
+    public void writeByteArray(byte[] b, int offset, int len) {
+        if (b == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(len);
+        ensure(padded(len)).put(b, offset, len);
+        pad(len);
+    }
+
+    public byte[] createByteArray() {
+        int len = readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        mBuffer.get(b);
+        skip(padded(len) - len);
+        return b;
+    }
+
+    public void writeString(String val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        int len = val.length();
+        writeInt(len);
+        int bytes = (len + 1) * 2;
+        ByteBuffer buffer = ensure(padded(bytes));
+        for (int i = 0; i < len; i++) {
+            buffer.putChar(val.charAt(i));
+        }
+        buffer.putChar((char) 0);
+        pad(bytes);
+    }
+
+    public String readString() {
+        int len = readInt();
+        if (len < 0) {
+            return null;
+        }
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = mBuffer.getChar();
+        }
+        int bytes = (len + 1) * 2;
+        skip(padded(bytes) - len * 2);
+        return new String(chars);
+    }
+
+    public void writeBundle(Bundle val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        int lengthPos = mBuffer.position();
+        writeInt(0); // Patched below.
+        writeInt(BUNDLE_MAGIC);
+        int start = mBuffer.position();
+        writeInt(val.size());
+        for (String key : val.keySet()) {
+            writeString(key);
+            Object value = val.get(key);
+            if (value instanceof String) {
+                writeInt(VAL_STRING);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                writeInt(VAL_INTEGER);
+                writeInt((Integer) value);
+            } else if (value instanceof byte[]) {
+                writeInt(VAL_BYTEARRAY);
+                writeByteArray((byte[]) value);
+            } else {
+                throw new IllegalArgumentException("unsupported value of " + key);
+            }
+        }
+        mBuffer.putInt(lengthPos, mBuffer.position() - start);
+    }
+
+    public Bundle readBundle() {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (readInt() != BUNDLE_MAGIC) {
+            throw new IllegalStateException("bad bundle magic");
+        }
+        Bundle bundle = new Bundle();
+        int count = readInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString();
+            int type = readInt();
+            switch (type) {
+                case VAL_STRING:
+                    bundle.putString(key, readString());
+                    break;
+                case VAL_INTEGER:
+                    bundle.putInt(key, readInt());
+                    break;
+                case VAL_BYTEARRAY:
+                    bundle.putByteArray(key, createByteArray());
+                    break;
+                default:
+                    throw new IllegalStateException("unsupported type " + type);
+            }
+        }
+        return bundle;
+    }
+
+    private static ByteBuffer wrap(byte[] data) {
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int padded(int len) {
+        return (len + 3) & ~3;
+    }
+
+    private ByteBuffer ensure(int len) {
+        int pos = mBuffer.position();
+        if (pos + len > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, pos + len));
+            mBuffer = wrap(mData);
+            mBuffer.position(pos);
+        }
+        return mBuffer;
+    }
+
+    private void pad(int len) {
+        for (int i = len; i < padded(len); i++) {
+            mBuffer.put((byte) 0);
+        }
+        grown();
+    }
+
+    private void skip(int len) {
+        mBuffer.position(mBuffer.position() + len);
+    }
+
+    private void grown() {
+        mSize = Math.max(mSize, mBuffer.position());
+    }
+}
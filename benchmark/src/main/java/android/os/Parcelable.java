@@ -0,0 +1,16 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package android.os;
+
+/** JVM shim of the Android interface, for benchmarks. */
+public interface Parcelable {
+    interface Creator<T> {
+        T createFromParcel(Parcel source);
+        T[] newArray(int size);
+    }
+
+    int describeContents();
+    void writeToParcel(Parcel dest, int flags);
+}
@@ -0,0 +1,56 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer2.util.SlidingPercentile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bandwidth estimation behind adaptive HLS playback: the meter called for
+ * every read of a segment download, and the sliding percentile it keeps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BandwidthMeterBenchmark {
+    private static final int READS_PER_TRANSFER = 64;
+
+    private final DefaultBandwidthMeter mMeter = new DefaultBandwidthMeter();
+    private final SlidingPercentile mPercentile = new SlidingPercentile(DefaultBandwidthMeter.DEFAULT_MAX_WEIGHT);
+    private int mNext;
+
+    /** One segment download of {@link #READS_PER_TRANSFER} reads. */
+    @Benchmark
+    public long transfer() {
+        mMeter.onTransferStart(this, null);
+        for (int i = 0; i < READS_PER_TRANSFER; i++) {
+            mMeter.onBytesTransferred(this, 16 * 1024);
+        }
+        mMeter.onTransferEnd(this);
+        return mMeter.getBitrateEstimate();
+    }
+
+    @Benchmark
+    public float slidingPercentile() {
+        int i = mNext++;
+        mPercentile.addSample((int) Math.sqrt(1000 + (i & 1023)), 1000000f + (i * 7919 & 0xfffff));
+        return mPercentile.getPercentile(0.5f);
+    }
+}
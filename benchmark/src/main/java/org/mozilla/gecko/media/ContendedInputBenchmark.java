@@ -0,0 +1,101 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.os.Parcel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The input path of {@link CodecProxy}, marshaling the sample for a oneway binder
+ * call, entered by one thread or by several, as when audio and video of a session
+ * share a proxy: counted in an atomic state word as it is now, or under the proxy
+ * monitor as it used to be. The binder transaction itself is left out.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContendedInputBenchmark {
+    private static final int ACTIVE = 1;
+    private static final int ONE_INPUT = 4;
+
+    @State(Scope.Benchmark)
+    public static class Proxy {
+        private final AtomicInteger mState = new AtomicInteger(ACTIVE);
+
+        public int input(Sample sample, Parcel parcel) {
+            while (true) {
+                int word = mState.get();
+                if ((word & 3) != ACTIVE) {
+                    return -1;
+                }
+                if (mState.compareAndSet(word, word + ONE_INPUT)) {
+                    break;
+                }
+            }
+            try {
+                return marshal(sample, parcel);
+            } finally {
+                mState.addAndGet(-ONE_INPUT);
+            }
+        }
+
+        public synchronized int synchronizedInput(Sample sample, Parcel parcel) {
+            return marshal(sample, parcel);
+        }
+
+        private static int marshal(Sample sample, Parcel parcel) {
+            sample.detached = SampleChannel.isOversized(sample);
+            parcel.recycle();
+            sample.writeToParcel(parcel, 0);
+            sample.detached = false;
+            return parcel.dataSize();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Input {
+        final Sample sample = new Sample(new byte[4096], 0, 0);
+        final Parcel parcel = Parcel.obtain(); // Each binder call has its own.
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int uncontended(Proxy proxy, Input input) {
+        return proxy.input(input.sample, input.parcel);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int contended(Proxy proxy, Input input) {
+        return proxy.input(input.sample, input.parcel);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int uncontendedSynchronized(Proxy proxy, Input input) {
+        return proxy.synchronizedInput(input.sample, input.parcel);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int contendedSynchronized(Proxy proxy, Input input) {
+        return proxy.synchronizedInput(input.sample, input.parcel);
+    }
+}
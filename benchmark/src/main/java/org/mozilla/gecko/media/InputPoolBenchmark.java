@@ -0,0 +1,82 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Acquire and release of the reusable input buffers of a {@link SampleRing}. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputPoolBenchmark {
+    private static final int SLOTS = 32;
+    private static final int SLOT_SIZE = 64 * 1024;
+
+    @State(Scope.Thread)
+    public static class Local {
+        final SampleRing ring = new SampleRing(SLOTS, SLOT_SIZE, Long.MAX_VALUE, Long.MAX_VALUE);
+        long pts;
+    }
+
+    @State(Scope.Group)
+    public static class Shared {
+        SampleRing ring;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            ring = new SampleRing(SLOTS, SLOT_SIZE, Long.MAX_VALUE, Long.MAX_VALUE);
+        }
+    }
+
+    /** A slot going round on one thread: no waiting, only locking. */
+    @Benchmark
+    public Sample singleThread(Local local) throws InterruptedException {
+        Sample slot = local.ring.acquire(4096);
+        slot.set(4096, local.pts += 33333, 0);
+        local.ring.commit(slot);
+        Sample sample = local.ring.poll();
+        local.ring.release(sample);
+        return sample;
+    }
+
+    /** Never waits for a slot: a thread blocked at the end of an iteration would hang the run. */
+    @Benchmark
+    @Group("handoff")
+    public Sample produce(Shared shared) throws InterruptedException {
+        if (shared.ring.getQueuedSamples() == SLOTS) {
+            return null; // Only this thread fills the ring and the consumer releases at once,
+                         // so acquire() cannot block for long otherwise.
+        }
+        Sample slot = shared.ring.acquire(4096);
+        slot.set(4096, 0, 0);
+        shared.ring.commit(slot);
+        return slot;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    public Sample consume(Shared shared) {
+        Sample sample = shared.ring.poll();
+        if (sample != null) {
+            shared.ring.release(sample);
+        }
+        return sample;
+    }
+}
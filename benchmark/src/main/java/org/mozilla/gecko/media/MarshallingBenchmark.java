@@ -0,0 +1,88 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import android.media.MediaFormat;
+import android.os.Parcel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Parceling of {@link Sample} and {@link FormatParam}, as done for every binder call. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarshallingBenchmark {
+    @Param({ "1024", "65536", "262144" })
+    public int size;
+
+    private final Parcel mParcel = Parcel.obtain();
+    private Sample mHeapSample;
+    private Sample mMappedSample;
+    private Sample mDetachedSample;
+    private FormatParam mFormat;
+
+    @Setup
+    public void setUp() {
+        mHeapSample = new Sample(new byte[size], 33333, 0);
+        ByteBuffer direct = ByteBuffer.allocateDirect(size);
+        mMappedSample = new Sample(null, 0, 0);
+        mMappedSample.set(direct, 33333, 0);
+        mDetachedSample = new Sample(new byte[size], 33333, 0);
+        mDetachedSample.detached = true;
+
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", 3840, 2160);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(new byte[40]));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(new byte[8]));
+        mFormat = new FormatParam(format);
+    }
+
+    private Sample roundTrip(Sample sample) {
+        mParcel.recycle();
+        sample.writeToParcel(mParcel, 0);
+        mParcel.setDataPosition(0);
+        return Sample.CREATOR.createFromParcel(mParcel);
+    }
+
+    @Benchmark
+    public Sample heapSample() {
+        return roundTrip(mHeapSample);
+    }
+
+    /** Goes through the bounce buffer. */
+    @Benchmark
+    public Sample mappedSample() {
+        return roundTrip(mMappedSample);
+    }
+
+    /** Metadata only, the payload going over {@link SampleChannel}. */
+    @Benchmark
+    public Sample detachedSample() {
+        return roundTrip(mDetachedSample);
+    }
+
+    @Benchmark
+    public FormatParam format() {
+        mParcel.recycle();
+        mFormat.writeToParcel(mParcel, 0);
+        mParcel.setDataPosition(0);
+        return FormatParam.CREATOR.createFromParcel(mParcel);
+    }
+}
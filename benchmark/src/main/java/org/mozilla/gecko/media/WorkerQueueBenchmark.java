@@ -0,0 +1,90 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.media;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input queueing of the codecs sharing a worker thread in {@link MediaService}:
+ * per codec sample and input buffer queues, fed earliest deadline first by a
+ * {@link DeadlineScheduler}. Mirrors MediaService.Codec.ImplWorker without
+ * its Handler and codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkerQueueBenchmark {
+    private static final class Worker implements DeadlineScheduler.Task {
+        final Queue<Sample> inputSamples = new LinkedList<>();
+        final Queue<Integer> availableInputBuffers = new LinkedList<>();
+        final DeadlineScheduler.Clock clock = new DeadlineScheduler.Clock(CodecPriority.slackNs(CodecPriority.REALTIME));
+        long fed;
+
+        @Override
+        public long nextDeadlineNs() {
+            Sample sample = inputSamples.peek();
+            if (sample == null || availableInputBuffers.isEmpty()) {
+                return DeadlineScheduler.NO_DEADLINE;
+            }
+            return clock.deadlineNs(sample.presentationTimeUs);
+        }
+
+        @Override
+        public void runNext() {
+            availableInputBuffers.poll();
+            fed += inputSamples.poll().size;
+        }
+    }
+
+    @Param({ "1", "4", "16" })
+    public int codecs;
+
+    private final DeadlineScheduler mScheduler = new DeadlineScheduler();
+    private Worker[] mWorkers;
+    private Sample[] mSamples;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mWorkers = new Worker[codecs];
+        mSamples = new Sample[codecs];
+        for (int i = 0; i < codecs; i++) {
+            mWorkers[i] = new Worker();
+            mScheduler.add(mWorkers[i]);
+            mSamples[i] = new Sample(new byte[1], 0, 0);
+        }
+    }
+
+    /** One codec gets a sample and a buffer, then the scheduler drains. */
+    @Benchmark
+    public int inputAndDrain() {
+        int i = mNext;
+        mNext = (i + 1) % codecs;
+        Worker worker = mWorkers[i];
+        Sample sample = mSamples[i];
+        sample.presentationTimeUs += 33333;
+        worker.clock.observe(sample.presentationTimeUs, System.nanoTime());
+        worker.inputSamples.offer(sample);
+        worker.availableInputBuffers.offer(i & 7);
+        return mScheduler.drain();
+    }
+}